@@ -0,0 +1,577 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.midi.MidiAdapter;
+import com.levien.synthesizer.core.midi.MidiListener;
+import com.levien.synthesizer.core.midi.MidiListenerProxy;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Plays accompanying voices to the melody passing through it: follows the tempo, runs
+ * the model on every 16th-note tick and turns the voices into MIDI notes. Plain Java,
+ * the timer, the inference thread, the clock and the log are passed in, so the same
+ * engine runs in the app, on a desktop JVM or in virtual time, see VirtualScheduler.
+ *
+ * MIDI events have to arrive on the timer's thread, the clock messages of
+ * getClockInput() excepted.
+ */
+public class AccompanimentEngine extends MidiListenerProxy {
+
+    /**
+     * What to do when the voices of a tick are not ready by its deadline.
+     */
+    public enum DeadlinePolicy {
+        /** hold the previous chord on the late tick */
+        HOLD_PREVIOUS,
+        /** hold the previous chord and run the model only once per beat on sustained
+         * notes, until the ticks meet their deadlines again */
+        DEGRADE
+    }
+
+    /** MIDI channel of the accompanying voices, the melody keeps the channel it is played on */
+    public static final int ACCOMPANIMENT_CHANNEL = 1;
+
+    private static final String TAG = "AccompanimentEngine";
+
+    // time from the start of a tick until its voices have to sound
+    private static final long DEFAULT_DEADLINE_MS = 50;
+    // sustained ticks between model runs while degraded
+    private static final int DEGRADED_INFERENCE_INTERVAL = 4;
+    // ticks that have to meet their deadline before leaving the degraded mode
+    private static final int RECOVERY_TICKS = 16;
+
+    static private Note melodyOff_ = new Note(0, true);
+    // null until the model has been loaded in the background
+    private Accompanist accompanist_;
+    private boolean closed_ = false;
+
+    // applied to the accompanist once it is ready
+    private int sustainInferenceInterval_ = 1;
+    private boolean divergenceTracking_ = false;
+
+    // runs the ticks and the MIDI events
+    private final Scheduler timer_;
+    // the model runs here, so a slow inference cannot delay the tick timer
+    private final Executor inferenceExecutor_;
+    private final AccompanistLog log_;
+
+    private DeadlinePolicy deadlinePolicy_ = DeadlinePolicy.DEGRADE;
+    private long deadlineMs_ = DEFAULT_DEADLINE_MS;
+    // ticks run this long after their grid time, see setOnsetWindow()
+    private long onsetWindowNanos_ = 0;
+    private long tickCount_ = 0;
+    // tick whose voices are being computed, -1 if none
+    private long pendingTick_ = -1;
+    private boolean pendingTickLate_ = false;
+    private boolean degraded_ = false;
+    private int ticksOnTime_ = 0;
+    private final TickStats tickStats_ = new TickStats();
+
+    private TickClock tickClock_ = TickClock.SYSTEM;
+
+    // the README asks to play at about 60 bpm, the tracker starts from there
+    private final TempoTracker tempoTracker_ = new TempoTracker(60);
+    // drives the ticks instead of the tracker while an external MIDI clock is running
+    private final MidiClockFollower clockFollower_ = new MidiClockFollower();
+
+    // takes the clock messages on the thread they arrive on, so they are timestamped
+    // without the delay of the timer
+    private final MidiListener clockInput_ = new MidiAdapter() {
+        public void onTimingClock() {
+            clockFollower_.onClock(tickClock_.nanoTime());
+        }
+
+        public void onStart() {
+            log_.i(TAG, "MIDI clock start");
+            clockFollower_.onStart();
+        }
+
+        public void onContinue() {
+            log_.i(TAG, "MIDI clock continue");
+            clockFollower_.onContinue();
+        }
+
+        public void onStop() {
+            log_.i(TAG, "MIDI clock stop: " + clockFollower_);
+            clockFollower_.onStop();
+        }
+    };
+
+    private Note melodyNote_ = melodyOff_;
+    private int velocity_ = 100;
+    private boolean melodyStruck = false;
+    // set by suspendTicks(), the next tick starts a new phrase
+    private boolean restartPhrase_ = false;
+
+    // plays the accompanying notes, only the changes from tick to tick
+    private final VoiceTransition voices_ = new VoiceTransition(ACCOMPANIMENT_CHANNEL);
+
+    Runnable deadlineRunnable = new Runnable() {
+        public void run() {
+            if (pendingTick_ < 0 || pendingTickLate_)
+                return;
+            // the previous chord keeps sounding, the result is dropped when it arrives
+            pendingTickLate_ = true;
+            tickStats_.countLate();
+            onDeadlineMissed();
+        }
+    };
+
+    Runnable metronomRunnable = new Runnable() {
+
+        private static final String TAG = "metronomRunnable";
+
+        private int beatPitch_ = 160;
+        private int bpm_ = 80;
+        private int beatDuration_ = 100;
+        private int velocity_ = 10;
+
+
+        private long beatOffTime_ = 1;
+
+        public void run() {
+            /*return;
+            long millis = System.currentTimeMillis();
+            if (beatOffTime_ > 0 && millis >= beatOffTime_) {
+                listener_.onNoteOff(0, beatPitch_, 0);
+                beatOffTime_ = 0;
+                log_.i(TAG, "metronom off at " + millis);
+
+            }
+            else if (beatOffTime_ == 0)
+            {
+                listener_.onNoteOn(0, beatPitch_, velocity_);
+                beatOffTime_ = millis + beatDuration_;
+                timer_.schedule(this, beatOffTime_);
+                log_.i(TAG, "metronom on, off at " + beatOffTime_);
+            }*/
+        }
+    };
+
+    Runnable timerRunnable = new Runnable() {
+
+        private static final String TAG = "MidiListenerRunnable";
+
+        // -1 : currently no voices active
+        // 0-4: current tick
+        private int currentTickOfQuarter_ = -1;
+
+        // tick clock times in nanoseconds
+        private long lastTickTime_ = 0;
+
+        private long nextTickBeginTime_ = 0;
+
+        private Note lastMelodyNote_ = melodyOff_;
+
+        @Override
+        public void run() {
+            // plain synth until the model is ready
+            if (accompanist_ == null)
+                return;
+
+            if (restartPhrase_) {
+                restartPhrase_ = false;
+                currentTickOfQuarter_ = -1;
+                nextTickBeginTime_ = 0;
+                lastMelodyNote_ = melodyOff_;
+            }
+
+            long now = tickClock_.nanoTime();
+            TickSource ticks = tickSource(now);
+            long tickDuration = ticks.getTickNanos();
+
+            // record the last played note
+            if (melodyNote_.getKey() != 0)
+                lastMelodyNote_ = melodyNote_;
+
+            // follow the tempo and phase estimated since the last tick
+            if (currentTickOfQuarter_ >= 0)
+                nextTickBeginTime_ = ticks.nextTickTime(lastTickTime_ + tickDuration / 2)
+                        + onsetWindowNanos_;
+
+            if (now < nextTickBeginTime_)
+            {
+                // woken early by a note, by a tempo change or by the timer's rounding
+                if (currentTickOfQuarter_ >= 0)
+                    postTick(this, nextTickBeginTime_ - now);
+                return;
+            }
+
+            if (currentTickOfQuarter_ == 4 || currentTickOfQuarter_ == -1)
+            {
+                timer_.schedule(metronomRunnable, 0);
+                // continue with next quarter, if melody is played
+                if (melodyNote_.getKey() > 0)
+                {
+                    currentTickOfQuarter_ = 0;
+                }
+                else
+                {
+                    currentTickOfQuarter_ = -1;
+                    lastMelodyNote_ = melodyNote_;
+                    // no melody played, stop accompanying
+                    voices_.release(velocity_, listener_);
+                    // voices still being computed belong to the finished phrase
+                    pendingTick_ = -1;
+                    timer_.cancel(deadlineRunnable);
+                    // the next melody is a new phrase, which may be served from the cache
+                    final Accompanist accompanist = accompanist_;
+                    inferenceExecutor_.execute(new Runnable() {
+                        public void run() {
+                            accompanist.reset();
+                            if (accompanist.getPhraseCache() != null)
+                                log_.i(TAG, accompanist.getPhraseCache().toString());
+                            if (accompanist.getSkipStats() != null)
+                                log_.i(TAG, accompanist.getSkipStats().toString());
+                        }
+                    });
+                    log_.i(TAG, tickStats_.toString());
+                    log_.i(TAG, tempoTracker_.toString());
+                    log_.i(TAG, clockFollower_.toString());
+                }
+            }
+
+            if (currentTickOfQuarter_ >= 0) {
+
+                if (lastMelodyNote_.getKey() != 0)
+                {
+                    requestVoices(lastMelodyNote_, now);
+                    // the melody note is not new anymore
+                    lastMelodyNote_ = new Note(lastMelodyNote_.getKey(), false);
+                    melodyNote_ = new Note(melodyNote_.getKey(), false);
+                }
+
+                lastTickTime_ = now;
+                now = tickClock_.nanoTime();
+                currentTickOfQuarter_ += 1;
+                // play next tick, the grid may skip a tick if the timer is late
+                nextTickBeginTime_ = ticks.nextTickTime(lastTickTime_ + tickDuration / 2)
+                        + onsetWindowNanos_;
+                log_.i(TAG, "now: " + currentTickOfQuarter_ + "=" + now
+                        + " next : " + nextTickBeginTime_);
+                postTick(this, nextTickBeginTime_ - now);
+            }
+        }
+    };
+
+    // the external clock while it runs, else the tempo of the melody
+    private TickSource tickSource(long now) {
+        if (clockFollower_.isLocked(now))
+            return clockFollower_;
+        return tempoTracker_;
+    }
+
+    private void postTick(Runnable tick, long delayNanos) {
+        timer_.cancel(tick);
+        timer_.schedule(tick, Math.max(0, delayNanos));
+    }
+
+    // hands the melody of a tick to the inference thread, its voices are played when
+    // they are ready before the tick's deadline
+    private void requestVoices(final Note melodyNote, final long tickStartNanos) {
+        final Accompanist accompanist = accompanist_;
+        final TickClock clock = tickClock_;
+        if (pendingTick_ >= 0) {
+            // the model is still busy with an earlier tick, let this one pass
+            tickStats_.countDropped();
+            onDeadlineMissed();
+            inferenceExecutor_.execute(new Runnable() {
+                public void run() {
+                    accompanist.holdVoices(melodyNote);
+                }
+            });
+            return;
+        }
+        final long tick = ++tickCount_;
+        pendingTick_ = tick;
+        pendingTickLate_ = false;
+        timer_.schedule(deadlineRunnable, deadlineMs_ * 1000000);
+        inferenceExecutor_.execute(new Runnable() {
+            public void run() {
+                long startTime = clock.nanoTime();
+                final List<Note> voices = accompanist.getNextVoices(melodyNote);
+                tickStats_.getInferenceLatency().record(clock.nanoTime() - startTime);
+                timer_.schedule(new Runnable() {
+                    public void run() {
+                        onVoicesReady(tick, voices, tickStartNanos);
+                    }
+                }, 0);
+            }
+        });
+    }
+
+    private void onVoicesReady(long tick, List<Note> notesInNewTick, long tickStartNanos) {
+        if (closed_ || tick != pendingTick_)
+            return;
+        pendingTick_ = -1;
+        timer_.cancel(deadlineRunnable);
+        tickStats_.getTickLatency().record(tickClock_.nanoTime() - tickStartNanos);
+        if (pendingTickLate_)
+            return;
+        onDeadlineMet();
+        voices_.moveTo(notesInNewTick, velocity_, listener_);
+    }
+
+    private void onDeadlineMissed() {
+        ticksOnTime_ = 0;
+        if (deadlinePolicy_ == DeadlinePolicy.DEGRADE && !degraded_) {
+            degraded_ = true;
+            log_.w(TAG, "missed tick deadline, degrading: " + tickStats_);
+            postSustainInferenceInterval(
+                    Math.max(sustainInferenceInterval_, DEGRADED_INFERENCE_INTERVAL));
+        }
+    }
+
+    private void onDeadlineMet() {
+        tickStats_.countOnTime();
+        if (degraded_ && ++ticksOnTime_ >= RECOVERY_TICKS) {
+            degraded_ = false;
+            log_.i(TAG, "ticks in time again, full quality");
+            postSustainInferenceInterval(sustainInferenceInterval_);
+        }
+    }
+
+    private void postSustainInferenceInterval(final int ticks) {
+        final Accompanist accompanist = accompanist_;
+        if (accompanist == null)
+            return;
+        inferenceExecutor_.execute(new Runnable() {
+            public void run() {
+                accompanist.setSustainInferenceInterval(ticks);
+            }
+        });
+    }
+
+    /**
+     * Creates an engine that passes all MIDI events on to listener and adds the
+     * accompanying voices to it. Until setAccompanist() is called, the melody is
+     * passed on without accompaniment.
+     *
+     * @param listener: the listener to forward the midi events to
+     * @param timer: runs the ticks, the MIDI events have to arrive on its thread
+     * @param inferenceExecutor: runs the model, one task at a time
+     * @param log: receives the diagnostics of the engine
+     */
+    public AccompanimentEngine(MidiListener listener, Scheduler timer,
+                               Executor inferenceExecutor, AccompanistLog log) {
+        super(listener);
+        timer_ = timer;
+        inferenceExecutor_ = inferenceExecutor;
+        log_ = log;
+        timer_.schedule(timerRunnable, 0);
+    }
+
+    /**
+     * Starts accompanying with the accompanist, which is used on the inference executor
+     * from now on and closed with this engine. Must be called on the timer's thread.
+     */
+    public void setAccompanist(Accompanist accompanist) {
+        if (closed_) {
+            accompanist.close();
+            return;
+        }
+        accompanist.setSustainInferenceInterval(sustainInferenceInterval_);
+        accompanist.setDivergenceTracking(divergenceTracking_);
+        accompanist_ = accompanist;
+    }
+
+    /**
+     * @return true, if the model is loaded and the melody gets accompanied
+     */
+    public boolean isReady() {
+        return accompanist_ != null;
+    }
+
+    /**
+     * Sets how often the model runs while the melody note is sustained, see
+     * Accompanist.setSustainInferenceInterval().
+     *
+     * @param ticks: 1 runs the model on every 16th, 4 only once per beat
+     */
+    public void setSustainInferenceInterval(int ticks) {
+        sustainInferenceInterval_ = ticks;
+        if (!degraded_)
+            postSustainInferenceInterval(ticks);
+    }
+
+    /**
+     * Measures how far skipped ticks make the voices diverge, costs an extra
+     * inference per tick once a tick was skipped.
+     */
+    public void setDivergenceTracking(final boolean enabled) {
+        divergenceTracking_ = enabled;
+        final Accompanist accompanist = accompanist_;
+        if (accompanist != null) {
+            inferenceExecutor_.execute(new Runnable() {
+                public void run() {
+                    accompanist.setDivergenceTracking(enabled);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets the clock the ticks are scheduled and timed on, e.g. an AudioTickClock to
+     * follow the audio the synth renders. Defaults to System.nanoTime().
+     */
+    public void setTickClock(TickClock clock) {
+        tickClock_ = clock;
+    }
+
+    /**
+     * @return the tempo estimated from the melody, it drives the tick period and phase
+     */
+    public TempoTracker getTempoTracker() {
+        return tempoTracker_;
+    }
+
+    /**
+     * @return the grid the ticks are played on now, the external clock while it runs,
+     * else the tempo of the melody
+     */
+    public TickSource getTickSource() {
+        return tickSource(tickClock_.nanoTime());
+    }
+
+    /**
+     * @return the follower of an external MIDI clock, it drives the ticks while running
+     */
+    public MidiClockFollower getClockFollower() {
+        return clockFollower_;
+    }
+
+    /**
+     * Takes the timing clock, start, continue and stop messages of an external MIDI
+     * clock, e.g. from USB MIDI. They are not forwarded to the synth, so connect it where
+     * it sees every message exactly once.
+     */
+    public MidiListener getClockInput() {
+        return clockInput_;
+    }
+
+    /**
+     * Sets what happens to ticks whose voices are not ready in time.
+     */
+    public void setDeadlinePolicy(DeadlinePolicy policy) {
+        deadlinePolicy_ = policy;
+    }
+
+    /**
+     * @param deadlineMs: time from the start of a tick until its voices have to sound
+     */
+    public void setTickDeadline(long deadlineMs) {
+        deadlineMs_ = deadlineMs;
+    }
+
+    /**
+     * Delays the ticks after their grid time, so that a melody note played up to the
+     * window after the beat still gets its voices on the tick of the beat instead of
+     * waiting for the next one. Every tick, and so every chord, sounds this much later.
+     *
+     * @param windowMs: time from the grid time until a tick runs, 0 by default
+     */
+    public void setOnsetWindow(long windowMs) {
+        onsetWindowNanos_ = windowMs * 1000000;
+    }
+
+    /**
+     * @return overrun counters and latency histograms of the ticks played so far
+     */
+    public TickStats getTickStats() {
+        return tickStats_;
+    }
+
+    /**
+     * Stops the ticks while the synth is suspended because nothing has sounded for a
+     * while, in case the engine still counts a melody note as held. The next melody note
+     * starts a new phrase. Must be called on the timer's thread.
+     */
+    public void suspendTicks() {
+        timer_.cancel(timerRunnable);
+        timer_.cancel(deadlineRunnable);
+        pendingTick_ = -1;
+        melodyNote_ = melodyOff_;
+        restartPhrase_ = true;
+        if (!voices_.getSounding().isEmpty())
+            voices_.release(velocity_, listener_);
+        if (accompanist_ != null) {
+            final Accompanist accompanist = accompanist_;
+            inferenceExecutor_.execute(new Runnable() {
+                public void run() {
+                    accompanist.reset();
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the accompaniment and releases the model. Must be called on the timer's
+     * thread.
+     */
+    public void close() {
+        closed_ = true;
+        timer_.cancel(timerRunnable);
+        timer_.cancel(deadlineRunnable);
+        pendingTick_ = -1;
+        voices_.release(velocity_, listener_);
+        if (accompanist_ != null) {
+            // after the tick the inference thread may still be working on
+            final Accompanist accompanist = accompanist_;
+            inferenceExecutor_.execute(new Runnable() {
+                public void run() {
+                    closeAccompanist(accompanist);
+                }
+            });
+            accompanist_ = null;
+        }
+    }
+
+    /**
+     * Releases the accompanist when the engine is closed, called on the inference
+     * executor after the last tick.
+     */
+    protected void closeAccompanist(Accompanist accompanist) {
+        accompanist.close();
+    }
+
+    /**
+     * @return true once close() was called
+     */
+    protected boolean isClosed() {
+        return closed_;
+    }
+
+    @Override
+    public void onNoteOff(int channel, int note, int velocity) {
+        log_.i(TAG, "Melody off: " + melodyNote_.getKey());
+        melodyNote_ = melodyOff_;
+        listener_.onNoteOff(channel, note, velocity);
+    }
+
+    @Override
+    public void onNoteOn(int channel, int note, int velocity) {
+        tempoTracker_.onNoteOn(tickClock_.nanoTime());
+        melodyNote_ = new Note(note, true);
+        log_.i(TAG, "Melody on: " + melodyNote_.getKey());
+        velocity_ = velocity;
+        timer_.scheduleFirst(timerRunnable);
+        listener_.onNoteOn(channel, note, velocity);
+    }
+
+}
\ No newline at end of file
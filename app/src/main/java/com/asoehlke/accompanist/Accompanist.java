@@ -0,0 +1,71 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import java.util.List;
+
+/**
+ * Creates accompanying voices to a melody, one 16th-note tick at a time. Instances keep
+ * the state of the phrase and are not thread-safe.
+ */
+public interface Accompanist {
+
+    /**
+     * @param melodyNote the melody on this tick, struck if it starts here
+     * @return the accompanying voices on this tick, struck if they start here
+     */
+    List<Note> getNextVoices(Note melodyNote);
+
+    /**
+     * Keeps the voices of the previous tick and strikes nothing, for a tick that has
+     * no time to run the model.
+     */
+    List<Note> holdVoices(Note melodyNote);
+
+    /**
+     * Forgets the melody played so far, the next tick starts a new phrase.
+     */
+    void reset();
+
+    /**
+     * Releases the model or connection, the accompanist cannot be used afterwards.
+     */
+    void close();
+
+    /**
+     * Lets the accompanist hold the voices on sustained ticks instead of running the
+     * model on each, see TensorFlowAccompanist. Ignored by accompanists that cannot skip.
+     *
+     * @param interval ticks between model runs on sustained notes, 1 for full quality
+     */
+    void setSustainInferenceInterval(int interval);
+
+    /**
+     * Counts how far skipped ticks make the voices diverge, see getSkipStats().
+     * Ignored by accompanists that cannot skip.
+     */
+    void setDivergenceTracking(boolean enabled);
+
+    /**
+     * @return the counts of run and skipped ticks, null if the accompanist does not skip
+     */
+    SkipStats getSkipStats();
+
+    /**
+     * @return the cache of the results of played phrases, null if there is none
+     */
+    PhraseCache getPhraseCache();
+}
@@ -0,0 +1,37 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+/**
+ * An Accompanist without the optional tuning: it runs on every tick and has no
+ * phrase cache. Subclasses only implement the accompaniment itself.
+ */
+public abstract class AccompanistAdapter implements Accompanist {
+
+    public void setSustainInferenceInterval(int interval) {
+    }
+
+    public void setDivergenceTracking(boolean enabled) {
+    }
+
+    public SkipStats getSkipStats() {
+        return null;
+    }
+
+    public PhraseCache getPhraseCache() {
+        return null;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Scores an accompanist against the lower voices of reference chorales, e.g. to tune
+ * the strike threshold or to check that an optimisation keeps the voices.
+ *
+ * The model is not thread-safe, so every worker thread creates its own instance and
+ * pulls whole chorales from the shared corpus until it is exhausted. Neither this nor
+ * SequenceAccompanist depends on Android, so it runs on a plain JVM as long as the
+ * factory does, e.g. with RemoteAccompanists of an AccompanistServer.
+ */
+public class AccompanistEvaluation {
+
+    /**
+     * Creates one accompanist per worker thread, called on that thread.
+     */
+    public interface Factory {
+        Accompanist create() throws Exception;
+    }
+
+    /**
+     * Agreement of the generated voices with the reference, summed over voice ticks.
+     * Only ticks on which the reference voice sounds are scored.
+     */
+    public static class Scores {
+        private long chorales = 0;
+        private long ticks = 0;
+        private long voiceTicks = 0;
+        private long keyMatches = 0;
+        private long pitchClassMatches = 0;
+        private long strikesMatched = 0;
+        private long strikesGenerated = 0;
+        private long strikesReference = 0;
+
+        void add(Chorale chorale, Note[][] generated) {
+            chorales++;
+            ticks += chorale.getLength();
+            Note[][] reference = chorale.getVoices();
+            for (int tick = 0; tick < reference.length; tick++) {
+                for (int v = 0; v < Chorale.ACCOMPANYING_VOICES; v++) {
+                    Note expected = reference[tick][v];
+                    if (expected.getKey() == 0)
+                        continue;
+                    Note actual = generated[tick] != null && v < generated[tick].length
+                            ? generated[tick][v] : null;
+                    voiceTicks++;
+                    if (expected.getStrike())
+                        strikesReference++;
+                    if (actual == null)
+                        continue;
+                    if (actual.getKey() == expected.getKey())
+                        keyMatches++;
+                    if ((actual.getKey() - expected.getKey()) % 12 == 0)
+                        pitchClassMatches++;
+                    if (actual.getStrike()) {
+                        strikesGenerated++;
+                        if (expected.getStrike())
+                            strikesMatched++;
+                    }
+                }
+            }
+        }
+
+        void add(Scores other) {
+            chorales += other.chorales;
+            ticks += other.ticks;
+            voiceTicks += other.voiceTicks;
+            keyMatches += other.keyMatches;
+            pitchClassMatches += other.pitchClassMatches;
+            strikesMatched += other.strikesMatched;
+            strikesGenerated += other.strikesGenerated;
+            strikesReference += other.strikesReference;
+        }
+
+        public long getChorales() { return chorales; }
+
+        /** melody ticks fed into the model */
+        public long getTicks() { return ticks; }
+
+        /** share of voice ticks with exactly the reference key */
+        public double getKeyAccuracy() {
+            return voiceTicks == 0 ? 0 : (double) keyMatches / voiceTicks;
+        }
+
+        /** share of voice ticks with the reference key in any octave */
+        public double getPitchClassAccuracy() {
+            return voiceTicks == 0 ? 0 : (double) pitchClassMatches / voiceTicks;
+        }
+
+        /** share of generated strikes on which the reference voice starts a note */
+        public double getStrikePrecision() {
+            return strikesGenerated == 0 ? 0 : (double) strikesMatched / strikesGenerated;
+        }
+
+        /** share of reference note starts on which a strike was generated */
+        public double getStrikeRecall() {
+            return strikesReference == 0 ? 0 : (double) strikesMatched / strikesReference;
+        }
+
+        public double getStrikeF1() {
+            double precision = getStrikePrecision();
+            double recall = getStrikeRecall();
+            return precision + recall == 0 ? 0 : 2 * precision * recall / (precision + recall);
+        }
+
+        public String toString() {
+            return String.format("chorales=%d ticks=%d key=%.3f pitch class=%.3f"
+                            + " strike precision=%.3f recall=%.3f F1=%.3f",
+                    chorales, ticks, getKeyAccuracy(), getPitchClassAccuracy(),
+                    getStrikePrecision(), getStrikeRecall(), getStrikeF1());
+        }
+    }
+
+    /**
+     * The scores and the speed of one evaluation.
+     */
+    public static class Run {
+        private final int threads;
+        private final long nanos;
+        private final Scores scores;
+
+        Run(int threads, long nanos, Scores scores) {
+            this.threads = threads;
+            this.nanos = nanos;
+            this.scores = scores;
+        }
+
+        public int getThreads() { return threads; }
+
+        /** wall time of the evaluation, including creating the models */
+        public long getNanos() { return nanos; }
+
+        public Scores getScores() { return scores; }
+
+        public double getTicksPerSecond() {
+            return nanos == 0 ? 0 : scores.getTicks() * 1e9 / nanos;
+        }
+
+        public String toString() {
+            return String.format("threads=%d %.0f ticks/s %s", threads, getTicksPerSecond(),
+                    scores);
+        }
+    }
+
+    private final Factory factory;
+
+    public AccompanistEvaluation(Factory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Accompanies and scores every chorale of the corpus.
+     *
+     * @param corpus  chorales, read by the worker threads as they need them
+     * @param threads worker threads, each with its own accompanist
+     */
+    public Run evaluate(Iterator<Chorale> corpus, int threads)
+            throws InterruptedException, ExecutionException {
+        final Iterator<Chorale> source = corpus;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long startTime = System.nanoTime();
+        try {
+            List<Future<Scores>> workers = new ArrayList<Future<Scores>>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(new Callable<Scores>() {
+                    public Scores call() throws Exception {
+                        SequenceAccompanist sequencer = new SequenceAccompanist(factory.create());
+                        Scores scores = new Scores();
+                        Chorale chorale;
+                        while ((chorale = next(source)) != null) {
+                            scores.add(chorale, sequencer.accompany(chorale.getMelody()));
+                        }
+                        return scores;
+                    }
+                }));
+            }
+            Scores total = new Scores();
+            for (Future<Scores> worker : workers) {
+                total.add(worker.get());
+            }
+            return new Run(threads, System.nanoTime() - startTime, total);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Evaluates the same chorales with each number of threads.
+     *
+     * @return one run per thread count, in the given order
+     */
+    public List<Run> measureScaling(List<Chorale> chorales, int[] threadCounts)
+            throws InterruptedException, ExecutionException {
+        List<Run> runs = new ArrayList<Run>();
+        for (int threads : threadCounts) {
+            runs.add(evaluate(chorales.iterator(), threads));
+        }
+        return runs;
+    }
+
+    /**
+     * @return a table of the runs with their speed-up over the first one
+     */
+    public static String report(List<Run> runs) {
+        StringBuilder report = new StringBuilder("threads   ticks/s  speed-up\n");
+        double base = runs.isEmpty() ? 0 : runs.get(0).getTicksPerSecond();
+        for (Run run : runs) {
+            report.append(String.format("%7d %9.0f %8.2fx\n", run.getThreads(),
+                    run.getTicksPerSecond(), base == 0 ? 0 : run.getTicksPerSecond() / base));
+        }
+        if (!runs.isEmpty())
+            report.append(runs.get(runs.size() - 1).getScores());
+        return report.toString();
+    }
+
+    private static Chorale next(Iterator<Chorale> corpus) {
+        synchronized (corpus) {
+            return corpus.hasNext() ? corpus.next() : null;
+        }
+    }
+}
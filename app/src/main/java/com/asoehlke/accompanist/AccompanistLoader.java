@@ -0,0 +1,187 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import android.content.res.AssetManager;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Loads the TensorFlow model on a background thread and warms it up, so that
+ * neither the UI thread nor the first real tick pays for parsing the graph and
+ * for the lazy initialisation of the session.
+ */
+public class AccompanistLoader {
+
+    /**
+     * Receives the result of loading, called on the handler given to load().
+     */
+    public interface Callback {
+        void onAccompanistReady(TensorFlowAccompanist accompanist);
+
+        void onAccompanistFailed(Throwable error);
+    }
+
+    private static final String TAG = "AccompanistLoader";
+
+    // the model and its node names
+    private static final String MODEL_FILENAME = "BachAccompanist.pb";
+    private static final int INPUT_SIZE = 2;
+    private static final String INPUT_NAME = "input";
+    private static final String OUTPUT_NAME = "output";
+    private static final String INIT_STATES_NAME = "init_states";
+    private static final String FINAL_STATES_NAME = "final_states";
+
+    // number of dummy inferences run before the accompanist is handed out
+    private static final int WARM_UP_INFERENCES = 4;
+
+    // melody ticks kept in the phrase cache, each one holds a copy of the LSTM state (~7kB)
+    private static final int PHRASE_CACHE_TICKS = 1024;
+
+    /**
+     * Starts loading the model on a new background thread.
+     *
+     * @param assets: android assets containing the model
+     * @param phraseCacheFile: phrases saved by an earlier run, may be null or not exist yet
+     * @param callbackHandler: handler to deliver the callback on
+     * @param callback: notified when the accompanist is ready or loading failed
+     * @return a future that completes with the warmed-up accompanist
+     */
+    public static Future<TensorFlowAccompanist> load(final AssetManager assets,
+                                                     final File phraseCacheFile,
+                                                     final Handler callbackHandler,
+                                                     final Callback callback) {
+        final FutureTask<TensorFlowAccompanist> task = new FutureTask<TensorFlowAccompanist>(
+                new Callable<TensorFlowAccompanist>() {
+                    public TensorFlowAccompanist call() {
+                        TensorFlowAccompanist accompanist = createAndWarmUp(assets);
+                        accompanist.setPhraseCache(loadPhraseCache(accompanist, phraseCacheFile));
+                        return accompanist;
+                    }
+                }) {
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                TensorFlowAccompanist accompanist = null;
+                Throwable error = null;
+                try {
+                    accompanist = get();
+                } catch (Exception e) {
+                    error = e.getCause() != null ? e.getCause() : e;
+                }
+                final TensorFlowAccompanist result = accompanist;
+                final Throwable failure = error;
+                callbackHandler.post(new Runnable() {
+                    public void run() {
+                        if (failure == null) {
+                            callback.onAccompanistReady(result);
+                        } else {
+                            Log.e(TAG, "loading the accompanist failed", failure);
+                            callback.onAccompanistFailed(failure);
+                        }
+                    }
+                });
+            }
+        };
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                task.run();
+            }
+        }, TAG);
+        thread.start();
+        return task;
+    }
+
+    /**
+     * Writes the phrase cache on a background thread, so the next start can replay
+     * the phrases without inference.
+     */
+    public static void savePhraseCache(final PhraseCache cache, final File file) {
+        if (cache == null || file == null)
+            return;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                File tmpFile = new File(file.getPath() + ".tmp");
+                try {
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile));
+                    try {
+                        cache.save(out);
+                    } finally {
+                        out.close();
+                    }
+                    if (!tmpFile.renameTo(file))
+                        throw new IOException("cannot rename " + tmpFile);
+                    Log.i(TAG, "saved " + cache);
+                } catch (IOException e) {
+                    Log.w(TAG, "saving the phrase cache failed", e);
+                    tmpFile.delete();
+                }
+            }
+        }, TAG);
+        thread.start();
+    }
+
+    private static PhraseCache loadPhraseCache(TensorFlowAccompanist accompanist, File file) {
+        PhraseCache cache = accompanist.createPhraseCache(PHRASE_CACHE_TICKS, MODEL_FILENAME);
+        if (file != null && file.exists()) {
+            try {
+                InputStream in = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    cache.load(in);
+                } finally {
+                    in.close();
+                }
+                Log.i(TAG, "loaded " + cache.size() + " cached melody ticks");
+            } catch (IOException e) {
+                Log.w(TAG, "ignoring phrase cache " + file, e);
+                cache = accompanist.createPhraseCache(PHRASE_CACHE_TICKS, MODEL_FILENAME);
+            }
+        }
+        return cache;
+    }
+
+    private static TensorFlowAccompanist createAndWarmUp(AssetManager assets) {
+        long startTime = System.nanoTime();
+        TensorFlowAccompanist accompanist = TensorFlowAccompanist.create(assets,
+                MODEL_FILENAME, INPUT_SIZE,
+                INPUT_NAME, OUTPUT_NAME,
+                INIT_STATES_NAME, FINAL_STATES_NAME);
+        long loadedTime = System.nanoTime();
+        accompanist.warmUp(WARM_UP_INFERENCES);
+        long warmTime = System.nanoTime();
+        Log.i(TAG, "model loaded in " + (loadedTime - startTime) / 1000000 + "ms, warm-up took "
+                + (warmTime - loadedTime) / 1000000 + "ms");
+        return accompanist;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+/**
+ * Receives the diagnostics of the accompaniment, e.g. android.util.Log in the app.
+ */
+public interface AccompanistLog {
+
+    AccompanistLog SILENT = new AccompanistLog() {
+        public void i(String tag, String message) {
+        }
+
+        public void w(String tag, String message) {
+        }
+    };
+
+    AccompanistLog CONSOLE = new AccompanistLog() {
+        public void i(String tag, String message) {
+            System.out.println(tag + ": " + message);
+        }
+
+        public void w(String tag, String message) {
+            System.err.println(tag + ": " + message);
+        }
+    };
+
+    void i(String tag, String message);
+
+    void w(String tag, String message);
+}
@@ -0,0 +1,344 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.stats.LatencyHistogram;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accompanies many players at once with one model. Every connection is a session with
+ * its own LSTM state; the melody ticks that sessions send at the same time are run
+ * together in one BatchModel call, so the model is loaded once and its runs are
+ * shared instead of one accompanist per player.
+ *
+ * The protocol is a byte stream per connection: the server first sends the number of
+ * accompanying voices, then answers every tick request [TICK, key, strike] with a key
+ * and a strike byte per voice. [RESET, 0, 0] starts a new phrase and is not answered.
+ * Runs on a plain JVM, see RemoteAccompanist for the client.
+ */
+public class AccompanistServer {
+
+    public static final int DEFAULT_PORT = 7170;
+
+    static final int OP_TICK = 1;
+    static final int OP_RESET = 2;
+
+    private final BatchModel model;
+    private final int numVoices;
+    private final float strikeThreshold;
+
+    private final BlockingQueue<Session> pending = new LinkedBlockingQueue<Session>();
+    private final List<Session> sessions = Collections.synchronizedList(new ArrayList<Session>());
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private Thread batchThread;
+    private volatile boolean closed = false;
+
+    // how long a batch waits for the ticks of more sessions, 0 runs what is queued
+    private volatile long batchWindowNanos = 0;
+    private volatile int maxBatchSize = 256;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong ticks = new AtomicLong();
+    private final LatencyHistogram tickLatency = new LatencyHistogram();
+
+    /**
+     * @param model           the model shared by all sessions, only used on the batch thread
+     * @param strikeThreshold strike probability above which a voice starts a new note
+     */
+    public AccompanistServer(BatchModel model, float strikeThreshold) {
+        this.model = model;
+        this.numVoices = model.getOutputSize() / 2;
+        this.strikeThreshold = strikeThreshold;
+    }
+
+    /**
+     * Starts accepting players on the loopback interface.
+     *
+     * @param port the port to listen on, 0 for any free port
+     * @return the port the server listens on
+     */
+    public synchronized int start(int port) throws IOException {
+        return start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Starts accepting players, e.g. on all interfaces for the devices of a classroom.
+     *
+     * @return the port the server listens on
+     */
+    public synchronized int start(InetSocketAddress address) throws IOException {
+        if (serverSocket != null)
+            throw new IllegalStateException("already started");
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address, 256);
+        batchThread = new Thread(new Runnable() {
+            public void run() {
+                runBatches();
+            }
+        }, "AccompanistBatch");
+        batchThread.start();
+        acceptThread = new Thread(new Runnable() {
+            public void run() {
+                acceptSessions();
+            }
+        }, "AccompanistAccept");
+        acceptThread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Lets a batch wait up to window for the ticks of more sessions. Adds up to the
+     * window to the latency of a tick, in exchange for fewer and fuller model runs.
+     */
+    public void setBatchWindow(long window, TimeUnit unit) {
+        batchWindowNanos = unit.toNanos(window);
+    }
+
+    public void setMaxBatchSize(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("batch size must be at least 1: " + size);
+        maxBatchSize = size;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /** model runs so far */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /** session ticks run so far */
+    public long getTicks() {
+        return ticks.get();
+    }
+
+    public double getMeanBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0 : (double) ticks.get() / count;
+    }
+
+    /**
+     * @return time from the arrival of a tick request until its voices were ready
+     */
+    public LatencyHistogram getTickLatency() {
+        return tickLatency;
+    }
+
+    /**
+     * Stops accepting players and closes all sessions.
+     */
+    public void close() {
+        closed = true;
+        try {
+            if (serverSocket != null)
+                serverSocket.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+        synchronized (sessions) {
+            for (Session session : sessions)
+                session.close();
+        }
+        if (batchThread != null)
+            batchThread.interrupt();
+    }
+
+    public String toString() {
+        return String.format("AccompanistServer sessions=%d ticks=%d batches=%d mean batch=%.1f"
+                + " latency: %s", getSessionCount(), getTicks(), getBatches(),
+                getMeanBatchSize(), tickLatency);
+    }
+
+    private void acceptSessions() {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // closed
+                return;
+            }
+            final Session session;
+            try {
+                session = new Session(socket);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                continue;
+            }
+            sessions.add(session);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    session.serve();
+                }
+            }, "AccompanistSession");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void runBatches() {
+        List<Session> batch = new ArrayList<Session>();
+        int[] keys = new int[0];
+        boolean[] strikes = new boolean[0];
+        float[][] states = new float[0][];
+        float[][] results = new float[0][];
+        while (!closed) {
+            batch.clear();
+            try {
+                batch.add(pending.take());
+                long window = batchWindowNanos;
+                if (window > 0) {
+                    long end = System.nanoTime() + window;
+                    long remaining = window;
+                    while (batch.size() < maxBatchSize && remaining > 0) {
+                        Session next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null)
+                            break;
+                        batch.add(next);
+                        remaining = end - System.nanoTime();
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch, maxBatchSize - batch.size());
+
+            int count = batch.size();
+            if (keys.length < count) {
+                keys = new int[count];
+                strikes = new boolean[count];
+                states = new float[count][];
+                results = new float[count][];
+            }
+            for (int i = 0; i < count; i++) {
+                Session session = batch.get(i);
+                keys[i] = session.key;
+                strikes[i] = session.strike;
+                states[i] = session.state;
+                results[i] = session.result;
+            }
+            try {
+                model.run(count, keys, strikes, states, results);
+            } catch (RuntimeException e) {
+                // a failing model closes the sessions of the batch, not the server
+                for (Session session : batch)
+                    session.close();
+            }
+            batches.incrementAndGet();
+            ticks.addAndGet(count);
+            long now = System.nanoTime();
+            for (Session session : batch) {
+                tickLatency.record(now - session.requestTime);
+                session.done.release();
+            }
+        }
+    }
+
+    // one player: reads its requests and answers them once their batch has run
+    private class Session {
+        private final Socket socket;
+        private final DataInputStream input;
+        private final OutputStream out;
+
+        // the request and result of the current tick, handed to the batch thread
+        final float[] state = new float[model.getStateSize()];
+        final float[] result = new float[model.getOutputSize()];
+        int key;
+        boolean strike;
+        long requestTime;
+        final Semaphore done = new Semaphore(0);
+
+        private final byte[] reply = new byte[2 * numVoices];
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            input = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        void serve() {
+            try {
+                out.write(numVoices);
+                out.flush();
+                byte[] request = new byte[3];
+                while (!closed) {
+                    input.readFully(request);
+                    if (request[0] == OP_RESET) {
+                        Arrays.fill(state, 0);
+                    } else if (request[0] == OP_TICK) {
+                        key = request[1] & 0x7f;
+                        strike = request[2] != 0;
+                        requestTime = System.nanoTime();
+                        pending.put(this);
+                        done.acquire();
+                        for (int i = 0; i < numVoices; i++) {
+                            Note note = Note.decodeVoice(result, i, numVoices,
+                                    strikeThreshold);
+                            reply[2 * i] = (byte) note.getKey();
+                            reply[2 * i + 1] = (byte) (note.getStrike() ? 1 : 0);
+                        }
+                        out.write(reply);
+                        out.flush();
+                    } else {
+                        throw new IOException("unknown request " + request[0]);
+                    }
+                }
+            } catch (EOFException e) {
+                // the player left
+            } catch (IOException e) {
+                // broken connection, drop the session
+            } catch (InterruptedException e) {
+                // closing
+            } finally {
+                sessions.remove(this);
+                close();
+            }
+        }
+
+        void close() {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+}
@@ -15,203 +15,148 @@
  */
 package com.asoehlke.accompanist;
 
-import com.asoehlke.accompanist.TensorFlowAccompanist.Note;
-
-import android.os.Handler;
-
 import android.content.res.AssetManager;
-import android.util.Log;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 
 import com.levien.synthesizer.core.midi.MidiListener;
-import com.levien.synthesizer.core.midi.MidiListenerProxy;
-import java.util.List;
-
-public class AccompanyingMidiListener extends MidiListenerProxy {
-
-
-    private static final String TAG = "AccompanyingListener";
-    static private Note melodyOff_ = new Note(0, true);
-    private TensorFlowAccompanist accompanist_;
 
-    private Note melodyNote_ = melodyOff_;
-    private int velocity_ = 100;
-    private boolean melodyStruck = false;
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
-    //runs without a timer by reposting this handler at the end of the runnable
-    Handler timerHandler = new Handler();
+/**
+ * Runs the AccompanimentEngine in the app: ticks on the thread that creates the
+ * listener, the model on an audio-priority HandlerThread, diagnostics to the Android
+ * log, and the model loaded from the assets.
+ */
+public class AccompanyingMidiListener extends AccompanimentEngine {
 
-    Runnable metronomRunnable = new Runnable() {
+    private final HandlerThread inferenceThread_;
+    private final Future<? extends Accompanist> accompanistFuture_;
+    private AccompanistLoader.Callback readyCallback_;
+    private final File phraseCacheFile_;
 
-        private static final String TAG = "metronomRunnable";
+     /**
+      * Creates a new MidiListenerProxy that passes all its events on to listener
+      * and adds additional voices to it.
+      *
+      * @param listener: the listener to forward the midi events to
+      * @param assets: android assets
+      */
+    public AccompanyingMidiListener(MidiListener listener, AssetManager assets) {
+        this(listener, assets, null, null);
+    }
 
-        private int beatPitch_ = 160;
-        private int bpm_ = 80;
-        private int beatDuration_ = 100;
-        private int velocity_ = 10;
+     /**
+      * Creates a new MidiListenerProxy that passes all its events on to listener
+      * and adds additional voices to it. The model is loaded in the background,
+      * until it is ready the melody is passed on without accompaniment.
+      *
+      * @param listener: the listener to forward the midi events to
+      * @param assets: android assets
+      * @param phraseCacheFile: file to keep the phrase cache in between runs, may be null
+      * @param readyCallback: notified on the calling thread when the model is ready, may be null
+      */
+    public AccompanyingMidiListener(MidiListener listener, AssetManager assets,
+                                    File phraseCacheFile,
+                                    AccompanistLoader.Callback readyCallback) {
+        this(listener, startInferenceThread(), assets, phraseCacheFile, readyCallback);
+    }
 
+    /**
+     * Creates a listener that accompanies with the given accompanist instead of the
+     * local model, e.g. with a RemoteAccompanist. Quality settings and the phrase cache
+     * only apply to the local model.
+     *
+     * @param listener: the listener to forward the midi events to
+     * @param accompanist: used on the inference thread and closed with this listener
+     */
+    public AccompanyingMidiListener(MidiListener listener, final Accompanist accompanist) {
+        this(listener, startInferenceThread(), accompanist);
+    }
 
-        private long beatOffTime_ = 1;
+    private AccompanyingMidiListener(MidiListener listener, HandlerThread inferenceThread,
+                                     AssetManager assets, File phraseCacheFile,
+                                     AccompanistLoader.Callback readyCallback) {
+        super(listener, new HandlerScheduler(new Handler()), executorOf(inferenceThread),
+                AndroidLog.INSTANCE);
+        inferenceThread_ = inferenceThread;
+        readyCallback_ = readyCallback;
+        phraseCacheFile_ = phraseCacheFile;
+        accompanistFuture_ = AccompanistLoader.load(assets, phraseCacheFile, new Handler(),
+                new AccompanistLoader.Callback() {
+                    public void onAccompanistReady(TensorFlowAccompanist accompanist) {
+                        setAccompanist(accompanist);
+                        if (readyCallback_ != null && !isClosed())
+                            readyCallback_.onAccompanistReady(accompanist);
+                    }
 
-        public void run() {
-            /*return;
-            long millis = System.currentTimeMillis();
-            if (beatOffTime_ > 0 && millis >= beatOffTime_) {
-                listener_.onNoteOff(0, beatPitch_, 0);
-                beatOffTime_ = 0;
-                Log.i(TAG, "metronom off at " + millis);
+                    public void onAccompanistFailed(Throwable error) {
+                        if (readyCallback_ != null && !isClosed())
+                            readyCallback_.onAccompanistFailed(error);
+                    }
+                });
+    }
 
+    private AccompanyingMidiListener(MidiListener listener, HandlerThread inferenceThread,
+                                     final Accompanist accompanist) {
+        super(listener, new HandlerScheduler(new Handler()), executorOf(inferenceThread),
+                AndroidLog.INSTANCE);
+        inferenceThread_ = inferenceThread;
+        phraseCacheFile_ = null;
+        FutureTask<Accompanist> ready = new FutureTask<Accompanist>(new Callable<Accompanist>() {
+            public Accompanist call() {
+                return accompanist;
             }
-            else if (beatOffTime_ == 0)
-            {
-                listener_.onNoteOn(0, beatPitch_, velocity_);
-                beatOffTime_ = millis + beatDuration_;
-                timerHandler.postDelayed(this, beatOffTime_);
-                Log.i(TAG, "metronom on, off at " + beatOffTime_);
-            }*/
-        }
-    };
-
-    Runnable timerRunnable = new Runnable() {
-
-        private static final String TAG = "MidiListenerRunnable";
-
-        // beats per minute
-        private int bpm_ = 60;
-
-        // 0 : currently no voices active
-        // 1-4: current tick
-        private int currentTickOfQuarter_ = 0;
-
-        private long lastQuarterBeginTime_ = 0;
-
-        private long nextTickBeginTime_ = 0;
-
-        private List<Note> notesInCurrentTick;
-
-        private Note lastMelodyNote_ = melodyOff_;
-
-        @Override
-        public void run() {
-            long millis = System.currentTimeMillis();
-
-            // record the last played note
-            if (melodyNote_.getKey() != 0)
-                lastMelodyNote_ = melodyNote_;
+        });
+        ready.run();
+        accompanistFuture_ = ready;
+        setAccompanist(accompanist);
+    }
 
-            if (millis >= nextTickBeginTime_)
-            {
-                if (currentTickOfQuarter_ == 4 || currentTickOfQuarter_ == -1)
-                {
-                    timerHandler.post(metronomRunnable);
-                    // continue with next quarter, if melody is played
-                    if (melodyNote_.getKey() > 0)
-                    {
-                        lastQuarterBeginTime_ = millis;
-                        currentTickOfQuarter_ = 0;
-                    }
-                    else
-                    {
-                        currentTickOfQuarter_ = -1;
-                        lastMelodyNote_ = melodyNote_;
-                        // no melody played, stop accompanying
-                        if (notesInCurrentTick != null)
-                            for (Note note : notesInCurrentTick)
-                                listener_.onNoteOff(0, note.getKey(), velocity_);
-                    }
-                }
-
-                if (currentTickOfQuarter_ >= 0) {
-
-                    if (lastMelodyNote_.getKey() != 0)
-                    {
-                        List<Note> notesInNewTick = accompanist_.getNextVoices(lastMelodyNote_);
-                        if (notesInCurrentTick == null) {
-                            // first call, strike all notes
-                            for (Note note : notesInNewTick) {
-                                listener_.onNoteOn(0, note.getKey(), velocity_);
-                            }
-                        } else if (notesInNewTick.size() != notesInCurrentTick.size()) {
-                            // different sizes, terminate all old and start all new notes
-                            for (Note note : notesInCurrentTick) {
-                                listener_.onNoteOff(0, note.getKey(), velocity_);
-                            }
-                            for (Note note : notesInNewTick) {
-                                listener_.onNoteOn(0, note.getKey(), velocity_);
-                            }
-                        } else {
-                            // only change newly struck notes
-                            int count = 0;
-                            while (notesInNewTick.size() > count) {
-                                Note newNote = notesInNewTick.get(count);
-                                Note oldNote = notesInCurrentTick.get(count);
-                                if (newNote.getStrike()) {
-                                    Log.i(TAG, "new accompanying note: " + oldNote
-                                    + " -> " + newNote);
-                                    listener_.onNoteOff(0, oldNote.getKey(), velocity_);
-                                    listener_.onNoteOn(0, newNote.getKey(), velocity_);
-                                }
-                                else if (newNote.getKey() != oldNote.getKey())
-                                {
-                                    Log.i(TAG, "keep old note: " + oldNote
-                                            + " -> " + newNote);
-                                    // keep the old note, otherwise it cannot be turned off later
-                                    notesInNewTick.set(count, oldNote);
-                                }
-                                count++;
-                            }
-                        }
-                        notesInCurrentTick = notesInNewTick;
-                        // the melody note is not new anymore
-                        lastMelodyNote_ = new Note(lastMelodyNote_.getKey(), false);
-                        melodyNote_ = new Note(melodyNote_.getKey(), false);
-                    }
+    // the model runs here, so a slow inference cannot delay the tick timer
+    private static HandlerThread startInferenceThread() {
+        HandlerThread thread = new HandlerThread("AccompanistInference",
+                Process.THREAD_PRIORITY_AUDIO);
+        thread.start();
+        return thread;
+    }
 
-                    millis = System.currentTimeMillis();
-                    currentTickOfQuarter_ += 1;
-                    // play next tick
-                    nextTickBeginTime_ =
-                            lastQuarterBeginTime_ + currentTickOfQuarter_ * 60000 / (bpm_ * 4);
-                    long timeToNextTick;
-                    timeToNextTick = nextTickBeginTime_ - millis;
-                    Log.i(TAG, "now: " + currentTickOfQuarter_ + "=" + millis
-                            + " next : " + nextTickBeginTime_);
-                    timerHandler.postDelayed(this, timeToNextTick);
-                }
+    private static Executor executorOf(HandlerThread thread) {
+        final Handler handler = new Handler(thread.getLooper());
+        return new Executor() {
+            public void execute(Runnable task) {
+                handler.post(task);
             }
-        }
-    };
-
-     /**
-      * Creates a new MidiListenerProxy that passes all its events on to listener
-      * and adds additional voices to it.
-      *
-      * @param listener: the listener to forward the midi events to
-      * @param assets: android assets
-      */
-    public AccompanyingMidiListener(MidiListener listener, AssetManager assets) {
-        super(listener);
-        accompanist_ = TensorFlowAccompanist.create(assets,
-                "BachAccompanist.pb", 2,
-                "input", "output",
-                "init_states", "final_states");
+        };
+    }
 
-        timerHandler.postDelayed(timerRunnable, 0);
-    };
+    /**
+     * @return a future that completes with the accompanist once the model is loaded and warmed up
+     */
+    public Future<? extends Accompanist> getReadyFuture() {
+        return accompanistFuture_;
+    }
 
+    /**
+     * Stops the accompaniment and releases the model. Must be called on the thread
+     * that created this listener.
+     */
     @Override
-    public void onNoteOff(int channel, int note, int velocity) {
-        Log.i(TAG, "Melody off: " + melodyNote_.getKey());
-        melodyNote_ = melodyOff_;
-        listener_.onNoteOff(channel, note, velocity);
+    public void close() {
+        readyCallback_ = null;
+        super.close();
+        inferenceThread_.quitSafely();
     }
 
     @Override
-    public void onNoteOn(int channel, int note, int velocity) {
-        melodyNote_ = new Note(note, true);
-        Log.i(TAG, "Melody on: " + melodyNote_.getKey());
-        velocity_ = velocity;
-        timerHandler.postAtFrontOfQueue(timerRunnable);
-        listener_.onNoteOn(channel, note, velocity);
+    protected void closeAccompanist(Accompanist accompanist) {
+        if (accompanist != null)
+            AccompanistLoader.savePhraseCache(accompanist.getPhraseCache(), phraseCacheFile_);
+        super.closeAccompanist(accompanist);
     }
-
-}
\ No newline at end of file
+}
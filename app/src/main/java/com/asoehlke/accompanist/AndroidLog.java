@@ -0,0 +1,34 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import android.util.Log;
+
+/**
+ * Writes the diagnostics of the accompaniment to android.util.Log.
+ */
+public class AndroidLog implements AccompanistLog {
+
+    public static final AccompanistLog INSTANCE = new AndroidLog();
+
+    public void i(String tag, String message) {
+        Log.i(tag, message);
+    }
+
+    public void w(String tag, String message) {
+        Log.w(tag, message);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.android.AndroidGlue;
+
+/**
+ * Time of the audio the synth renders, counted in frames by the native audio callback,
+ * so ticks are scheduled against the same clock that produces the sound. Between two
+ * callbacks the time is interpolated with System.nanoTime(). While no callbacks arrive,
+ * e.g. before the engine starts or while it is paused, the clock continues on
+ * System.nanoTime() without a jump.
+ */
+public class AudioTickClock implements TickClock {
+
+    /**
+     * Where the audio clock is read from, see AndroidGlue.getAudioClock().
+     */
+    public interface Source {
+        /**
+         * @return frames per second of the audio, 0 if the engine has not started
+         */
+        int getSampleRate();
+
+        /**
+         * @param clock receives the frames rendered before the latest callback and the
+         *              System.nanoTime() at which that callback started
+         * @return false, and clock unchanged, if there has been no callback yet or the
+         * callback was updating the clock while it was read
+         */
+        boolean getAudioClock(long[] clock);
+    }
+
+    // a callback older than this means the audio has stopped
+    private static final long STALE_NANOS = 100 * 1000000L;
+
+    private final Source source;
+    private final TickClock systemClock;
+    private final long[] audioClock = new long[2];
+    // audioClock holds a callback, possibly an older one than the latest
+    private boolean haveAudioClock = false;
+
+    private boolean started = false;
+    private boolean lastFromAudio;
+    private long lastRaw;
+    private long lastSystemTime;
+    private long lastTime;
+    // added to the raw time of the current source to keep the clock continuous
+    private long offset;
+
+    public AudioTickClock(final AndroidGlue glue) {
+        this(new Source() {
+            public int getSampleRate() {
+                return glue.getSampleRate();
+            }
+
+            public boolean getAudioClock(long[] clock) {
+                return glue.getAudioClock(clock);
+            }
+        }, TickClock.SYSTEM);
+    }
+
+    /**
+     * @param systemClock stands in for System.nanoTime(), on the same time base as the
+     *                    callback times of the source
+     */
+    AudioTickClock(Source source, TickClock systemClock) {
+        this.source = source;
+        this.systemClock = systemClock;
+    }
+
+    public synchronized long nanoTime() {
+        long now = systemClock.nanoTime();
+        int sampleRate = source.getSampleRate();
+        // a read that collided with the callback keeps the callback before it
+        if (sampleRate > 0 && source.getAudioClock(audioClock))
+            haveAudioClock = true;
+        boolean fromAudio = sampleRate > 0 && haveAudioClock
+                && now - audioClock[1] < STALE_NANOS;
+        long raw;
+        if (fromAudio) {
+            raw = audioClock[0] * 1000000000L / sampleRate + Math.max(0, now - audioClock[1]);
+        } else {
+            raw = now;
+        }
+
+        if (!started) {
+            offset = -raw;
+            lastTime = 0;
+            started = true;
+        } else if (fromAudio != lastFromAudio || (fromAudio && raw < lastRaw - STALE_NANOS)) {
+            // switched source or the engine was restarted, continue where the old source was
+            offset = lastTime + (now - lastSystemTime) - raw;
+        }
+        lastFromAudio = fromAudio;
+        lastRaw = raw;
+        lastSystemTime = now;
+        // interpolation may run slightly ahead of the next callback
+        lastTime = Math.max(lastTime, raw + offset);
+        return lastTime;
+    }
+
+    /**
+     * @return true, if the latest time was derived from the audio callback
+     */
+    public synchronized boolean isAudioDriven() {
+        return lastFromAudio;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+/**
+ * A model that runs the ticks of several independent sessions at once, e.g. for the
+ * AccompanistServer. The sessions' LSTM states are kept by the caller.
+ */
+public interface BatchModel {
+
+    /**
+     * @return the number of floats in the LSTM state of a session
+     */
+    int getStateSize();
+
+    /**
+     * @return the number of floats in the output: the keys of the accompanying voices
+     * followed by their strike probabilities
+     */
+    int getOutputSize();
+
+    /**
+     * Runs one melody tick for each of count sessions.
+     *
+     * @param keys    melody key per session
+     * @param strikes whether the melody note starts on this tick, per session
+     * @param states  LSTM state per session, replaced by the state after the tick
+     * @param results receives the output per session
+     */
+    void run(int count, int[] keys, boolean[] strikes, float[][] states, float[][] results);
+}
@@ -0,0 +1,169 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.midi.MidiFile;
+import com.levien.synthesizer.core.midi.MidiTrack;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A four-part chorale quantised to 16ths: the melody the accompanist gets and the
+ * three lower voices it should come up with.
+ */
+public class Chorale {
+
+    public static final int ACCOMPANYING_VOICES = 3;
+
+    private final String name;
+    private final Note[] melody;
+    // reference voices per tick, key 0 where a voice is silent
+    private final Note[][] voices;
+
+    public Chorale(String name, Note[] melody, Note[][] voices) {
+        this.name = name;
+        this.melody = melody;
+        this.voices = voices;
+    }
+
+    /**
+     * Reads a chorale with one track per voice, soprano first: the first four tracks
+     * that contain notes are soprano, alto, tenor and bass.
+     */
+    public static Chorale fromMidiFile(String name, MidiFile file) throws IOException {
+        int ticksPerBeat = file.getHeader().getTicksPerBeat();
+        List<Note[]> parts = new ArrayList<Note[]>();
+        for (int i = 0; i < file.getTrackCount() && parts.size() <= ACCOMPANYING_VOICES; i++) {
+            Note[] part = SequenceAccompanist.quantize(file.getTrack(i), ticksPerBeat);
+            if (part.length > 0)
+                parts.add(part);
+        }
+        if (parts.size() <= ACCOMPANYING_VOICES)
+            throw new IOException(name + ": expected 4 voice tracks, found " + parts.size());
+
+        Note[] melody = parts.get(0);
+        int length = 0;
+        for (Note[] part : parts)
+            length = Math.max(length, part.length);
+        Note[][] voices = new Note[length][ACCOMPANYING_VOICES];
+        for (int tick = 0; tick < length; tick++) {
+            for (int v = 0; v < ACCOMPANYING_VOICES; v++) {
+                Note[] part = parts.get(v + 1);
+                voices[tick][v] = tick < part.length ? part[tick] : new Note(0, false);
+            }
+        }
+        if (melody.length < length) {
+            Note[] padded = new Note[length];
+            System.arraycopy(melody, 0, padded, 0, melody.length);
+            for (int tick = melody.length; tick < length; tick++)
+                padded[tick] = new Note(0, false);
+            melody = padded;
+        }
+        return new Chorale(name, melody, voices);
+    }
+
+    /**
+     * Reads a chorale from a MIDI file, see fromMidiFile().
+     */
+    public static Chorale load(File file) throws IOException {
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return fromMidiFile(file.getName(), new MidiFile(input));
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Streams the chorales of the files, each file is only read when it is reached.
+     * Files that cannot be read are skipped and counted, see Corpus.getSkipped().
+     */
+    public static Corpus stream(List<File> files) {
+        return new Corpus(files);
+    }
+
+    /**
+     * Chorales read one at a time from a list of MIDI files.
+     */
+    public static class Corpus implements Iterator<Chorale> {
+        private final Iterator<File> files;
+        private Chorale next;
+        private int skipped = 0;
+
+        Corpus(List<File> files) {
+            this.files = files.iterator();
+        }
+
+        public boolean hasNext() {
+            while (next == null && files.hasNext()) {
+                File file = files.next();
+                try {
+                    next = load(file);
+                } catch (IOException e) {
+                    skipped++;
+                }
+            }
+            return next != null;
+        }
+
+        public Chorale next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Chorale chorale = next;
+            next = null;
+            return chorale;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /** files that were not valid four-part chorales */
+        public int getSkipped() {
+            return skipped;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the soprano per 16th, key 0 where it is silent
+     */
+    public Note[] getMelody() {
+        return melody;
+    }
+
+    /**
+     * @return alto, tenor and bass per 16th, key 0 where a voice is silent
+     */
+    public Note[][] getVoices() {
+        return voices;
+    }
+
+    public int getLength() {
+        return melody.length;
+    }
+}
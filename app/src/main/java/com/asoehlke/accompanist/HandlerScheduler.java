@@ -0,0 +1,43 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import android.os.Handler;
+
+/**
+ * Runs the tasks of a Scheduler on the looper of an android.os.Handler.
+ */
+public class HandlerScheduler implements Scheduler {
+
+    private final Handler handler;
+
+    public HandlerScheduler(Handler handler) {
+        this.handler = handler;
+    }
+
+    public void schedule(Runnable task, long delayNanos) {
+        // Handler delays are in milliseconds, round up so the task is not run early
+        handler.postDelayed(task, Math.max(0, (delayNanos + 999999) / 1000000));
+    }
+
+    public void scheduleFirst(Runnable task) {
+        handler.postAtFrontOfQueue(task);
+    }
+
+    public void cancel(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+}
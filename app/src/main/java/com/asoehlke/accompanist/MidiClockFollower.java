@@ -0,0 +1,227 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+/**
+ * Follows an external MIDI clock, 24 timing clock messages per quarter note, so the
+ * 16th-note ticks run in sync with a drum machine or sequencer.
+ *
+ * USB and Bluetooth MIDI deliver the clock messages with a few milliseconds of jitter.
+ * The period is acquired from the mean interval over the first beat, after that a
+ * phase-locked loop predicts every clock from the previous one and moves the phase and
+ * the period by a share of the prediction error. The ticks are placed on the smoothed
+ * clock times. Start makes the next clock the downbeat, Stop hands the ticks back to
+ * the melody and Continue resumes the count where it stopped.
+ */
+public class MidiClockFollower implements TickSource {
+
+    public static final int PULSES_PER_QUARTER = 24;
+    public static final int PULSES_PER_TICK = PULSES_PER_QUARTER / 4;
+
+    // share of the prediction error that moves the phase
+    private static final double PHASE_GAIN = 0.1;
+    // share of the prediction error that moves the period
+    private static final double PERIOD_GAIN = 0.005;
+    // a gap of more than this many periods means the clock was interrupted
+    private static final double MAX_GAP_PERIODS = 4;
+    // the grid is given back to the melody if no clock arrived for this long
+    private static final long STALE_NANOS = 200000000L;
+
+    private static final double MIN_PERIOD = 60e9 / (300 * PULSES_PER_QUARTER);
+    private static final double MAX_PERIOD = 60e9 / (20 * PULSES_PER_QUARTER);
+
+    // clock period and smoothed time of the last clock, in nanoseconds
+    private double period;
+    private double smoothedTime;
+    private long lastClock;
+    // clocks since the clock was acquired, the first beat sets the period
+    private int clocks = 0;
+    private long firstClock;
+
+    private boolean running = false;
+    // clocks since Start, -1 until the first clock after Start
+    private long pulse = -1;
+    // time of a tick and whether there was a clock since Start or Continue
+    private double gridTime;
+    private boolean hasGrid = false;
+
+    // interval statistics of the received and of the smoothed clocks
+    private final IntervalStats rawIntervals = new IntervalStats();
+    private final IntervalStats smoothedIntervals = new IntervalStats();
+
+    /**
+     * Mean and standard deviation of intervals, updated in constant time.
+     */
+    public static class IntervalStats {
+        private long count = 0;
+        private double mean = 0;
+        private double sumSquares = 0;
+
+        void add(double interval) {
+            count++;
+            double delta = interval - mean;
+            mean += delta / count;
+            sumSquares += delta * (interval - mean);
+        }
+
+        void reset() {
+            count = 0;
+            mean = 0;
+            sumSquares = 0;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getStandardDeviation() {
+            return count > 1 ? Math.sqrt(sumSquares / (count - 1)) : 0;
+        }
+    }
+
+    public MidiClockFollower() {
+        period = 60e9 / (120 * PULSES_PER_QUARTER);
+    }
+
+    /**
+     * A timing clock message arrived.
+     *
+     * @param time arrival time in nanoseconds, on the clock used for the ticks
+     */
+    public synchronized void onClock(long time) {
+        if (clocks > 0 && time - lastClock > MAX_GAP_PERIODS * period) {
+            // the clock was interrupted, acquire it again
+            clocks = 0;
+        }
+        if (clocks == 0) {
+            firstClock = time;
+            smoothedTime = time;
+        } else if (clocks <= PULSES_PER_QUARTER) {
+            // acquiring: the mean interval since the first clock
+            period = clampPeriod((double) (time - firstClock) / clocks);
+            smoothedTime = time;
+        } else {
+            double predicted = smoothedTime + period;
+            double error = time - predicted;
+            double smoothed = predicted + PHASE_GAIN * error;
+            period = clampPeriod(period + PERIOD_GAIN * error);
+            rawIntervals.add(time - lastClock);
+            smoothedIntervals.add(smoothed - smoothedTime);
+            smoothedTime = smoothed;
+        }
+        lastClock = time;
+        clocks++;
+
+        if (running) {
+            pulse++;
+            // the tick this clock belongs to
+            gridTime = smoothedTime - (pulse % PULSES_PER_TICK) * period;
+            hasGrid = true;
+        }
+    }
+
+    /**
+     * Start: the next clock is the first beat of the song.
+     */
+    public synchronized void onStart() {
+        running = true;
+        pulse = -1;
+        hasGrid = false;
+    }
+
+    /**
+     * Continue: the clocks count on from where Stop left off.
+     */
+    public synchronized void onContinue() {
+        running = true;
+    }
+
+    public synchronized void onStop() {
+        running = false;
+        hasGrid = false;
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @param now the current time on the clock used for the ticks
+     * @return whether the clock is running, acquired and recent enough to drive the ticks
+     */
+    public synchronized boolean isLocked(long now) {
+        return running && hasGrid && clocks > PULSES_PER_QUARTER && now - lastClock < STALE_NANOS;
+    }
+
+    /**
+     * @return the tempo of the clock in beats per minute
+     */
+    public synchronized double getBpm() {
+        return 60e9 / (period * PULSES_PER_QUARTER);
+    }
+
+    public synchronized long getTickNanos() {
+        return Math.round(period * PULSES_PER_TICK);
+    }
+
+    public synchronized long nextTickTime(long time) {
+        double tick = period * PULSES_PER_TICK;
+        return Math.round(gridTime + Math.ceil((time - gridTime) / tick) * tick);
+    }
+
+    /**
+     * @return intervals between the clocks as they arrived, after the acquisition
+     */
+    public synchronized IntervalStats getRawIntervals() {
+        return rawIntervals;
+    }
+
+    /**
+     * @return intervals between the smoothed clocks the ticks are placed on
+     */
+    public synchronized IntervalStats getSmoothedIntervals() {
+        return smoothedIntervals;
+    }
+
+    /**
+     * @return how many times smaller the jitter of the smoothed clock is than the
+     * jitter of the received one, 0 if not known yet
+     */
+    public synchronized double getJitterReduction() {
+        double smoothed = smoothedIntervals.getStandardDeviation();
+        return smoothed > 0 ? rawIntervals.getStandardDeviation() / smoothed : 0;
+    }
+
+    public synchronized void resetStats() {
+        rawIntervals.reset();
+        smoothedIntervals.reset();
+    }
+
+    public synchronized String toString() {
+        return String.format("MidiClockFollower bpm=%.1f %s jitter raw=%.0fus smoothed=%.0fus",
+                getBpm(), running ? "running" : "stopped",
+                rawIntervals.getStandardDeviation() / 1000,
+                smoothedIntervals.getStandardDeviation() / 1000);
+    }
+
+    private static double clampPeriod(double period) {
+        return Math.max(MIN_PERIOD, Math.min(MAX_PERIOD, period));
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+/**
+ * A note on one 16th-note tick, of the melody or of an accompanying voice.
+ */
+public class Note {
+    /**
+     * MIDI key number of the note.
+     */
+    private final int key;
+
+    /**
+     * True, if the key is struck, false, if it is sustained
+     */
+    private final boolean strike;
+
+    public Note(final int key, final boolean strike)
+    {
+        this.key = key;
+        this.strike = strike;
+    }
+
+    public int getKey() { return key; }
+
+    public boolean getStrike() {return strike;}
+
+    /**
+     * The note of an accompanying voice in the raw model output: the keys of all voices
+     * followed by their strike probabilities.
+     */
+    static Note decodeVoice(float[] outputs, int voice, int numVoices, float threshold) {
+        return new Note(Math.round(outputs[voice] + 1), outputs[voice + numVoices] > threshold);
+    }
+
+    public String toString() {
+        return "Note=" + key + " strike=" + strike;
+    }
+}
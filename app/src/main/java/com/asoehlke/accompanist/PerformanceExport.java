@@ -0,0 +1,215 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.midi.MidiEvent;
+import com.levien.synthesizer.core.midi.MidiFile;
+import com.levien.synthesizer.core.midi.MidiHeader;
+import com.levien.synthesizer.core.midi.MidiTrack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns a recorded session into a Standard MIDI File with a track for the melody and
+ * one for each of the three accompanying voices, on channels 0 to 3 like
+ * SequenceAccompanist. The notes keep their recorded timing, the tempo comes from the
+ * tick grid of the accompaniment and, like for the tempo tracker, the first melody
+ * note is on a beat. The time signature is 4/4, as in the chorales.
+ */
+public class PerformanceExport {
+
+    public static final int MIDI_TICKS_PER_BEAT = 480;
+    public static final int VOICES = 3;
+
+    private static final String[] TRACK_NAMES = {"Melody", "Alto", "Tenor", "Bass"};
+
+    private final int[][] sounding = new int[VOICES + 1][128];
+    private final long[] lastTicks = new long[VOICES + 1];
+    private final MidiTrack[] tracks = new MidiTrack[VOICES + 1];
+    private final long origin;
+    private final long beatNanos;
+
+    private PerformanceExport(MidiFile file, long origin, long beatNanos) {
+        this.origin = origin;
+        this.beatNanos = beatNanos;
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = file.addTrack();
+            tracks[i].addEvent(new MidiEvent(0, meta(0x03, TRACK_NAMES[i].getBytes())));
+        }
+    }
+
+    /**
+     * @param session the recorded session, its melody is the input and USB notes, its
+     *                voices the output that is not melody
+     * @param grid    the tick grid of the accompaniment at the end of the session
+     */
+    public static MidiFile toMidiFile(SessionLog session, TickSource grid) {
+        MidiFile file = new MidiFile();
+        file.getHeader().setFormat(MidiHeader.Format.MULTIPLE_TRACKS_SYNCH);
+        file.getHeader().setTicksPerBeat(MIDI_TICKS_PER_BEAT);
+
+        // the tempo as written, so the ticks below match it exactly
+        long tickNanos = grid.getTickNanos();
+        int microsPerBeat = (int) Math.round(
+                tickNanos * SequenceAccompanist.TICKS_PER_BEAT / 1000.0);
+        MidiTrack conductor = file.addTrack();
+        conductor.addEvent(new MidiEvent(0, meta(0x58, new byte[] {4, 2, 24, 8})));
+        conductor.addEvent(new MidiEvent(0, meta(0x51, new byte[] {
+                (byte) (microsPerBeat >> 16), (byte) (microsPerBeat >> 8), (byte) microsPerBeat})));
+
+        // start on the last beat before the first event
+        long beatNanos = microsPerBeat * 1000L;
+        long origin = 0;
+        if (session.size() > 0) {
+            long downbeat = firstMelodyNote(session);
+            long beats = (downbeat - session.getTime(0) + beatNanos - 1) / beatNanos;
+            origin = downbeat - beats * beatNanos;
+        }
+        PerformanceExport export = new PerformanceExport(file, origin, beatNanos);
+        export.addSession(session);
+        return file;
+    }
+
+    // time of the first melody note, else of the first event
+    private static long firstMelodyNote(SessionLog session) {
+        for (int i = 0; i < session.size(); i++) {
+            if (session.getSource(i) != SessionLog.SOURCE_OUTPUT
+                    && (session.getStatus(i) & 0xF0) == 0x90 && session.getData2(i) > 0)
+                return session.getTime(i);
+        }
+        return session.getTime(0);
+    }
+
+    private void addSession(SessionLog session) {
+        // the output echo of an input event, which is melody and not a voice
+        int echo = -1;
+        // voice notes struck at the same time are assigned together
+        List<Integer> struck = new ArrayList<Integer>();
+        long struckTime = 0;
+        long time = 0;
+        for (int i = 0; i < session.size(); i++) {
+            time = session.getTime(i);
+            if (!struck.isEmpty() && time != struckTime) {
+                assignVoices(struck, struckTime);
+                struck.clear();
+            }
+            int status = session.getStatus(i);
+            if (status >= 0xF0)
+                continue;
+            int key = session.getData1(i);
+            boolean on = (status & 0xF0) == 0x90 && session.getData2(i) > 0;
+            boolean off = (status & 0xF0) == 0x80 || (status & 0xF0) == 0x90 && !on;
+            switch (session.getSource(i)) {
+                case SessionLog.SOURCE_INPUT:
+                    // the engine passes the melody on right away, on the same thread
+                    echo = SessionLog.pack(SessionLog.SOURCE_OUTPUT, status,
+                            session.getData1(i), session.getData2(i));
+                    // fall through
+                case SessionLog.SOURCE_USB:
+                    if (on) {
+                        noteOn(0, key, session.getData2(i), time);
+                    } else if (off) {
+                        noteOff(0, key, time);
+                    } else {
+                        add(0, time, status & 0xF0, session.getData1(i), session.getData2(i));
+                    }
+                    break;
+                case SessionLog.SOURCE_OUTPUT:
+                    if (echo == SessionLog.pack(SessionLog.SOURCE_OUTPUT, status,
+                            session.getData1(i), session.getData2(i))) {
+                        echo = -1;
+                    } else if (on) {
+                        struck.add(key | session.getData2(i) << 8);
+                        struckTime = time;
+                    } else if (off) {
+                        for (int voice = 1; voice <= VOICES; voice++) {
+                            if (sounding[voice][key] > 0) {
+                                noteOff(voice, key, time);
+                                break;
+                            }
+                        }
+                    }
+                    break;
+            }
+        }
+        if (!struck.isEmpty())
+            assignVoices(struck, struckTime);
+        // notes still sounding when the recording stopped
+        for (int track = 0; track < tracks.length; track++) {
+            for (int key = 0; key < 128; key++) {
+                while (sounding[track][key] > 0)
+                    noteOff(track, key, time);
+            }
+        }
+    }
+
+    // the highest of the struck notes goes to the highest free voice
+    private void assignVoices(List<Integer> struck, long time) {
+        Integer[] notes = struck.toArray(new Integer[struck.size()]);
+        Arrays.sort(notes);
+        int voice = 1;
+        for (int i = notes.length - 1; i >= 0; i--) {
+            while (voice < VOICES && isSounding(voice))
+                voice++;
+            noteOn(voice, notes[i] & 0x7f, notes[i] >> 8, time);
+            if (voice < VOICES)
+                voice++;
+        }
+    }
+
+    private boolean isSounding(int track) {
+        for (int count : sounding[track]) {
+            if (count > 0)
+                return true;
+        }
+        return false;
+    }
+
+    private void noteOn(int track, int key, int velocity, long time) {
+        sounding[track][key]++;
+        add(track, time, 0x90, key, velocity);
+    }
+
+    private void noteOff(int track, int key, long time) {
+        if (sounding[track][key] == 0)
+            return;
+        sounding[track][key]--;
+        add(track, time, 0x80, key, 0);
+    }
+
+    private void add(int track, long time, int type, int data1, int data2) {
+        long tick = Math.round((double) (time - origin) * MIDI_TICKS_PER_BEAT / beatNanos);
+        tick = Math.max(tick, lastTicks[track]);
+        byte[] message;
+        if (type == 0xC0 || type == 0xD0)
+            message = new byte[] {(byte) (type | track), (byte) data1};
+        else
+            message = new byte[] {(byte) (type | track), (byte) data1, (byte) data2};
+        tracks[track].addEvent(new MidiEvent(tick - lastTicks[track], message));
+        lastTicks[track] = tick;
+    }
+
+    private static byte[] meta(int type, byte[] data) {
+        byte[] message = new byte[data.length + 3];
+        message[0] = (byte) 0xFF;
+        message[1] = (byte) type;
+        message[2] = (byte) data.length;
+        System.arraycopy(data, 0, message, 3, data.length);
+        return message;
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Caches model results by melody prefix. Starting from a reset LSTM state, the same
+ * sequence of melody ticks always produces the same outputs and states, so every
+ * prefix played since the last reset is a node in a trie that stores the model
+ * outputs and the LSTM state after its last tick. Repeated phrases are then
+ * replayed from the trie without running the model.
+ *
+ * The number of nodes is bounded, the least recently used prefix is evicted together
+ * with all of its continuations. Using a prefix also uses all of its beginnings, so a
+ * node is never older than its continuations and the evicted prefix is normally a leaf.
+ * The methods are synchronized, so the cache can be saved on a background thread while
+ * the accompanist keeps using it.
+ */
+public class PhraseCache {
+
+    private static final int FILE_MAGIC = 0x50485243;  // "PHRC"
+    private static final int FILE_VERSION = 1;
+
+    private static class Node {
+        final Node parent;
+        // melody tick leading to this node, see symbol()
+        final int symbol;
+        final float[] outputs;
+        final float[] states;
+        HashMap<Integer, Node> children;
+        boolean evicted;
+
+        // least recently used list, oldest first
+        Node older;
+        Node newer;
+
+        Node(Node parent, int symbol, float[] outputs, float[] states) {
+            this.parent = parent;
+            this.symbol = symbol;
+            this.outputs = outputs;
+            this.states = states;
+        }
+    }
+
+    private final int maxNodes;
+    private final int outputSize;
+    private final int stateSize;
+    private final String modelName;
+
+    private final Node root = new Node(null, 0, null, null);
+    private Node oldest;
+    private Node newest;
+    private int size = 0;
+
+    // node of the prefix played since the last reset, null if the prefix is not cached
+    private Node cursor = root;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxNodes   maximum number of cached melody prefixes
+     * @param outputSize number of model outputs per tick
+     * @param stateSize  number of LSTM state values
+     * @param modelName  identifies the model, persisted caches of other models are ignored
+     */
+    public PhraseCache(int maxNodes, int outputSize, int stateSize, String modelName) {
+        this.maxNodes = maxNodes;
+        this.outputSize = outputSize;
+        this.stateSize = stateSize;
+        this.modelName = modelName;
+    }
+
+    /**
+     * Starts a new phrase, must be called whenever the LSTM state is reset.
+     */
+    public synchronized void reset() {
+        cursor = root;
+    }
+
+    /**
+     * Stops caching until the next reset, used when the LSTM state no longer follows
+     * the melody exactly, e.g. because a tick was skipped.
+     */
+    public synchronized void detach() {
+        cursor = null;
+    }
+
+    /**
+     * Looks up the next melody tick of the current phrase.
+     *
+     * @param outputs receives the cached model outputs on a hit
+     * @param states  receives the cached LSTM state on a hit
+     * @return true on a hit, false if the caller has to run the model and call store()
+     */
+    public synchronized boolean advance(int key, boolean strike, float[] outputs, float[] states) {
+        Node node = null;
+        if (cursor != null && cursor.children != null) {
+            node = cursor.children.get(symbol(key, strike));
+        }
+        if (node == null) {
+            misses++;
+            return false;
+        }
+        hits++;
+        System.arraycopy(node.outputs, 0, outputs, 0, outputSize);
+        System.arraycopy(node.states, 0, states, 0, stateSize);
+        touch(node);
+        cursor = node;
+        return true;
+    }
+
+    /**
+     * Stores the model result for the melody tick that advance() missed.
+     */
+    public synchronized void store(int key, boolean strike, float[] outputs, float[] states) {
+        if (cursor == null || cursor.evicted) {
+            // the beginning of this phrase is gone, it cannot be cached before the next reset
+            cursor = null;
+            return;
+        }
+        Node node = new Node(cursor, symbol(key, strike),
+                copyOf(outputs, outputSize), copyOf(states, stateSize));
+        if (cursor.children == null) {
+            cursor.children = new HashMap<Integer, Node>(4);
+        } else if (cursor.children.containsKey(node.symbol)) {
+            evict(cursor.children.get(node.symbol));
+        }
+        cursor.children.put(node.symbol, node);
+        appendNewest(node);
+        touch(cursor);
+        size++;
+        cursor = node;
+        while (size > maxNodes) {
+            evict(oldest);
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return fraction of lookups served from the cache, 0 if there were none
+     */
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public String toString() {
+        return "PhraseCache size=" + size() + " hits=" + getHits() + " misses=" + getMisses()
+                + " hitRate=" + getHitRate() + " evictions=" + getEvictions();
+    }
+
+    /**
+     * Writes all cached prefixes, so a later start can serve them without inference.
+     */
+    public synchronized void save(OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeUTF(modelName);
+        out.writeInt(outputSize);
+        out.writeInt(stateSize);
+        out.writeInt(size);
+
+        // oldest first, so loading restores the usage order, but every parent
+        // is written before its children
+        HashMap<Node, Integer> index = new HashMap<Node, Integer>(size * 2);
+        index.put(root, -1);
+        List<Node> ordered = parentsFirst();
+        for (int i = 0; i < ordered.size(); ++i) {
+            Node node = ordered.get(i);
+            index.put(node, i);
+            out.writeInt(index.get(node.parent));
+            out.writeInt(node.symbol);
+            for (int j = 0; j < outputSize; ++j) {
+                out.writeFloat(node.outputs[j]);
+            }
+            for (int j = 0; j < stateSize; ++j) {
+                out.writeFloat(node.states[j]);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Replaces the cache content by prefixes written with save(). Files of another
+     * model or shape are rejected with an IOException, as are truncated or corrupt
+     * files, which leave the cache unchanged.
+     */
+    public synchronized void load(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+            throw new IOException("not a phrase cache file");
+        }
+        if (!modelName.equals(in.readUTF()) || in.readInt() != outputSize
+                || in.readInt() != stateSize) {
+            throw new IOException("phrase cache belongs to another model");
+        }
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("corrupt phrase cache");
+        }
+        // read everything before touching the cache, the count may be corrupt too
+        ArrayList<int[]> links = new ArrayList<int[]>();
+        ArrayList<float[]> outputs = new ArrayList<float[]>();
+        ArrayList<float[]> states = new ArrayList<float[]>();
+        for (int i = 0; i < count; ++i) {
+            int parentIndex = in.readInt();
+            int symbol = in.readInt();
+            float[] nodeOutputs = new float[outputSize];
+            for (int j = 0; j < outputSize; ++j) {
+                nodeOutputs[j] = in.readFloat();
+            }
+            float[] nodeStates = new float[stateSize];
+            for (int j = 0; j < stateSize; ++j) {
+                nodeStates[j] = in.readFloat();
+            }
+            if (parentIndex >= i) {
+                throw new IOException("corrupt phrase cache");
+            }
+            links.add(new int[] {parentIndex, symbol});
+            outputs.add(nodeOutputs);
+            states.add(nodeStates);
+        }
+
+        clear();
+        Node[] nodes = new Node[count];
+        for (int i = 0; i < count; ++i) {
+            int parentIndex = links.get(i)[0];
+            int symbol = links.get(i)[1];
+            Node parent = parentIndex < 0 ? root : nodes[parentIndex];
+            if (parent == null || parent.evicted) {
+                continue;
+            }
+            Node node = new Node(parent, symbol, outputs.get(i), states.get(i));
+            if (parent.children == null) {
+                parent.children = new HashMap<Integer, Node>(4);
+            }
+            parent.children.put(symbol, node);
+            appendNewest(node);
+            touch(parent);
+            size++;
+            nodes[i] = node;
+            while (size > maxNodes) {
+                evict(oldest);
+            }
+        }
+    }
+
+    private static int symbol(int key, boolean strike) {
+        return (key << 1) | (strike ? 1 : 0);
+    }
+
+    private static float[] copyOf(float[] values, int length) {
+        float[] copy = new float[length];
+        System.arraycopy(values, 0, copy, 0, length);
+        return copy;
+    }
+
+    private void clear() {
+        for (Node node = oldest; node != null; node = node.newer) {
+            node.evicted = true;
+        }
+        root.children = null;
+        oldest = null;
+        newest = null;
+        size = 0;
+        cursor = root;
+    }
+
+    // all nodes in usage order, moving a node behind its parent where needed
+    private List<Node> parentsFirst() {
+        List<Node> ordered = new ArrayList<Node>(size);
+        HashMap<Node, Boolean> emitted = new HashMap<Node, Boolean>(size * 2);
+        ArrayList<Node> pending = new ArrayList<Node>();
+        for (Node node = oldest; node != null; node = node.newer) {
+            // emit missing ancestors first
+            pending.clear();
+            for (Node n = node; n != root && !emitted.containsKey(n); n = n.parent) {
+                pending.add(n);
+            }
+            for (int i = pending.size() - 1; i >= 0; --i) {
+                emitted.put(pending.get(i), Boolean.TRUE);
+                ordered.add(pending.get(i));
+            }
+        }
+        return ordered;
+    }
+
+    // marks a prefix and all of its beginnings as used, the shortest one newest
+    private void touch(Node node) {
+        for (Node n = node; n != root; n = n.parent) {
+            if (n != newest) {
+                unlink(n);
+                appendNewest(n);
+            }
+        }
+    }
+
+    private void appendNewest(Node node) {
+        node.older = newest;
+        node.newer = null;
+        if (newest != null) {
+            newest.newer = node;
+        } else {
+            oldest = node;
+        }
+        newest = node;
+    }
+
+    private void unlink(Node node) {
+        if (node.older != null) {
+            node.older.newer = node.newer;
+        } else {
+            oldest = node.newer;
+        }
+        if (node.newer != null) {
+            node.newer.older = node.older;
+        } else {
+            newest = node.older;
+        }
+        node.older = null;
+        node.newer = null;
+    }
+
+    // removes a prefix and everything that continues it
+    private void evict(Node node) {
+        node.parent.children.remove(node.symbol);
+        ArrayList<Node> stack = new ArrayList<Node>();
+        stack.add(node);
+        while (!stack.isEmpty()) {
+            Node n = stack.remove(stack.size() - 1);
+            n.evicted = true;
+            unlink(n);
+            size--;
+            evictions++;
+            if (n == cursor) {
+                cursor = null;
+            }
+            if (n.children != null) {
+                stack.addAll(n.children.values());
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Plays the accompaniment computed by an AccompanistServer instead of a local model.
+ * Connects on the first tick, so it can be created on the UI thread and used on the
+ * inference thread. While the server cannot be reached the melody is not accompanied,
+ * and a new connection is tried every few seconds.
+ */
+public class RemoteAccompanist extends AccompanistAdapter {
+
+    private static final int CONNECT_TIMEOUT_MS = 500;
+    // a tick may wait this long for its voices before the connection is given up
+    private static final int READ_TIMEOUT_MS = 1000;
+    private static final long RETRY_NANOS = 5000000000L;
+
+    private final String host;
+    private final int port;
+
+    private Socket socket;
+    private DataInputStream input;
+    private OutputStream output;
+    private int numVoices;
+    private long lastAttempt;
+    private boolean attempted = false;
+
+    private final byte[] request = new byte[3];
+    private byte[] reply;
+    private List<Note> lastVoices = Collections.emptyList();
+
+    public RemoteAccompanist(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public List<Note> getNextVoices(Note melodyNote) {
+        if (!connect())
+            return lastVoices = Collections.emptyList();
+        request[0] = AccompanistServer.OP_TICK;
+        request[1] = (byte) melodyNote.getKey();
+        request[2] = (byte) (melodyNote.getStrike() ? 1 : 0);
+        try {
+            output.write(request);
+            output.flush();
+            input.readFully(reply);
+        } catch (IOException e) {
+            disconnect();
+            return lastVoices = Collections.emptyList();
+        }
+        List<Note> voices = new ArrayList<Note>(numVoices);
+        for (int i = 0; i < numVoices; i++) {
+            voices.add(new Note(reply[2 * i], reply[2 * i + 1] != 0));
+        }
+        return lastVoices = voices;
+    }
+
+    public List<Note> holdVoices(Note melodyNote) {
+        // the server's state does not advance either, like a skipped local tick
+        List<Note> voices = new ArrayList<Note>(lastVoices.size());
+        for (Note voice : lastVoices) {
+            voices.add(new Note(voice.getKey(), false));
+        }
+        return lastVoices = voices;
+    }
+
+    public void reset() {
+        lastVoices = Collections.emptyList();
+        if (socket == null)
+            return;
+        request[0] = AccompanistServer.OP_RESET;
+        request[1] = 0;
+        request[2] = 0;
+        try {
+            output.write(request);
+            output.flush();
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    public void close() {
+        disconnect();
+    }
+
+    /**
+     * @return true while connected to the server
+     */
+    public boolean isConnected() {
+        return socket != null;
+    }
+
+    private boolean connect() {
+        if (socket != null)
+            return true;
+        long now = System.nanoTime();
+        if (attempted && now - lastAttempt < RETRY_NANOS)
+            return false;
+        attempted = true;
+        lastAttempt = now;
+        Socket newSocket = new Socket();
+        try {
+            newSocket.setTcpNoDelay(true);
+            newSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            newSocket.setSoTimeout(READ_TIMEOUT_MS);
+            input = new DataInputStream(newSocket.getInputStream());
+            output = newSocket.getOutputStream();
+            numVoices = input.readUnsignedByte();
+            reply = new byte[2 * numVoices];
+            socket = newSocket;
+            return true;
+        } catch (IOException e) {
+            try {
+                newSocket.close();
+            } catch (IOException closeError) {
+                // nothing left to release
+            }
+            return false;
+        }
+    }
+
+    private void disconnect() {
+        if (socket == null)
+            return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+        socket = null;
+    }
+}
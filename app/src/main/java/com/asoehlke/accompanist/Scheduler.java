@@ -0,0 +1,39 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+/**
+ * Runs tasks on a single thread after a delay, like an android.os.Handler. The
+ * AccompanimentEngine runs its ticks on one.
+ */
+public interface Scheduler {
+
+    /**
+     * Runs task on the scheduler's thread after delayNanos, 0 runs it as soon as
+     * possible. A task may be scheduled several times.
+     */
+    void schedule(Runnable task, long delayNanos);
+
+    /**
+     * Runs task on the scheduler's thread before all other pending tasks.
+     */
+    void scheduleFirst(Runnable task);
+
+    /**
+     * Removes all pending runs of task.
+     */
+    void cancel(Runnable task);
+}
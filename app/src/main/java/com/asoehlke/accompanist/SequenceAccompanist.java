@@ -0,0 +1,316 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.midi.MidiEvent;
+import com.levien.synthesizer.core.midi.MidiFile;
+import com.levien.synthesizer.core.midi.MidiHeader;
+import com.levien.synthesizer.core.midi.MidiTrack;
+import com.levien.synthesizer.core.midi.MidiWriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accompanies a whole melody from a MIDI file at once, without playing it in real time.
+ * The melody is quantised to the 16th-note grid of the model and the model runs over
+ * the ticks back to back, with the same phrase and note handling as the live
+ * AccompanyingMidiListener. The result is written as a track with the melody on
+ * channel 0 and the accompanying voices on channels 1 to 3.
+ *
+ * The graph takes a single tick per run, so the ticks are fed one by one; the LSTM
+ * state stays in Java arrays between them, so no timer or thread is involved.
+ * Not thread-safe: use it on the thread that runs the accompanist.
+ *
+ * Nothing here depends on Android. Off the device, main() harmonizes files with the
+ * model of an AccompanistServer.
+ */
+public class SequenceAccompanist {
+
+    private static final String TAG = "SequenceAccompanist";
+
+    // 16th-note ticks per quarter, the grid the model was trained on
+    public static final int TICKS_PER_BEAT = 4;
+
+    private static final int VELOCITY = 100;
+
+    // the melody and the three accompanying voices
+    private static final int CHANNELS = 4;
+
+    private static final Note SILENCE = new Note(0, false);
+
+    private final Accompanist accompanist;
+    private final AccompanistLog log;
+
+    public SequenceAccompanist(Accompanist accompanist) {
+        this(accompanist, AccompanistLog.SILENT);
+    }
+
+    /**
+     * @param log receives the time each file took
+     */
+    public SequenceAccompanist(Accompanist accompanist, AccompanistLog log) {
+        this.accompanist = accompanist;
+        this.log = log;
+    }
+
+    /**
+     * Harmonizes MIDI files with the model of an AccompanistServer, e.g. one started
+     * on a desktop. Each file is written to the output directory under its own name,
+     * with the accompaniment added as a new track.
+     *
+     * usage: SequenceAccompanist host port output-dir file.mid...
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("usage: SequenceAccompanist host port output-dir file.mid...");
+            System.exit(2);
+        }
+        RemoteAccompanist remote = new RemoteAccompanist(args[0], Integer.parseInt(args[1]));
+        try {
+            SequenceAccompanist sequencer = new SequenceAccompanist(remote, AccompanistLog.CONSOLE);
+            File outputDir = new File(args[2]);
+            for (int i = 3; i < args.length; i++) {
+                File input = new File(args[i]);
+                sequencer.harmonize(input, new File(outputDir, input.getName()));
+            }
+        } finally {
+            remote.close();
+        }
+    }
+
+    /**
+     * Accompanies the melody of a Standard MIDI File, see harmonize(InputStream, OutputStream).
+     */
+    public void harmonize(File input, File output) throws IOException {
+        InputStream in = new FileInputStream(input);
+        try {
+            OutputStream out = new FileOutputStream(output);
+            try {
+                harmonize(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        log.i(TAG, "wrote " + output);
+    }
+
+    /**
+     * Reads a Standard MIDI File, accompanies the melody in its first track with notes
+     * and writes it with the accompaniment added as a new track.
+     */
+    public void harmonize(InputStream input, OutputStream output) throws IOException {
+        MidiFile file = new MidiFile(input);
+        int melodyTrack = findMelodyTrack(file);
+        if (melodyTrack < 0)
+            throw new IOException("no notes to accompany");
+        harmonize(file, melodyTrack);
+        MidiWriter.writeMidiFile(output, file);
+    }
+
+    /**
+     * Accompanies a melody track of the file and adds the result as a new track.
+     *
+     * @param file       the file, its ticks per beat set the grid
+     * @param melodyTrack index of the track holding the melody
+     * @return the added track with the melody and the accompanying voices
+     */
+    public MidiTrack harmonize(MidiFile file, int melodyTrack) {
+        MidiHeader header = file.getHeader();
+        Note[] melody = quantize(file.getTrack(melodyTrack), header.getTicksPerBeat());
+        long startTime = System.nanoTime();
+        Note[][] voices = accompany(melody);
+        log.i(TAG, "accompanied " + melody.length + " ticks in "
+                + (System.nanoTime() - startTime) / 1000000 + "ms");
+        MidiTrack track = file.addTrack();
+        writeTrack(melody, voices, header.getTicksPerBeat(), track);
+        header.setFormat(MidiHeader.Format.MULTIPLE_TRACKS_SYNCH);
+        header.setTrackCount(file.getTrackCount());
+        return track;
+    }
+
+    /**
+     * Runs the model over a quantised melody. Like the live accompaniment, a silent
+     * tick holds the previous melody note and a silent beat ends the phrase.
+     *
+     * @param melody one note per 16th, key 0 where the melody is silent
+     * @return the accompanying voices per 16th, null where there is no accompaniment
+     */
+    public Note[][] accompany(Note[] melody) {
+        Note[][] voices = new Note[melody.length][];
+        accompanist.reset();
+        boolean inPhrase = false;
+        int lastKey = 0;
+        for (int i = 0; i < melody.length; i++) {
+            Note note = melody[i];
+            if (note.getKey() == 0 && (!inPhrase || i % TICKS_PER_BEAT == 0)) {
+                if (inPhrase) {
+                    // the next melody is a new phrase
+                    accompanist.reset();
+                    inPhrase = false;
+                }
+                continue;
+            }
+            inPhrase = true;
+            if (note.getKey() == 0)
+                note = new Note(lastKey, false);
+            lastKey = note.getKey();
+            List<Note> next = accompanist.getNextVoices(note);
+            voices[i] = next.toArray(new Note[next.size()]);
+        }
+        return voices;
+    }
+
+    /**
+     * Quantises a monophonic melody to 16ths. A note lasts until the 16th of its
+     * note-off or the next note-on, and at least one tick; of notes starting on the
+     * same tick the highest is kept.
+     *
+     * @param track        track with the melody, on any channel
+     * @param ticksPerBeat MIDI ticks per quarter of the file
+     * @return one note per 16th, struck on the first tick of a melody note, key 0
+     * where the melody is silent
+     */
+    public static Note[] quantize(MidiTrack track, int ticksPerBeat) {
+        List<Note> ticks = new ArrayList<Note>();
+        long time = 0;
+        int key = 0;
+        int start = 0;
+        for (int i = 0; i < track.getEventCount(); i++) {
+            MidiEvent event = track.getEvent(i);
+            time += event.getDeltaTime();
+            byte[] message = event.getMessage();
+            if (message == null || message.length < 3)
+                continue;
+            int type = message[0] & 0xf0;
+            int eventKey = message[1] & 0x7f;
+            boolean on = type == 0x90 && message[2] != 0;
+            boolean off = type == 0x80 || (type == 0x90 && message[2] == 0);
+            double position = (double) time * TICKS_PER_BEAT / ticksPerBeat;
+            // onsets go to the nearest 16th, released notes sound until the end of theirs
+            int tick = (int) Math.round(position);
+            if (on) {
+                if (key != 0 && tick == start) {
+                    key = Math.max(key, eventKey);
+                    continue;
+                }
+                if (key != 0)
+                    fill(ticks, key, start, tick);
+                key = eventKey;
+                start = tick;
+            } else if (off && key == eventKey) {
+                fill(ticks, key, start, Math.max((int) Math.ceil(position), start + 1));
+                key = 0;
+            }
+        }
+        if (key != 0)
+            fill(ticks, key, start, start + 1);
+        return ticks.toArray(new Note[ticks.size()]);
+    }
+
+    /**
+     * Writes a quantised melody and its voices as note events, each voice on its own
+     * channel. Like the live accompaniment, a voice only changes its note when struck.
+     *
+     * @param melody       one note per 16th, see quantize()
+     * @param voices       voices per 16th, see accompany()
+     * @param ticksPerBeat MIDI ticks per quarter of the written track
+     * @param track        track to append the events to
+     */
+    public static void writeTrack(Note[] melody, Note[][] voices, int ticksPerBeat,
+                                  MidiTrack track) {
+        // sounding key per channel, melody first, 0 if none
+        int[] sounding = new int[CHANNELS];
+        long lastTime = 0;
+        for (int i = 0; i <= melody.length; i++) {
+            long time = Math.round((double) i * ticksPerBeat / TICKS_PER_BEAT);
+            List<int[]> offs = new ArrayList<int[]>();
+            List<int[]> ons = new ArrayList<int[]>();
+
+            Note note = i < melody.length ? melody[i] : SILENCE;
+            if (note.getKey() == 0 || note.getStrike())
+                change(sounding, 0, note.getKey(), offs, ons);
+
+            Note[] tick = i < voices.length ? voices[i] : null;
+            for (int v = 1; v < sounding.length; v++) {
+                if (tick == null || v > tick.length) {
+                    change(sounding, v, 0, offs, ons);
+                } else if (sounding[v] == 0 || tick[v - 1].getStrike()) {
+                    change(sounding, v, tick[v - 1].getKey(), offs, ons);
+                }
+            }
+
+            for (int[] event : offs) {
+                track.addEvent(new MidiEvent(time - lastTime, new byte[] {
+                        (byte) (0x80 | event[0]), (byte) event[1], (byte) 0}));
+                lastTime = time;
+            }
+            for (int[] event : ons) {
+                track.addEvent(new MidiEvent(time - lastTime, new byte[] {
+                        (byte) (0x90 | event[0]), (byte) event[1], (byte) VELOCITY}));
+                lastTime = time;
+            }
+        }
+        // end of track
+        track.addEvent(new MidiEvent(0, new byte[] {(byte) 0xff, 0x2f, 0}));
+    }
+
+    /**
+     * @return index of the first track with a note, -1 if there is none
+     */
+    public static int findMelodyTrack(MidiFile file) {
+        for (int i = 0; i < file.getTrackCount(); i++) {
+            MidiTrack track = file.getTrack(i);
+            for (int j = 0; j < track.getEventCount(); j++) {
+                byte[] message = track.getEvent(j).getMessage();
+                if (message != null && message.length >= 3 && (message[0] & 0xf0) == 0x90
+                        && message[2] != 0)
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void fill(List<Note> ticks, int key, int start, int end) {
+        while (ticks.size() < start)
+            ticks.add(SILENCE);
+        for (int tick = start; tick < end; tick++) {
+            Note note = new Note(key, tick == start);
+            if (tick < ticks.size())
+                ticks.set(tick, note);
+            else
+                ticks.add(note);
+        }
+    }
+
+    // turns the sounding key of a channel off and the new key on, a key of 0 is silence
+    private static void change(int[] sounding, int channel, int key, List<int[]> offs,
+                               List<int[]> ons) {
+        if (sounding[channel] != 0)
+            offs.add(new int[] {channel, sounding[channel]});
+        if (key != 0)
+            ons.add(new int[] {channel, key});
+        sounding[channel] = key;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.midi.MidiListener;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The MIDI events of a session with their time in nanoseconds, as recorded by a
+ * SessionRecorder. Each event is a channel or realtime message and the source it
+ * was recorded at.
+ *
+ * The binary format is the magic "ACSL", a version and the number of events, then
+ * per event its time since the previous event as a variable length number and the
+ * source, status and two data bytes.
+ */
+public class SessionLog {
+
+    /** melody and controller changes played into the accompaniment */
+    public static final int SOURCE_INPUT = 0;
+    /** the melody and the voices the accompaniment sends to the synth */
+    public static final int SOURCE_OUTPUT = 1;
+    /** messages from a USB MIDI device, they go to the synth directly */
+    public static final int SOURCE_USB = 2;
+
+    private static final int MAGIC = 0x4143534c;  // "ACSL"
+    private static final int VERSION = 1;
+
+    private final long[] times;
+    // source, status, data1 and data2 of each event, one byte each
+    private final int[] events;
+
+    SessionLog(long[] times, int[] events) {
+        this.times = times;
+        this.events = events;
+    }
+
+    static int pack(int source, int status, int data1, int data2) {
+        return (source << 24) | ((status & 0xff) << 16) | ((data1 & 0x7f) << 8) | (data2 & 0x7f);
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    public int getSource(int i) {
+        return events[i] >>> 24;
+    }
+
+    public int getStatus(int i) {
+        return (events[i] >> 16) & 0xff;
+    }
+
+    public int getData1(int i) {
+        return (events[i] >> 8) & 0x7f;
+    }
+
+    public int getData2(int i) {
+        return events[i] & 0x7f;
+    }
+
+    /**
+     * @return a log with only the events of the source
+     */
+    public SessionLog select(int source) {
+        int count = 0;
+        for (int i = 0; i < size(); i++) {
+            if (getSource(i) == source)
+                count++;
+        }
+        long[] selectedTimes = new long[count];
+        int[] selectedEvents = new int[count];
+        int j = 0;
+        for (int i = 0; i < size(); i++) {
+            if (getSource(i) == source) {
+                selectedTimes[j] = times[i];
+                selectedEvents[j++] = events[i];
+            }
+        }
+        return new SessionLog(selectedTimes, selectedEvents);
+    }
+
+    /**
+     * Calls the listener method of event i.
+     */
+    public void dispatch(int i, MidiListener listener) {
+        int status = getStatus(i);
+        int channel = status & 0x0f;
+        int data1 = getData1(i);
+        int data2 = getData2(i);
+        switch (status & 0xf0) {
+            case 0x80:
+                listener.onNoteOff(channel, data1, data2);
+                break;
+            case 0x90:
+                listener.onNoteOn(channel, data1, data2);
+                break;
+            case 0xA0:
+                listener.onNoteAftertouch(channel, data1, data2);
+                break;
+            case 0xB0:
+                listener.onController(channel, data1, data2);
+                break;
+            case 0xC0:
+                listener.onProgramChange(channel, data1);
+                break;
+            case 0xD0:
+                listener.onChannelAftertouch(channel, data1);
+                break;
+            case 0xE0:
+                listener.onPitchBend(channel, data1 | (data2 << 7));
+                break;
+            case 0xF0:
+                switch (status) {
+                    case 0xF8:
+                        listener.onTimingClock();
+                        break;
+                    case 0xFA:
+                        listener.onStart();
+                        break;
+                    case 0xFB:
+                        listener.onContinue();
+                        break;
+                    case 0xFC:
+                        listener.onStop();
+                        break;
+                    case 0xFE:
+                        listener.onActiveSensing();
+                        break;
+                }
+                break;
+        }
+    }
+
+    public void writeTo(OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(size());
+        long time = size() > 0 ? times[0] : 0;
+        out.writeLong(time);
+        for (int i = 0; i < size(); i++) {
+            writeVarLong(out, times[i] - time);
+            time = times[i];
+            out.writeInt(events[i]);
+        }
+        out.flush();
+    }
+
+    public static SessionLog read(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        if (in.readInt() != MAGIC)
+            throw new IOException("not a session log");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("unsupported session log version " + version);
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("invalid session log size " + count);
+        long[] times = new long[count];
+        int[] events = new int[count];
+        long time = in.readLong();
+        for (int i = 0; i < count; i++) {
+            time += readVarLong(in);
+            times[i] = time;
+            events[i] = in.readInt();
+        }
+        return new SessionLog(times, events);
+    }
+
+    // 7 bits per byte, the high bit marks that more bytes follow
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("invalid session log time");
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof SessionLog))
+            return false;
+        SessionLog log = (SessionLog) other;
+        return Arrays.equals(times, log.times) && Arrays.equals(events, log.events);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(times) + Arrays.hashCode(events);
+    }
+
+    /**
+     * @return event i as e.g. "1.250000000 out 90 43 64"
+     */
+    public String toString(int i) {
+        String[] sources = {"in", "out", "usb"};
+        int source = getSource(i);
+        return String.format("%d.%09d %s %02x %02x %02x", times[i] / 1000000000L,
+                times[i] % 1000000000L, source < sources.length ? sources[source] : "?",
+                getStatus(i), getData1(i), getData2(i));
+    }
+
+    public String toString() {
+        return "SessionLog events=" + size()
+                + (size() > 0 ? " seconds=" + (times[size() - 1] - times[0]) / 1e9 : "");
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.midi.MidiAdapter;
+import com.levien.synthesizer.core.midi.MidiListener;
+import com.levien.synthesizer.core.midi.MidiListenerProxy;
+
+/**
+ * Records the MIDI events of a session with their time on the tick clock, so the
+ * session can be replayed later, see SessionReplay, or exported, see PerformanceExport.
+ * Recording writes into a ring allocated up front and takes no allocation, so it can
+ * stay on: once the ring is full, each event replaces the oldest one. Events may be
+ * recorded from any thread.
+ */
+public class SessionRecorder {
+
+    // about 25 minutes of busy playing, 12 bytes per event
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final TickClock clock;
+    private final long[] times;
+    private final int[] events;
+    // index of the oldest event
+    private int first = 0;
+    private int count = 0;
+    private long dropped = 0;
+
+    public SessionRecorder(TickClock clock) {
+        this(clock, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param clock the clock of the ticks, so the events line up with them in a replay
+     * @param capacity number of the most recent events kept
+     */
+    public SessionRecorder(TickClock clock, int capacity) {
+        this.clock = clock;
+        times = new long[capacity];
+        events = new int[capacity];
+    }
+
+    /**
+     * Records a channel or realtime message at the current time.
+     *
+     * @param source one of the SessionLog.SOURCE_ constants
+     */
+    public synchronized void record(int source, int status, int data1, int data2) {
+        int i = first + count;
+        if (i >= times.length)
+            i -= times.length;
+        if (count == times.length) {
+            // overwrite the oldest event
+            dropped++;
+            if (++first == times.length)
+                first = 0;
+        } else {
+            count++;
+        }
+        // read inside the lock, so the times stay in order across threads
+        times[i] = clock.nanoTime();
+        events[i] = SessionLog.pack(source, status, data1, data2);
+    }
+
+    /**
+     * @return a listener that records the channel and realtime messages passing it
+     * and forwards all events to listener
+     */
+    public MidiListener tap(final int source, MidiListener listener) {
+        return new MidiListenerProxy(listener) {
+            public void onNoteOff(int channel, int note, int velocity) {
+                record(source, 0x80 | channel, note, velocity);
+                listener_.onNoteOff(channel, note, velocity);
+            }
+
+            public void onNoteOn(int channel, int note, int velocity) {
+                record(source, 0x90 | channel, note, velocity);
+                listener_.onNoteOn(channel, note, velocity);
+            }
+
+            public void onNoteAftertouch(int channel, int note, int aftertouch) {
+                record(source, 0xA0 | channel, note, aftertouch);
+                listener_.onNoteAftertouch(channel, note, aftertouch);
+            }
+
+            public void onController(int channel, int control, int value) {
+                record(source, 0xB0 | channel, control, value);
+                listener_.onController(channel, control, value);
+            }
+
+            public void onProgramChange(int channel, int program) {
+                record(source, 0xC0 | channel, program, 0);
+                listener_.onProgramChange(channel, program);
+            }
+
+            public void onChannelAftertouch(int channel, int aftertouch) {
+                record(source, 0xD0 | channel, aftertouch, 0);
+                listener_.onChannelAftertouch(channel, aftertouch);
+            }
+
+            public void onPitchBend(int channel, int value) {
+                record(source, 0xE0 | channel, value & 0x7f, (value >> 7) & 0x7f);
+                listener_.onPitchBend(channel, value);
+            }
+
+            public void onTimingClock() {
+                record(source, 0xF8, 0, 0);
+                listener_.onTimingClock();
+            }
+
+            public void onStart() {
+                record(source, 0xFA, 0, 0);
+                listener_.onStart();
+            }
+
+            public void onContinue() {
+                record(source, 0xFB, 0, 0);
+                listener_.onContinue();
+            }
+
+            public void onStop() {
+                record(source, 0xFC, 0, 0);
+                listener_.onStop();
+            }
+        };
+    }
+
+    /**
+     * @return a listener that only records the messages it gets
+     */
+    public MidiListener tap(int source) {
+        return tap(source, new MidiAdapter());
+    }
+
+    /**
+     * @return a copy of the events in the ring, oldest first
+     */
+    public synchronized SessionLog snapshot() {
+        long[] snapshotTimes = new long[count];
+        int[] snapshotEvents = new int[count];
+        int head = Math.min(count, times.length - first);
+        System.arraycopy(times, first, snapshotTimes, 0, head);
+        System.arraycopy(events, first, snapshotEvents, 0, head);
+        System.arraycopy(times, 0, snapshotTimes, head, count - head);
+        System.arraycopy(events, 0, snapshotEvents, head, count - head);
+        return new SessionLog(snapshotTimes, snapshotEvents);
+    }
+
+    public synchronized void clear() {
+        first = 0;
+        count = 0;
+        dropped = 0;
+    }
+
+    /**
+     * @return events overwritten because the ring was full
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized String toString() {
+        return "SessionRecorder events=" + count + " dropped=" + dropped;
+    }
+}
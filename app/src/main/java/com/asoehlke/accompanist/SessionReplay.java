@@ -0,0 +1,131 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.midi.MidiAdapter;
+import com.levien.synthesizer.core.midi.MidiListener;
+
+/**
+ * Plays a recorded session into an AccompanimentEngine in virtual time, for
+ * reproducible regression and performance runs. The melody and controller changes
+ * are played in at their recorded times, the messages of an external MIDI clock go
+ * to the engine's clock input, and the model answers after a fixed inference latency,
+ * so a replay gives the same output every time and runs much faster than real time.
+ */
+public class SessionReplay {
+
+    // time the replay runs on after the last event, so the phrase can end
+    private static final long TAIL_NANOS = 5000000000L;
+
+    private final SessionLog log;
+    private long inferenceLatencyNanos = 5000000L;
+    private AccompanimentEngine.DeadlinePolicy deadlinePolicy =
+            AccompanimentEngine.DeadlinePolicy.DEGRADE;
+    private TickStats tickStats;
+    private TempoTracker tempoTracker;
+
+    public SessionReplay(SessionLog log) {
+        this.log = log;
+    }
+
+    /**
+     * @param nanos virtual time the model takes per inference
+     */
+    public void setInferenceLatency(long nanos) {
+        inferenceLatencyNanos = nanos;
+    }
+
+    public void setDeadlinePolicy(AccompanimentEngine.DeadlinePolicy policy) {
+        deadlinePolicy = policy;
+    }
+
+    /**
+     * Replays the session with the accompanist, which is closed afterwards.
+     *
+     * @return the input played into the engine and the output it played, recorded on
+     * the virtual clock like the original session
+     */
+    public SessionLog run(Accompanist accompanist) {
+        long start = log.size() > 0 ? log.getTime(0) : 0;
+        VirtualScheduler scheduler = new VirtualScheduler(start);
+        SessionRecorder recorder = new SessionRecorder(scheduler,
+                Math.max(SessionRecorder.DEFAULT_CAPACITY, 8 * log.size()));
+        AccompanimentEngine engine = new AccompanimentEngine(
+                recorder.tap(SessionLog.SOURCE_OUTPUT),
+                scheduler, scheduler.delayingExecutor(inferenceLatencyNanos),
+                AccompanistLog.SILENT);
+        engine.setTickClock(scheduler);
+        engine.setDeadlinePolicy(deadlinePolicy);
+        engine.setAccompanist(accompanist);
+        MidiListener input = recorder.tap(SessionLog.SOURCE_INPUT, engine);
+        MidiListener usb = new ClockFilter(engine.getClockInput());
+
+        long end = start;
+        for (int i = 0; i < log.size(); i++) {
+            end = log.getTime(i);
+            scheduler.runUntil(end);
+            if (log.getSource(i) == SessionLog.SOURCE_INPUT)
+                log.dispatch(i, input);
+            else if (log.getSource(i) == SessionLog.SOURCE_USB)
+                log.dispatch(i, usb);
+        }
+        scheduler.runUntil(end + TAIL_NANOS);
+        engine.close();
+        scheduler.runUntil(end + TAIL_NANOS + inferenceLatencyNanos);
+        tickStats = engine.getTickStats();
+        tempoTracker = engine.getTempoTracker();
+        return recorder.snapshot();
+    }
+
+    /**
+     * @return the tick statistics of the last run
+     */
+    public TickStats getTickStats() {
+        return tickStats;
+    }
+
+    /**
+     * @return the tempo the melody was played in during the last run
+     */
+    public TempoTracker getTempoTracker() {
+        return tempoTracker;
+    }
+
+    // USB notes go to the synth directly, only the clock reaches the accompaniment
+    private static class ClockFilter extends MidiAdapter {
+        private final MidiListener clockInput;
+
+        ClockFilter(MidiListener clockInput) {
+            this.clockInput = clockInput;
+        }
+
+        public void onTimingClock() {
+            clockInput.onTimingClock();
+        }
+
+        public void onStart() {
+            clockInput.onStart();
+        }
+
+        public void onContinue() {
+            clockInput.onContinue();
+        }
+
+        public void onStop() {
+            clockInput.onStop();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+/**
+ * Counts the inferences saved by skipping sustained ticks and, if a reference
+ * is tracked, how often the voices differed from running the model on every tick.
+ */
+public class SkipStats {
+    long inferences = 0;
+    long skipped = 0;
+    long comparedVoices = 0;
+    long divergedVoices = 0;
+
+    /** model runs, ticks served from the phrase cache are not counted */
+    public long getInferences() { return inferences; }
+
+    /** ticks that held the previous voices instead of running the model */
+    public long getSkipped() { return skipped; }
+
+    /** voice ticks compared against the reference */
+    public long getComparedVoices() { return comparedVoices; }
+
+    /** voice ticks whose key or strike differed from the reference */
+    public long getDivergedVoices() { return divergedVoices; }
+
+    /**
+     * @return fraction of compared voice ticks that differed, 0 if nothing was compared
+     */
+    public double getDivergence() {
+        return comparedVoices == 0 ? 0 : (double) divergedVoices / comparedVoices;
+    }
+
+    public String toString() {
+        return "SkipStats inferences=" + inferences + " skipped=" + skipped
+                + " divergence=" + getDivergence() + " (" + divergedVoices + "/"
+                + comparedVoices + " voice ticks)";
+    }
+}
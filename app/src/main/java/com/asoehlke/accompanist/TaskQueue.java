@@ -0,0 +1,81 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The pending tasks of a Scheduler in the order they are due, tasks due at the same
+ * time in the order they were added. Not thread-safe.
+ */
+class TaskQueue {
+
+    static class Task implements Comparable<Task> {
+        final long time;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long time, long sequence, Runnable runnable) {
+            this.time = time;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        public int compareTo(Task other) {
+            if (time != other.time)
+                return time < other.time ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<Task>();
+    private long sequence = 0;
+    private long frontSequence = 0;
+
+    void add(Runnable runnable, long time) {
+        tasks.add(new Task(time, ++sequence, runnable));
+    }
+
+    // before all tasks due at time or later
+    void addFirst(Runnable runnable, long time) {
+        tasks.add(new Task(time, --frontSequence, runnable));
+    }
+
+    void remove(Runnable runnable) {
+        List<Task> removed = new ArrayList<Task>();
+        for (Iterator<Task> i = tasks.iterator(); i.hasNext(); ) {
+            Task task = i.next();
+            if (task.runnable == runnable)
+                removed.add(task);
+        }
+        tasks.removeAll(removed);
+    }
+
+    Task peek() {
+        return tasks.peek();
+    }
+
+    Task poll() {
+        return tasks.poll();
+    }
+
+    int size() {
+        return tasks.size();
+    }
+}
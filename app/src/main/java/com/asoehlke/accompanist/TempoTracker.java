@@ -0,0 +1,155 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+/**
+ * Follows the tempo and beat phase of a live melody from its note-on times, so the
+ * 16th-note ticks stay in phase with the player.
+ *
+ * The first onsets of a phrase set the beat to their typical interval, as chorale
+ * melodies mostly move in quarters. After that every onset is matched to the nearest
+ * 16th of the current grid: its deviation from the grid corrects the phase and the
+ * interval to the previous onset corrects the period, like a phase-locked loop.
+ * Every onset takes constant time and memory.
+ */
+public class TempoTracker implements TickSource {
+
+    public static final double MIN_BPM = 40;
+    public static final double MAX_BPM = 160;
+
+    // share of the deviation from the grid that moves the phase
+    private static final double PHASE_GAIN = 0.5;
+    // share of the deviation of an inter-onset interval that moves the period
+    private static final double PERIOD_GAIN = 0.3;
+    // intervals that deviate more than this from the grid are not used for the period
+    private static final double MAX_PERIOD_DEVIATION = 0.25;
+    // longest interval, in 16ths, used for the period
+    private static final int MAX_INTERVAL_TICKS = 8;
+    // a pause longer than this many beats starts a new phrase
+    private static final double PHRASE_GAP_BEATS = 2.5;
+    // intervals used to acquire the tempo of a new phrase
+    private static final int ACQUIRE_INTERVALS = 3;  // see medianOfThree()
+
+    private static final double NANOS_PER_MINUTE = 60e9;
+
+    // beat period and a time on the beat grid, in nanoseconds
+    private double beatNanos;
+    private double gridTime;
+    private boolean started = false;
+    private long lastOnset;
+
+    // intervals at the start of a phrase, the tempo is acquired from their median
+    private final long[] acquireIntervals = new long[ACQUIRE_INTERVALS];
+    private int acquired = 0;
+    private boolean acquiring;
+
+    /**
+     * @param initialBpm tempo assumed until the first phrase has been played
+     */
+    public TempoTracker(double initialBpm) {
+        beatNanos = NANOS_PER_MINUTE / clampBpm(initialBpm);
+        acquiring = true;
+    }
+
+    /**
+     * Updates the estimate with the onset of a melody note.
+     *
+     * @param time note-on time in nanoseconds, on the clock used for the ticks
+     */
+    public synchronized void onNoteOn(long time) {
+        if (!started || time - lastOnset > PHRASE_GAP_BEATS * beatNanos) {
+            // new phrase, it starts on a beat
+            started = true;
+            gridTime = time;
+            lastOnset = time;
+            acquired = 0;
+            acquiring = true;
+            return;
+        }
+        long interval = time - lastOnset;
+        lastOnset = time;
+        double tick = beatNanos / 4;
+        if (interval < tick / 2) {
+            // chord or grace note, no new timing information
+            return;
+        }
+
+        if (acquiring) {
+            acquireIntervals[acquired++] = interval;
+            if (acquired == ACQUIRE_INTERVALS) {
+                acquiring = false;
+                beatNanos = foldIntoRange(medianOfThree(acquireIntervals));
+                gridTime = time;
+            }
+            return;
+        }
+
+        // period: the interval should be a whole number of 16ths
+        long ticks = Math.round(interval / tick);
+        if (ticks >= 1 && ticks <= MAX_INTERVAL_TICKS) {
+            double observedBeat = interval * 4.0 / ticks;
+            if (Math.abs(observedBeat / beatNanos - 1) < MAX_PERIOD_DEVIATION) {
+                beatNanos = foldIntoRange(beatNanos + PERIOD_GAIN * (observedBeat - beatNanos));
+                tick = beatNanos / 4;
+            }
+        }
+
+        // phase: move the grid towards the onset
+        double position = Math.rint((time - gridTime) / tick);
+        double error = time - (gridTime + position * tick);
+        gridTime = gridTime + position * tick + PHASE_GAIN * error;
+    }
+
+    /**
+     * @return the estimated tempo in beats per minute
+     */
+    public synchronized double getBpm() {
+        return NANOS_PER_MINUTE / beatNanos;
+    }
+
+    public synchronized long getTickNanos() {
+        return Math.round(beatNanos / 4);
+    }
+
+    public synchronized long nextTickTime(long time) {
+        double tick = beatNanos / 4;
+        return Math.round(gridTime + Math.ceil((time - gridTime) / tick) * tick);
+    }
+
+    public synchronized String toString() {
+        return "TempoTracker bpm=" + getBpm() + (acquiring ? " (acquiring)" : "");
+    }
+
+    private static double clampBpm(double bpm) {
+        return Math.max(MIN_BPM, Math.min(MAX_BPM, bpm));
+    }
+
+    // halves or doubles a beat period until its tempo is in the supported range
+    private static double foldIntoRange(double beat) {
+        while (NANOS_PER_MINUTE / beat > MAX_BPM) {
+            beat *= 2;
+        }
+        while (NANOS_PER_MINUTE / beat < MIN_BPM) {
+            beat /= 2;
+        }
+        return beat;
+    }
+
+    private static long medianOfThree(long[] values) {
+        long a = values[0], b = values[1], c = values[2];
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+}
@@ -17,11 +17,11 @@ package com.asoehlke.accompanist;
 
 import android.content.res.AssetManager;
 import android.os.Build;
+import android.os.Debug;
 import android.os.Trace;
 import android.util.Log;
 
 import org.tensorflow.Graph;
-import org.tensorflow.Session;
 import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
 
 import java.io.IOException;
@@ -31,44 +31,21 @@ import java.util.List;
 /**
  * Uses a TensorFlow model to create accompanying voices to a melody
  */
-public class TensorFlowAccompanist {
-
-    public static class Note {
-        /**
-         * MIDI key number of the note.
-         */
-        private final int key;
-
-        /**
-         * True, if the key is struck, false, if it is sustained
-         */
-        private final boolean strike;
-
-        public Note(final int key, final boolean strike)
-        {
-            this.key = key;
-            this.strike = strike;
-        }
-
-        public int getKey() { return key; }
-
-        public boolean getStrike() {return strike;}
-
-        public String toString() {
-            return "Note=" + key + " strike=" + strike;
-        }
-    }
+public class TensorFlowAccompanist implements Accompanist, BatchModel {
 
     private static final String TAG = "TensorFlowAccompanist";
 
     // Threshold for interpreting the attack output
-    private static final float STRIKE_THRESHOLD = 0.5f;
+    public static final float STRIKE_THRESHOLD = 0.5f;
 
     // duration of time tick in beats. 1=quarter, 0.25=16th
     private static final float TIME_TICK = 0.25f;
 
     private static final int NUM_VOICES = 4;
 
+    // melody key fed into the model while warming up (middle C)
+    private static final int WARM_UP_KEY = 60;
+
 
     // Config values: input and output network node names
     private String inputName;
@@ -79,7 +56,7 @@ public class TensorFlowAccompanist {
     private String finalStatesName;
 
     private int inputSize;
-    private int numAccompanyingVoices;
+    private final int numAccompanyingVoices;
 
     // Pre-allocated buffers.
     private int[] intValues;
@@ -88,12 +65,38 @@ public class TensorFlowAccompanist {
     private float[] outputs;
 
     private Graph g;
-    private Session sess;
-    private Session.Runner runner;
 
     private TensorFlowInferenceInterface inferenceInterface;
 
-    private TensorFlowAccompanist() {
+    // results of melody prefixes played before, may be null
+    private PhraseCache phraseCache;
+
+    // ticks between model runs while the melody note is sustained, 1 runs it on every tick
+    private int sustainInferenceInterval = 1;
+    private int ticksSinceInference = 0;
+    private int lastKey = 0;
+
+    // state of the model run on every tick, only allocated to measure the divergence
+    private float[] referenceStates;
+    private float[] referenceOutputs;
+    // true once a skipped tick made stateValues differ from referenceStates
+    private boolean diverged = false;
+
+    private final SkipStats skipStats = new SkipStats();
+
+    private float strikeThreshold = STRIKE_THRESHOLD;
+
+    private final AccompanistLog log;
+
+    /**
+     * Sets up the phrase state without a model, create() adds the TensorFlow session.
+     * Tests override runInference() instead.
+     */
+    TensorFlowAccompanist(int numAccompanyingVoices, int stateSize, AccompanistLog log) {
+        this.numAccompanyingVoices = numAccompanyingVoices;
+        this.log = log;
+        stateValues = new float[stateSize];
+        outputs = new float[numAccompanyingVoices * 2];
     }
 
     /**
@@ -115,18 +118,28 @@ public class TensorFlowAccompanist {
             String finalStatesName
             )
     {
-        TensorFlowAccompanist accompanist = new TensorFlowAccompanist();
+        // ToDo: how to derive the state shape?
+        TensorFlowAccompanist accompanist = new TensorFlowAccompanist(NUM_VOICES - 1,
+                3 * 2 * 1 * 300, AndroidLog.INSTANCE);
 
         Log.i(TAG, "opening model " + modelFilename);
 
+        long startTime = System.nanoTime();
+        long startNativeHeap = Debug.getNativeHeapAllocatedSize();
+        long startJavaHeap = usedJavaHeap();
+        // the asset is stored uncompressed (see aaptOptions in build.gradle), so it is
+        // streamed without being inflated
         accompanist.inferenceInterface =
                 new TensorFlowInferenceInterface(assetManager, modelFilename);
+        Log.i(TAG, "model loaded and parsed in "
+                + (System.nanoTime() - startTime) / 1000 + "us, native heap grew by "
+                + (Debug.getNativeHeapAllocatedSize() - startNativeHeap) / 1024
+                + "kB, Java heap by " + (usedJavaHeap() - startJavaHeap) / 1024 + "kB");
 
         // The shape of the output is [(NUM_VOICES - 1) * 2],
         // a note for each accompaying voice followed by the strike probability
         //accompanist.numAccompanyingVoices =
         //        (int) accompanist.inferenceInterface.graph().operation(outputName).output(0).shape().size(1) / 2;
-        accompanist.numAccompanyingVoices = NUM_VOICES - 1;
         Log.i(TAG, "number of output voices: " + accompanist.numAccompanyingVoices);
 
         // Ideally, inputSize could have been retrieved from the shape of the input operation.  Alas,
@@ -138,20 +151,14 @@ public class TensorFlowAccompanist {
         accompanist.intValues = new int[inputSize];
         accompanist.floatValues = new float[inputSize];
 
-        // ToDo: how to derive the shape?
-        accompanist.stateValues = new float[3 * 2 * 1 * 300];
-        accompanist.zeroStates();
-
-        accompanist.outputs = new float[accompanist.numAccompanyingVoices * 2];
-
         accompanist.inputName = inputName;
         accompanist.initStatesName = initStatesName;
         accompanist.outputName = outputName;
         accompanist.finalStatesName = finalStatesName;
 
+        // The inference interface already owns a session for the graph, opening a
+        // second one here would only duplicate its memory.
         accompanist.g = accompanist.inferenceInterface.graph();
-        accompanist.sess = new Session(accompanist.g);
-        accompanist.runner = accompanist.sess.runner();
 
         // call the initializing operations
         /*
@@ -177,20 +184,234 @@ public class TensorFlowAccompanist {
         return accompanist;
     }
 
+    // bytes in use on the Java heap, garbage not yet collected included
+    private static long usedJavaHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
     public List<Note> getNextVoices(final Note melodyNote) {
+        return nextVoices(melodyNote, false);
+    }
+
+    /**
+     * Lets a melody tick pass without running the model, as if it had been skipped
+     * on a sustained note. Used when there is no time left to compute the tick.
+     *
+     * @return the voices of the previous tick, none of them struck
+     */
+    public List<Note> holdVoices(final Note melodyNote) {
+        return nextVoices(melodyNote, true);
+    }
+
+    private List<Note> nextVoices(final Note melodyNote, boolean forceSkip) {
         //Trace.beginSection("getNextVoices");
 
+        log.i(TAG, "melody note: " + melodyNote);
+
+        final int melodyKey = melodyNote.getKey();
+        final boolean melodyStrike = melodyNote.getStrike();
+        if (phraseCache == null
+                || !phraseCache.advance(melodyKey, melodyStrike, outputs, stateValues)) {
+            if (forceSkip || canSkip(melodyKey, melodyStrike)) {
+                if (referenceStates != null && !diverged) {
+                    // the reference takes over the exact state from here
+                    System.arraycopy(stateValues, 0, referenceStates, 0, stateValues.length);
+                    diverged = true;
+                }
+                clearStrikes();
+                ticksSinceInference++;
+                skipStats.skipped++;
+                if (phraseCache != null)
+                    phraseCache.detach();
+            } else {
+                runInference(melodyKey, melodyStrike, stateValues, outputs);
+                ticksSinceInference = 0;
+                skipStats.inferences++;
+                if (phraseCache != null)
+                    phraseCache.store(melodyKey, melodyStrike, outputs, stateValues);
+            }
+        } else {
+            ticksSinceInference = 0;
+        }
+        lastKey = melodyKey;
+        if (referenceStates != null)
+            compareWithReference(melodyKey, melodyStrike);
+
+        final ArrayList<Note> notes = new ArrayList<Note>();
+        for (int i = 0; i < numAccompanyingVoices; ++i) {
+            notes.add(Note.decodeVoice(outputs, i, numAccompanyingVoices, strikeThreshold));
+            log.i(TAG, "voice: " + (i + 1) + ": " + notes.get(notes.size() - 1)
+                + " (" + outputs[i+ numAccompanyingVoices] + ")");
+
+        }
+        //Trace.endSection();
+        return notes;
+    }
+
+    public int getStateSize() {
+        return stateValues.length;
+    }
+
+    public int getOutputSize() {
+        return outputs.length;
+    }
+
+    /**
+     * Runs the model for ticks of independent sessions, each with its own LSTM state.
+     * The graph takes a single tick per run, so they are run one after the other.
+     * Leaves the state of this accompanist's own phrase alone.
+     */
+    public void run(int count, int[] keys, boolean[] strikes, float[][] states,
+                    float[][] results) {
+        for (int i = 0; i < count; i++) {
+            runInference(keys[i], strikes[i], states[i], results[i]);
+        }
+    }
+
+    /**
+     * Runs a few inferences on a dummy melody and resets the LSTM state afterwards.
+     * The first runs of a fresh session pay for TensorFlow's lazy initialisation,
+     * so this should be called once after create(), before real input arrives.
+     *
+     * @param iterations number of dummy inferences to run
+     */
+    public void warmUp(int iterations) {
+        for (int i = 0; i < iterations; ++i) {
+            runInference(WARM_UP_KEY, i == 0, stateValues, outputs);
+        }
+        reset();
+    }
+
+    /**
+     * Creates an empty phrase cache matching this model's output and state sizes.
+     *
+     * @param maxPhraseTicks maximum number of cached melody ticks
+     * @param modelName      identifies the model in persisted caches
+     */
+    public PhraseCache createPhraseCache(int maxPhraseTicks, String modelName) {
+        return new PhraseCache(maxPhraseTicks, outputs.length, stateValues.length, modelName);
+    }
+
+    /**
+     * Serves repeated melody prefixes from the cache instead of running the model.
+     * Starts a new phrase, as the cache only knows prefixes played from a reset state.
+     *
+     * @param cache the cache to use, null to always run the model
+     */
+    public void setPhraseCache(PhraseCache cache) {
+        phraseCache = cache;
+        reset();
+    }
+
+    public PhraseCache getPhraseCache() {
+        return phraseCache;
+    }
+
+    /**
+     * Trades accompaniment quality for CPU: while the melody note is sustained, the
+     * model only runs every interval ticks and the voices are held in between. The
+     * LSTM state does not advance on skipped ticks, so the voices may drift from
+     * what the model would play on every tick, see setDivergenceTracking().
+     *
+     * @param interval ticks between model runs on sustained notes, 1 for full quality,
+     *                 4 for beat resolution with 16th ticks
+     */
+    public void setSustainInferenceInterval(int interval) {
+        if (interval < 1)
+            throw new IllegalArgumentException("interval must be at least 1: " + interval);
+        sustainInferenceInterval = interval;
+    }
+
+    public int getSustainInferenceInterval() {
+        return sustainInferenceInterval;
+    }
+
+    /**
+     * Runs the model on every tick alongside the skipping one and counts the voices
+     * that differ. Costs nothing until the first tick is skipped, then one extra
+     * inference per tick until the next reset, so it is meant for tuning only.
+     */
+    public void setDivergenceTracking(boolean enabled) {
+        if (enabled && referenceStates == null) {
+            referenceStates = new float[stateValues.length];
+            referenceOutputs = new float[outputs.length];
+            diverged = false;
+        } else if (!enabled) {
+            referenceStates = null;
+            referenceOutputs = null;
+        }
+    }
+
+    /**
+     * Sets the strike probability above which a voice starts a new note, e.g. to tune
+     * it with an AccompanistEvaluation. Defaults to STRIKE_THRESHOLD.
+     */
+    public void setStrikeThreshold(float threshold) {
+        strikeThreshold = threshold;
+    }
+
+    public float getStrikeThreshold() {
+        return strikeThreshold;
+    }
+
+    public SkipStats getSkipStats() {
+        return skipStats;
+    }
+
+    /**
+     * Forgets the melody played so far, the next call of getNextVoices starts a new phrase.
+     */
+    public void reset() {
+        zeroStates();
+        ticksSinceInference = 0;
+        lastKey = 0;
+        diverged = false;
+        if (phraseCache != null)
+            phraseCache.reset();
+    }
+
+    // a sustained tick may hold the voices, unless the model ran too long ago
+    private boolean canSkip(int key, boolean strike) {
+        return !strike && key == lastKey
+                && ticksSinceInference + 1 < sustainInferenceInterval;
+    }
+
+    // keeps the keys of the last tick and strikes nothing
+    private void clearStrikes() {
+        for (int i = numAccompanyingVoices; i < outputs.length; ++i) {
+            outputs[i] = 0;
+        }
+    }
+
+    private void compareWithReference(int key, boolean strike) {
+        if (diverged) {
+            runInference(key, strike, referenceStates, referenceOutputs);
+        }
+        for (int i = 0; i < numAccompanyingVoices; ++i) {
+            skipStats.comparedVoices++;
+            if (!diverged)
+                continue;
+            int j = i + numAccompanyingVoices;
+            if (Math.round(outputs[i]) != Math.round(referenceOutputs[i])
+                    || (outputs[j] > strikeThreshold) != (referenceOutputs[j] > strikeThreshold)) {
+                skipStats.divergedVoices++;
+            }
+        }
+    }
+
+    // feeds one melody tick and the LSTM state in states into the model, leaves
+    // the result in result and the new LSTM state in states
+    void runInference(int key, boolean strike, float[] states, float[] result) {
         // Copy the input data into TensorFlow.
         //Trace.beginSection("fillInput");
-        intValues[0] = melodyNote.getKey();
+        intValues[0] = key;
 
-        if (melodyNote.getStrike()) intValues[1] = 1;
+        if (strike) intValues[1] = 1;
         else intValues[1] = 0;
 
-        Log.i(TAG, "melody note: " + melodyNote);
-
         inferenceInterface.feed(inputName, intValues, 2);
-        inferenceInterface.feed(initStatesName, stateValues, 3, 2, 1, 300);
+        inferenceInterface.feed(initStatesName, states, 3, 2, 1, 300);
         //Trace.endSection();
 
         // Run the inference call.
@@ -204,26 +425,14 @@ public class TensorFlowAccompanist {
 
         // Copy the output Tensor back into the output array.
         //Trace.beginSection("readOutput");1
-        inferenceInterface.fetch(outputName, outputs);
-        inferenceInterface.fetch(finalStatesName, stateValues);
+        inferenceInterface.fetch(outputName, result);
+        inferenceInterface.fetch(finalStatesName, states);
         //Trace.endSection();
 
         // copy the rnn cell states to the input of the next call
         //runner.addTarget(copyStatesName);
         //runner.run();
         //inferenceInterface.run(new String[] {copyStatesName});
-
-        final ArrayList<Note> notes = new ArrayList<Note>();
-        for (int i = 0; i < numAccompanyingVoices; ++i) {
-            boolean strike;
-            strike = outputs[i + numAccompanyingVoices] > STRIKE_THRESHOLD;
-            notes.add(new Note(Math.round(outputs[i] + 1), strike));
-            Log.i(TAG, "voice: " + (i + 1) + ": " + notes.get(notes.size() - 1)
-                + " (" + outputs[i+ numAccompanyingVoices] + ")");
-
-        }
-        //Trace.endSection();
-        return notes;
     }
 
     public void close() {
@@ -0,0 +1,93 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+
+/**
+ * Runs the tasks of a Scheduler on its own thread in real time, e.g. to run the
+ * AccompanimentEngine on a desktop JVM.
+ */
+public class ThreadScheduler implements Scheduler {
+
+    private final TaskQueue tasks = new TaskQueue();
+    private final Thread thread;
+    private boolean quit = false;
+
+    public ThreadScheduler(String name) {
+        thread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, name);
+        thread.start();
+    }
+
+    public synchronized void schedule(Runnable task, long delayNanos) {
+        tasks.add(task, System.nanoTime() + Math.max(0, delayNanos));
+        notifyAll();
+    }
+
+    public synchronized void scheduleFirst(Runnable task) {
+        // before every task, even the overdue ones
+        tasks.addFirst(task, Long.MIN_VALUE);
+        notifyAll();
+    }
+
+    public synchronized void cancel(Runnable task) {
+        tasks.remove(task);
+    }
+
+    /**
+     * Runs the tasks that are due and stops the thread.
+     */
+    public synchronized void quit() {
+        quit = true;
+        notifyAll();
+    }
+
+    public boolean isSchedulerThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    private void loop() {
+        while (true) {
+            TaskQueue.Task task;
+            synchronized (this) {
+                while (true) {
+                    TaskQueue.Task next = tasks.peek();
+                    long now = System.nanoTime();
+                    if (next != null && next.time <= now) {
+                        task = tasks.poll();
+                        break;
+                    }
+                    if (quit)
+                        return;
+                    try {
+                        if (next == null) {
+                            wait();
+                        } else {
+                            long wait = next.time - now;
+                            wait(wait / 1000000, (int) (wait % 1000000));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            task.runnable.run();
+        }
+    }
+}
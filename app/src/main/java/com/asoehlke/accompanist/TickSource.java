@@ -0,0 +1,33 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+/**
+ * The grid of 16th-note ticks the accompaniment is played on, either estimated from the
+ * melody or taken from an external clock.
+ */
+public interface TickSource {
+
+    /**
+     * @return the duration of a 16th-note tick in nanoseconds
+     */
+    long getTickNanos();
+
+    /**
+     * @return the first tick of the grid at or after time
+     */
+    long nextTickTime(long time);
+}
@@ -0,0 +1,85 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.stats.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing of the accompaniment ticks: how long the model took per tick and how many
+ * ticks missed their deadline. Can be read from any thread.
+ */
+public class TickStats {
+
+    private final LatencyHistogram inferenceLatency = new LatencyHistogram();
+    private final LatencyHistogram tickLatency = new LatencyHistogram();
+    private final AtomicLong onTime = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @return time spent in getNextVoices per tick
+     */
+    public LatencyHistogram getInferenceLatency() {
+        return inferenceLatency;
+    }
+
+    /**
+     * @return time from the start of a tick until its voices were ready, including
+     * the time waiting for the inference thread
+     */
+    public LatencyHistogram getTickLatency() {
+        return tickLatency;
+    }
+
+    /** ticks whose voices were played before the deadline */
+    public long getOnTime() {
+        return onTime.get();
+    }
+
+    /** ticks whose voices were ready after the deadline and were not played */
+    public long getLate() {
+        return late.get();
+    }
+
+    /** ticks that were not computed at all, because the model was still busy */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** ticks that missed their deadline, late or dropped */
+    public long getOverruns() {
+        return getLate() + getDropped();
+    }
+
+    void countOnTime() {
+        onTime.incrementAndGet();
+    }
+
+    void countLate() {
+        late.incrementAndGet();
+    }
+
+    void countDropped() {
+        dropped.incrementAndGet();
+    }
+
+    public String toString() {
+        return "TickStats onTime=" + getOnTime() + " late=" + getLate() + " dropped="
+                + getDropped() + " inference: " + inferenceLatency + " tick: " + tickLatency;
+    }
+}
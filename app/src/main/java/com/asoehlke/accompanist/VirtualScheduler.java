@@ -0,0 +1,84 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A scheduler and clock in virtual time, to simulate the accompaniment faster than
+ * real time and deterministically. Time only moves in advance() and runUntil(), which
+ * run the due tasks in order on the calling thread.
+ */
+public class VirtualScheduler implements Scheduler, TickClock {
+
+    private final TaskQueue tasks = new TaskQueue();
+    private long now;
+
+    /**
+     * @param startTime the virtual time to start at, in nanoseconds
+     */
+    public VirtualScheduler(long startTime) {
+        now = startTime;
+    }
+
+    public long nanoTime() {
+        return now;
+    }
+
+    public void schedule(Runnable task, long delayNanos) {
+        tasks.add(task, now + Math.max(0, delayNanos));
+    }
+
+    public void scheduleFirst(Runnable task) {
+        tasks.addFirst(task, now);
+    }
+
+    public void cancel(Runnable task) {
+        tasks.remove(task);
+    }
+
+    /**
+     * Runs all tasks due until time, then moves the clock to time.
+     */
+    public void runUntil(long time) {
+        while (tasks.peek() != null && tasks.peek().time <= time) {
+            TaskQueue.Task task = tasks.poll();
+            now = Math.max(now, task.time);
+            task.runnable.run();
+        }
+        now = Math.max(now, time);
+    }
+
+    public void advance(long nanos) {
+        runUntil(now + nanos);
+    }
+
+    /**
+     * @return an executor that runs its tasks latencyNanos of virtual time later, e.g.
+     * to stand in for the inference thread with a given inference time
+     */
+    public Executor delayingExecutor(final long latencyNanos) {
+        return new Executor() {
+            public void execute(Runnable task) {
+                schedule(task, latencyNanos);
+            }
+        };
+    }
+
+    public int getPendingCount() {
+        return tasks.size();
+    }
+}
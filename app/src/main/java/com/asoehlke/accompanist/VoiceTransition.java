@@ -0,0 +1,139 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.midi.MidiListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns consecutive voicings into the smallest set of note events and sends each
+ * change as one batch, so the synth applies it in a single audio buffer.
+ *
+ * A voice that is not struck is tied: it keeps its sounding note, also if the model
+ * moved it to another key, because that note was never played. A struck voice is
+ * played again, even on the same key. When the number of voices changes, tied notes
+ * stay where their key is still sounding and only the others start or stop.
+ */
+public class VoiceTransition {
+
+    // the notes sounding now, one per voice
+    private List<Note> sounding = new ArrayList<Note>();
+    private final int channel;
+    private int offCount = 0;
+    private int onCount = 0;
+
+    /**
+     * @param channel MIDI channel the voices are played on
+     */
+    public VoiceTransition(int channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Plays the change from the sounding voicing to voicing.
+     *
+     * @param voicing  the voices of the next tick
+     * @param velocity of the struck notes
+     * @return the notes sounding now, the voicing with its tied notes kept
+     */
+    public List<Note> moveTo(List<Note> voicing, int velocity, MidiListener listener) {
+        List<Note> next = new ArrayList<Note>(voicing.size());
+        List<Note> offs = new ArrayList<Note>();
+        List<Note> ons = new ArrayList<Note>();
+        if (voicing.size() == sounding.size()) {
+            for (int i = 0; i < voicing.size(); i++) {
+                Note note = voicing.get(i);
+                Note old = sounding.get(i);
+                if (note.getStrike()) {
+                    offs.add(old);
+                    ons.add(note);
+                    next.add(note);
+                } else {
+                    next.add(old);
+                }
+            }
+        } else {
+            // tie the voices whose key still sounds, the old voice order is gone
+            List<Note> untied = new ArrayList<Note>(sounding);
+            for (Note note : voicing) {
+                Note tied = note.getStrike() ? null : remove(untied, note.getKey());
+                if (tied != null) {
+                    next.add(tied);
+                } else {
+                    ons.add(note);
+                    next.add(note);
+                }
+            }
+            offs.addAll(untied);
+        }
+        send(offs, ons, velocity, listener);
+        sounding = next;
+        return next;
+    }
+
+    /**
+     * Stops all sounding voices.
+     */
+    public void release(int velocity, MidiListener listener) {
+        send(sounding, new ArrayList<Note>(), velocity, listener);
+        sounding = new ArrayList<Note>();
+    }
+
+    /**
+     * @return the notes sounding now, one per voice
+     */
+    public List<Note> getSounding() {
+        return sounding;
+    }
+
+    /**
+     * @return note-offs sent so far
+     */
+    public int getOffCount() {
+        return offCount;
+    }
+
+    /**
+     * @return note-ons sent so far
+     */
+    public int getOnCount() {
+        return onCount;
+    }
+
+    // offs first, so a struck note on a sounding key plays again
+    private void send(List<Note> offs, List<Note> ons, int velocity, MidiListener listener) {
+        if (offs.isEmpty() && ons.isEmpty())
+            return;
+        listener.onBatchBegin();
+        for (Note note : offs)
+            listener.onNoteOff(channel, note.getKey(), velocity);
+        for (Note note : ons)
+            listener.onNoteOn(channel, note.getKey(), velocity);
+        listener.onBatchEnd();
+        offCount += offs.size();
+        onCount += ons.size();
+    }
+
+    private static Note remove(List<Note> notes, int key) {
+        for (int i = 0; i < notes.size(); i++) {
+            if (notes.get(i).getKey() == key)
+                return notes.remove(i);
+        }
+        return null;
+    }
+}
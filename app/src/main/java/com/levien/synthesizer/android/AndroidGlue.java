@@ -1,6 +1,7 @@
 package com.levien.synthesizer.android;
 
 import com.levien.synthesizer.core.midi.MessageOutputProcessor;
+import com.levien.synthesizer.core.stats.LatencyTracer;
 
 /**
  * JNI container for connecting to C++ synth engine. The actual implementation is in the cpp/src
@@ -11,6 +12,12 @@ import com.levien.synthesizer.core.midi.MessageOutputProcessor;
  */
 public class AndroidGlue extends MessageOutputProcessor {
 
+  /**
+   * Parts of the synth, each with its own patch. Part i plays MIDI channel i, part 0 also the
+   * channels from PARTS on. The parts render one after the other in the audio callback.
+   */
+  public static final int PARTS = 2;
+
   /**
    * Create and initialize the engine. This should be done once per process.
    */
@@ -28,6 +35,15 @@ public class AndroidGlue extends MessageOutputProcessor {
    */
   public native void setPlayState(boolean isPlaying);
 
+  /**
+   * Changes the number of frames rendered per audio callback. The new size applies from the
+   * next callback on, the player keeps running.
+   *
+   * @param buf_size Frames per buffer, at most 1024.
+   * @return The size that will be used.
+   */
+  public native int setBufferSize(int buf_size);
+
   /**
    * Send a MIDI message. Currently supported messages include DX7 sysex data, and note-on/note-off,
    * but it will expand.
@@ -36,8 +52,141 @@ public class AndroidGlue extends MessageOutputProcessor {
    */
   public native void sendMidi(byte[] midiData);
 
+  /**
+   * Sends a MIDI message like sendMidi(), and has the audio callback that reads it write a
+   * trace record with the given id.
+   *
+   * @param midiData The midi data to send.
+   * @param traceId Id of the LatencyTracer trace, returned in the trace record.
+   */
+  public native void sendMidiTraced(byte[] midiData, int traceId);
+
   public void onMessage(byte[] midiData) {
-    sendMidi(midiData);
+    // only a note-on can carry the trace of a touch
+    int traceId = -1;
+    if (midiData.length == 3 && (midiData[0] & 0xF0) == 0x90 && midiData[2] != 0) {
+      traceId = LatencyTracer.getDefault().takeForSend();
+    }
+    if (traceId >= 0) {
+      sendMidiTraced(midiData, traceId);
+    } else {
+      sendMidi(midiData);
+    }
+    // written before checking, so suspendIfIdle() either sees the message or resumes
+    if (suspended_) {
+      resume();
+    }
+  }
+
+  /**
+   * @return Frames the synth has rendered since the last MIDI input or sounding note, 0 while
+   *     input is pending.
+   */
+  public native int getIdleFrames();
+
+  /**
+   * @return Voices the synth rendered in its latest block. A released voice stops counting
+   *     once its envelopes have decayed below audibility.
+   */
+  public native int getActiveVoices();
+
+  /** Voices that can sound at most, the limit of setPolyphony(). */
+  public static final int MAX_POLYPHONY = 32;
+
+  /** Voices setPolyphony() keeps for each part after the first, a chord of the accompanist. */
+  public static final int PART_VOICES = 3;
+
+  /** Voices setPolyphony() keeps at least, one of the first part plus those of the others. */
+  public static final int MIN_POLYPHONY = 1 + PART_VOICES * (PARTS - 1);
+
+  /** When all voices sound, a key-down takes the one that was keyed down first. */
+  public static final int STEAL_OLDEST = 0;
+  /** When all voices sound, a key-down takes the quietest one. */
+  public static final int STEAL_QUIETEST = 1;
+  /** A key-down takes the voice already playing the same key, otherwise the oldest. */
+  public static final int STEAL_SAME_NOTE = 2;
+
+  /**
+   * Sets how many voices key-downs may use. The parts after the first get PART_VOICES each,
+   * the first part the rest. Voices above a lowered limit play on until they have been
+   * released and decayed.
+   *
+   * @param polyphony Number of voices of all parts, MIN_POLYPHONY to MAX_POLYPHONY.
+   * @return The clamped number, 0 if the synth is not running.
+   */
+  public native int setPolyphony(int polyphony);
+
+  /**
+   * Sets which voice a key-down takes when all voices are in use. Released voices are taken
+   * before sustained ones and those before held ones, whatever the policy.
+   *
+   * @param policy One of the STEAL_ constants.
+   */
+  public native void setVoiceStealing(int policy);
+
+  /**
+   * Pauses the player if the synth has been silent for a while. The next MIDI message
+   * resumes it.
+   *
+   * @param minIdleFrames Frames of silence needed.
+   * @return Whether the player was paused.
+   */
+  public synchronized boolean suspendIfIdle(int minIdleFrames) {
+    if (suspended_) {
+      return false;
+    }
+    suspended_ = true;
+    if (getIdleFrames() < minIdleFrames) {
+      suspended_ = false;
+      return false;
+    }
+    setPlayState(false);
+    suspendedSince_ = System.nanoTime();
+    suspensions_++;
+    return true;
+  }
+
+  /**
+   * Resumes the player after suspendIfIdle().
+   */
+  public synchronized void resume() {
+    if (suspended_) {
+      setPlayState(true);
+      suspended_ = false;
+      suspendedNanos_ += System.nanoTime() - suspendedSince_;
+      Runnable listener = resumeListener_;
+      if (listener != null) {
+        listener.run();
+      }
+    }
+  }
+
+  /**
+   * Sets a Runnable that resume() runs when it restarts a suspended player, on the thread
+   * that resumes it, e.g. to restart polling that stops while the synth is suspended.
+   *
+   * @param listener Runnable to run, or null if none
+   */
+  public void setResumeListener(Runnable listener) {
+    resumeListener_ = listener;
+  }
+
+  public boolean isSuspended() {
+    return suspended_;
+  }
+
+  /**
+   * @return How often suspendIfIdle() paused the player.
+   */
+  public synchronized int getSuspensions() {
+    return suspensions_;
+  }
+
+  /**
+   * @return Time the player was paused by suspendIfIdle(), including the current pause.
+   */
+  public synchronized long getSuspendedNanos() {
+    return suspendedNanos_ + (suspended_ ? System.nanoTime() - suspendedSince_ : 0);
   }
 
   /**
@@ -47,6 +196,44 @@ public class AndroidGlue extends MessageOutputProcessor {
 
   public native int readStatsBytes(byte[] buf, int off, int len);
 
+  /**
+   * Reads the trace records of the note-ons sent with sendMidiTraced(), see
+   * LatencyTracer.addNativeRecords(). Records are only returned whole if len is a multiple
+   * of LatencyTracer.NATIVE_RECORD_SIZE.
+   *
+   * @return Number of bytes read
+   */
+  public native int readTraceBytes(byte[] buf, int off, int len);
+
+  /**
+   * Reads the audio clock, which advances with every buffer the synth renders.
+   *
+   * @param clock Receives the number of frames rendered before the latest audio callback at
+   *     index 0, and the System.nanoTime() at which that callback started at index 1.
+   * @return false if no audio has been rendered yet
+   */
+  public native boolean getAudioClock(long[] clock);
+
+  /**
+   * Reads the time the synth spent in the sections of its audio callback, see DspLoad.
+   *
+   * @param load Receives the aggregate, DspLoad.FIELDS elements.
+   * @param reset Whether the aggregate starts over after the next callback.
+   * @return false if the synth is not running or was busy updating the aggregate
+   */
+  public native boolean getDspLoad(long[] load, boolean reset);
+
+  /**
+   * @return The sample rate the engine was started with, 0 before start().
+   */
+  public native int getSampleRate();
+
+  private volatile boolean suspended_;
+  private volatile Runnable resumeListener_;
+  private long suspendedSince_;
+  private long suspendedNanos_;
+  private int suspensions_;
+
   static {
     System.loadLibrary("synth");
   }
@@ -28,6 +28,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbInterface;
@@ -35,14 +36,21 @@ import android.hardware.usb.UsbManager;
 import android.media.AudioManager;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.levien.synthesizer.R;
 import com.levien.synthesizer.android.AndroidGlue;
+import com.levien.synthesizer.android.stats.BufferSizeTuner;
+import com.levien.synthesizer.android.stats.DspLoad;
+import com.levien.synthesizer.android.stats.JitterStats;
+import com.levien.synthesizer.android.stats.VoiceBudget;
 import com.levien.synthesizer.android.usb.UsbMidiDevice;
 import com.levien.synthesizer.core.midi.MessageTee;
 import com.levien.synthesizer.core.midi.MidiListener;
+import com.levien.synthesizer.core.stats.LatencyTracer;
 
 /**
  * An Android Service that plays audio from a synthesizer.
@@ -71,12 +79,22 @@ public class SynthesizerService extends Service {
       if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
         getJbMr1Params(params);
       }
+      Log.i("synth", "device audio params: " + params);
       // Empirical testing shows better performance with small buffer size
-      // than actually matching the media server's reported buffer size.
-      params.bufferSize = 64;
+      // than actually matching the media server's reported buffer size. The
+      // tuner finds the smallest size that plays without xruns, starting from
+      // the one it found for this device model before.
+      SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+      params.bufferSize = prefs.getInt(BUFFER_SIZE_KEY, 64);
+      bufferSizeTuner_ = new BufferSizeTuner(params.sampleRate, params.bufferSize);
+      params.bufferSize = bufferSizeTuner_.getBufferSize();
+      Log.i("synth", "starting with buffer size " + params.bufferSize + " on " + Build.MODEL);
 
       androidGlue_ = new AndroidGlue();
       androidGlue_.start(params.sampleRate, params.bufferSize);
+      callbackStats_ = new JitterStats(bufferSizeTuner_.getPeriodNanos());
+      voiceBudget_ = new VoiceBudget(params.sampleRate, AndroidGlue.MAX_POLYPHONY);
+      applyPolyphony();
       InputStream patchIs = getResources().openRawResource(R.raw.rom1a);
       byte[] patchData = new byte[4104];
       try {
@@ -91,7 +109,13 @@ public class SynthesizerService extends Service {
       }
     }
     midiListener_ = new MessageTee(androidGlue_);
+    usbMidiListener_ = new MessageTee(midiListener_);
+    androidGlue_.resume();
     androidGlue_.setPlayState(true);
+    createdNanos_ = System.nanoTime();
+    suspendedAtCreate_ = androidGlue_.getSuspendedNanos();
+    androidGlue_.setResumeListener(pollerRestarter_);
+    statsHandler_.post(statsPoller_);
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
       IntentFilter filter = new IntentFilter(UsbManager.ACTION_USB_DEVICE_DETACHED);
       registerReceiver(usbReceiver_, filter);
@@ -106,6 +130,21 @@ public class SynthesizerService extends Service {
   public void onDestroy() {
     Log.d("synth", "service onDestroy");
     androidGlue_.setPlayState(false);
+    androidGlue_.setResumeListener(null);
+    statsHandler_.removeCallbacks(statsPoller_);
+    callbackStats_.update(androidGlue_);
+    Log.i("synth", "audio callbacks: " + callbackStats_.snapshot());
+    Log.i("synth", "dsp load: " + getDspLoad());
+    Log.i("synth", "polyphony " + getPolyphony() + " of " + polyphony_);
+    // compare the cpu time of runs with and without suspension to see the savings
+    long uptime = System.nanoTime() - createdNanos_;
+    long suspended = androidGlue_.getSuspendedNanos() - suspendedAtCreate_;
+    Log.i("synth", String.format(
+        "suspended %d times, %.0f%% of %ds, %d stats polls, process cpu time %dms",
+        androidGlue_.getSuspensions(), 100.0 * suspended / uptime, uptime / 1000000000L,
+        statsPolls_, android.os.Process.getElapsedCpuTime()));
+    readLatencyTraces();
+    Log.i("synth", "touch to sound latency:\n" + LatencyTracer.getDefault());
     setMidiInterface(null, null);
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
       unregisterReceiver(usbReceiver_);
@@ -124,6 +163,64 @@ public class SynthesizerService extends Service {
     return midiListener_;
   }
 
+  /**
+   * @return The glue to the native synth engine, e.g. to read its audio clock.
+   */
+  public AndroidGlue getAndroidGlue() {
+    return androidGlue_;
+  }
+
+  /**
+   * @return The timing of the audio callbacks since the buffer size last changed, updated
+   *     about once a second.
+   */
+  public JitterStats getCallbackStats() {
+    return callbackStats_;
+  }
+
+  /**
+   * @return The time the synth spent in the sections of its audio callbacks since it
+   *     started, null if it is not running.
+   */
+  public DspLoad getDspLoad() {
+    return DspLoad.read(androidGlue_, false);
+  }
+
+  /**
+   * @return The voices the synth is rendering, released notes that decayed below
+   *     audibility do not count.
+   */
+  public int getActiveVoices() {
+    return androidGlue_.getActiveVoices();
+  }
+
+  /**
+   * Sets how many voices the synth may play at once. It plays fewer if the device cannot
+   * render that many in time.
+   *
+   * @param polyphony Number of voices, 1 to AndroidGlue.MAX_POLYPHONY.
+   */
+  public void setPolyphony(int polyphony) {
+    polyphony_ = polyphony;
+    applyPolyphony();
+  }
+
+  /**
+   * @return The number of voices the synth may play at once.
+   */
+  public int getPolyphony() {
+    return Math.min(polyphony_, voiceBudget_.getPolyphony());
+  }
+
+  /**
+   * Sets which voice a key-down takes when all voices are in use.
+   *
+   * @param policy One of the AndroidGlue.STEAL_ constants.
+   */
+  public void setVoiceStealing(int policy) {
+    androidGlue_.setVoiceStealing(policy);
+  }
+
   /**
    * Sends raw MIDI data to the synthesizer.
    *
@@ -131,6 +228,7 @@ public class SynthesizerService extends Service {
    */
   public void sendRawMidi(byte[] buf) {
     androidGlue_.sendMidi(buf);
+    androidGlue_.resume();
   }
 
   public List<String> getPatchNames() {
@@ -206,7 +304,7 @@ public class SynthesizerService extends Service {
           usbDevice_ = device;
           usbMidiConnection_ = connection;
           usbMidiInterface_ = intf;
-          usbMidiDevice_ = new UsbMidiDevice(midiListener_, usbMidiConnection_, intf);
+          usbMidiDevice_ = new UsbMidiDevice(usbMidiListener_, usbMidiConnection_, intf);
           usbMidiDevice_.start();
           return true;
         } else {
@@ -264,7 +362,30 @@ public class SynthesizerService extends Service {
     midiListener_.setSecondTarget(target);
   }
 
+  /**
+   * Set a Runnable that is run on the main thread when the synth has been suspended
+   * because nothing has sounded for a while, e.g. to stop timers. The next MIDI message
+   * resumes the synth.
+   *
+   * @param listener Runnable to run, or null if none
+   */
+  public void setSuspendListener(Runnable listener) {
+    suspendListener_ = listener;
+  }
+
+  /**
+   * Set a MidiListener that gets the messages from the USB MIDI device only, e.g.
+   * to record them.
+   *
+   * @param tap MidiListener to receive the USB messages, or null if none
+   */
+  public void setUsbMidiTap(MidiListener tap) {
+    usbMidiListener_.setSecondTarget(tap);
+  }
+
   private MessageTee midiListener_;
+  // passes the messages from USB on to midiListener_ and to a tap
+  private MessageTee usbMidiListener_;
 
   // Binder to use for Activities in this process.
   private final IBinder binder_ = new LocalBinder();
@@ -273,6 +394,110 @@ public class SynthesizerService extends Service {
 
   private static List<String> patchNames_;
 
+  private static JitterStats callbackStats_;
+
+  private static BufferSizeTuner bufferSizeTuner_;
+  // per device model, as the preferences may be restored on another device
+  private static final String BUFFER_SIZE_KEY = "audio_buffer_size_" + Build.MODEL;
+
+  // Caps the polyphony to what this device renders in time.
+  private static VoiceBudget voiceBudget_;
+  // Polyphony set by the user.
+  private static int polyphony_ = 16;
+
+  // Silence after which the synth stops rendering until the next MIDI message.
+  private static final int IDLE_SECONDS = 10;
+  private Runnable suspendListener_;
+  private long createdNanos_;
+  private long suspendedAtCreate_;
+
+  // Reads the callback timing and latency trace records before the ring buffers fill up.
+  // Stops while the synth is suspended, there are no callbacks then.
+  private static final long STATS_POLL_MS = 1000;
+  private final Handler statsHandler_ = new Handler();
+  private int statsPolls_;
+  private final Runnable statsPoller_ = new Runnable() {
+    public void run() {
+      statsPolls_++;
+      callbackStats_.update(androidGlue_);
+      readLatencyTraces();
+      tuneBufferSize();
+      limitPolyphony();
+      if (!suspendIfIdle()) {
+        statsHandler_.postDelayed(this, STATS_POLL_MS);
+      }
+    }
+  };
+  // run by AndroidGlue.resume(), on whichever thread the MIDI message came in
+  private final Runnable pollerRestarter_ = new Runnable() {
+    public void run() {
+      statsHandler_.removeCallbacks(statsPoller_);
+      statsHandler_.post(statsPoller_);
+    }
+  };
+  private final byte[] traceBuf_ = new byte[LatencyTracer.NATIVE_RECORD_SIZE * 64];
+
+  // returns whether the synth has been suspended
+  private boolean suspendIfIdle() {
+    if (!androidGlue_.suspendIfIdle(IDLE_SECONDS * androidGlue_.getSampleRate())) {
+      return false;
+    }
+    Log.i("synth", "suspended after " + IDLE_SECONDS + "s of silence");
+    if (suspendListener_ != null) {
+      suspendListener_.run();
+    }
+    return true;
+  }
+
+  private void tuneBufferSize() {
+    int size = bufferSizeTuner_.getBufferSize();
+    // the decision and the log line have to see the same window
+    JitterStats.Snapshot window = callbackStats_.snapshot();
+    int newSize = bufferSizeTuner_.update(window);
+    if (newSize != size) {
+      Log.i("synth", "buffer size " + size + " -> " + newSize + " after " + window);
+      androidGlue_.setBufferSize(newSize);
+      callbackStats_.setNominalPeriod(bufferSizeTuner_.getPeriodNanos());
+      callbackStats_.reset();
+      // a size that had xruns is never a good start
+      if (newSize > size) {
+        saveBufferSize(newSize);
+      }
+    } else if (bufferSizeTuner_.isStable()) {
+      saveBufferSize(newSize);
+    }
+  }
+
+  private void limitPolyphony() {
+    DspLoad load = getDspLoad();
+    int cap = voiceBudget_.getPolyphony();
+    if (load != null && voiceBudget_.update(load) != cap) {
+      Log.i("synth", "polyphony capped " + cap + " -> " + voiceBudget_.getPolyphony() + " at "
+          + voiceBudget_.getVoiceNanos() / 1000 + "us per voice and block");
+      applyPolyphony();
+    }
+  }
+
+  private void applyPolyphony() {
+    androidGlue_.setPolyphony(getPolyphony());
+  }
+
+  // remembers the size for this device model, so the next start begins with it
+  private void saveBufferSize(int size) {
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+    if (prefs.getInt(BUFFER_SIZE_KEY, 0) != size) {
+      prefs.edit().putInt(BUFFER_SIZE_KEY, size).apply();
+      Log.i("synth", "buffer size " + size + " saved for " + Build.MODEL);
+    }
+  }
+
+  private void readLatencyTraces() {
+    int n;
+    while ((n = androidGlue_.readTraceBytes(traceBuf_, 0, traceBuf_.length)) > 0) {
+      LatencyTracer.getDefault().addNativeRecords(traceBuf_, 0, n);
+    }
+  }
+
   // State for USB MIDI keyboard connection
   private UsbDevice usbDevice_;
   private UsbDeviceConnection usbMidiConnection_;
@@ -0,0 +1,114 @@
+package com.levien.synthesizer.android.stats;
+
+/**
+ * Finds the smallest audio buffer size that plays without xruns on this device. It steps up
+ * as soon as a window of callbacks has an xrun, and after a long clean run probes the next
+ * smaller size, unless that size already failed twice or the callbacks would not fit into
+ * the shorter period. Call update() about once a second with the callback timing, and reset
+ * the JitterStats whenever the size changes.
+ */
+public class BufferSizeTuner {
+  // Multiples of the 64 samples the synth renders at a time, so no samples are carried
+  // over between callbacks.
+  private static final int[] SIZES = {64, 128, 192, 256, 384, 512, 768, 1024};
+
+  // Clean windows after which the size counts as stable.
+  private static final int STABLE_WINDOWS = 10;
+  // Clean windows after which the next smaller size is tried.
+  private static final int PROBE_WINDOWS = 30;
+  // A size that failed this often is not tried again.
+  private static final int MAX_FAILURES = 2;
+  // The p99 callback time must stay below this share of the smaller period to try it.
+  private static final double PROBE_LOAD = 0.5;
+
+  /**
+   * @param sampleRate sample rate of the synth
+   * @param initialSize buffer size the synth was started with
+   */
+  public BufferSizeTuner(int sampleRate, int initialSize) {
+    sampleRate_ = sampleRate;
+    index_ = SIZES.length - 1;
+    for (int i = 0; i < SIZES.length; i++) {
+      if (SIZES[i] >= initialSize) {
+        index_ = i;
+        break;
+      }
+    }
+    failures_ = new int[SIZES.length];
+    settling_ = true;
+  }
+
+  public int getBufferSize() {
+    return SIZES[index_];
+  }
+
+  /**
+   * @return duration of one buffer of the current size
+   */
+  public long getPeriodNanos() {
+    return periodNanos(index_);
+  }
+
+  /**
+   * @return whether the current size has played without xruns for a while
+   */
+  public boolean isStable() {
+    return cleanWindows_ >= STABLE_WINDOWS;
+  }
+
+  /**
+   * Evaluates the callbacks since the previous update.
+   *
+   * @param stats timing of the callbacks since the size last changed
+   * @return the buffer size to use from now on
+   */
+  public int update(JitterStats.Snapshot stats) {
+    long callbacks = stats.callbacks - lastCallbacks_;
+    long xruns = stats.getXruns() - lastXruns_;
+    lastCallbacks_ = stats.callbacks;
+    lastXruns_ = stats.getXruns();
+    if (callbacks == 0) {
+      // paused
+      return getBufferSize();
+    }
+    if (settling_) {
+      // the first callbacks after a change are timed against the wrong period
+      settling_ = false;
+      return getBufferSize();
+    }
+    if (xruns > 0) {
+      failures_[index_]++;
+      cleanWindows_ = 0;
+      if (index_ < SIZES.length - 1) {
+        change(index_ + 1);
+      }
+      return getBufferSize();
+    }
+    cleanWindows_++;
+    if (cleanWindows_ >= PROBE_WINDOWS && index_ > 0 && failures_[index_ - 1] < MAX_FAILURES
+        && stats.p99 < PROBE_LOAD * periodNanos(index_ - 1)) {
+      cleanWindows_ = 0;
+      change(index_ - 1);
+    }
+    return getBufferSize();
+  }
+
+  private void change(int index) {
+    index_ = index;
+    lastCallbacks_ = 0;
+    lastXruns_ = 0;
+    settling_ = true;
+  }
+
+  private long periodNanos(int index) {
+    return SIZES[index] * 1000000000L / sampleRate_;
+  }
+
+  private final int sampleRate_;
+  private int index_;
+  private final int[] failures_;
+  private int cleanWindows_;
+  private boolean settling_;
+  private long lastCallbacks_;
+  private long lastXruns_;
+}
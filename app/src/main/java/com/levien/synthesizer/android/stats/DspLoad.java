@@ -0,0 +1,157 @@
+package com.levien.synthesizer.android.stats;
+
+import com.levien.synthesizer.android.AndroidGlue;
+
+/**
+ * Where the synth spends its audio callbacks: the time in each section of
+ * SynthUnit::GetSamples and the number of active voices, aggregated natively since the
+ * last reset. Every section is timed with CLOCK_MONOTONIC, so the times include the time
+ * the audio thread was preempted.
+ */
+public class DspLoad {
+  /** transferring and parsing MIDI input, including note setup */
+  public static final int SECTION_MIDI = 0;
+  /** unpacking patches on program change or patch load */
+  public static final int SECTION_PATCH = 1;
+  /** rendering the active Dx7Notes */
+  public static final int SECTION_VOICES = 2;
+  /** the ResoFilter */
+  public static final int SECTION_FILTER = 3;
+  /** clipping and converting to 16 bit */
+  public static final int SECTION_OUTPUT = 4;
+  public static final int SECTIONS = 5;
+
+  // Layout of the array AndroidGlue.getDspLoad() fills, kDspLoadFields in android_glue.cc.
+  public static final int FIELDS = 7 + 2 * SECTIONS;
+
+  private static final String[] SECTION_NAMES = {"midi", "patch", "voices", "filter", "output"};
+
+  /**
+   * Reads the aggregate from the synth.
+   *
+   * @param reset whether the aggregate starts over; the callback in which the reset
+   *     happens is not counted in either snapshot
+   * @return the load, null if the synth is not running
+   */
+  public static DspLoad read(AndroidGlue glue, boolean reset) {
+    long[] fields = new long[FIELDS];
+    return glue.getDspLoad(fields, reset) ? new DspLoad(fields) : null;
+  }
+
+  DspLoad(long[] fields) {
+    callbacks_ = fields[0];
+    blocks_ = fields[1];
+    voiceBlocks_ = fields[2];
+    maxVoices_ = (int)fields[3];
+    maxCallbackNanos_ = fields[4];
+    retiredVoices_ = fields[5];
+    stolenVoices_ = fields[6];
+    sectionNanos_ = new long[SECTIONS];
+    sectionMaxNanos_ = new long[SECTIONS];
+    System.arraycopy(fields, 7, sectionNanos_, 0, SECTIONS);
+    System.arraycopy(fields, 7 + SECTIONS, sectionMaxNanos_, 0, SECTIONS);
+  }
+
+  public long getCallbacks() {
+    return callbacks_;
+  }
+
+  /**
+   * @return total time spent in a section, in nanoseconds
+   */
+  public long getSectionNanos(int section) {
+    return sectionNanos_[section];
+  }
+
+  /**
+   * @return the longest time spent in a section in one callback, in nanoseconds
+   */
+  public long getSectionMaxNanos(int section) {
+    return sectionMaxNanos_[section];
+  }
+
+  /**
+   * @return the longest time spent in all sections in one callback, in nanoseconds
+   */
+  public long getMaxCallbackNanos() {
+    return maxCallbackNanos_;
+  }
+
+  /**
+   * @return the voices active in an average block of N samples
+   */
+  public double getMeanVoices() {
+    return blocks_ == 0 ? 0 : (double)voiceBlocks_ / blocks_;
+  }
+
+  public int getMaxVoices() {
+    return maxVoices_;
+  }
+
+  /**
+   * @return released voices that stopped rendering because they decayed below audibility
+   */
+  public long getRetiredVoices() {
+    return retiredVoices_;
+  }
+
+  /**
+   * @return sounding voices a key-down took over because no voice was free
+   */
+  public long getStolenVoices() {
+    return stolenVoices_;
+  }
+
+  /**
+   * @return the voices summed over all blocks, i.e. how often one voice was rendered
+   */
+  public long getVoiceBlocks() {
+    return voiceBlocks_;
+  }
+
+  /**
+   * @return share of the time spent in all sections that went to one section
+   */
+  public double getShare(int section) {
+    long total = getTotalNanos();
+    return total == 0 ? 0 : (double)sectionNanos_[section] / total;
+  }
+
+  /**
+   * @param periodNanos duration of one audio buffer
+   * @return share of the buffer duration an average callback spends rendering
+   */
+  public double getLoad(long periodNanos) {
+    return callbacks_ == 0 ? 0 : (double)getTotalNanos() / (callbacks_ * periodNanos);
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("callbacks=").append(callbacks_);
+    sb.append(String.format(" voices mean=%.1f max=%d retired=%d stolen=%d", getMeanVoices(),
+        maxVoices_, retiredVoices_, stolenVoices_));
+    sb.append(" max callback=").append(maxCallbackNanos_ / 1000).append("us");
+    for (int i = 0; i < SECTIONS; i++) {
+      sb.append(String.format(" %s=%.0f%% (max %dus)", SECTION_NAMES[i], 100 * getShare(i),
+          sectionMaxNanos_[i] / 1000));
+    }
+    return sb.toString();
+  }
+
+  private long getTotalNanos() {
+    long total = 0;
+    for (long nanos : sectionNanos_) {
+      total += nanos;
+    }
+    return total;
+  }
+
+  private final long callbacks_;
+  private final long blocks_;
+  private final long voiceBlocks_;
+  private final int maxVoices_;
+  private final long maxCallbackNanos_;
+  private final long retiredVoices_;
+  private final long stolenVoices_;
+  private final long[] sectionNanos_;
+  private final long[] sectionMaxNanos_;
+}
@@ -1,61 +1,182 @@
 package com.levien.synthesizer.android.stats;
 
-import android.util.Log;
+import com.levien.synthesizer.android.AndroidGlue;
+import com.levien.synthesizer.core.stats.LatencyHistogram;
 
+/**
+ * Timing of the audio callbacks, from the binary records android_glue writes to the stats
+ * ring buffer: a histogram of the callback times and counts of the callbacks that missed
+ * their deadline (xruns). Decoding takes no parsing and no allocation, and a snapshot can be
+ * taken from any thread.
+ */
 public class JitterStats {
-  public JitterStats() {
-    startTime_ = new double[N_STATS];
-    endTime_ = new double[N_STATS];
-
-  }
-
-  // Takes stats buf in format from android_glue
-  public void aggregate(byte[] statsBuf) {
-    String[] lines = new String(statsBuf).split("\n");
-    for (int i = 0; i < lines.length; i++) {
-      String[] toks = lines[i].split(" ");
-      if (toks.length == 3 && "ts".equals(toks[0])) {
-        double startTime = Double.parseDouble(toks[1]);
-        double endTime = Double.parseDouble(toks[2]);
-        startTime_[bufIx_] = startTime;
-        endTime_[bufIx_] = endTime;
-        bufIx_ = (bufIx_ + 1) % N_STATS;
-        double cbTime = endTime - startTime;
-        meanCbTime_ += (cbTime - meanCbTime_) * .01;
-      }
+  // Size and layout of struct CallbackRecord in android_glue.cc, little endian.
+  public static final int RECORD_SIZE = 24;
+
+  // Audio buffers queued, N_BUFFERS in android_glue.cc. A callback starting more than this
+  // many periods after the previous one came too late to keep the queue filled.
+  private static final int QUEUED_BUFFERS = 2;
+
+  // CallbackRecord.flags: the first callback after the player was paused.
+  private static final int FLAG_RESUMED = 1;
+
+  /**
+   * The statistics at one point in time.
+   */
+  public static class Snapshot {
+    /** callbacks seen */
+    public final long callbacks;
+    /** time spent in the callback, in nanoseconds */
+    public final long p50;
+    public final long p99;
+    public final long p999;
+    public final long max;
+    /** callbacks that took longer than a buffer lasts */
+    public final long overruns;
+    /** callbacks that started too late to keep the buffer queue filled */
+    public final long lateStarts;
+    /** records lost because they were not read in time */
+    public final long dropped;
+
+    Snapshot(long callbacks, LatencyHistogram callbackTime, long overruns, long lateStarts,
+        long dropped) {
+      this.callbacks = callbacks;
+      p50 = callbackTime.getPercentile(0.5);
+      p99 = callbackTime.getPercentile(0.99);
+      p999 = callbackTime.getPercentile(0.999);
+      max = callbackTime.getMax();
+      this.overruns = overruns;
+      this.lateStarts = lateStarts;
+      this.dropped = dropped;
+    }
+
+    /**
+     * @return callbacks that missed their deadline
+     */
+    public long getXruns() {
+      return overruns + lateStarts;
+    }
+
+    public String toString() {
+      return "callbacks=" + callbacks + " cb p50=" + p50 / 1000 + "us p99=" + p99 / 1000
+          + "us p99.9=" + p999 / 1000 + "us max=" + max / 1000 + "us xruns=" + getXruns()
+          + " (overruns=" + overruns + " late=" + lateStarts + ") dropped=" + dropped;
     }
   }
 
-  public String report() {
-    double maxCbTime = 0.0;
-    for (int i = 0; i < N_STATS; i++) {
-      double cbTime = endTime_[i] - startTime_[i];
-      maxCbTime = Math.max(maxCbTime, cbTime);
+  /**
+   * @param nominalPeriodNanos duration of one audio buffer
+   */
+  public JitterStats(long nominalPeriodNanos) {
+    nominalPeriod_ = nominalPeriodNanos;
+    buf_ = new byte[RECORD_SIZE * 256];
+    callbackTime_ = new LatencyHistogram();
+  }
+
+  /**
+   * Reads the records available from the synth. Call it regularly from one thread, often
+   * enough that the ring buffer doesn't fill up, e.g. once a second.
+   */
+  public void update(AndroidGlue glue) {
+    int n;
+    do {
+      n = glue.readStatsBytes(buf_, pending_, buf_.length - pending_);
+      int end = pending_ + n;
+      int i = decode(buf_, 0, end);
+      pending_ = end - i;
+      System.arraycopy(buf_, i, buf_, 0, pending_);
+    } while (n > 0 && glue.statsBytesAvailable() > 0);
+  }
+
+  /**
+   * Adds the records in buf. A partial record at the end is kept until the rest arrives
+   * with the next call.
+   */
+  void aggregate(byte[] buf, int off, int len) {
+    if (pending_ > 0) {
+      int take = Math.min(RECORD_SIZE - pending_, len);
+      System.arraycopy(buf, off, buf_, pending_, take);
+      pending_ += take;
+      off += take;
+      len -= take;
+      if (pending_ < RECORD_SIZE) {
+        return;
+      }
+      decode(buf_, 0, RECORD_SIZE);
     }
-    return "max cb = " + Double.toString(maxCbTime * 1000) + "ms";
+    int i = decode(buf, off, off + len);
+    pending_ = off + len - i;
+    System.arraycopy(buf, i, buf_, 0, pending_);
   }
 
-  public void setNominalCb(double nominalCb) {
-    nominalCbPeriod_ = nominalCb;
+  // Adds the whole records between off and end, returns where the first partial one starts.
+  private int decode(byte[] buf, int off, int end) {
+    int i = off;
+    for (; i + RECORD_SIZE <= end; i += RECORD_SIZE) {
+      int droppedAndFlags = readInt(buf, i + 20);
+      addCallback(readLong(buf, i), readLong(buf, i + 8), droppedAndFlags & 0xFFFF,
+          (droppedAndFlags >>> 16 & FLAG_RESUMED) != 0);
+    }
+    return i;
   }
 
-  public String reportLong() {
-    StringBuilder sb = new StringBuilder();
-    double startTime = startTime_[bufIx_];
-    for (int i = 0; i < N_STATS; i++) {
-      double nominalStart = startTime + nominalCbPeriod_ * i;
-      double thisStart = startTime_[(bufIx_ + i) % N_STATS] - nominalStart;
-      double thisEnd = endTime_[(bufIx_ + i) % N_STATS] - nominalStart;
-      sb.append(thisStart + " " + thisEnd + "\n");
+  private synchronized void addCallback(long start, long end, int dropped, boolean resumed) {
+    callbackTime_.record(end - start);
+    callbacks_++;
+    dropped_ += dropped;
+    if (end - start > nominalPeriod_) {
+      overruns_++;
+    }
+    // after dropped records the gap to the previous start is unknown, after a pause it
+    // is no xrun
+    if (lastStart_ != 0 && dropped == 0 && !resumed
+        && start - lastStart_ > QUEUED_BUFFERS * nominalPeriod_) {
+      lateStarts_++;
     }
-    return sb.toString();
+    lastStart_ = start;
+  }
+
+  /**
+   * @param nominalPeriodNanos duration of one audio buffer after the buffer size changed
+   */
+  public synchronized void setNominalPeriod(long nominalPeriodNanos) {
+    nominalPeriod_ = nominalPeriodNanos;
+  }
+
+  public synchronized Snapshot snapshot() {
+    return new Snapshot(callbacks_, callbackTime_, overruns_, lateStarts_, dropped_);
+  }
+
+  public synchronized void reset() {
+    callbackTime_.reset();
+    callbacks_ = 0;
+    overruns_ = 0;
+    lateStarts_ = 0;
+    dropped_ = 0;
+    lastStart_ = 0;
+  }
+
+  public String report() {
+    return snapshot().toString();
   }
 
-  static final int N_STATS = 2000;
-  double meanCbTime_;
-  double startTime_[];
-  double endTime_[];
-  double nominalCbPeriod_;
-  int bufIx_ = 0;
+  private static long readLong(byte[] buf, int off) {
+    return (readInt(buf, off) & 0xFFFFFFFFL) | ((long)readInt(buf, off + 4) << 32);
+  }
+
+  private static int readInt(byte[] buf, int off) {
+    return (buf[off] & 0xFF) | (buf[off + 1] & 0xFF) << 8 | (buf[off + 2] & 0xFF) << 16
+        | (buf[off + 3] & 0xFF) << 24;
+  }
 
+  private long nominalPeriod_;
+  private final byte[] buf_;
+  // bytes of a partial record at the start of buf_
+  private int pending_;
+  private final LatencyHistogram callbackTime_;
+  private long callbacks_;
+  private long overruns_;
+  private long lateStarts_;
+  private long dropped_;
+  private long lastStart_;
 }
@@ -0,0 +1,78 @@
+package com.levien.synthesizer.android.stats;
+
+import com.levien.synthesizer.android.AndroidGlue;
+
+/**
+ * Caps the polyphony so that all voices together fit into a share of the real time on this
+ * device. The time one voice takes to render is measured from the DspLoad of the synth over
+ * windows of enough rendered voices; the cap drops as soon as a window is too slow, and rises
+ * by one voice per window. Call update() about once a second.
+ */
+public class VoiceBudget {
+  // Frames the synth renders per block, N in synth.h.
+  public static final int BLOCK_FRAMES = 64;
+
+  // Share of the real time all voices may take, which leaves the rest of the audio callback,
+  // the accompanist model and the UI room on a weak device.
+  private static final double VOICE_LOAD = 0.4;
+  // The cap never drops below a chord of the accompaniment part plus a melody voice.
+  public static final int MIN_POLYPHONY = AndroidGlue.MIN_POLYPHONY;
+  // Voices rendered in a window, about two seconds of one voice at 48 kHz.
+  private static final long WINDOW_VOICE_BLOCKS = 1500;
+
+  /**
+   * @param sampleRate sample rate of the synth
+   * @param maxPolyphony the cap while nothing has been measured
+   */
+  public VoiceBudget(int sampleRate, int maxPolyphony) {
+    blockNanos_ = BLOCK_FRAMES * 1000000000L / sampleRate;
+    maxPolyphony_ = maxPolyphony;
+    polyphony_ = maxPolyphony;
+  }
+
+  public int getPolyphony() {
+    return polyphony_;
+  }
+
+  /**
+   * @return mean time to render one voice for one block in the latest window, 0 before the
+   *     first window
+   */
+  public long getVoiceNanos() {
+    return voiceNanos_;
+  }
+
+  /**
+   * Adds the voices rendered since the previous update to the current window.
+   *
+   * @param load the load since the synth started
+   * @return the cap to use from now on
+   */
+  public int update(DspLoad load) {
+    long voiceBlocks = load.getVoiceBlocks() - windowVoiceBlocks_;
+    long nanos = load.getSectionNanos(DspLoad.SECTION_VOICES) - windowNanos_;
+    if (voiceBlocks < 0 || nanos < 0) {
+      // the load was reset
+      windowVoiceBlocks_ = 0;
+      windowNanos_ = 0;
+      return polyphony_;
+    }
+    if (voiceBlocks < WINDOW_VOICE_BLOCKS) {
+      return polyphony_;
+    }
+    windowVoiceBlocks_ = load.getVoiceBlocks();
+    windowNanos_ = load.getSectionNanos(DspLoad.SECTION_VOICES);
+    voiceNanos_ = nanos / voiceBlocks;
+    int fits = voiceNanos_ == 0 ? maxPolyphony_ : (int)(VOICE_LOAD * blockNanos_ / voiceNanos_);
+    fits = Math.max(MIN_POLYPHONY, Math.min(fits, maxPolyphony_));
+    polyphony_ = fits < polyphony_ ? fits : Math.min(fits, polyphony_ + 1);
+    return polyphony_;
+  }
+
+  private final long blockNanos_;
+  private final int maxPolyphony_;
+  private int polyphony_;
+  private long voiceNanos_;
+  private long windowVoiceBlocks_;
+  private long windowNanos_;
+}
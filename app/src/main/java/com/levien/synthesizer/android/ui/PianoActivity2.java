@@ -16,6 +16,12 @@
 
 package com.levien.synthesizer.android.ui;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import android.annotation.TargetApi;
@@ -24,6 +30,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.hardware.usb.UsbDevice;
@@ -40,8 +47,18 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.ArrayAdapter;
 import android.widget.Spinner;
+import android.widget.Toast;
 
+import com.asoehlke.accompanist.AccompanimentEngine;
+import com.asoehlke.accompanist.AccompanistLoader;
+import com.asoehlke.accompanist.AccompanistServer;
 import com.asoehlke.accompanist.AccompanyingMidiListener;
+import com.asoehlke.accompanist.AudioTickClock;
+import com.asoehlke.accompanist.PerformanceExport;
+import com.asoehlke.accompanist.RemoteAccompanist;
+import com.asoehlke.accompanist.SessionLog;
+import com.asoehlke.accompanist.SessionRecorder;
+import com.asoehlke.accompanist.TensorFlowAccompanist;
 import com.levien.synthesizer.R;
 import com.levien.synthesizer.android.widgets.keyboard.KeyboardSpec;
 import com.levien.synthesizer.android.widgets.keyboard.KeyboardView;
@@ -50,6 +67,8 @@ import com.levien.synthesizer.android.widgets.knob.KnobListener;
 import com.levien.synthesizer.android.widgets.knob.KnobView;
 import com.levien.synthesizer.core.midi.MidiAdapter;
 import com.levien.synthesizer.core.midi.MidiListener;
+import com.levien.synthesizer.core.midi.MidiWriter;
+import com.levien.synthesizer.core.stats.LatencyTracer;
 
 /**
  * Activity for simply playing the piano.
@@ -72,6 +91,7 @@ public class PianoActivity2 extends SynthActivity implements OnSharedPreferenceC
     resonanceKnob_ = (KnobView)findViewById(R.id.resonanceKnob);
     overdriveKnob_ = (KnobView)findViewById(R.id.overdriveKnob);
     presetSpinner_ = (Spinner)findViewById(R.id.presetSpinner);
+    accompanimentSpinner_ = (Spinner)findViewById(R.id.accompanimentSpinner);
 
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
       //setupUsbMidi(getIntent());
@@ -90,6 +110,9 @@ public class PianoActivity2 extends SynthActivity implements OnSharedPreferenceC
       case R.id.settings:
         startActivity(new Intent(this, SettingsActivity.class));
         return true;
+      case R.id.export_midi:
+        exportMidi();
+        return true;
       /*
       case R.id.compose:
         startActivity(new Intent(this, ScoreActivity.class));
@@ -108,6 +131,20 @@ public class PianoActivity2 extends SynthActivity implements OnSharedPreferenceC
     super.onDestroy();
   }
 
+  @Override
+  protected void onStop() {
+    if (accompanyingListener_ != null) {
+      accompanyingListener_.close();
+      accompanyingListener_ = null;
+    }
+    if (sessionRecorder_ != null &&
+        (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+      saveSession(sessionRecorder_.snapshot());
+      saveLatencyTrace();
+    }
+    super.onStop();
+  }
+
   @Override
   protected void onResume() {
     super.onResume();
@@ -115,6 +152,9 @@ public class PianoActivity2 extends SynthActivity implements OnSharedPreferenceC
     prefs.registerOnSharedPreferenceChangeListener(this);
     onSharedPreferenceChanged(prefs, "keyboard_type");
     onSharedPreferenceChanged(prefs, "vel_sens");
+    onSharedPreferenceChanged(prefs, "accompanist_quality");
+    onSharedPreferenceChanged(prefs, "polyphony");
+    onSharedPreferenceChanged(prefs, "voice_stealing");
   }
 
   @Override
@@ -133,6 +173,19 @@ public class PianoActivity2 extends SynthActivity implements OnSharedPreferenceC
       float velSens = prefs.getFloat("vel_sens", 0.5f);
       float velAvg = prefs.getFloat("vel_avg", 64);
       keyboard_.setVelocitySensitivity(velSens, velAvg);
+    } else if (key.equals("accompanist_quality")) {
+      if (accompanyingListener_ != null) {
+        accompanyingListener_.setSustainInferenceInterval(
+            Integer.parseInt(prefs.getString(key, "1")));
+      }
+    } else if (key.equals("polyphony")) {
+      if (synthesizerService_ != null) {
+        synthesizerService_.setPolyphony(Integer.parseInt(prefs.getString(key, "16")));
+      }
+    } else if (key.equals("voice_stealing")) {
+      if (synthesizerService_ != null) {
+        synthesizerService_.setVoiceStealing(Integer.parseInt(prefs.getString(key, "0")));
+      }
     }
   }
 
@@ -171,6 +224,9 @@ public class PianoActivity2 extends SynthActivity implements OnSharedPreferenceC
   }
 
   private static final String ACTION_USB_PERMISSION = "com.levien.synthesizer.USB_PERSMISSION";
+  private static final String PHRASE_CACHE_FILENAME = "phrase_cache.bin";
+  private static final String SESSION_FILENAME = "session.acsl";
+  private static final String LATENCY_TRACE_FILENAME = "latency.aclt";
   BroadcastReceiver usbReceiver_ = new BroadcastReceiver() {
     @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
     public void onReceive(Context context, Intent intent) {
@@ -201,9 +257,64 @@ public class PianoActivity2 extends SynthActivity implements OnSharedPreferenceC
     //final MidiListener synthMidi = synthesizerService_.getMidiListener();
 
 
+    // The keyboard plays as a plain synth until the model has been loaded
+    if (accompanyingListener_ != null) {
+      accompanyingListener_.close();
+    }
+    // the session is recorded for the MIDI export, debug builds also save it on stop
+    // so timing problems can be replayed
+    AudioTickClock tickClock = new AudioTickClock(synthesizerService_.getAndroidGlue());
+    sessionRecorder_ = new SessionRecorder(tickClock);
+    MidiListener synthOutput = sessionRecorder_.tap(SessionLog.SOURCE_OUTPUT,
+        synthesizerService_.getMidiListener());
+    synthesizerService_.setUsbMidiTap(sessionRecorder_.tap(SessionLog.SOURCE_USB));
+    // no ticks while the synth is suspended for silence
+    synthesizerService_.setSuspendListener(new Runnable() {
+      public void run() {
+        if (accompanyingListener_ != null) {
+          accompanyingListener_.suspendTicks();
+        }
+      }
+    });
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+    String server = prefs.getString("accompanist_server", "").trim();
+    if (server.length() > 0) {
+      // a shared server accompanies instead of the model on this device
+      int colon = server.lastIndexOf(':');
+      int port = AccompanistServer.DEFAULT_PORT;
+      if (colon >= 0) {
+        try {
+          port = Integer.parseInt(server.substring(colon + 1));
+        } catch (NumberFormatException e) {
+          Log.w("synth", "invalid accompanist server port: " + server);
+        }
+        server = server.substring(0, colon);
+      }
+      Log.d("synth", "accompanist server " + server + ":" + port);
+      accompanyingListener_ = new AccompanyingMidiListener(synthOutput,
+          new RemoteAccompanist(server, port));
+    } else {
+      accompanyingListener_ = new AccompanyingMidiListener(synthOutput,
+              getAssets(), new File(getFilesDir(), PHRASE_CACHE_FILENAME),
+              new AccompanistLoader.Callback() {
+        public void onAccompanistReady(TensorFlowAccompanist accompanist) {
+          Log.d("synth", "accompanist ready");
+        }
+        public void onAccompanistFailed(Throwable error) {
+          Log.e("synth", "accompanist not available, playing without accompaniment");
+        }
+      });
+    }
+    // ticks follow the audio the synth renders
+    accompanyingListener_.setTickClock(tickClock);
+    onSharedPreferenceChanged(prefs, "accompanist_quality");
+    onSharedPreferenceChanged(prefs, "polyphony");
+    onSharedPreferenceChanged(prefs, "voice_stealing");
+    // debug builds measure what skipping inferences costs in accuracy
+    accompanyingListener_.setDivergenceTracking(
+        (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
     final MidiListener synthMidi =
-            new AccompanyingMidiListener(synthesizerService_.getMidiListener(),
-                    getAssets());
+        sessionRecorder_.tap(SessionLog.SOURCE_INPUT, accompanyingListener_);
 
     //piano_.bindTo(synthMidi);
     keyboard_.setMidiListener(synthMidi);
@@ -258,6 +369,36 @@ public class PianoActivity2 extends SynthActivity implements OnSharedPreferenceC
           }
         });
       }
+
+      // All messages the synth gets pass here once, so the accompaniment follows an
+      // external clock from here, directly on the MIDI thread.
+      public void onTimingClock() {
+        AccompanyingMidiListener accompanyingListener = accompanyingListener_;
+        if (accompanyingListener != null) {
+          accompanyingListener.getClockInput().onTimingClock();
+        }
+      }
+
+      public void onStart() {
+        AccompanyingMidiListener accompanyingListener = accompanyingListener_;
+        if (accompanyingListener != null) {
+          accompanyingListener.getClockInput().onStart();
+        }
+      }
+
+      public void onContinue() {
+        AccompanyingMidiListener accompanyingListener = accompanyingListener_;
+        if (accompanyingListener != null) {
+          accompanyingListener.getClockInput().onContinue();
+        }
+      }
+
+      public void onStop() {
+        AccompanyingMidiListener accompanyingListener = accompanyingListener_;
+        if (accompanyingListener != null) {
+          accompanyingListener.getClockInput().onStop();
+        }
+      }
     });
 
     // Populate patch names (note: we could update an existing list rather than
@@ -271,6 +412,7 @@ public class PianoActivity2 extends SynthActivity implements OnSharedPreferenceC
               PianoActivity2.this, android.R.layout.simple_spinner_item, patchNames);
       adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
       presetSpinner_.setAdapter(adapter);
+      accompanimentSpinner_.setAdapter(adapter);
     }
 
     presetSpinner_.setOnItemSelectedListener(new OnItemSelectedListener() {
@@ -280,6 +422,15 @@ public class PianoActivity2 extends SynthActivity implements OnSharedPreferenceC
       public void onNothingSelected(AdapterView<?> parent) {
       }
     });
+    // the accompaniment plays on a part of its own
+    accompanimentSpinner_.setOnItemSelectedListener(new OnItemSelectedListener() {
+      public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+        synthesizerService_.getMidiListener().onProgramChange(
+            AccompanimentEngine.ACCOMPANIMENT_CHANNEL, position);
+      }
+      public void onNothingSelected(AdapterView<?> parent) {
+      }
+    });
 
     // Handle any pending USB device events
     if (usbDevicePending_ != null) {
@@ -301,14 +452,85 @@ public class PianoActivity2 extends SynthActivity implements OnSharedPreferenceC
 
   protected void onSynthDisconnected() {
     synthesizerService_.setMidiListener(null);
+    synthesizerService_.setUsbMidiTap(null);
+    synthesizerService_.setSuspendListener(null);
+  }
+
+  // writes what was played with its accompaniment to a file the user can copy
+  private void exportMidi() {
+    AccompanyingMidiListener accompanyingListener = accompanyingListener_;
+    if (sessionRecorder_ == null || accompanyingListener == null) {
+      return;
+    }
+    File dir = getExternalFilesDir(null);
+    if (dir == null) {
+      dir = getFilesDir();
+    }
+    File file = new File(dir, "accompanist-"
+        + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".mid");
+    try {
+      OutputStream out = new FileOutputStream(file);
+      try {
+        MidiWriter.writeMidiFile(out, PerformanceExport.toMidiFile(
+            sessionRecorder_.snapshot(), accompanyingListener.getTickSource()));
+      } finally {
+        out.close();
+      }
+      Toast.makeText(this, getString(R.string.export_midi_done, file.getPath()),
+          Toast.LENGTH_LONG).show();
+    } catch (IOException e) {
+      Log.w("synth", "MIDI export failed", e);
+      Toast.makeText(this, R.string.export_midi_failed, Toast.LENGTH_SHORT).show();
+    }
+  }
+
+  // keeps the last session for SessionReplay, e.g. adb pull files/session.acsl
+  private void saveSession(SessionLog session) {
+    if (session.size() == 0) {
+      return;
+    }
+    File file = new File(getFilesDir(), SESSION_FILENAME);
+    try {
+      OutputStream out = new FileOutputStream(file);
+      try {
+        session.writeTo(out);
+      } finally {
+        out.close();
+      }
+      Log.d("synth", "saved " + session + " to " + file);
+    } catch (IOException e) {
+      Log.w("synth", "saving the session failed", e);
+    }
+  }
+
+  // keeps the touch to sound latency traces for LatencyTracer.read(), e.g.
+  // adb pull files/latency.aclt
+  private void saveLatencyTrace() {
+    File file = new File(getFilesDir(), LATENCY_TRACE_FILENAME);
+    try {
+      OutputStream out = new FileOutputStream(file);
+      try {
+        LatencyTracer.getDefault().writeTo(out);
+      } finally {
+        out.close();
+      }
+      Log.d("synth", "saved latency traces to " + file + "\n" + LatencyTracer.getDefault());
+    } catch (IOException e) {
+      Log.w("synth", "saving the latency traces failed", e);
+    }
   }
 
   //private PianoView piano_;
   private KeyboardView keyboard_;
+  // read on the USB MIDI thread for the clock messages
+  private volatile AccompanyingMidiListener accompanyingListener_;
+  // always on, null until the synth is connected
+  private SessionRecorder sessionRecorder_;
   private KnobView cutoffKnob_;
   private KnobView resonanceKnob_;
   private KnobView overdriveKnob_;
   private Spinner presetSpinner_;
+  private Spinner accompanimentSpinner_;
   private PendingIntent permissionIntent_;
   private boolean permissionRequestPending_;
   private UsbDevice usbDevicePending_;
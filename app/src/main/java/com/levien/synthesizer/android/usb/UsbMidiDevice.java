@@ -112,6 +112,9 @@ public class UsbMidiDevice {
             payloadBytes = 3;
           } else if (codeIndexNumber == 12) {
             payloadBytes = 2;
+          } else if (codeIndexNumber == 15) {
+            // single byte, e.g. timing clock, start, continue and stop
+            payloadBytes = 1;
           }
           if (payloadBytes > 0) {
             //Log.d("synth", "sending midi");
@@ -28,6 +28,7 @@ import android.view.MotionEvent;
 import android.view.View;
 
 import com.levien.synthesizer.core.midi.MidiListener;
+import com.levien.synthesizer.core.stats.LatencyTracer;
 
 public class KeyboardView extends View {
   public KeyboardView(Context context, AttributeSet attrs) {
@@ -153,6 +154,8 @@ public class KeyboardView extends View {
         int index = actionCode == MotionEvent.ACTION_POINTER_DOWN ? event.getActionIndex() : 0;
         int pointerId = event.getPointerId(index);
         if (pointerId < FINGERS && pointerId >= 0) {
+          // event time is uptimeMillis, on the same monotonic clock as System.nanoTime()
+          LatencyTracer.getDefault().begin(event.getEventTime() * 1000000L);
           float x = event.getX(index);
           float y = event.getY(index);
           float pressure = event.getPressure(index);
@@ -222,6 +225,7 @@ public class KeyboardView extends View {
       noteForFinger_[id] = note;
       noteStatus_[note] = (byte)velocity;
       if (midiListener_ != null) {
+        LatencyTracer.getDefault().mark(LatencyTracer.STAGE_LISTENER);
         midiListener_.onNoteOn(0, note, velocity);
       }
       return true;
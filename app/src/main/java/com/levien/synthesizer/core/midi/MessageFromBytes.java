@@ -39,7 +39,27 @@ public class MessageFromBytes {
       return 0;
     }
     int code = b[off] & 0xff;
-    if ((code & 0xf0) == 0xf0) {
+    if (code >= 0xf8) {
+      // system real-time, a single byte
+      switch (code) {
+        case 0xf8:
+          l.onTimingClock();
+          break;
+        case 0xfa:
+          l.onStart();
+          break;
+        case 0xfb:
+          l.onContinue();
+          break;
+        case 0xfc:
+          l.onStop();
+          break;
+        case 0xfe:
+          l.onActiveSensing();
+          break;
+      }
+      return 1;
+    } else if ((code & 0xf0) == 0xf0) {
       // TODO: NYI
       return ERROR;
     } else if ((code & 0x80) == 0x80) {
@@ -65,6 +65,12 @@ public class MessageInputProcessor {
       listener.onActiveSensing();
     } else if (code == 0xF8) {
       listener.onTimingClock();
+    } else if (code == 0xFA) {
+      listener.onStart();
+    } else if (code == 0xFB) {
+      listener.onContinue();
+    } else if (code == 0xFC) {
+      listener.onStop();
     } else if (code == 0xF0 || code == 0xF7) {
       processSysExMessage(input, listener);
     } else if ((code & 0x80) == 0x80 && (code & 0xF0) != 0xF0) {
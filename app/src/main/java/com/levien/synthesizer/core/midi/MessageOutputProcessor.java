@@ -42,10 +42,22 @@ public abstract class MessageOutputProcessor implements MidiListener {
    * Internal function called to flush the internal byte buffer to onMessage().
    */
   private void notifyMessage() {
-    onMessage(buffer_.toByteArray());
+    output(buffer_.toByteArray());
     buffer_.reset();
   }
 
+  /**
+   * Internal function that passes a message to onMessage(), or collects it while a batch is
+   * open on the calling thread.
+   */
+  private void output(byte[] message) {
+    if (batchDepth_ > 0 && Thread.currentThread() == batchThread_) {
+      batch_.write(message, 0, message.length);
+    } else {
+      onMessage(message);
+    }
+  }
+
   //
   // The rest of these methods are just midi listener events.
   //
@@ -79,11 +91,49 @@ public abstract class MessageOutputProcessor implements MidiListener {
   }
 
   public void onTimingClock() {
-    buffer_.write(0xF8);
+    notify1(0xF8);
   }
 
   public void onActiveSensing() {
-    buffer_.write(0xFE);
+    notify1(0xFE);
+  }
+
+  public void onStart() {
+    notify1(0xFA);
+  }
+
+  public void onContinue() {
+    notify1(0xFB);
+  }
+
+  public void onStop() {
+    notify1(0xFC);
+  }
+
+  /**
+   * Collects the following messages of this thread, until the matching onBatchEnd() passes
+   * them to onMessage() as one message.
+   */
+  public void onBatchBegin() {
+    if (batchDepth_ > 0 && Thread.currentThread() != batchThread_) {
+      // another thread's batch is open, this one's messages go out one by one
+      return;
+    }
+    batchThread_ = Thread.currentThread();
+    batchDepth_++;
+  }
+
+  public void onBatchEnd() {
+    if (batchDepth_ == 0 || Thread.currentThread() != batchThread_) {
+      return;
+    }
+    if (--batchDepth_ == 0) {
+      batchThread_ = null;
+      if (batch_.size() > 0) {
+        onMessage(batch_.toByteArray());
+        batch_.reset();
+      }
+    }
   }
 
   public void onSequenceNumber(int sequenceNumber) {
@@ -213,13 +263,21 @@ public abstract class MessageOutputProcessor implements MidiListener {
     }
   }
 
+  private void notify1(int b0) {
+    if (buf1_ == null) {
+      buf1_ = new byte[1];
+    }
+    buf1_[0] = (byte) b0;
+    output(buf1_);
+  }
+
   private void notify2(int b0, int b1) {
     if (buf2_ == null) {
       buf2_ = new byte[2];
     }
     buf2_[0] = (byte) b0;
     buf2_[1] = (byte) b1;
-    onMessage(buf2_);
+    output(buf2_);
   }
 
   private void notify3(int b0, int b1, int b2) {
@@ -229,7 +287,7 @@ public abstract class MessageOutputProcessor implements MidiListener {
     buf3_[0] = (byte) b0;
     buf3_[1] = (byte) b1;
     buf3_[2] = (byte) b2;
-    onMessage(buf3_);
+    output(buf3_);
   }
 
   private void notifyMetaBytes(int type, byte[] data) {
@@ -246,6 +304,11 @@ public abstract class MessageOutputProcessor implements MidiListener {
 
   // An internal byte buffer to hold intermediate output.
   private ByteArrayOutputStream buffer_;
+  private byte[] buf1_;
   private byte[] buf2_;
   private byte[] buf3_;
+  // Messages of the open batch.
+  private final ByteArrayOutputStream batch_ = new ByteArrayOutputStream();
+  private volatile Thread batchThread_;
+  private int batchDepth_;
 }
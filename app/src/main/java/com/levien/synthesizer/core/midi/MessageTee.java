@@ -93,6 +93,42 @@ public class MessageTee implements MidiListener {
     }
   }
 
+  public void onStart() {
+    target_.onStart();
+    if (target2_ != null) {
+      target2_.onStart();
+    }
+  }
+
+  public void onContinue() {
+    target_.onContinue();
+    if (target2_ != null) {
+      target2_.onContinue();
+    }
+  }
+
+  public void onStop() {
+    target_.onStop();
+    if (target2_ != null) {
+      target2_.onStop();
+    }
+  }
+
+  // Grouping of events.
+  public void onBatchBegin() {
+    target_.onBatchBegin();
+    if (target2_ != null) {
+      target2_.onBatchBegin();
+    }
+  }
+
+  public void onBatchEnd() {
+    target_.onBatchEnd();
+    if (target2_ != null) {
+      target2_.onBatchEnd();
+    }
+  }
+
   // Meta events.
   public void onSequenceNumber(int sequenceNumber) {
     target_.onSequenceNumber(sequenceNumber);
@@ -32,6 +32,12 @@ public class MidiAdapter implements MidiListener {
 
   public void onTimingClock() {}
   public void onActiveSensing() {}
+  public void onStart() {}
+  public void onContinue() {}
+  public void onStop() {}
+
+  public void onBatchBegin() {}
+  public void onBatchEnd() {}
 
   public void onSequenceNumber(int sequenceNumber) {}
   public void onText(byte[] text) {}
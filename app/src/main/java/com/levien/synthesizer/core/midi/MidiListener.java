@@ -33,6 +33,15 @@ public interface MidiListener {
   // Other events.
   void onTimingClock();
   void onActiveSensing();
+  void onStart();
+  void onContinue();
+  void onStop();
+
+  // Grouping of events.
+  // The events between onBatchBegin() and onBatchEnd() take effect together, e.g. in the same
+  // audio buffer of a synthesizer. Batches may nest, the outermost one counts.
+  void onBatchBegin();
+  void onBatchEnd();
 
   // Meta events.
   // The events that have "byte[] text" are _probably_ encoded as ISO-8859-1.
@@ -70,6 +70,26 @@ public class MidiListenerProxy implements MidiListener {
     listener_.onActiveSensing();
   }
 
+  public void onStart() {
+    listener_.onStart();
+  }
+
+  public void onContinue() {
+    listener_.onContinue();
+  }
+
+  public void onStop() {
+    listener_.onStop();
+  }
+
+  public void onBatchBegin() {
+    listener_.onBatchBegin();
+  }
+
+  public void onBatchEnd() {
+    listener_.onBatchEnd();
+  }
+
   public void onSequenceNumber(int sequenceNumber) {
     listener_.onSequenceNumber(sequenceNumber);
   }
@@ -146,6 +146,17 @@ public class MidiUtil {
     output.write(b2);
   }
 
+  /**
+   * Writes a 32-bit value to output.
+   * @param output - The stream to write to.
+   * @param value - The value to write out.
+   * @throws IOException on any write error.
+   */
+  public static void writeDWord(OutputStream output, int value) throws IOException {
+    writeWord(output, (value >> 16) & 0xFFFF);
+    writeWord(output, value & 0xFFFF);
+  }
+
   /**
    * Reads an 8-bit unsigned value from input.
    * @throws IOException on EOF or any read error.
@@ -0,0 +1,104 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.levien.synthesizer.core.midi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * MidiWriter is a set of static functions for writing a MidiFile as a Standard MIDI File, the
+ * counterpart of MidiReader.  The messages of the events are written as they are, without
+ * running status.
+ * @see MidiFile
+ */
+public class MidiWriter {
+  /**
+   * Writes an entire midi file to output.
+   * @param output - The stream to write to.
+   * @param file - The file to write. Only ticks per beat are supported as time division.
+   * @throws IOException - On any write error.
+   */
+  public static void writeMidiFile(OutputStream output, MidiFile file) throws IOException {
+    writeHeader(output, file.getHeader(), file.getTrackCount());
+    for (int i = 0; i < file.getTrackCount(); ++i) {
+      writeTrack(output, file.getTrack(i));
+    }
+    output.flush();
+  }
+
+  /**
+   * Writes the header of a midi file.
+   * @param output - The stream to write to.
+   * @param header - The header to write, its format defaults to multiple synchronous tracks.
+   * @param trackCount - The number of tracks that follow.
+   * @throws IOException - On any write error.
+   */
+  private static void writeHeader(OutputStream output,
+                                  MidiHeader header,
+                                  int trackCount) throws IOException {
+    writeString(output, "MThd");
+    MidiUtil.writeDWord(output, 6);
+    MidiHeader.Format format = header.getFormat();
+    if (format == null) {
+      format = MidiHeader.Format.MULTIPLE_TRACKS_SYNCH;
+    }
+    MidiUtil.writeWord(output, format.ordinal());
+    MidiUtil.writeWord(output, trackCount);
+    MidiUtil.writeWord(output, header.getTicksPerBeat() & 0x7FFF);
+  }
+
+  /**
+   * Writes one track, ending it with an end of track event if it doesn't have one.
+   * @param output - The stream to write to.
+   * @param track - The track to write.
+   * @throws IOException - On any write error.
+   */
+  private static void writeTrack(OutputStream output, MidiTrack track) throws IOException {
+    ByteArrayOutputStream trackBytes = new ByteArrayOutputStream();
+    boolean ended = false;
+    long deltaTime = 0;
+    for (int i = 0; i < track.getEventCount(); ++i) {
+      MidiEvent event = track.getEvent(i);
+      byte[] message = event.getMessage();
+      deltaTime += event.getDeltaTime();
+      if (message == null) {
+        continue;
+      }
+      MidiUtil.writeVarInt(trackBytes, (int)deltaTime);
+      deltaTime = 0;
+      trackBytes.write(message);
+      ended = message.length >= 2 && (message[0] & 0xFF) == 0xFF && message[1] == 0x2F;
+    }
+    if (!ended) {
+      MidiUtil.writeVarInt(trackBytes, (int)deltaTime);
+      trackBytes.write(new byte[] { (byte)0xFF, 0x2F, 0x00 });
+    }
+    writeString(output, "MTrk");
+    MidiUtil.writeDWord(output, trackBytes.size());
+    trackBytes.writeTo(output);
+  }
+
+  /**
+   * Writes the characters of string as single bytes.
+   */
+  private static void writeString(OutputStream output, String string) throws IOException {
+    for (int i = 0; i < string.length(); ++i) {
+      output.write(string.charAt(i));
+    }
+  }
+}
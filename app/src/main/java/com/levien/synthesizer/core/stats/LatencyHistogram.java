@@ -0,0 +1,126 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.levien.synthesizer.core.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds that can be recorded from any thread without
+ * locking or allocating. Every power of two is split into SUB_BUCKETS buckets, so the
+ * reported percentiles are within about 12% of the exact value.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  public LatencyHistogram() {
+    counts_ = new AtomicLongArray(NUM_BUCKETS);
+    count_ = new AtomicLong();
+    max_ = new AtomicLong();
+  }
+
+  /**
+   * Adds one duration, negative values count as 0.
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts_.incrementAndGet(bucketOf(nanos));
+    count_.incrementAndGet();
+    long max = max_.get();
+    while (nanos > max && !max_.compareAndSet(max, nanos)) {
+      max = max_.get();
+    }
+  }
+
+  public long getCount() {
+    return count_.get();
+  }
+
+  /**
+   * @return the longest recorded duration in nanoseconds
+   */
+  public long getMax() {
+    return max_.get();
+  }
+
+  /**
+   * @param fraction the percentile as a fraction, e.g. 0.99
+   * @return upper bound in nanoseconds of the bucket holding the percentile, 0 if empty
+   */
+  public long getPercentile(double fraction) {
+    long total = count_.get();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long)Math.ceil(fraction * total);
+    if (rank < 1) {
+      rank = 1;
+    }
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += counts_.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * Forgets all recorded durations. Values recorded concurrently may be lost.
+   */
+  public void reset() {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts_.set(i, 0);
+    }
+    count_.set(0);
+    max_.set(0);
+  }
+
+  public String toString() {
+    return "n=" + getCount() + " p50=" + getPercentile(0.5) / 1000 + "us p99="
+        + getPercentile(0.99) / 1000 + "us p99.9=" + getPercentile(0.999) / 1000 + "us max="
+        + getMax() / 1000 + "us";
+  }
+
+  private static int bucketOf(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int)nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int sub = (int)(nanos >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  private static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lower = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lower + (1L << shift) - 1;
+  }
+
+  private final AtomicLongArray counts_;
+  private final AtomicLong count_;
+  private final AtomicLong max_;
+}
@@ -0,0 +1,296 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.levien.synthesizer.core.stats;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Follows note-ons from the touch on the keyboard to the audio buffer that plays them, and
+ * keeps a histogram of the time spent in every stage. A trace begins at the touch, is
+ * stamped on its way through the listener chain and AndroidGlue, and is completed with the
+ * stages the audio callback records natively. All times are System.nanoTime(), which is
+ * CLOCK_MONOTONIC like the native clock.
+ *
+ * One trace is in flight on the Java side at a time: a touch that comes before the
+ * previous one reached the synth replaces it. The completed traces can be written to a
+ * file and read back, e.g. to compare the stages of two builds in a test.
+ */
+public class LatencyTracer {
+  /** the touch screen reported the touch, only to the millisecond */
+  public static final int STAGE_TOUCH = 0;
+  /** KeyboardView.onTouchEvent got the touch */
+  public static final int STAGE_VIEW = 1;
+  /** the note-on entered the MIDI listener chain */
+  public static final int STAGE_LISTENER = 2;
+  /** AndroidGlue wrote the note-on to the native ring buffer */
+  public static final int STAGE_SEND = 3;
+  /** the audio callback whose TransferInput read the note-on started */
+  public static final int STAGE_TRANSFER = 4;
+  /** the first buffer with the note was enqueued for playback */
+  public static final int STAGE_ENQUEUE = 5;
+  public static final int STAGES = 6;
+
+  // Size and layout of struct TraceRecord in android_glue.cc, little endian.
+  public static final int NATIVE_RECORD_SIZE = 24;
+
+  private static final String[] STAGE_NAMES = {
+    "touch", "view", "listener", "send", "transfer", "enqueue"
+  };
+
+  // traces that wait for the native stages
+  private static final int PENDING = 64;
+  // completed traces kept for writeTo()
+  private static final int HISTORY = 1024;
+
+  private static final int MAGIC = 0x41434c54;  // "ACLT"
+  private static final int VERSION = 1;
+
+  private static final LatencyTracer DEFAULT = new LatencyTracer();
+
+  /**
+   * @return the tracer the keyboard, AndroidGlue and the synth service share
+   */
+  public static LatencyTracer getDefault() {
+    return DEFAULT;
+  }
+
+  public LatencyTracer() {
+    latency_ = new LatencyHistogram[STAGES];
+    for (int i = 0; i < STAGES; i++) {
+      latency_[i] = new LatencyHistogram();
+    }
+    pending_ = new long[PENDING][STAGES];
+    pendingIds_ = new int[PENDING];
+    Arrays.fill(pendingIds_, -1);
+    history_ = new long[HISTORY][STAGES];
+  }
+
+  /**
+   * Begins a new trace at a touch, stamping STAGE_VIEW now.
+   *
+   * @param touchNanos time the touch screen reported the touch
+   */
+  public synchronized void begin(long touchNanos) {
+    if (current_ >= 0) {
+      // never reached the synth
+      pendingIds_[current_ % PENDING] = -1;
+    }
+    current_ = nextId_;
+    nextId_ = (nextId_ + 1) & Integer.MAX_VALUE;
+    int slot = current_ % PENDING;
+    pendingIds_[slot] = current_;
+    long[] times = pending_[slot];
+    Arrays.fill(times, 0);
+    times[STAGE_TOUCH] = touchNanos;
+    times[STAGE_VIEW] = System.nanoTime();
+  }
+
+  /**
+   * Stamps a stage of the trace in flight, unless it has been stamped already.
+   */
+  public synchronized void mark(int stage) {
+    if (current_ >= 0) {
+      long[] times = pending_[current_ % PENDING];
+      if (times[stage] == 0) {
+        times[stage] = System.nanoTime();
+      }
+    }
+  }
+
+  /**
+   * Stamps STAGE_SEND and hands the trace in flight over to the synth.
+   *
+   * @return the id to send along with the note-on, -1 if no trace is in flight
+   */
+  public synchronized int takeForSend() {
+    if (current_ < 0) {
+      return -1;
+    }
+    mark(STAGE_SEND);
+    int id = current_;
+    current_ = -1;
+    return id;
+  }
+
+  /**
+   * Completes a trace with the stages recorded by the audio callback. Traces that have
+   * been replaced in the meantime are ignored.
+   */
+  public synchronized void complete(int id, long transferNanos, long enqueueNanos) {
+    if (id < 0) {
+      return;
+    }
+    int slot = id % PENDING;
+    if (pendingIds_[slot] != id) {
+      return;
+    }
+    pendingIds_[slot] = -1;
+    long[] times = pending_[slot];
+    times[STAGE_TRANSFER] = transferNanos;
+    times[STAGE_ENQUEUE] = enqueueNanos;
+    record(times);
+  }
+
+  /**
+   * Completes the traces of whole native records, as read with AndroidGlue.readTraceBytes().
+   * A partial record at the end is ignored.
+   */
+  public void addNativeRecords(byte[] buf, int off, int len) {
+    for (int i = off; i + NATIVE_RECORD_SIZE <= off + len; i += NATIVE_RECORD_SIZE) {
+      complete(readInt(buf, i), readLong(buf, i + 8), readLong(buf, i + 16));
+    }
+  }
+
+  /**
+   * Adds a completed trace to the histograms and to the history.
+   *
+   * @param stageTimes the time of every stage, indexed by the STAGE_ constants
+   */
+  public synchronized void record(long[] stageTimes) {
+    if (stageTimes.length != STAGES) {
+      throw new IllegalArgumentException("a trace has " + STAGES + " stages");
+    }
+    latency_[0].record(stageTimes[STAGES - 1] - stageTimes[0]);
+    for (int i = 1; i < STAGES; i++) {
+      latency_[i].record(stageTimes[i] - stageTimes[i - 1]);
+    }
+    System.arraycopy(stageTimes, 0, history_[historyCount_ % HISTORY], 0, STAGES);
+    historyCount_++;
+  }
+
+  /**
+   * @param stage one of the STAGE_ constants after STAGE_TOUCH
+   * @return the time from the previous stage to this one
+   */
+  public LatencyHistogram getStageLatency(int stage) {
+    if (stage <= STAGE_TOUCH || stage >= STAGES) {
+      throw new IllegalArgumentException("no latency into stage " + stage);
+    }
+    return latency_[stage];
+  }
+
+  /**
+   * @return the time from the touch to the enqueued buffer
+   */
+  public LatencyHistogram getTotalLatency() {
+    return latency_[0];
+  }
+
+  /**
+   * @return copies of the latest completed traces, oldest first
+   */
+  public synchronized long[][] getTraces() {
+    int count = Math.min(historyCount_, HISTORY);
+    long[][] traces = new long[count][];
+    for (int i = 0; i < count; i++) {
+      traces[i] = history_[(historyCount_ - count + i) % HISTORY].clone();
+    }
+    return traces;
+  }
+
+  /**
+   * Forgets all traces, including the one in flight.
+   */
+  public synchronized void reset() {
+    for (LatencyHistogram histogram : latency_) {
+      histogram.reset();
+    }
+    Arrays.fill(pendingIds_, -1);
+    current_ = -1;
+    historyCount_ = 0;
+  }
+
+  /**
+   * Writes the latest completed traces, see getTraces().
+   */
+  public void writeTo(OutputStream output) throws IOException {
+    long[][] traces = getTraces();
+    DataOutputStream out = new DataOutputStream(output);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(STAGES);
+    out.writeInt(traces.length);
+    for (long[] trace : traces) {
+      for (long time : trace) {
+        out.writeLong(time);
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * @return a new tracer with the traces written by writeTo() recorded in it
+   */
+  public static LatencyTracer read(InputStream input) throws IOException {
+    DataInputStream in = new DataInputStream(input);
+    if (in.readInt() != MAGIC) {
+      throw new IOException("not a latency trace");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("unsupported latency trace version " + version);
+    }
+    int stages = in.readInt();
+    if (stages != STAGES) {
+      throw new IOException("latency trace has " + stages + " stages");
+    }
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("invalid latency trace size " + count);
+    }
+    LatencyTracer tracer = new LatencyTracer();
+    long[] trace = new long[STAGES];
+    for (int i = 0; i < count; i++) {
+      for (int j = 0; j < STAGES; j++) {
+        trace[j] = in.readLong();
+      }
+      tracer.record(trace);
+    }
+    return tracer;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("total ").append(latency_[0]);
+    for (int i = 1; i < STAGES; i++) {
+      sb.append("\n").append(STAGE_NAMES[i - 1]).append("->").append(STAGE_NAMES[i])
+          .append(" ").append(latency_[i]);
+    }
+    return sb.toString();
+  }
+
+  private static long readLong(byte[] buf, int off) {
+    return (readInt(buf, off) & 0xFFFFFFFFL) | ((long)readInt(buf, off + 4) << 32);
+  }
+
+  private static int readInt(byte[] buf, int off) {
+    return (buf[off] & 0xFF) | (buf[off + 1] & 0xFF) << 8 | (buf[off + 2] & 0xFF) << 16
+        | (buf[off + 3] & 0xFF) << 24;
+  }
+
+  private final LatencyHistogram[] latency_;
+  private final long[][] pending_;
+  private final int[] pendingIds_;
+  private final long[][] history_;
+  private int historyCount_;
+  private int current_ = -1;
+  private int nextId_;
+}
@@ -18,6 +18,7 @@
 #include <stddef.h>
 #include <stdio.h>
 #include <time.h>
+#include <unistd.h>
 #include <jni.h>
 #include <SLES/OpenSLES.h>
 #include <SLES/OpenSLES_Android.h>
@@ -26,15 +27,34 @@
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, "synth", __VA_ARGS__)
 
 #include "synth.h"
-#include "synth_unit.h"
+#include "synth_parts.h"
+#include "simd.h"
 
 RingBuffer *ring_buffer;
 RingBuffer *stats_ring_buffer;
-SynthUnit *synth_unit;
+RingBuffer *trace_ring_buffer;
+// Part i plays MIDI channel i, see AndroidGlue.PARTS.
+const int kSynthParts = 2;
+// Whether the parts may render on helper threads. Off until the late
+// callbacks have been compared with and without them on devices.
+const bool kThreadedParts = false;
+SynthParts *synth_parts;
 
 const int N_BUFFERS = 2;
 const int MAX_BUFFER_SIZE = 1024;
 int buffer_size;
+// Buffer size for the next callback, see AndroidGlue.setBufferSize.
+volatile int requested_buffer_size;
+int sample_rate;
+
+// Audio clock: frames rendered before the latest callback, and the
+// CLOCK_MONOTONIC time at which that callback started. Only the audio
+// callback writes it; the sequence count is odd while an update is in
+// progress, so readers can retry instead of seeing a torn pair.
+volatile uint32_t audio_clock_seq = 0;
+volatile int64_t audio_clock_frames = 0;
+volatile int64_t audio_clock_nanos = 0;
+int64_t rendered_frames = 0;
 
 int16_t buffer[MAX_BUFFER_SIZE * N_BUFFERS];
 int cur_buffer = 0;
@@ -52,64 +72,100 @@ static SLPlayItf bq_player_play;
 static SLAndroidSimpleBufferQueueItf bq_player_buffer_queue;
 static SLBufferQueueItf buffer_queue_itf;
 
-static double ts_to_double(const struct timespec *tp) {
-  return tp->tv_sec + 1e-9 * tp->tv_nsec;
+static int64_t ts_to_nanos(const struct timespec *tp) {
+  return tp->tv_sec * (int64_t)1000000000 + tp->tv_nsec;
 }
 
-// Roll our own decimal printing to guarantee no allocs
-static size_t simple_ftoa(char *buf, double f) {
-  size_t i = 0;
-  uint32_t intpart = (uint32_t)f;
-  uint32_t fracpart = (int)((f - intpart) * 1000000);
-  do {
-    buf[i++] = '0' + intpart % 10;
-    intpart /= 10;
-  } while (intpart > 0);
-  for (size_t j = 0; j < i >> 1; j++) {
-    char tmp = buf[j];
-    buf[j] = buf[i - j - 1];
-    buf[i - j - 1] = tmp;
-  }
-  buf[i++] = '.';
-  const size_t nfrac = 6;
-  for (size_t j = 0; j < nfrac; j++) {
-    buf[i + nfrac - 1 - j] = '0' + fracpart % 10;
-    fracpart /= 10;
-  }
-  return i + nfrac;
+static void update_audio_clock(const struct timespec *tp) {
+  audio_clock_seq++;
+  SynthMemoryBarrier();
+  audio_clock_frames = rendered_frames;
+  audio_clock_nanos = ts_to_nanos(tp);
+  SynthMemoryBarrier();
+  audio_clock_seq++;
 }
 
+// Timing of one audio callback, written to the stats ring buffer as is and
+// decoded by JitterStats. Fixed size and little endian, so nothing needs to be
+// formatted or allocated on the audio thread.
+struct CallbackRecord {
+  int64_t start_nanos;  // CLOCK_MONOTONIC at the start of the callback
+  int64_t end_nanos;  // after the buffer has been rendered and enqueued
+  int32_t frames;  // frames rendered
+  uint16_t dropped;  // records dropped before this one, the ring was full
+  uint16_t flags;
+};
+
+// CallbackRecord.flags: the first callback after the player was paused, so
+// the time since the previous callback is not a late start.
+const uint16_t kRecordResumed = 1 << 0;
+
+// Records the reader has not taken in time.
+static int32_t dropped_records = 0;
+
+// Set when the player is resumed, cleared by the next callback.
+static volatile int32_t player_resumed = 0;
+static bool player_playing = false;
+
+// Latency trace of a note-on sent with sendMidiTraced, written to the trace
+// ring buffer and decoded by LatencyTracer.
+struct TraceRecord {
+  int32_t trace_id;
+  int32_t reserved;
+  int64_t transfer_nanos;  // start of the callback that transferred the input
+  int64_t enqueue_nanos;  // after the buffer with the note has been enqueued
+};
+
+// Id of the latest traced note-on written to the ring buffer and not yet
+// transferred, -1 if none. Written after the note-on, so the callback that
+// takes it also reads the note-on; a note-on that comes between taking the id
+// and TransferInput is traced one callback late. A traced note-on that comes
+// before the previous one has been taken replaces it.
+static volatile int32_t pending_trace_id = -1;
+
 extern "C" void BqPlayerCallback(SLAndroidSimpleBufferQueueItf queueItf,
   void *data) {
   struct timespec tp;
   clock_gettime(CLOCK_MONOTONIC, &tp);
-  double start_time = ts_to_double(&tp);
-  int16_t *buf_ptr = buffer + buffer_size * cur_buffer;
-  synth_unit->GetSamples(buffer_size, buf_ptr);
-  char buf[64];
-  //uint8_t *mem = new uint8_t[1024];
-  //delete[] mem;
-  //sprintf(buf, "%.6f", start_time);
-  clock_gettime(CLOCK_MONOTONIC, &tp);
-  double end_time = ts_to_double(&tp);
+  CallbackRecord record;
+  record.start_nanos = ts_to_nanos(&tp);
+  update_audio_clock(&tp);
+  // The buffer queue takes buffers of any size, so a new size applies from the
+  // next buffer on, without stopping the player. The buffers are MAX_BUFFER_SIZE
+  // apart, so a larger one does not overlap the one still queued.
+  buffer_size = requested_buffer_size;
+  // GetSamples starts with TransferInput
+  int32_t trace_id = __sync_lock_test_and_set(&pending_trace_id, -1);
+  int16_t *buf_ptr = buffer + MAX_BUFFER_SIZE * cur_buffer;
+  synth_parts->GetSamples(buffer_size, buf_ptr);
+  rendered_frames += buffer_size;
   SLresult result = (*queueItf)->Enqueue(bq_player_buffer_queue,
     buf_ptr, buffer_size * 2);
   assert(SL_RESULT_SUCCESS == result);
   cur_buffer = (cur_buffer + 1) % N_BUFFERS;
-  size_t i = 0;
-  buf[i++] = 't';
-  buf[i++] = 's';
-  buf[i++] = ' ';
-  i += simple_ftoa(buf + i, start_time);
-  buf[i++] = ' ';
-  i += simple_ftoa(buf + i, end_time);
-  buf[i++] = '\n';
-  buf[i] = 0;
-  if (i <= stats_ring_buffer->WriteBytesAvailable()) {
-    stats_ring_buffer->Write((const uint8_t *)buf, i);
-  }
-  // Could potentially defer writing indication of overrun, but probably
-  // not worth it.
+  clock_gettime(CLOCK_MONOTONIC, &tp);
+  record.end_nanos = ts_to_nanos(&tp);
+  if (trace_id >= 0) {
+    TraceRecord trace;
+    trace.trace_id = trace_id;
+    trace.reserved = 0;
+    trace.transfer_nanos = record.start_nanos;
+    trace.enqueue_nanos = record.end_nanos;
+    if (sizeof(trace) <= trace_ring_buffer->WriteBytesAvailable()) {
+      trace_ring_buffer->Write((const uint8_t *)&trace, sizeof(trace));
+    }
+  }
+  record.frames = buffer_size;
+  record.dropped = min(dropped_records, 0xffff);
+  record.flags = __sync_lock_test_and_set(&player_resumed, 0) ?
+    kRecordResumed : 0;
+  // a whole record or none, so the reader never sees a partial one
+  if (sizeof(record) <= stats_ring_buffer->WriteBytesAvailable()) {
+    stats_ring_buffer->Write((const uint8_t *)&record, sizeof(record));
+    dropped_records = 0;
+  } else {
+    dropped_records++;
+  }
 }
 
 void CreateEngine() {
@@ -167,11 +223,18 @@ Java_com_levien_synthesizer_android_AndroidGlue_start(JNIEnv *env,
         &BqPlayerCallback, NULL);
   assert(SL_RESULT_SUCCESS == result);
 
-  buffer_size = buf_size;
+  buffer_size = min((int)buf_size, MAX_BUFFER_SIZE);
+  requested_buffer_size = buffer_size;
+  ::sample_rate = sample_rate;
+  rendered_frames = 0;
   SynthUnit::Init(sample_rate);
   ring_buffer = new RingBuffer();
   stats_ring_buffer = new RingBuffer();
-  synth_unit = new SynthUnit(ring_buffer);
+  trace_ring_buffer = new RingBuffer();
+  synth_parts = new SynthParts(ring_buffer, kSynthParts,
+      kThreadedParts && sysconf(_SC_NPROCESSORS_CONF) > 1);
+  // the batch only pays off reliably with SIMD lanes, see test_batch.cc
+  synth_parts->SetBatchVoices(Simd::level() > Simd::kNone);
   for (int i = 0; i < N_BUFFERS - 1; ++i) {
     BqPlayerCallback(bq_player_buffer_queue, NULL);
   }
@@ -179,6 +242,7 @@ Java_com_levien_synthesizer_android_AndroidGlue_start(JNIEnv *env,
   result = (*bq_player_play)->SetPlayState(bq_player_play,
       SL_PLAYSTATE_PLAYING);
   assert(SL_RESULT_SUCCESS == result);
+  player_playing = true;
 }
 
 extern "C" JNIEXPORT void JNICALL
@@ -204,8 +268,10 @@ Java_com_levien_synthesizer_android_AndroidGlue_shutdown(JNIEnv *env,
   ring_buffer = NULL;
   delete stats_ring_buffer;
   stats_ring_buffer = NULL;
-  delete synth_unit;
-  synth_unit = NULL;
+  delete trace_ring_buffer;
+  trace_ring_buffer = NULL;
+  delete synth_parts;
+  synth_parts = NULL;
 }
 
 extern "C" JNIEXPORT void JNICALL
@@ -218,36 +284,167 @@ Java_com_levien_synthesizer_android_AndroidGlue_sendMidi(JNIEnv *env,
   }
 }
 
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_sendMidiTraced(JNIEnv *env,
+    jobject thiz, jbyteArray jb, jint trace_id) {
+  uint8_t *data = (uint8_t *)env->GetByteArrayElements(jb, NULL);
+  if (data != NULL) {
+    ring_buffer->Write(data, env->GetArrayLength(jb));
+    env->ReleaseByteArrayElements(jb, (jbyte *)data, JNI_ABORT);
+    SynthMemoryBarrier();
+    pending_trace_id = trace_id;
+  }
+}
+
 extern "C" JNIEXPORT void JNICALL
 Java_com_levien_synthesizer_android_AndroidGlue_setPlayState(JNIEnv *env,
     jobject thiz, jboolean isPlaying) {
+  if (isPlaying && !player_playing) {
+    player_resumed = 1;
+  }
+  player_playing = isPlaying;
   SLresult result = (*bq_player_play)->SetPlayState(bq_player_play,
       isPlaying ? SL_PLAYSTATE_PLAYING : SL_PLAYSTATE_PAUSED);
   assert(SL_RESULT_SUCCESS == result);
 }
 
+extern "C" JNIEXPORT jint JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_setBufferSize(JNIEnv *env,
+    jobject thiz, jint buf_size) {
+  requested_buffer_size = max(1, min((int)buf_size, MAX_BUFFER_SIZE));
+  return requested_buffer_size;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_getIdleFrames(JNIEnv *env,
+    jobject thiz) {
+  if (synth_parts == NULL || ring_buffer->BytesAvailable() > 0) {
+    return 0;
+  }
+  return synth_parts->idle_frames();
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_getActiveVoices(JNIEnv *env,
+    jobject thiz) {
+  return synth_parts != NULL ? synth_parts->active_voices() : 0;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_setPolyphony(JNIEnv *env,
+    jobject thiz, jint polyphony) {
+  return synth_parts != NULL ? synth_parts->SetPolyphony(polyphony) : 0;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_setVoiceStealing(JNIEnv *env,
+    jobject thiz, jint policy) {
+  if (synth_parts != NULL) {
+    synth_parts->SetStealPolicy(policy);
+  }
+}
+
 extern "C" JNIEXPORT jint JNICALL
 Java_com_levien_synthesizer_android_AndroidGlue_statsBytesAvailable(
     JNIEnv *env, jobject thiz) {
   return stats_ring_buffer->BytesAvailable();
 }
 
-extern "C" JNIEXPORT jint JNICALL
-Java_com_levien_synthesizer_android_AndroidGlue_readStatsBytes(
-    JNIEnv *env, jobject thiz, jbyteArray jb, jint off, jint len) {
-  int bytes_available = stats_ring_buffer->BytesAvailable();
+static jint ReadRingBytes(JNIEnv *env, RingBuffer *ring, jbyteArray jb,
+    jint off, jint len, const char *error) {
+  int bytes_available = ring->BytesAvailable();
   int n = min(bytes_available, len);
   if (n) {
     size_t uoff = off;
     size_t ulen = len;
     if (off >= 0 && len >= 0 && uoff + ulen <= env->GetArrayLength(jb)) {
       uint8_t *buf = (uint8_t *)env->GetByteArrayElements(jb, NULL);
-      stats_ring_buffer->Read(n, buf + uoff);
+      ring->Read(n, buf + uoff);
       env->ReleaseByteArrayElements(jb, (jbyte *)buf, 0);
     } else {
       env->ThrowNew(env->FindClass("java/lang/ArrayIndexOutOfBoundsException"),
-        "out of bounds in AndroidGlue.readStatsBytes");
+        error);
     }
   }
   return n;
-}
\ No newline at end of file
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_readStatsBytes(
+    JNIEnv *env, jobject thiz, jbyteArray jb, jint off, jint len) {
+  return ReadRingBytes(env, stats_ring_buffer, jb, off, len,
+    "out of bounds in AndroidGlue.readStatsBytes");
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_readTraceBytes(
+    JNIEnv *env, jobject thiz, jbyteArray jb, jint off, jint len) {
+  return ReadRingBytes(env, trace_ring_buffer, jb, off, len,
+    "out of bounds in AndroidGlue.readTraceBytes");
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_getAudioClock(
+    JNIEnv *env, jobject thiz, jlongArray jclock) {
+  if (env->GetArrayLength(jclock) < 2) {
+    env->ThrowNew(env->FindClass("java/lang/ArrayIndexOutOfBoundsException"),
+      "AndroidGlue.getAudioClock needs 2 elements");
+    return JNI_FALSE;
+  }
+  jlong clock[2];
+  for (int tries = 0; tries < 100; tries++) {
+    uint32_t seq = audio_clock_seq;
+    SynthMemoryBarrier();
+    clock[0] = audio_clock_frames;
+    clock[1] = audio_clock_nanos;
+    SynthMemoryBarrier();
+    if ((seq & 1) == 0 && seq == audio_clock_seq) {
+      if (clock[1] == 0) {
+        return JNI_FALSE;
+      }
+      env->SetLongArrayRegion(jclock, 0, 2, clock);
+      return JNI_TRUE;
+    }
+  }
+  return JNI_FALSE;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_getSampleRate(
+    JNIEnv *env, jobject thiz) {
+  return sample_rate;
+}
+
+// Layout of the array filled by AndroidGlue.getDspLoad, decoded by DspLoad.
+static const int kDspLoadFields = 7 + 2 * kDspSections;
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_getDspLoad(
+    JNIEnv *env, jobject thiz, jlongArray jload, jboolean reset) {
+  if (env->GetArrayLength(jload) < kDspLoadFields) {
+    env->ThrowNew(env->FindClass("java/lang/ArrayIndexOutOfBoundsException"),
+      "AndroidGlue.getDspLoad needs more elements");
+    return JNI_FALSE;
+  }
+  DspLoadSnapshot snapshot;
+  if (synth_parts == NULL || !synth_parts->ReadDspLoad(&snapshot)) {
+    return JNI_FALSE;
+  }
+  if (reset) {
+    synth_parts->RequestDspLoadReset();
+  }
+  jlong load[kDspLoadFields];
+  load[0] = snapshot.callbacks;
+  load[1] = snapshot.blocks;
+  load[2] = snapshot.voice_blocks;
+  load[3] = snapshot.max_voices;
+  load[4] = snapshot.max_callback_nanos;
+  load[5] = snapshot.retired_voices;
+  load[6] = snapshot.stolen_voices;
+  for (int i = 0; i < kDspSections; i++) {
+    load[7 + i] = snapshot.section_nanos[i];
+    load[7 + kDspSections + i] = snapshot.section_max_nanos[i];
+  }
+  env->SetLongArrayRegion(jload, 0, kDspLoadFields, load);
+  return JNI_TRUE;
+}
@@ -7,6 +7,7 @@
         'dx7note.cc',
         'env.cc',
         'exp2.cc',
+        'fir.cc',
         'fm_core.cc',
         'fm_op_kernel.cc',
         'freqlut.cc',
@@ -17,7 +18,9 @@
         'resofilter.cc',
         'ringbuffer.cc',
         'sawtooth.cc',
+        'simd.cc',
         'sin.cc',
+        'synth_parts.cc',
         'synth_unit.cc',
         'test_ringbuffer.cc',
       ],
@@ -28,7 +31,29 @@
       'type': 'executable',
       'sources': [
         'test_filter.cc',
-        'fir.cc',
+      ],
+      'dependencies': [
+        'core',
+      ],
+    },
+    {
+      'target_name': 'test_batch',
+      'type': 'executable',
+      'sources': [
+        'test_batch.cc',
+      ],
+      'dependencies': [
+        'core',
+      ],
+    },
+    {
+      'target_name': 'test_synth_parts',
+      'type': 'executable',
+      'sources': [
+        'test_synth_parts.cc',
+      ],
+      'dependencies': [
+        'core',
       ],
     }
   ],
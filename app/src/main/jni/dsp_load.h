@@ -0,0 +1,156 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+#ifndef SYNTH_DSP_LOAD_H_
+#define SYNTH_DSP_LOAD_H_
+
+#include <string.h>
+#include <time.h>
+
+#include "synth.h"
+
+// Sections of SynthUnit::GetSamples that are timed separately.
+enum DspSection {
+  kDspMidi,  // transferring and parsing MIDI input, including note setup
+  kDspPatch,  // unpacking patches on program change or patch load
+  kDspVoices,  // rendering the active Dx7Notes
+  kDspFilter,  // the ResoFilter
+  kDspOutput,  // clipping and converting to 16 bit
+  kDspSections
+};
+
+// Aggregated load since the last reset.
+struct DspLoadSnapshot {
+  int64_t callbacks;
+  int64_t blocks;  // blocks of N samples rendered
+  int64_t voice_blocks;  // sum of the active voices of all blocks
+  int64_t max_voices;  // most voices active in one block
+  int64_t retired_voices;  // voices retired after decaying below audibility
+  int64_t stolen_voices;  // sounding voices taken over by a key-down
+  int64_t section_nanos[kDspSections];  // total time per section
+  int64_t section_max_nanos[kDspSections];  // longest time in one callback
+  int64_t max_callback_nanos;  // longest sum of the sections in one callback
+};
+
+// Per-section time counters for the audio callback. The audio thread adds to
+// the current callback without any synchronization and publishes it into the
+// aggregate at the end of the callback. The aggregate is guarded by a
+// sequence count that is odd while an update is in progress, so Read() can
+// be called from any thread and retries instead of seeing a torn snapshot.
+class DspLoad {
+ public:
+  DspLoad() : seq_(0), reset_requested_(0), blocks_(0), block_voices_(0),
+      max_block_voices_(0), retired_(0), stolen_(0) {
+    memset(&total_, 0, sizeof(total_));
+    memset(current_, 0, sizeof(current_));
+  }
+
+  static int64_t Now() {
+    struct timespec tp;
+    clock_gettime(CLOCK_MONOTONIC, &tp);
+    return tp.tv_sec * (int64_t)1000000000 + tp.tv_nsec;
+  }
+
+  void BeginCallback() {
+    memset(current_, 0, sizeof(current_));
+  }
+
+  void Add(DspSection section, int64_t nanos) {
+    current_[section] += nanos;
+  }
+
+  int64_t Current(DspSection section) const {
+    return current_[section];
+  }
+
+  void AddBlock(int voices) {
+    block_voices_ += voices;
+    blocks_++;
+    if (voices > max_block_voices_) {
+      max_block_voices_ = voices;
+    }
+  }
+
+  void AddRetired() {
+    retired_++;
+  }
+
+  void AddStolen() {
+    stolen_++;
+  }
+
+  void EndCallback() {
+    seq_++;
+    SynthMemoryBarrier();
+    if (reset_requested_) {
+      memset(&total_, 0, sizeof(total_));
+      reset_requested_ = 0;
+    }
+    total_.callbacks++;
+    total_.blocks += blocks_;
+    total_.voice_blocks += block_voices_;
+    total_.max_voices = max(total_.max_voices, (int64_t)max_block_voices_);
+    total_.retired_voices += retired_;
+    total_.stolen_voices += stolen_;
+    int64_t callback_nanos = 0;
+    for (int i = 0; i < kDspSections; i++) {
+      total_.section_nanos[i] += current_[i];
+      total_.section_max_nanos[i] = max(total_.section_max_nanos[i],
+          current_[i]);
+      callback_nanos += current_[i];
+    }
+    total_.max_callback_nanos = max(total_.max_callback_nanos, callback_nanos);
+    SynthMemoryBarrier();
+    seq_++;
+    blocks_ = 0;
+    block_voices_ = 0;
+    max_block_voices_ = 0;
+    retired_ = 0;
+    stolen_ = 0;
+  }
+
+  // Copies the aggregate, returns false if the audio thread kept updating it.
+  bool Read(DspLoadSnapshot *snapshot) const {
+    for (int tries = 0; tries < 100; tries++) {
+      uint32_t seq = seq_;
+      SynthMemoryBarrier();
+      memcpy(snapshot, (const void *)&total_, sizeof(*snapshot));
+      SynthMemoryBarrier();
+      if ((seq & 1) == 0 && seq == seq_) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // The aggregate starts over at the end of the next callback.
+  void RequestReset() {
+    reset_requested_ = 1;
+  }
+
+ private:
+  volatile uint32_t seq_;
+  volatile int32_t reset_requested_;
+  DspLoadSnapshot total_;
+  int64_t current_[kDspSections];
+  int64_t blocks_;
+  int64_t block_voices_;
+  int max_block_voices_;
+  int retired_;
+  int stolen_;
+};
+
+#endif  // SYNTH_DSP_LOAD_H_
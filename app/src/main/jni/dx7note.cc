@@ -23,6 +23,7 @@
 #include "patch.h"
 #include "exp2.h"
 #include "controllers.h"
+#include "fm_op_kernel.h"
 #include "dx7note.h"
 
 using namespace std;
@@ -175,11 +176,13 @@ void Dx7Note::init(const char patch[156], int midinote, int velocity) {
   algorithm_ = patch[134];
   int feedback = patch[135];
   fb_shift_ = feedback != 0 ? 8 - feedback : 16;
+  fb_buf_[0] = 0;
+  fb_buf_[1] = 0;
   pitchmoddepth_ = (patch[139] * 165) >> 6;
   pitchmodsens_ = pitchmodsenstab[patch[143] & 7];
 }
 
-void Dx7Note::compute(int32_t *buf, int32_t lfo_val, int32_t lfo_delay,
+void Dx7Note::update(int32_t lfo_val, int32_t lfo_delay,
   const Controllers *ctrls) {
   int32_t pitchmod = pitchenv_.getsample();
   uint32_t pmd = pitchmoddepth_ * lfo_delay;  // Q32
@@ -199,9 +202,85 @@ void Dx7Note::compute(int32_t *buf, int32_t lfo_val, int32_t lfo_delay,
     params_[op].freq = Freqlut::lookup(basepitch_[op] + pitchmod);
     params_[op].gain[1] = gain;
   }
+}
+
+void Dx7Note::compute(int32_t *buf, int32_t lfo_val, int32_t lfo_delay,
+  const Controllers *ctrls) {
+  update(lfo_val, lfo_delay, ctrls);
   core_.compute(buf, params_, algorithm_, fb_buf_, fb_shift_);
 }
 
+void Dx7Note::compute_batch(Dx7Note **notes, int n_notes, int32_t *buf,
+  int32_t lfo_val, int32_t lfo_delay, const Controllers *ctrls) {
+  const int lanes = FmOpKernel::kLanes;
+  for (int i = 0; i < n_notes; i++) {
+    notes[i]->update(lfo_val, lfo_delay, ctrls);
+  }
+  for (int start = 0; start < n_notes; ) {
+    // move the notes that can share the kernels behind the first one
+    Dx7Note *first = notes[start];
+    int count = 1;
+    for (int j = start + 1; j < n_notes && count < lanes; j++) {
+      Dx7Note *note = notes[j];
+      if (note->algorithm_ == first->algorithm_ &&
+          note->fb_shift_ == first->fb_shift_) {
+        notes[j] = notes[start + count];
+        notes[start + count] = note;
+        count++;
+      }
+    }
+    if (count == 1) {
+      first->core_.compute(buf, first->params_, first->algorithm_,
+        first->fb_buf_, first->fb_shift_);
+    } else {
+      FmOpParams *params[lanes];
+      int32_t *fb_bufs[lanes];
+      for (int v = 0; v < count; v++) {
+        params[v] = notes[start + v]->params_;
+        fb_bufs[v] = notes[start + v]->fb_buf_;
+      }
+      AlignedBuf<int32_t, N * lanes> out;
+      int32_t *outptr = out.get();
+      for (int i = 0; i < N * lanes; i++) {
+        outptr[i] = 0;
+      }
+      FmCore::compute_batch(outptr, params, fb_bufs, count, first->algorithm_,
+        first->fb_shift_);
+      for (int i = 0; i < N; i++) {
+        for (int v = 0; v < count; v++) {
+          buf[i] += outptr[i * lanes + v];
+        }
+      }
+    }
+    start += count;
+  }
+}
+
+// Envelope level at which the gain compute() derives from it falls below the
+// threshold under which FmCore skips an operator, about -83 dB:
+// 2^(level / 2^24 + 10) < 1120.
+const int32_t kInaudibleLevel = (int32_t)(0.129 * (1 << 24));
+
+bool Dx7Note::isfinished() const {
+  for (int op = 0; op < 6; op++) {
+    if (FmCore::iscarrier(algorithm_, op) &&
+        !env_[op].isreleasedbelow(kInaudibleLevel)) {
+      return false;
+    }
+  }
+  return true;
+}
+
+int32_t Dx7Note::level() const {
+  int32_t level = 0;
+  for (int op = 0; op < 6; op++) {
+    if (FmCore::iscarrier(algorithm_, op)) {
+      level = max(level, env_[op].level());
+    }
+  }
+  return level;
+}
+
 void Dx7Note::keyup() {
   for (int op = 0; op < 6; op++) {
     env_[op].keydown(false);
@@ -36,16 +36,29 @@ class Dx7Note {
   void compute(int32_t *buf, int32_t lfo_val, int32_t lfo_delay,
     const Controllers *ctrls);
 
+  // compute() for several notes, adding exactly the same to the buffer. Notes
+  // with the same algorithm and feedback render side by side in the lanes of
+  // the FM kernels. Reorders notes.
+  static void compute_batch(Dx7Note **notes, int n_notes, int32_t *buf,
+    int32_t lfo_val, int32_t lfo_delay, const Controllers *ctrls);
+
   void keyup();
 
-  // TODO: parameter changes
+  // True once the key is up and the envelopes of all carriers have decayed
+  // below audibility, after which compute() adds nothing audible until the
+  // next init().
+  bool isfinished() const;
 
-  // TODO: some way of indicating end-of-note. Maybe should be a return
-  // value from the compute method? (Having a count return from keyup
-  // is also tempting, but if there's a dynamic parameter change after
-  // keyup, that won't work.
+  // Level of the loudest carrier envelope, in Q24/doubling log format, to
+  // compare how loud notes of the same patch are.
+  int32_t level() const;
+
+  // TODO: parameter changes
 
  private:
+  // Steps the envelopes and sets the operator parameters for the next block.
+  void update(int32_t lfo_val, int32_t lfo_delay, const Controllers *ctrls);
+
   FmCore core_;
   Env env_[6];
   FmOpParams params_[6];
@@ -63,6 +63,10 @@ void Env::keydown(bool d) {
   }
 }
 
+bool Env::isreleasedbelow(int32_t level) const {
+  return !down_ && level_ < level && (ix_ >= 4 || !rising_);
+}
+
 void Env::setparam(int param, int value) {
   if (param < 4) {
     rates_[param] = value;
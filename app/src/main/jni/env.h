@@ -38,6 +38,13 @@ class Env {
   int32_t getsample();
 
   void keydown(bool down);
+
+  // True once the key is up and the level has fallen below the given one,
+  // where it stays until the next keydown.
+  bool isreleasedbelow(int32_t level) const;
+
+  // Current level, in the format of getsample().
+  int32_t level() const { return level_; }
   void setparam(int param, int value);
   static int scaleoutlevel(int outlevel);
  private:
@@ -19,7 +19,9 @@
 #include <stdio.h> // for debugging, remove
 #include <stdlib.h>
 
+#include "synth.h"
 #include "aligned_buf.h"
+#include "simd.h"
 #include "fir.h"
 
 #ifdef __ANDROID_API__
@@ -271,3 +273,47 @@ void SseFirFilter::process(const float *in1, float *out, size_t n) {
 }
 
 #endif
+
+#ifdef HAVE_NEON_INTRINSICS
+NeonIntrinsicsFirFilter::NeonIntrinsicsFirFilter(const float *kernel, size_t nk)
+  : nk(nk) {
+  k = (float *)malloc_aligned(16, nk * sizeof(k[0]));
+  for (size_t i = 0; i < nk; i++) {
+    k[i] = kernel[nk - i - 1];
+  }
+}
+
+NeonIntrinsicsFirFilter::~NeonIntrinsicsFirFilter() {
+  free(k);
+}
+
+void NeonIntrinsicsFirFilter::process(const float *in, float *out, size_t n) {
+  for (size_t i = 0; i < n; i += 4) {
+    float32x4_t y = vdupq_n_f32(0);
+    for (size_t j = 0; j < nk; j++) {
+      y = vmlaq_n_f32(y, vld1q_f32(&in[i + j]), k[j]);
+    }
+    vst1q_f32(&out[i], y);
+  }
+}
+#endif
+
+FirFilter<float, float> *make_fir_filter(const float *kernel, size_t nk) {
+  switch (Simd::level()) {
+#ifdef HAVE_NEON_INTRINSICS
+    case Simd::kNeon:
+      return new NeonIntrinsicsFirFilter(kernel, nk);
+#endif
+#ifdef __SSE2__
+    case Simd::kSse2:
+    case Simd::kAvx2:
+      if (nk % 4 == 0) {
+        return new SseFirFilter(kernel, nk);
+      }
+      break;
+#endif
+    default:
+      break;
+  }
+  return new SimpleFirFilter(kernel, nk);
+}
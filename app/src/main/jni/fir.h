@@ -14,6 +14,8 @@
  * limitations under the License.
  */
 
+#include "synth.h"
+
 // move to generic utility file?
 void *malloc_aligned(size_t alignment, size_t nbytes);
 
@@ -90,3 +92,21 @@ class SseFirFilter : public FirFilter<float, float> {
 };
 
 #endif  // __SSE2__
+
+#ifdef HAVE_NEON_INTRINSICS
+
+// Direct form with intrinsics, for arm64 where the asm kernels don't build.
+class NeonIntrinsicsFirFilter : public FirFilter<float, float> {
+ public:
+  NeonIntrinsicsFirFilter(const float *kernel, size_t nk);
+  ~NeonIntrinsicsFirFilter();
+  void process(const float *in, float *out, size_t n);
+ private:
+  size_t nk;
+  float *k;
+};
+
+#endif  // HAVE_NEON_INTRINSICS
+
+// The fastest filter for the current Simd level, n a multiple of 4.
+FirFilter<float, float> *make_fir_filter(const float *kernel, size_t nk);
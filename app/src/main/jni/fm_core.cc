@@ -86,6 +86,10 @@ int n_out(const FmAlgorithm &alg) {
   return count;
 }
 
+bool FmCore::iscarrier(int algorithm, int op) {
+  return (algorithms[algorithm].ops[op] & 7) == OUT_BUS_ADD;
+}
+
 void FmCore::dump() {
 #ifdef VERBOSE
   for (int i = 0; i < 32; i++) {
@@ -107,9 +111,10 @@ void FmCore::dump() {
 #endif
 }
 
+const int kLevelThresh = 1120;
+
 void FmCore::compute(int32_t *output, FmOpParams *params, int algorithm,
                      int32_t *fb_buf, int feedback_shift) {
-  const int kLevelThresh = 1120;
   const FmAlgorithm alg = algorithms[algorithm];
   bool has_contents[3] = { true, false, false };
   for (int op = 0; op < 6; op++) {
@@ -149,3 +154,101 @@ void FmCore::compute(int32_t *output, FmOpParams *params, int algorithm,
     param.phase += param.freq << LG_N;
   }
 }
+
+// Zeroes the lanes of an interleaved buffer set in mask.
+static void clear_lanes(int32_t *buf, int mask) {
+  const int lanes = FmOpKernel::kLanes;
+  for (int v = 0; mask != 0; v++, mask >>= 1) {
+    if (mask & 1) {
+      for (int i = v; i < N * lanes; i += lanes) {
+        buf[i] = 0;
+      }
+    }
+  }
+}
+
+// compute() by lane: a bit per lane tells whether a bus has contents. Lanes
+// without contents are zeroed where the kernels read them, which they treat
+// exactly like no input. Unless the operator runs in all lanes, it renders
+// into a scratch buffer that goes to the lanes it runs in.
+void FmCore::compute_batch(int32_t *output, FmOpParams **params,
+                           int32_t **fb_bufs, int n_voices, int algorithm,
+                           int feedback_shift) {
+  const int lanes = FmOpKernel::kLanes;
+  const FmAlgorithm alg = algorithms[algorithm];
+  const int all = (1 << n_voices) - 1;
+  AlignedBuf<int32_t, N * lanes> bus[2];
+  AlignedBuf<int32_t, N * lanes> scratch;
+  int has_contents[3] = { all, 0, 0 };
+  for (int op = 0; op < 6; op++) {
+    int flags = alg.ops[op];
+    bool add = (flags & OUT_BUS_ADD) != 0;
+    int inbus = (flags >> 4) & 3;
+    int outbus = flags & 3;
+    int32_t *outptr = (outbus == 0) ? output : bus[outbus - 1].get();
+    int32_t phase[lanes];
+    int32_t freq[lanes];
+    int32_t gain1[lanes];
+    int32_t gain2[lanes];
+    int active = 0;
+    for (int v = 0; v < lanes; v++) {
+      if (v < n_voices) {
+        const FmOpParams &param = params[v][op];
+        phase[v] = param.phase;
+        freq[v] = param.freq;
+        gain1[v] = param.gain[0];
+        gain2[v] = param.gain[1];
+        if (gain1[v] >= kLevelThresh || gain2[v] >= kLevelThresh) {
+          active |= 1 << v;
+        }
+      } else {
+        phase[v] = freq[v] = gain1[v] = gain2[v] = 0;
+      }
+    }
+    if (active != 0) {
+      if (inbus != 0) {
+        clear_lanes(bus[inbus - 1].get(), active & ~has_contents[inbus]);
+        has_contents[inbus] |= active;
+      }
+      if (add) {
+        clear_lanes(outptr, active & ~has_contents[outbus]);
+      }
+      int32_t *dest = active == all ? outptr : scratch.get();
+      if ((flags & 0xc0) == 0xc0 && feedback_shift < 16) {
+        int32_t fb[2 * lanes];
+        for (int v = 0; v < lanes; v++) {
+          fb[v] = v < n_voices ? fb_bufs[v][0] : 0;
+          fb[lanes + v] = v < n_voices ? fb_bufs[v][1] : 0;
+        }
+        FmOpKernel::compute_fb_lanes(dest, phase, freq, gain1, gain2, fb,
+                                     feedback_shift, add && dest == outptr);
+        for (int v = 0; v < n_voices; v++) {
+          if (active & (1 << v)) {
+            fb_bufs[v][0] = fb[v];
+            fb_bufs[v][1] = fb[lanes + v];
+          }
+        }
+      } else {
+        FmOpKernel::compute_lanes(dest,
+                                  inbus == 0 ? NULL : bus[inbus - 1].get(),
+                                  phase, freq, gain1, gain2,
+                                  add && dest == outptr);
+      }
+      if (dest != outptr) {
+        for (int v = 0; v < n_voices; v++) {
+          if (active & (1 << v)) {
+            for (int i = v; i < N * lanes; i += lanes) {
+              outptr[i] = add ? outptr[i] + dest[i] : dest[i];
+            }
+          }
+        }
+      }
+      has_contents[outbus] = add ? has_contents[outbus] | active : active;
+    } else if (!add) {
+      has_contents[outbus] = 0;
+    }
+    for (int v = 0; v < n_voices; v++) {
+      params[v][op].phase += params[v][op].freq << LG_N;
+    }
+  }
+}
@@ -28,8 +28,18 @@ struct FmOpParams {
 class FmCore {
  public:
   static void dump();
+  // True if the operator is one of the algorithm's carriers, ie its output
+  // is heard rather than modulating another operator.
+  static bool iscarrier(int algorithm, int op);
   void compute(int32_t *output, FmOpParams *params, int algorithm,
                int32_t *fb_buf, int32_t feedback_gain);
+  // compute() for n_voices <= FmOpKernel::kLanes voices with the same
+  // algorithm and feedback, one per lane of the kernels. params and fb_bufs
+  // point to each voice's, output is interleaved like the kernels' buffers.
+  // Every lane gets exactly what compute() adds for its voice.
+  static void compute_batch(int32_t *output, FmOpParams **params,
+                            int32_t **fb_bufs, int n_voices, int algorithm,
+                            int32_t feedback_shift);
  private:
   AlignedBuf<int32_t, N>buf_[2];
 };
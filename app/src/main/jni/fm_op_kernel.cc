@@ -19,6 +19,7 @@
 #include "synth.h"
 
 #include "sin.h"
+#include "simd.h"
 #include "fm_op_kernel.h"
 
 #ifdef HAVE_NEON_INTRINSICS
@@ -147,9 +148,118 @@ void neon_fm_kernel(const int *in, const int *busin, int *out, int count,
   }
 }
 
+#endif
+
+#ifdef __SSE2__
+#include <immintrin.h>
+
+// The NEON kernel above for SSE2, four samples at a time: the same
+// polynomial, in the same order of operations.
+static void sse2_fm_kernel(const int *in, const int *busin, int *out,
+    int count, int32_t phase0, int32_t freq, int32_t gain1, int32_t dgain) {
+  __m128i phase = _mm_setr_epi32(phase0, phase0 + freq, phase0 + 2 * freq,
+      phase0 + 3 * freq);
+  __m128i freq4 = _mm_set1_epi32(freq << 2);
+  __m128 gain = _mm_mul_ps(_mm_cvtepi32_ps(_mm_setr_epi32(gain1,
+      gain1 + dgain, gain1 + 2 * dgain, gain1 + 3 * dgain)),
+      _mm_set1_ps(1.0f / (1 << 24)));
+  __m128 dgain4 = _mm_set1_ps(dgain * (1.0f / (1 << 22)));
+  const __m128i mask23 = _mm_set1_epi32(0x7fffff);
+  const __m128i half = _mm_set1_epi32(0x400000);
+  const __m128 in_scale = _mm_set1_ps(1.0f / (1 << 22));
+  const __m128 out_scale = _mm_set1_ps(1 << 24);
+  const __m128 c0 = _mm_set1_ps(-0.01880853017455781f);
+  const __m128 c1 = _mm_set1_ps(0.25215252666796095f);
+  const __m128 c2 = _mm_set1_ps(-1.2333439964934032f);
+  const __m128 c3 = _mm_set1_ps(1.0f);
+  for (int i = 0; i < count; i += 4) {
+    __m128i x = _mm_add_epi32(_mm_loadu_si128((const __m128i *)(in + i)),
+        phase);
+    // all ones in the negative half of the cycle
+    __m128i sign = _mm_srai_epi32(_mm_slli_epi32(x, 8), 31);
+    __m128 f = _mm_mul_ps(_mm_cvtepi32_ps(
+        _mm_sub_epi32(_mm_and_si128(x, mask23), half)), in_scale);
+    __m128 f2 = _mm_mul_ps(f, f);
+    __m128 y = _mm_add_ps(c1, _mm_mul_ps(f2, c0));
+    y = _mm_add_ps(c2, _mm_mul_ps(f2, y));
+    y = _mm_add_ps(c3, _mm_mul_ps(f2, y));
+    __m128i v = _mm_cvttps_epi32(_mm_mul_ps(_mm_mul_ps(y, gain), out_scale));
+    v = _mm_add_epi32(_mm_xor_si128(v, sign),
+        _mm_loadu_si128((const __m128i *)(busin + i)));
+    _mm_storeu_si128((__m128i *)(out + i), v);
+    phase = _mm_add_epi32(phase, freq4);
+    gain = _mm_add_ps(gain, dgain4);
+  }
+}
+
+// The same for AVX2, eight samples at a time. Only called if the cpu has it.
+__attribute__ ((target("avx2")))
+static void avx2_fm_kernel(const int *in, const int *busin, int *out,
+    int count, int32_t phase0, int32_t freq, int32_t gain1, int32_t dgain) {
+  const __m256i lanes = _mm256_setr_epi32(0, 1, 2, 3, 4, 5, 6, 7);
+  __m256i phase = _mm256_add_epi32(_mm256_set1_epi32(phase0),
+      _mm256_mullo_epi32(_mm256_set1_epi32(freq), lanes));
+  __m256i freq8 = _mm256_set1_epi32(freq << 3);
+  __m256 gain = _mm256_mul_ps(_mm256_cvtepi32_ps(_mm256_add_epi32(
+      _mm256_set1_epi32(gain1),
+      _mm256_mullo_epi32(_mm256_set1_epi32(dgain), lanes))),
+      _mm256_set1_ps(1.0f / (1 << 24)));
+  __m256 dgain8 = _mm256_set1_ps(dgain * (1.0f / (1 << 21)));
+  const __m256i mask23 = _mm256_set1_epi32(0x7fffff);
+  const __m256i half = _mm256_set1_epi32(0x400000);
+  const __m256 in_scale = _mm256_set1_ps(1.0f / (1 << 22));
+  const __m256 out_scale = _mm256_set1_ps(1 << 24);
+  const __m256 c0 = _mm256_set1_ps(-0.01880853017455781f);
+  const __m256 c1 = _mm256_set1_ps(0.25215252666796095f);
+  const __m256 c2 = _mm256_set1_ps(-1.2333439964934032f);
+  const __m256 c3 = _mm256_set1_ps(1.0f);
+  for (int i = 0; i < count; i += 8) {
+    __m256i x = _mm256_add_epi32(
+        _mm256_loadu_si256((const __m256i *)(in + i)), phase);
+    __m256i sign = _mm256_srai_epi32(_mm256_slli_epi32(x, 8), 31);
+    __m256 f = _mm256_mul_ps(_mm256_cvtepi32_ps(
+        _mm256_sub_epi32(_mm256_and_si256(x, mask23), half)), in_scale);
+    __m256 f2 = _mm256_mul_ps(f, f);
+    __m256 y = _mm256_add_ps(c1, _mm256_mul_ps(f2, c0));
+    y = _mm256_add_ps(c2, _mm256_mul_ps(f2, y));
+    y = _mm256_add_ps(c3, _mm256_mul_ps(f2, y));
+    __m256i v = _mm256_cvttps_epi32(
+        _mm256_mul_ps(_mm256_mul_ps(y, gain), out_scale));
+    v = _mm256_add_epi32(_mm256_xor_si256(v, sign),
+        _mm256_loadu_si256((const __m256i *)(busin + i)));
+    _mm256_storeu_si256((__m256i *)(out + i), v);
+    phase = _mm256_add_epi32(phase, freq8);
+    gain = _mm256_add_ps(gain, dgain8);
+  }
+}
+#endif
+
 const int32_t __attribute__ ((aligned(16))) zeros[N] = {0};
 
+// Runs the FM kernel of the current Simd level, returns false if there is
+// none and the scalar code has to run. The kernels take the gain of the first
+// sample, the scalar loops step the gain before it.
+static bool simd_fm_kernel(const int *in, const int *busin, int *out,
+    int32_t phase0, int32_t freq, int32_t gain1, int32_t dgain) {
+  gain1 += dgain;
+  switch (Simd::level()) {
+#ifdef HAVE_NEON_INTRINSICS
+    case Simd::kNeon:
+      neon_fm_kernel(in, busin, out, N, phase0, freq, gain1, dgain);
+      return true;
 #endif
+#ifdef __SSE2__
+    case Simd::kSse2:
+      sse2_fm_kernel(in, busin, out, N, phase0, freq, gain1, dgain);
+      return true;
+    case Simd::kAvx2:
+      avx2_fm_kernel(in, busin, out, N, phase0, freq, gain1, dgain);
+      return true;
+#endif
+    default:
+      return false;
+  }
+}
 
 void FmOpKernel::compute(int32_t *output, const int32_t *input,
                          int32_t phase0, int32_t freq,
@@ -157,12 +267,8 @@ void FmOpKernel::compute(int32_t *output, const int32_t *input,
   int32_t dgain = (gain2 - gain1 + (N >> 1)) >> LG_N;
   int32_t gain = gain1;
   int32_t phase = phase0;
-  if (hasNeon()) {
-#ifdef HAVE_NEON_INTRINSICS
-    neon_fm_kernel(input, add ? output : zeros, output, N,
-      phase0, freq, gain, dgain);
-#endif
-  } else {
+  if (!simd_fm_kernel(input, add ? output : zeros, output,
+      phase0, freq, gain, dgain)) {
     if (add) {
       for (int i = 0; i < N; i++) {
         gain += dgain;
@@ -187,12 +293,8 @@ void FmOpKernel::compute_pure(int32_t *output, int32_t phase0, int32_t freq,
   int32_t dgain = (gain2 - gain1 + (N >> 1)) >> LG_N;
   int32_t gain = gain1;
   int32_t phase = phase0;
-  if (hasNeon()) {
-#ifdef HAVE_NEON_INTRINSICS
-    neon_fm_kernel(zeros, add ? output : zeros, output, N,
-      phase0, freq, gain, dgain);
-#endif
-  } else {
+  if (!simd_fm_kernel(zeros, add ? output : zeros, output,
+      phase0, freq, gain, dgain)) {
     if (add) {
       for (int i = 0; i < N; i++) {
         gain += dgain;
@@ -380,3 +482,255 @@ void FmOpKernel::compute_fb(int32_t *output, int32_t phase0, int32_t freq,
   fb_buf[0] = y0;
   fb_buf[1] = y;
 }
+
+// The lane kernels. The SIMD ones repeat the arithmetic of the kernels above
+// per lane, including the float steps of the gain: those kernels add the gain
+// step to each of their four (AVX2: eight) gain lanes every four (eight)
+// samples, so a lane here keeps that many gains and uses the one of the
+// sample's position.
+
+#define LANES FmOpKernel::kLanes
+
+#ifdef HAVE_NEON_INTRINSICS
+static void neon_fm_lanes(const int32_t *in, const int32_t *busin,
+    int32_t *out, const int32_t *phase0, const int32_t *freq_arg,
+    const int32_t *gain1, const int32_t *dgain_arg) {
+  int32x4_t phase = vld1q_s32(phase0);
+  int32x4_t freq = vld1q_s32(freq_arg);
+  int32x4_t dgain = vld1q_s32(dgain_arg);
+  int32x4_t gain = vld1q_s32(gain1);
+  float32x4_t gainf[4];
+  for (int k = 0; k < 4; k++) {
+    gainf[k] = vcvtq_n_f32_s32(gain, 24);
+    gain = vaddq_s32(gain, dgain);
+  }
+  float32x4_t dgainf = vcvtq_n_f32_s32(dgain, 22);
+  const int32x4_t mask23 = vdupq_n_s32(0x7fffff);
+  const int32x4_t q15 = vdupq_n_s32(0x800000);
+  const int32x4_t q7 = vdupq_n_s32(0x400000);
+  const float32x4_t c0 = vdupq_n_f32(coeffs_arg[0]);
+  const float32x4_t c1 = vdupq_n_f32(coeffs_arg[1]);
+  const float32x4_t c2 = vdupq_n_f32(coeffs_arg[2]);
+  const float32x4_t c3 = vdupq_n_f32(coeffs_arg[3]);
+  for (int i = 0; i < N; i += 4) {
+    for (int k = 0; k < 4; k++) {
+      int32x4_t x = vaddq_s32(vld1q_s32(in + (i + k) * LANES), phase);
+      phase = vaddq_s32(phase, freq);
+      int32x4_t sign = (int32x4_t)vtstq_s32(x, q15);
+      x = vsubq_s32(vandq_s32(x, mask23), q7);
+      float32x4_t f = vcvtq_n_f32_s32(x, 22);
+      f = vmulq_f32(f, f);
+      float32x4_t y = vmlaq_f32(c1, f, c0);
+      y = vmlaq_f32(c2, f, y);
+      y = vmlaq_f32(c3, f, y);
+      y = vmulq_f32(y, gainf[k]);
+      gainf[k] = vaddq_f32(gainf[k], dgainf);
+      int32x4_t v = veorq_s32(vcvtq_n_s32_f32(y, 24), sign);
+      v = vaddq_s32(v, vld1q_s32(busin + (i + k) * LANES));
+      vst1q_s32(out + (i + k) * LANES, v);
+    }
+  }
+}
+#endif
+
+#ifdef __SSE2__
+static void sse2_fm_lanes(const int32_t *in, const int32_t *busin,
+    int32_t *out, const int32_t *phase0, const int32_t *freq_arg,
+    const int32_t *gain1, const int32_t *dgain_arg) {
+  __m128i phase = _mm_loadu_si128((const __m128i *)phase0);
+  __m128i freq = _mm_loadu_si128((const __m128i *)freq_arg);
+  __m128i dgain = _mm_loadu_si128((const __m128i *)dgain_arg);
+  __m128i gain_int = _mm_loadu_si128((const __m128i *)gain1);
+  __m128 gain[4];
+  for (int k = 0; k < 4; k++) {
+    gain[k] = _mm_mul_ps(_mm_cvtepi32_ps(gain_int),
+        _mm_set1_ps(1.0f / (1 << 24)));
+    gain_int = _mm_add_epi32(gain_int, dgain);
+  }
+  __m128 dgain_step = _mm_mul_ps(_mm_cvtepi32_ps(dgain),
+      _mm_set1_ps(1.0f / (1 << 22)));
+  const __m128i mask23 = _mm_set1_epi32(0x7fffff);
+  const __m128i half = _mm_set1_epi32(0x400000);
+  const __m128 in_scale = _mm_set1_ps(1.0f / (1 << 22));
+  const __m128 out_scale = _mm_set1_ps(1 << 24);
+  const __m128 c0 = _mm_set1_ps(-0.01880853017455781f);
+  const __m128 c1 = _mm_set1_ps(0.25215252666796095f);
+  const __m128 c2 = _mm_set1_ps(-1.2333439964934032f);
+  const __m128 c3 = _mm_set1_ps(1.0f);
+  for (int i = 0; i < N; i += 4) {
+    for (int k = 0; k < 4; k++) {
+      __m128i x = _mm_add_epi32(
+          _mm_loadu_si128((const __m128i *)(in + (i + k) * LANES)), phase);
+      phase = _mm_add_epi32(phase, freq);
+      __m128i sign = _mm_srai_epi32(_mm_slli_epi32(x, 8), 31);
+      __m128 f = _mm_mul_ps(_mm_cvtepi32_ps(
+          _mm_sub_epi32(_mm_and_si128(x, mask23), half)), in_scale);
+      __m128 f2 = _mm_mul_ps(f, f);
+      __m128 y = _mm_add_ps(c1, _mm_mul_ps(f2, c0));
+      y = _mm_add_ps(c2, _mm_mul_ps(f2, y));
+      y = _mm_add_ps(c3, _mm_mul_ps(f2, y));
+      __m128i v = _mm_cvttps_epi32(
+          _mm_mul_ps(_mm_mul_ps(y, gain[k]), out_scale));
+      gain[k] = _mm_add_ps(gain[k], dgain_step);
+      v = _mm_add_epi32(_mm_xor_si128(v, sign),
+          _mm_loadu_si128((const __m128i *)(busin + (i + k) * LANES)));
+      _mm_storeu_si128((__m128i *)(out + (i + k) * LANES), v);
+    }
+  }
+}
+
+// The AVX2 kernel by lane, two samples per register.
+__attribute__ ((target("avx2")))
+static void avx2_fm_lanes(const int32_t *in, const int32_t *busin,
+    int32_t *out, const int32_t *phase0, const int32_t *freq_arg,
+    const int32_t *gain1, const int32_t *dgain_arg) {
+  __m128i freq1 = _mm_loadu_si128((const __m128i *)freq_arg);
+  __m128i dgain1 = _mm_loadu_si128((const __m128i *)dgain_arg);
+  __m128i phase1 = _mm_loadu_si128((const __m128i *)phase0);
+  __m128i gain1_int = _mm_loadu_si128((const __m128i *)gain1);
+  __m256i phase = _mm256_inserti128_si256(_mm256_castsi128_si256(phase1),
+      _mm_add_epi32(phase1, freq1), 1);
+  __m256i freq = _mm256_inserti128_si256(_mm256_castsi128_si256(freq1),
+      freq1, 1);
+  freq = _mm256_add_epi32(freq, freq);
+  __m256i dgain = _mm256_inserti128_si256(_mm256_castsi128_si256(dgain1),
+      dgain1, 1);
+  __m256i gain_int = _mm256_inserti128_si256(
+      _mm256_castsi128_si256(gain1_int), _mm_add_epi32(gain1_int, dgain1), 1);
+  // the gains of samples 2j and 2j + 1 of every eight
+  __m256 gain[4];
+  for (int j = 0; j < 4; j++) {
+    gain[j] = _mm256_mul_ps(_mm256_cvtepi32_ps(gain_int),
+        _mm256_set1_ps(1.0f / (1 << 24)));
+    gain_int = _mm256_add_epi32(gain_int, _mm256_add_epi32(dgain, dgain));
+  }
+  __m256 dgain_step = _mm256_mul_ps(_mm256_cvtepi32_ps(dgain),
+      _mm256_set1_ps(1.0f / (1 << 21)));
+  const __m256i mask23 = _mm256_set1_epi32(0x7fffff);
+  const __m256i half = _mm256_set1_epi32(0x400000);
+  const __m256 in_scale = _mm256_set1_ps(1.0f / (1 << 22));
+  const __m256 out_scale = _mm256_set1_ps(1 << 24);
+  const __m256 c0 = _mm256_set1_ps(-0.01880853017455781f);
+  const __m256 c1 = _mm256_set1_ps(0.25215252666796095f);
+  const __m256 c2 = _mm256_set1_ps(-1.2333439964934032f);
+  const __m256 c3 = _mm256_set1_ps(1.0f);
+  for (int i = 0; i < N; i += 8) {
+    for (int j = 0; j < 4; j++) {
+      int offset = (i + 2 * j) * LANES;
+      __m256i x = _mm256_add_epi32(
+          _mm256_loadu_si256((const __m256i *)(in + offset)), phase);
+      phase = _mm256_add_epi32(phase, freq);
+      __m256i sign = _mm256_srai_epi32(_mm256_slli_epi32(x, 8), 31);
+      __m256 f = _mm256_mul_ps(_mm256_cvtepi32_ps(
+          _mm256_sub_epi32(_mm256_and_si256(x, mask23), half)), in_scale);
+      __m256 f2 = _mm256_mul_ps(f, f);
+      __m256 y = _mm256_add_ps(c1, _mm256_mul_ps(f2, c0));
+      y = _mm256_add_ps(c2, _mm256_mul_ps(f2, y));
+      y = _mm256_add_ps(c3, _mm256_mul_ps(f2, y));
+      __m256i v = _mm256_cvttps_epi32(
+          _mm256_mul_ps(_mm256_mul_ps(y, gain[j]), out_scale));
+      gain[j] = _mm256_add_ps(gain[j], dgain_step);
+      v = _mm256_add_epi32(_mm256_xor_si256(v, sign),
+          _mm256_loadu_si256((const __m256i *)(busin + offset)));
+      _mm256_storeu_si256((__m256i *)(out + offset), v);
+    }
+  }
+}
+#endif
+
+const int32_t __attribute__ ((aligned(16))) zero_lanes[N * LANES] = {0};
+
+void FmOpKernel::compute_lanes(int32_t *output, const int32_t *input,
+                               const int32_t *phase0, const int32_t *freq,
+                               const int32_t *gain1, const int32_t *gain2,
+                               bool add) {
+  int32_t dgain[LANES];
+  int32_t gain[LANES];
+  int32_t phase[LANES];
+  for (int v = 0; v < LANES; v++) {
+    dgain[v] = (gain2[v] - gain1[v] + (N >> 1)) >> LG_N;
+    gain[v] = gain1[v];
+    phase[v] = phase0[v];
+  }
+  if (input == NULL) {
+    input = zero_lanes;
+  }
+  switch (Simd::level()) {
+#ifdef HAVE_NEON_INTRINSICS
+    case Simd::kNeon:
+      // the SIMD kernels take the gain of the first sample
+      for (int v = 0; v < LANES; v++) {
+        gain[v] += dgain[v];
+      }
+      neon_fm_lanes(input, add ? output : zero_lanes, output, phase, freq,
+          gain, dgain);
+      return;
+#endif
+#ifdef __SSE2__
+    case Simd::kSse2:
+    case Simd::kAvx2:
+      for (int v = 0; v < LANES; v++) {
+        gain[v] += dgain[v];
+      }
+      if (Simd::level() == Simd::kAvx2) {
+        avx2_fm_lanes(input, add ? output : zero_lanes, output, phase, freq,
+            gain, dgain);
+      } else {
+        sse2_fm_lanes(input, add ? output : zero_lanes, output, phase, freq,
+            gain, dgain);
+      }
+      return;
+#endif
+    default:
+      break;
+  }
+  const int32_t *busin = add ? output : zero_lanes;
+  for (int i = 0; i < N; i++) {
+    for (int v = 0; v < LANES; v++) {
+      gain[v] += dgain[v];
+      int32_t y = Sin::lookup(phase[v] + input[i * LANES + v]);
+      output[i * LANES + v] = busin[i * LANES + v] +
+          (((int64_t)y * (int64_t)gain[v]) >> 24);
+      phase[v] += freq[v];
+    }
+  }
+}
+
+// Not vectorised: the feedback makes each sample wait for the previous one,
+// and with the table lookups SIMD doesn't shorten that wait. Four chains side
+// by side overlap in the cpu instead.
+void FmOpKernel::compute_fb_lanes(int32_t *output, const int32_t *phase0,
+                                  const int32_t *freq, const int32_t *gain1,
+                                  const int32_t *gain2, int32_t *fb_buf,
+                                  int fb_shift, bool add) {
+  const int32_t *busin = add ? output : zero_lanes;
+  int32_t dgain[LANES];
+  int32_t gain[LANES];
+  int32_t phase[LANES];
+  int32_t y0[LANES];
+  int32_t y[LANES];
+  for (int v = 0; v < LANES; v++) {
+    dgain[v] = (gain2[v] - gain1[v] + (N >> 1)) >> LG_N;
+    gain[v] = gain1[v];
+    phase[v] = phase0[v];
+    y0[v] = fb_buf[v];
+    y[v] = fb_buf[LANES + v];
+  }
+  for (int i = 0; i < N; i++) {
+    for (int v = 0; v < LANES; v++) {
+      gain[v] += dgain[v];
+      int32_t scaled_fb = (y0[v] + y[v]) >> (fb_shift + 1);
+      y0[v] = y[v];
+      y[v] = Sin::lookup(phase[v] + scaled_fb);
+      y[v] = ((int64_t)y[v] * (int64_t)gain[v]) >> 24;
+      output[i * LANES + v] = busin[i * LANES + v] + y[v];
+      phase[v] += freq[v];
+    }
+  }
+  for (int v = 0; v < LANES; v++) {
+    fb_buf[v] = y0[v];
+    fb_buf[LANES + v] = y[v];
+  }
+}
+
+#undef LANES
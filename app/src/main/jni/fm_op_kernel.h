@@ -32,4 +32,23 @@ class FmOpKernel {
   static void compute_fb(int32_t *output, int32_t phase0, int32_t freq,
                          int32_t gain1, int32_t gain2,
                          int32_t *fb_buf, int fb_gain, bool add);
+
+  // The kernels above for kLanes voices at once, one voice per SIMD lane.
+  // Buffers are interleaved, sample i of lane v at [i * kLanes + v], and the
+  // parameters are arrays of kLanes. Each lane gets exactly what the kernel
+  // writes or adds for its voice alone.
+  static const int kLanes = 4;
+
+  // input may be NULL for compute_pure.
+  static void compute_lanes(int32_t *output, const int32_t *input,
+                            const int32_t *phase0, const int32_t *freq,
+                            const int32_t *gain1, const int32_t *gain2,
+                            bool add);
+
+  // fb_buf holds the two feedback samples of each lane, the first ones at
+  // [0, kLanes), the others at [kLanes, 2 * kLanes).
+  static void compute_fb_lanes(int32_t *output, const int32_t *phase0,
+                               const int32_t *freq, const int32_t *gain1,
+                               const int32_t *gain2, int32_t *fb_buf,
+                               int fb_shift, bool add);
 };
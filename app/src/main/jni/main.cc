@@ -34,6 +34,7 @@
 #include "patch.h"
 #include "controllers.h"
 #include "dx7note.h"
+#include "simd.h"
 
 using namespace std;
 
@@ -129,6 +130,108 @@ void test_pure_accuracy() {
   cout << "Mean: " << (errsum * 1e-6) << endl;
 }
 
+// Max and mean difference of the SIMD kernels of each supported level to the
+// scalar code.
+struct SimdError {
+  int32_t max;
+  double sum;
+  int count;
+
+  SimdError() : max(0), sum(0), count(0) { }
+
+  void add(const int32_t *ref, const int32_t *buf, int n) {
+    int32_t maxerr = 0;
+    for (int j = 0; j < n; j++) {
+      int32_t err = abs(buf[j] - ref[j]);
+      if (err > maxerr) maxerr = err;
+    }
+    if (maxerr > max) max = maxerr;
+    sum += maxerr;
+    count++;
+  }
+
+  void print(const char *what) {
+    cout << "  " << what << ": max " << max << " mean " << (sum / count) << endl;
+  }
+};
+
+void test_simd_accuracy() {
+  Simd::Level best = Simd::level();
+  for (int l = Simd::kNone + 1; l < Simd::kLevels; l++) {
+    Simd::Level level = (Simd::Level)l;
+    if (!Simd::supported(level)) continue;
+    cout << Simd::name(level) << " vs " << Simd::name(Simd::kNone) << endl;
+    SimdError pure, fm, filter, drive;
+    srand(1);
+    for (int i = 0; i < 100000; i++) {
+      int32_t freq = rand() & 0x7fffff;
+      int32_t phase = rand() & 0xffffff;
+      int32_t gain1 = rand() & 0xffffff;
+      int32_t gain2 = rand() & 0xffffff;
+      int32_t in[64];
+      for (int j = 0; j < 64; j++) {
+        in[j] = (rand() & 0x1ffffff) - (1 << 24);
+      }
+      int32_t ref[64];
+      int32_t buf[64];
+      Simd::set_level(Simd::kNone);
+      FmOpKernel::compute_pure(ref, phase, freq, gain1, gain2, false);
+      Simd::set_level(level);
+      FmOpKernel::compute_pure(buf, phase, freq, gain1, gain2, false);
+      pure.add(ref, buf, 64);
+      Simd::set_level(Simd::kNone);
+      FmOpKernel::compute(ref, in, phase, freq, gain1, gain2, false);
+      Simd::set_level(level);
+      FmOpKernel::compute(buf, in, phase, freq, gain1, gain2, false);
+      fm.add(ref, buf, 64);
+    }
+    // a few seconds of noise through filters with the same settings
+    for (int overdrive = 0; overdrive < 2; overdrive++) {
+      for (int i = 0; i < 20; i++) {
+        int32_t control[3];
+        control[0] = (1 << 24) * log(200.0 + 400.0 * i) / log(2);
+        control[1] = (rand() & 0x3fffff) * 3;
+        control[2] = overdrive ? (1 << 23) + (rand() & 0xffffff) : 0;
+        ResoFilter rf_ref;
+        ResoFilter rf;
+        for (int block = 0; block < 1000; block++) {
+          int32_t in[64];
+          for (int j = 0; j < 64; j++) {
+            in[j] = (rand() & 0x1ffffff) - (1 << 24);
+          }
+          const int32_t *inbufs[] = { in };
+          int32_t ref[64];
+          int32_t buf[64];
+          int32_t *refbufs[] = { ref };
+          int32_t *outbufs[] = { buf };
+          Simd::set_level(Simd::kNone);
+          rf_ref.process(inbufs, control, control, refbufs);
+          Simd::set_level(level);
+          rf.process(inbufs, control, control, outbufs);
+          (overdrive ? drive : filter).add(ref, buf, 64);
+        }
+      }
+    }
+    pure.print("compute_pure");
+    fm.print("compute");
+    filter.print("ResoFilter");
+    drive.print("ResoFilter overdrive");
+    // full scale is 1 << 24
+    if (pure.max > 4096 || fm.max > 4096 || filter.max > 4096 ||
+        drive.max > 4096) {
+      cout << "  FAILED" << endl;
+    }
+  }
+  Simd::set_level(best);
+  for (int l = 0; l < Simd::kLevels; l++) {
+    if (!Simd::supported((Simd::Level)l)) continue;
+    cout << Simd::name((Simd::Level)l) << " vs sin()" << endl;
+    Simd::set_level((Simd::Level)l);
+    test_pure_accuracy();
+  }
+  Simd::set_level(best);
+}
+
 void mksaw(double sample_rate) {
   const int n_samples = 400 * 1024;
   WavOut w("/tmp/foo.wav", sample_rate, n_samples);
@@ -284,6 +387,7 @@ int main(int argc, char **argv) {
   test_tanh_accuracy();
   //benchmark_fm_op();
   //test_pure_accuracy();
+  test_simd_accuracy();
   //benchmark_sin();
   //int32_t freq = atoi(argv[1]);
   //cout << "Logfreq(" << freq << ") = " << Freqlut::lookup(freq) << endl;
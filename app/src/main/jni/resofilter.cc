@@ -29,8 +29,13 @@
 #include "freqlut.h"
 #include "exp2.h"
 #include "aligned_buf.h"
+#include "simd.h"
 #include "resofilter.h"
 
+#ifdef __SSE2__
+#include <emmintrin.h>
+#endif
+
 #ifdef HAVE_NEON
 extern "C"
 void neon_ladder_nl(const int32_t *in, const float *a, int32_t *out, int count,
@@ -196,6 +201,157 @@ static float sigmoid(float x, float overdrive) {
   return x * isq;
 }
 
+// The per sample loops of process() with the state in a vector register. The
+// products of matvec4 are summed in the same order, a holds B and then A as
+// make_state_transition() computes them.
+
+#ifdef HAVE_NEON_INTRINSICS
+static void ladder_lin_neon(const int32_t *ibuf, const float *a,
+                            int32_t *obuf, int n, float *state) {
+  float32x4_t b = vld1q_f32(a);
+  float32x4_t c0 = vld1q_f32(a + 4);
+  float32x4_t c1 = vld1q_f32(a + 8);
+  float32x4_t c2 = vld1q_f32(a + 12);
+  float32x4_t c3 = vld1q_f32(a + 16);
+  float32x4_t x = vld1q_f32(state);
+  for (int i = 0; i < n; i++) {
+    float32x2_t lo = vget_low_f32(x);
+    float32x2_t hi = vget_high_f32(x);
+    float32x4_t t = vmulq_lane_f32(c0, lo, 0);
+    t = vmlaq_lane_f32(t, c1, lo, 1);
+    t = vmlaq_lane_f32(t, c2, hi, 0);
+    t = vmlaq_lane_f32(t, c3, hi, 1);
+    x = vmlaq_n_f32(t, b, (float)ibuf[i]);
+    obuf[i] = vgetq_lane_f32(x, 3);
+  }
+  vst1q_f32(state, x);
+}
+
+#ifdef __aarch64__
+// armv7 NEON has no vector division and square root.
+static void ladder_nl_neon(const int32_t *ibuf, const float *a,
+                           int32_t *obuf, int n, float *state,
+                           float k, float overdrive, float ogain) {
+  float32x4_t b = vld1q_f32(a);
+  float32x4_t c0 = vld1q_f32(a + 4);
+  float32x4_t c1 = vld1q_f32(a + 8);
+  float32x4_t c2 = vld1q_f32(a + 12);
+  float32x4_t c3 = vld1q_f32(a + 16);
+  float32x4_t x = vld1q_f32(state);
+  float32x4_t one = vdupq_n_f32(1.0f);
+  float32x4_t scale = vdupq_n_f32(overdrive * (1.0f / (1 << 24)));
+  for (int i = 0; i < n; i++) {
+    float32x4_t xs = vmulq_f32(x, scale);
+    float32x4_t tx = vmulq_f32(x,
+        vdivq_f32(one, vsqrtq_f32(vmlaq_f32(one, xs, xs))));
+    float32x2_t lo = vget_low_f32(tx);
+    float32x2_t hi = vget_high_f32(tx);
+    float32x4_t t = vmulq_lane_f32(c0, lo, 0);
+    t = vmlaq_lane_f32(t, c1, lo, 1);
+    t = vmlaq_lane_f32(t, c2, hi, 0);
+    t = vmlaq_lane_f32(t, c3, hi, 1);
+    float x3 = vgetq_lane_f32(x, 3);
+    float xin = sigmoid(ibuf[i] - k * x3, overdrive);
+    x = vaddq_f32(x, vmlaq_n_f32(t, b, xin));
+    obuf[i] = vgetq_lane_f32(x, 3) * ogain;
+  }
+  vst1q_f32(state, x);
+}
+#endif
+#endif
+
+#ifdef __SSE2__
+#define SPLAT(v, i) _mm_shuffle_ps(v, v, _MM_SHUFFLE(i, i, i, i))
+
+static void ladder_lin_sse2(const int32_t *ibuf, const float *a,
+                            int32_t *obuf, int n, float *state) {
+  __m128 b = _mm_loadu_ps(a);
+  __m128 c0 = _mm_loadu_ps(a + 4);
+  __m128 c1 = _mm_loadu_ps(a + 8);
+  __m128 c2 = _mm_loadu_ps(a + 12);
+  __m128 c3 = _mm_loadu_ps(a + 16);
+  __m128 x = _mm_loadu_ps(state);
+  for (int i = 0; i < n; i++) {
+    __m128 t = _mm_mul_ps(c0, SPLAT(x, 0));
+    t = _mm_add_ps(t, _mm_mul_ps(c1, SPLAT(x, 1)));
+    t = _mm_add_ps(t, _mm_mul_ps(c2, SPLAT(x, 2)));
+    t = _mm_add_ps(t, _mm_mul_ps(c3, SPLAT(x, 3)));
+    x = _mm_add_ps(t, _mm_mul_ps(b, _mm_set1_ps((float)ibuf[i])));
+    obuf[i] = _mm_cvtss_f32(SPLAT(x, 3));
+  }
+  _mm_storeu_ps(state, x);
+}
+
+static void ladder_nl_sse2(const int32_t *ibuf, const float *a,
+                           int32_t *obuf, int n, float *state,
+                           float k, float overdrive, float ogain) {
+  __m128 b = _mm_loadu_ps(a);
+  __m128 c0 = _mm_loadu_ps(a + 4);
+  __m128 c1 = _mm_loadu_ps(a + 8);
+  __m128 c2 = _mm_loadu_ps(a + 12);
+  __m128 c3 = _mm_loadu_ps(a + 16);
+  __m128 x = _mm_loadu_ps(state);
+  __m128 one = _mm_set1_ps(1.0f);
+  __m128 scale = _mm_set1_ps(overdrive * (1.0f / (1 << 24)));
+  for (int i = 0; i < n; i++) {
+    __m128 xs = _mm_mul_ps(x, scale);
+    __m128 tx = _mm_mul_ps(x, _mm_div_ps(one,
+        _mm_sqrt_ps(_mm_add_ps(one, _mm_mul_ps(xs, xs)))));
+    __m128 t = _mm_mul_ps(c0, SPLAT(tx, 0));
+    t = _mm_add_ps(t, _mm_mul_ps(c1, SPLAT(tx, 1)));
+    t = _mm_add_ps(t, _mm_mul_ps(c2, SPLAT(tx, 2)));
+    t = _mm_add_ps(t, _mm_mul_ps(c3, SPLAT(tx, 3)));
+    float x3 = _mm_cvtss_f32(SPLAT(x, 3));
+    float xin = sigmoid(ibuf[i] - k * x3, overdrive);
+    x = _mm_add_ps(x, _mm_add_ps(t, _mm_mul_ps(b, _mm_set1_ps(xin))));
+    obuf[i] = _mm_cvtss_f32(SPLAT(x, 3)) * ogain;
+  }
+  _mm_storeu_ps(state, x);
+}
+
+#undef SPLAT
+#endif
+
+// Returns false if there is no kernel for the current Simd level.
+static bool simd_ladder_lin(const int32_t *ibuf, const float *a,
+                            int32_t *obuf, int n, float *state) {
+  switch (Simd::level()) {
+#ifdef HAVE_NEON_INTRINSICS
+    case Simd::kNeon:
+      ladder_lin_neon(ibuf, a, obuf, n, state);
+      return true;
+#endif
+#ifdef __SSE2__
+    case Simd::kSse2:
+    case Simd::kAvx2:
+      ladder_lin_sse2(ibuf, a, obuf, n, state);
+      return true;
+#endif
+    default:
+      return false;
+  }
+}
+
+static bool simd_ladder_nl(const int32_t *ibuf, const float *a,
+                           int32_t *obuf, int n, float *state,
+                           float k, float overdrive, float ogain) {
+  switch (Simd::level()) {
+#if defined(HAVE_NEON_INTRINSICS) && defined(__aarch64__)
+    case Simd::kNeon:
+      ladder_nl_neon(ibuf, a, obuf, n, state, k, overdrive, ogain);
+      return true;
+#endif
+#ifdef __SSE2__
+    case Simd::kSse2:
+    case Simd::kAvx2:
+      ladder_nl_sse2(ibuf, a, obuf, n, state, k, overdrive, ogain);
+      return true;
+#endif
+    default:
+      return false;
+  }
+}
+
 void ResoFilter::process(const int32_t **inbufs, const int32_t *control_in,
                          const int32_t *control_last, int32_t **outbufs) {
   AlignedBuf<float, 20> a;
@@ -222,7 +378,7 @@ void ResoFilter::process(const int32_t **inbufs, const int32_t *control_in,
       matcopy(a_neon.get() + 16, a.get(), 4);
       neon_ladder_lin(ibuf, a_neon.get(), obuf, n, x.get());
 #endif
-    } else {
+    } else if (!simd_ladder_lin(ibuf, a.get(), obuf, n, x.get())) {
       for (int i = 0; i < n; i++) {
         float signal = ibuf[i];
         float tmp[4];
@@ -251,7 +407,8 @@ void ResoFilter::process(const int32_t **inbufs, const int32_t *control_in,
       a_neon.get()[22] = ogain;
       neon_ladder_nl(ibuf, a_neon.get(), obuf, n, x.get());
 #endif
-    } else {
+    } else if (!simd_ladder_nl(ibuf, a.get(), obuf, n, x.get(), k, overdrive,
+                               ogain)) {
       for (int i = 0; i < n; i++) {
         float signal = ibuf[i];
         float tmp[4];
@@ -0,0 +1,89 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+#include "synth.h"
+#include "simd.h"
+
+#if defined(__SSE2__)
+#include <cpuid.h>
+
+// AVX2 needs the cpu to have it and the OS to save the ymm registers.
+static bool cpu_has_avx2() {
+  unsigned int eax, ebx, ecx, edx;
+  if (!__get_cpuid(1, &eax, &ebx, &ecx, &edx)) {
+    return false;
+  }
+  const unsigned int osxsave = 1 << 27;
+  const unsigned int avx = 1 << 28;
+  if ((ecx & (osxsave | avx)) != (osxsave | avx)) {
+    return false;
+  }
+  unsigned int xcr0_lo, xcr0_hi;
+  __asm__ ("xgetbv" : "=a" (xcr0_lo), "=d" (xcr0_hi) : "c" (0));
+  if ((xcr0_lo & 6) != 6) {
+    return false;
+  }
+  if (__get_cpuid_max(0, NULL) < 7) {
+    return false;
+  }
+  __cpuid_count(7, 0, eax, ebx, ecx, edx);
+  return (ebx & (1 << 5)) != 0;
+}
+#endif
+
+Simd::Level Simd::level_ = Simd::best();
+
+Simd::Level Simd::best() {
+#if defined(HAVE_NEON_INTRINSICS)
+  return hasNeon() ? kNeon : kNone;
+#elif defined(__SSE2__)
+  return cpu_has_avx2() ? kAvx2 : kSse2;
+#else
+  return kNone;
+#endif
+}
+
+bool Simd::supported(Level level) {
+  switch (level) {
+    case kNone:
+      return true;
+#if defined(HAVE_NEON_INTRINSICS)
+    case kNeon:
+      return hasNeon();
+#endif
+#if defined(__SSE2__)
+    case kSse2:
+      return true;
+    case kAvx2:
+      return cpu_has_avx2();
+#endif
+    default:
+      return false;
+  }
+}
+
+bool Simd::set_level(Level level) {
+  if (!supported(level)) {
+    return false;
+  }
+  level_ = level;
+  return true;
+}
+
+const char *Simd::name(Level level) {
+  static const char *names[kLevels] = {"scalar", "neon", "sse2", "avx2"};
+  return level >= 0 && level < kLevels ? names[level] : "?";
+}
@@ -0,0 +1,54 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+#ifndef SYNTH_SIMD_H_
+#define SYNTH_SIMD_H_
+
+// Selects the SIMD kernels at runtime. Kernels for an instruction set are
+// compiled for the architectures that have it and used if the cpu supports
+// it: NEON on arm64 and NEON builds of armv7, SSE2 on x86_64, AVX2 on x86_64
+// cpus that report it.
+class Simd {
+ public:
+  enum Level {
+    kNone,  // scalar C++
+    kNeon,
+    kSse2,
+    kAvx2,
+    kLevels
+  };
+
+  // The kernels in use, the best the cpu supports unless set_level() was
+  // called.
+  static Level level() { return level_; }
+
+  // The best kernels for this cpu.
+  static Level best();
+
+  // Whether this build has the kernels and the cpu can run them.
+  static bool supported(Level level);
+
+  // Switches the kernels, e.g. to kNone to compare with the scalar code.
+  // Returns false and keeps the current level if the level is not supported.
+  static bool set_level(Level level);
+
+  static const char *name(Level level);
+
+ private:
+  static Level level_;
+};
+
+#endif  // SYNTH_SIMD_H_
@@ -0,0 +1,217 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+#include <sched.h>
+#include <sys/resource.h>
+
+#include "synth_parts.h"
+
+const int SynthParts::max_parts;
+const int SynthParts::part_voices;
+const int SynthParts::max_frames;
+
+SynthParts::SynthParts(RingBuffer *ring_buffer, int n_parts, bool threaded) {
+  ring_buffer_ = ring_buffer;
+  n_parts_ = max(1, min(n_parts, max_parts));
+  helpers_ = threaded && n_parts_ > 1;
+  threaded_ = helpers_;
+  priority_matched_ = false;
+  // the first part plays the channels without a part of their own
+  uint16_t first_mask = 0xffff;
+  for (int i = 1; i < n_parts_; i++) {
+    first_mask &= ~(1 << i);
+  }
+  for (int i = 0; i < n_parts_; i++) {
+    Part *part = &parts_[i];
+    part->input = new RingBuffer;
+    part->unit = new SynthUnit(part->input, i == 0 ? first_mask : 1 << i);
+    part->n_frames = 0;
+    part->quit = false;
+    if (helpers_ && i > 0) {
+      sem_init(&part->start, 0, 0);
+      sem_init(&part->done, 0, 0);
+      pthread_create(&part->thread, NULL, RenderThread, part);
+    }
+  }
+}
+
+SynthParts::~SynthParts() {
+  for (int i = 0; i < n_parts_; i++) {
+    Part *part = &parts_[i];
+    if (helpers_ && i > 0) {
+      part->quit = true;
+      sem_post(&part->start);
+      pthread_join(part->thread, NULL);
+      sem_destroy(&part->start);
+      sem_destroy(&part->done);
+    }
+    delete part->unit;
+    delete part->input;
+  }
+}
+
+void *SynthParts::RenderThread(void *arg) {
+  Part *part = (Part *)arg;
+  // like Process.THREAD_PRIORITY_AUDIO, for a calling thread that is not
+  // real-time; MatchHelperPriority raises it to one that is
+  setpriority(PRIO_PROCESS, 0, -16);
+  for (;;) {
+    sem_wait(&part->start);
+    if (part->quit) {
+      break;
+    }
+    part->unit->GetSamples(part->n_frames, part->buf);
+    sem_post(&part->done);
+  }
+  return NULL;
+}
+
+void SynthParts::MatchHelperPriority() {
+  priority_matched_ = true;
+  int policy;
+  struct sched_param param;
+  if (pthread_getschedparam(pthread_self(), &policy, &param) != 0 ||
+      (policy != SCHED_FIFO && policy != SCHED_RR)) {
+    return;
+  }
+  for (int i = 1; i < n_parts_; i++) {
+    if (pthread_setschedparam(parts_[i].thread, policy, &param) != 0) {
+      // waiting on a lower priority thread would invert the priorities; the
+      // helpers stay idle until the destructor stops them
+      threaded_ = false;
+      return;
+    }
+  }
+}
+
+void SynthParts::DistributeInput() {
+  for (;;) {
+    int n = min(ring_buffer_->BytesAvailable(), (int)sizeof(input_chunk_));
+    for (int i = 0; i < n_parts_; i++) {
+      n = min(n, parts_[i].input->WriteBytesAvailable());
+    }
+    if (n <= 0) {
+      break;
+    }
+    ring_buffer_->Read(n, input_chunk_);
+    for (int i = 0; i < n_parts_; i++) {
+      parts_[i].input->Write(input_chunk_, n);
+    }
+  }
+}
+
+void SynthParts::GetSamples(int n_samples, int16_t *buffer) {
+  if (threaded_ && !priority_matched_) {
+    MatchHelperPriority();
+  }
+  DistributeInput();
+  for (int offset = 0; offset < n_samples; offset += max_frames) {
+    int n_frames = min(n_samples - offset, max_frames);
+    for (int i = 1; i < n_parts_; i++) {
+      parts_[i].n_frames = n_frames;
+      if (threaded_) {
+        sem_post(&parts_[i].start);
+      } else {
+        parts_[i].unit->GetSamples(n_frames, parts_[i].buf);
+      }
+    }
+    int16_t *out = buffer + offset;
+    parts_[0].unit->GetSamples(n_frames, out);
+    for (int i = 1; i < n_parts_; i++) {
+      if (threaded_) {
+        sem_wait(&parts_[i].done);
+      }
+      // the parts are clipped on their own, the mix saturates
+      const int16_t *buf = parts_[i].buf;
+      for (int j = 0; j < n_frames; j++) {
+        int32_t val = out[j] + buf[j];
+        out[j] = val < -0x8000 ? -0x8000 : val > 0x7fff ? 0x7fff : val;
+      }
+    }
+  }
+}
+
+bool SynthParts::ReadDspLoad(DspLoadSnapshot *snapshot) {
+  if (!parts_[0].unit->dsp_load()->Read(snapshot)) {
+    return false;
+  }
+  for (int i = 1; i < n_parts_; i++) {
+    DspLoadSnapshot part;
+    if (!parts_[i].unit->dsp_load()->Read(&part)) {
+      return false;
+    }
+    // every part renders the same callbacks and blocks
+    snapshot->voice_blocks += part.voice_blocks;
+    snapshot->max_voices += part.max_voices;
+    snapshot->retired_voices += part.retired_voices;
+    snapshot->stolen_voices += part.stolen_voices;
+    for (int j = 0; j < kDspSections; j++) {
+      snapshot->section_nanos[j] += part.section_nanos[j];
+      snapshot->section_max_nanos[j] =
+          max(snapshot->section_max_nanos[j], part.section_max_nanos[j]);
+    }
+    snapshot->max_callback_nanos =
+        max(snapshot->max_callback_nanos, part.max_callback_nanos);
+  }
+  return true;
+}
+
+void SynthParts::RequestDspLoadReset() {
+  for (int i = 0; i < n_parts_; i++) {
+    parts_[i].unit->dsp_load()->RequestReset();
+  }
+}
+
+int32_t SynthParts::idle_frames() const {
+  int32_t idle_frames = parts_[0].unit->idle_frames();
+  for (int i = 1; i < n_parts_; i++) {
+    idle_frames = min(idle_frames, parts_[i].unit->idle_frames());
+  }
+  return idle_frames;
+}
+
+int SynthParts::active_voices() const {
+  int voices = 0;
+  for (int i = 0; i < n_parts_; i++) {
+    voices += parts_[i].unit->active_voices();
+  }
+  return voices;
+}
+
+int SynthParts::SetPolyphony(int polyphony) {
+  // MAX_POLYPHONY bounds the voices of all parts together. The other parts
+  // play the chords of the accompanist and keep part_voices each, the melody
+  // part gets the rest.
+  int others = part_voices * (n_parts_ - 1);
+  polyphony = max(1 + others, min(polyphony, (int)SynthUnit::max_active_notes));
+  int result = parts_[0].unit->SetPolyphony(polyphony - others);
+  for (int i = 1; i < n_parts_; i++) {
+    result += parts_[i].unit->SetPolyphony(part_voices);
+  }
+  return result;
+}
+
+void SynthParts::SetStealPolicy(int policy) {
+  for (int i = 0; i < n_parts_; i++) {
+    parts_[i].unit->SetStealPolicy(policy);
+  }
+}
+
+void SynthParts::SetBatchVoices(bool batch) {
+  for (int i = 0; i < n_parts_; i++) {
+    parts_[i].unit->SetBatchVoices(batch);
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+#ifndef SYNTH_SYNTH_PARTS_H_
+#define SYNTH_SYNTH_PARTS_H_
+
+#include <pthread.h>
+#include <semaphore.h>
+
+#include "synth.h"
+#include "ringbuffer.h"
+#include "synth_unit.h"
+
+// A multitimbral synth: one SynthUnit per part, each with its own patch.
+// Part i plays MIDI channel i, the first part also every channel without a
+// part of its own. The MIDI input is copied to all parts, which skip the
+// channels of the others, so patch loads reach every part.
+//
+// When threaded, the parts after the first render on helper threads while the
+// first renders on the calling thread, then they are mixed. The calling thread
+// waits for the helpers, so on the first GetSamples they are given its
+// scheduling policy and priority. If it is a real-time thread and they cannot
+// have its priority, e.g. SCHED_FIFO outside the audio server, all parts
+// render on the calling thread from then on.
+class SynthParts {
+ public:
+  static const int max_parts = 4;
+
+  // Voices of each part after the first, a chord of the accompanist.
+  static const int part_voices = 3;
+
+  SynthParts(RingBuffer *ring_buffer, int n_parts, bool threaded);
+
+  ~SynthParts();
+
+  void GetSamples(int n_samples, int16_t *buffer);
+
+  int n_parts() const { return n_parts_; }
+
+  // Whether the helpers render, false once they could not get the priority of
+  // the calling thread.
+  bool threaded() const { return threaded_; }
+
+  // The load of all parts: counts and times summed, maxima of the parts.
+  // The parts may render in parallel, so the times add up the cpu time, not the
+  // duration of the callback.
+  bool ReadDspLoad(DspLoadSnapshot *snapshot);
+
+  void RequestDspLoadReset();
+
+  // Frames since the last MIDI input or sounding note of any part.
+  int32_t idle_frames() const;
+
+  // Voices rendered in the latest block, summed over the parts.
+  int active_voices() const;
+
+  // Gives part_voices to each part after the first and the rest of the
+  // polyphony to the first, see SynthUnit::SetPolyphony. The polyphony is
+  // clamped to a voice of the first part plus those of the others up to
+  // max_active_notes. Returns the clamped sum.
+  int SetPolyphony(int polyphony);
+
+  void SetStealPolicy(int policy);
+
+  void SetBatchVoices(bool batch);
+
+ private:
+  // Frames rendered by the helpers at a time.
+  static const int max_frames = 1024;
+
+  struct Part {
+    SynthUnit *unit;
+    RingBuffer *input;
+    int16_t buf[max_frames];
+    int n_frames;
+    pthread_t thread;
+    sem_t start;
+    sem_t done;
+    volatile bool quit;
+  };
+
+  static void *RenderThread(void *arg);
+
+  // Gives the helpers the scheduling of the calling thread, renders inline
+  // if that fails for a real-time thread.
+  void MatchHelperPriority();
+
+  // Copies the input to the ring buffers of the parts.
+  void DistributeInput();
+
+  RingBuffer *ring_buffer_;
+  int n_parts_;
+  // whether there are helper threads, and whether they render
+  bool helpers_;
+  volatile bool threaded_;
+  bool priority_matched_;
+  Part parts_[max_parts];
+  uint8_t input_chunk_[1024];
+};
+
+#endif  // SYNTH_SYNTH_PARTS_H_
@@ -55,24 +55,32 @@ void SynthUnit::Init(double sample_rate) {
   PitchEnv::init(sample_rate);
 }
 
-SynthUnit::SynthUnit(RingBuffer *ring_buffer) {
+SynthUnit::SynthUnit(RingBuffer *ring_buffer, uint16_t channel_mask) {
   ring_buffer_ = ring_buffer;
+  channel_mask_ = channel_mask;
   for (int note = 0; note < max_active_notes; ++note) {
     active_note_[note].dx7_note = new Dx7Note;
     active_note_[note].keydown = false;
     active_note_[note].sustained = false;
     active_note_[note].live = false;
+    active_note_[note].serial = 0;
   }
   input_buffer_index_ = 0;
   memcpy(patch_data_, epiano, sizeof(epiano));
   ProgramChange(0);
   current_note_ = 0;
+  note_serial_ = 0;
+  polyphony_ = 16;
+  steal_policy_ = kStealOldest;
+  batch_voices_ = false;
   filter_control_[0] = 258847126;
   filter_control_[1] = 0;
   filter_control_[2] = 0;
   controllers_.values_[kControllerPitch] = 0x2000;
   sustain_ = false;
   extra_buf_size_ = 0;
+  idle_frames_ = 0;
+  active_voices_ = 0;
 }
 
 // Transfer as many bytes as possible from ring buffer to input buffer.
@@ -97,23 +105,67 @@ void SynthUnit::ConsumeInput(int n_input_bytes) {
   input_buffer_index_ -= n_input_bytes;
 }
 
-int SynthUnit::AllocateNote() {
-  int note = current_note_;
-  for (int i = 0; i < max_active_notes; i++) {
-    if (!active_note_[note].keydown) {
-      current_note_ = (note + 1) % max_active_notes;
+const int SynthUnit::max_active_notes;
+
+int SynthUnit::SetPolyphony(int polyphony) {
+  polyphony_ = max(1, min(polyphony, max_active_notes));
+  return polyphony_;
+}
+
+void SynthUnit::SetStealPolicy(int policy) {
+  if (policy >= 0 && policy < kStealPolicies) {
+    steal_policy_ = policy;
+  }
+}
+
+int SynthUnit::AllocateNote(int midi_note) {
+  // read once, Java may change them meanwhile
+  int polyphony = polyphony_;
+  int policy = steal_policy_;
+  if (policy == kStealSameNote) {
+    for (int note = 0; note < polyphony; note++) {
+      if (active_note_[note].live && active_note_[note].midi_note == midi_note) {
+        dsp_load_.AddStolen();
+        return note;
+      }
+    }
+  }
+  // a retired voice is silent
+  int note = current_note_ < polyphony ? current_note_ : 0;
+  for (int i = 0; i < polyphony; i++) {
+    if (!active_note_[note].live) {
+      current_note_ = (note + 1) % polyphony;
       return note;
     }
-    note = (note + 1) % max_active_notes;
+    note = (note + 1) % polyphony;
+  }
+  // all sounding: released before sustained before held, then by policy
+  int best = 0;
+  int best_rank = 0;
+  int32_t best_key = 0;
+  for (note = 0; note < polyphony; note++) {
+    const ActiveNote &active = active_note_[note];
+    int rank = active.keydown ? 2 : active.sustained ? 1 : 0;
+    int32_t key = policy == kStealQuietest ? active.dx7_note->level() :
+        (int32_t)(active.serial - note_serial_);  // minus the age
+    if (note == 0 || rank < best_rank ||
+        (rank == best_rank && key < best_key)) {
+      best = note;
+      best_rank = rank;
+      best_key = key;
+    }
   }
-  return -1;
+  dsp_load_.AddStolen();
+  return best;
 }
 
 void SynthUnit::ProgramChange(int p) {
+  int64_t start = DspLoad::Now();
   current_patch_ = p;
   const uint8_t *patch = patch_data_ + 128 * current_patch_;
   UnpackPatch((const char *)patch, unpacked_patch_);
   lfo_.reset(unpacked_patch_ + 137);
+  dsp_load_.Add(kDspPatch, DspLoad::Now() - start);
 }
 
 void SynthUnit::SetController(int controller, int value) {
@@ -124,6 +176,11 @@ int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
   uint8_t cmd = buf[0];
   uint8_t cmd_type = cmd & 0xf0;
   //LOGI("got %d midi: %02x %02x %02x", buf_size, buf[0], buf[1], buf[2]);
+  if (cmd >= 0x80 && cmd < 0xf0 && !(channel_mask_ & (1 << (cmd & 0x0f)))) {
+    // another part plays this channel
+    int size = cmd_type == 0xc0 || cmd_type == 0xd0 ? 2 : 3;
+    return buf_size >= size ? size : 0;
+  }
   if (cmd_type == 0x80 || (cmd_type == 0x90 && buf[2] == 0)) {
     if (buf_size >= 3) {
       // note off
@@ -144,15 +201,14 @@ int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
   } else if (cmd_type == 0x90) {
     if (buf_size >= 3) {
       // note on
-      int note_ix = AllocateNote();
-      if (note_ix >= 0) {
-        lfo_.keydown();  // TODO: should only do this if # keys down was 0
-        active_note_[note_ix].midi_note = buf[1];
-        active_note_[note_ix].keydown = true;
-        active_note_[note_ix].sustained = sustain_;
-        active_note_[note_ix].live = true;
-        active_note_[note_ix].dx7_note->init(unpacked_patch_, buf[1], buf[2]);
-      }
+      int note_ix = AllocateNote(buf[1]);
+      lfo_.keydown();  // TODO: should only do this if # keys down was 0
+      active_note_[note_ix].midi_note = buf[1];
+      active_note_[note_ix].keydown = true;
+      active_note_[note_ix].sustained = sustain_;
+      active_note_[note_ix].live = true;
+      active_note_[note_ix].serial = note_serial_++;
+      active_note_[note_ix].dx7_note->init(unpacked_patch_, buf[1], buf[2]);
       return 3;
     }
     return 0;
@@ -196,10 +252,13 @@ int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
       return 2;
     }
     return 0;
-  } else if (cmd == 0xe0) {
+  } else if (cmd_type == 0xe0) {
     // pitch bend
     SetController(kControllerPitch, buf[1] | (buf[2] << 7));
     return 3;
+  } else if (cmd >= 0xf8) {
+    // system real-time (clock, start, stop, ...), a single byte the synth ignores
+    return 1;
   } else if (cmd == 0xf0) {
     // sysex
     if (buf_size >= 6 && buf[1] == 0x43 && buf[2] == 0x00 && buf[3] == 0x09 &&
@@ -223,6 +282,8 @@ int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
 }
 
 void SynthUnit::GetSamples(int n_samples, int16_t *buffer) {
+  dsp_load_.BeginCallback();
+  int64_t start = DspLoad::Now();
   TransferInput();
   size_t input_offset;
   for (input_offset = 0; input_offset < input_buffer_index_; ) {
@@ -235,6 +296,10 @@ void SynthUnit::GetSamples(int n_samples, int16_t *buffer) {
     input_offset += bytes_consumed;
   }
   ConsumeInput(input_offset);
+  bool had_input = input_offset > 0;
+  int64_t t = DspLoad::Now();
+  // ProgramChange timed its patch unpacking itself
+  dsp_load_.Add(kDspMidi, t - start - dsp_load_.Current(kDspPatch));
 
   int i;
   for (i = 0; i < n_samples && i < extra_buf_size_; i++) {
@@ -245,6 +310,8 @@ void SynthUnit::GetSamples(int n_samples, int16_t *buffer) {
       extra_buf_[j] = extra_buf_[j + n_samples];
     }
     extra_buf_size_ -= n_samples;
+    dsp_load_.Add(kDspOutput, DspLoad::Now() - t);
+    dsp_load_.EndCallback();
     return;
   }
 
@@ -256,15 +323,48 @@ void SynthUnit::GetSamples(int n_samples, int16_t *buffer) {
     }
     int32_t lfovalue = lfo_.getsample();
     int32_t lfodelay = lfo_.getdelay();
+    bool batch = batch_voices_;
+    if (batch) {
+      Dx7Note *notes[max_active_notes];
+      int n_notes = 0;
+      for (int note = 0; note < max_active_notes; ++note) {
+        if (active_note_[note].live) {
+          notes[n_notes++] = active_note_[note].dx7_note;
+        }
+      }
+      Dx7Note::compute_batch(notes, n_notes, audiobuf.get(), lfovalue,
+        lfodelay, &controllers_);
+    }
+    int voices = 0;
     for (int note = 0; note < max_active_notes; ++note) {
       if (active_note_[note].live) {
-        active_note_[note].dx7_note->compute(audiobuf.get(), lfovalue, lfodelay,
-          &controllers_);
+        if (!batch) {
+          active_note_[note].dx7_note->compute(audiobuf.get(), lfovalue,
+            lfodelay, &controllers_);
+        }
+        voices++;
+        // a released note that has decayed below audibility is retired
+        if (active_note_[note].dx7_note->isfinished()) {
+          active_note_[note].live = false;
+          dsp_load_.AddRetired();
+        }
       }
     }
+    dsp_load_.AddBlock(voices);
+    active_voices_ = voices;
+    if (voices > 0 || had_input) {
+      idle_frames_ = 0;
+      had_input = false;
+    } else if (idle_frames_ < max_idle_frames) {
+      idle_frames_ += N;
+    }
+    int64_t t_filter = DspLoad::Now();
+    dsp_load_.Add(kDspVoices, t_filter - t);
     const int32_t *bufs[] = { audiobuf.get() };
     int32_t *bufs2[] = { audiobuf2.get() };
     filter_.process(bufs, filter_control_, filter_control_, bufs2);
+    int64_t t_output = DspLoad::Now();
+    dsp_load_.Add(kDspFilter, t_output - t_filter);
     int jmax = n_samples - i;
     for (int j = 0; j < N; ++j) {
       int32_t val = audiobuf2.get()[j] >> 4;
@@ -277,6 +377,9 @@ void SynthUnit::GetSamples(int n_samples, int16_t *buffer) {
         extra_buf_[j - jmax] = clip_val;
       }
     }
+    t = DspLoad::Now();
+    dsp_load_.Add(kDspOutput, t - t_output);
   }
   extra_buf_size_ = i - n_samples;
+  dsp_load_.EndCallback();
 }
@@ -19,30 +19,68 @@
 #include "lfo.h"
 #include "ringbuffer.h"
 #include "resofilter.h"
+#include "dsp_load.h"
 
 struct ActiveNote {
   int midi_note;
   bool keydown;
   bool sustained;
   bool live;
+  uint32_t serial;  // order of the key-downs, to find the oldest note
   Dx7Note *dx7_note;
 };
 
+// Which voice a key-down takes when all voices are sounding. Released
+// voices are always taken before sustained ones, and those before held ones.
+enum StealPolicy {
+  kStealOldest,  // the voice with the earliest key-down
+  kStealQuietest,  // the voice with the lowest carrier envelope
+  kStealSameNote,  // a voice playing the same key, even if others are free,
+                   // otherwise the oldest
+  kStealPolicies
+};
+
 class SynthUnit {
  public:
   static void Init(double sample_rate);
 
-  explicit SynthUnit(RingBuffer *ring_buffer);
+  // Plays the channel messages of the channels set in channel_mask and
+  // skips the others.
+  explicit SynthUnit(RingBuffer *ring_buffer, uint16_t channel_mask = 0xffff);
 
   void GetSamples(int n_samples, int16_t *buffer);
+
+  // Time spent in the sections of GetSamples, readable from any thread.
+  DspLoad *dsp_load() { return &dsp_load_; }
+
+  // Frames rendered since the last MIDI input or sounding note, readable from
+  // any thread.
+  int32_t idle_frames() const { return idle_frames_; }
+
+  // Voices rendered in the latest block, readable from any thread.
+  int active_voices() const { return active_voices_; }
+
+  // Sets the number of voices key-downs may use, from any thread. Voices
+  // above a lowered limit play on until they are released and decay.
+  // Returns the limit clamped to 1..max_active_notes.
+  int SetPolyphony(int polyphony);
+
+  // Sets the StealPolicy, from any thread.
+  void SetStealPolicy(int policy);
+
+  // Renders the voices with Dx7Note::compute_batch rather than one by one,
+  // from any thread. The output is the same.
+  void SetBatchVoices(bool batch) { batch_voices_ = batch; }
+
+  static const int max_active_notes = 32;
  private:
   void TransferInput();
 
   void ConsumeInput(int n_input_bytes);
 
-  // Choose a note for a new key-down, returns note number, or -1 if
-  // none available.
-  int AllocateNote();
+  // Choose a note for a new key-down, returns note number. Steals a
+  // sounding note if all of them are in use.
+  int AllocateNote(int midi_note);
 
   // zero-based
   void ProgramChange(int p);
@@ -52,9 +90,13 @@ class SynthUnit {
   int ProcessMidiMessage(const uint8_t *buf, int buf_size);
 
   RingBuffer *ring_buffer_;
-  static const int max_active_notes = 16;
+  uint16_t channel_mask_;
   ActiveNote active_note_[max_active_notes];
   int current_note_;
+  uint32_t note_serial_;
+  volatile int polyphony_;
+  volatile int steal_policy_;
+  volatile bool batch_voices_;
   uint8_t input_buffer_[8192];
   size_t input_buffer_index_;
 
@@ -76,4 +118,11 @@ class SynthUnit {
   // Extra buffering for when GetSamples wants a buffer not a multiple of N
   int16_t extra_buf_[N];
   int extra_buf_size_;
+
+  DspLoad dsp_load_;
+
+  // saturates instead of wrapping around
+  static const int32_t max_idle_frames = 1 << 30;
+  volatile int32_t idle_frames_;
+  volatile int active_voices_;
 };
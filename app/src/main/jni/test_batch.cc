@@ -0,0 +1,191 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+// Checks that Dx7Note::compute_batch adds exactly what compute() adds for
+// each note, and times both.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "synth.h"
+#include "freqlut.h"
+#include "exp2.h"
+#include "sin.h"
+#include "lfo.h"
+#include "pitchenv.h"
+#include "patch.h"
+#include "controllers.h"
+#include "dx7note.h"
+#include "simd.h"
+
+static const int kNotes = 8;
+
+static char patches[32][156];
+
+double now() {
+  struct timespec tp;
+  clock_gettime(CLOCK_MONOTONIC, &tp);
+  return tp.tv_sec + 1e-9 * tp.tv_nsec;
+}
+
+bool load_rom(const char *path) {
+  FILE *f = fopen(path, "rb");
+  if (f == NULL) {
+    return false;
+  }
+  char syx[4104];
+  size_t n = fread(syx, 1, sizeof(syx), f);
+  fclose(f);
+  if (n != sizeof(syx)) {
+    return false;
+  }
+  for (int i = 0; i < 32; i++) {
+    UnpackPatch(syx + 6 + 128 * i, patches[i]);
+  }
+  return true;
+}
+
+// Notes of neighbouring patches, so that some share an algorithm and some
+// don't.
+void init_notes(Dx7Note *notes, int first_patch) {
+  for (int i = 0; i < kNotes; i++) {
+    notes[i].init(patches[(first_patch + i % 3) % 32], 48 + 5 * i, 64 + 8 * i);
+  }
+}
+
+// Renders both ways, the keys going up after a while so that the operators
+// decay below the level FmCore skips them at. Returns the samples that differ.
+int compare(int first_patch) {
+  Dx7Note single[kNotes];
+  Dx7Note batched[kNotes];
+  init_notes(single, first_patch);
+  init_notes(batched, first_patch);
+  Lfo lfo;
+  lfo.reset(patches[first_patch] + 137);
+  lfo.keydown();
+  Controllers controllers;
+  controllers.values_[kControllerPitch] = 0x2000;
+  int errors = 0;
+  for (int block = 0; block < 3000; block++) {
+    if (block == 500 || block == 1000) {
+      for (int i = block == 500 ? 0 : 1; i < kNotes; i += 2) {
+        single[i].keyup();
+        batched[i].keyup();
+      }
+    }
+    controllers.values_[kControllerPitch] = 0x2000 + (block % 200) * 20;
+    int32_t lfo_val = lfo.getsample();
+    int32_t lfo_delay = lfo.getdelay();
+    int32_t buf1[N];
+    int32_t buf2[N];
+    Dx7Note *notes[kNotes];
+    for (int j = 0; j < N; j++) {
+      buf1[j] = 0;
+      buf2[j] = 0;
+    }
+    for (int i = 0; i < kNotes; i++) {
+      single[i].compute(buf1, lfo_val, lfo_delay, &controllers);
+      notes[i] = &batched[i];
+    }
+    Dx7Note::compute_batch(notes, kNotes, buf2, lfo_val, lfo_delay,
+      &controllers);
+    for (int j = 0; j < N; j++) {
+      if (buf1[j] != buf2[j]) {
+        errors++;
+      }
+    }
+  }
+  return errors;
+}
+
+// ns per note and block, for chords of kNotes notes struck every 200 blocks
+double bench(int patch, bool batch) {
+  Dx7Note notes[kNotes];
+  Controllers controllers;
+  controllers.values_[kControllerPitch] = 0x2000;
+  const int blocks = 40000;
+  int32_t buf[N];
+  int64_t sum = 0;
+  double start = now();
+  for (int block = 0; block < blocks; block++) {
+    if (block % 200 == 0) {
+      for (int i = 0; i < kNotes; i++) {
+        notes[i].init(patches[patch], 48 + 5 * i, 100);
+      }
+    } else if (block % 200 == 150) {
+      for (int i = 0; i < kNotes; i++) {
+        notes[i].keyup();
+      }
+    }
+    for (int j = 0; j < N; j++) {
+      buf[j] = 0;
+    }
+    if (batch) {
+      Dx7Note *ptrs[kNotes];
+      for (int i = 0; i < kNotes; i++) {
+        ptrs[i] = &notes[i];
+      }
+      Dx7Note::compute_batch(ptrs, kNotes, buf, 0, 0, &controllers);
+    } else {
+      for (int i = 0; i < kNotes; i++) {
+        notes[i].compute(buf, 0, 0, &controllers);
+      }
+    }
+    sum += buf[block % N];
+  }
+  double elapsed = now() - start;
+  if (sum == 1) {
+    printf("\n");  // to make sure it gets used
+  }
+  return elapsed * 1e9 / blocks / kNotes;
+}
+
+int main(int argc, char **argv) {
+  const char *rom = argc > 1 ? argv[1] : "../res/raw/rom1a.syx";
+  if (!load_rom(rom)) {
+    printf("usage: test_batch [rom1a.syx]\n");
+    return 1;
+  }
+  double sample_rate = 44100.0;
+  Freqlut::init(sample_rate);
+  Exp2::init();
+  Sin::init();
+  Lfo::init(sample_rate);
+  PitchEnv::init(sample_rate);
+
+  Simd::Level best = Simd::level();
+  int failures = 0;
+  for (int l = 0; l < Simd::kLevels; l++) {
+    Simd::Level level = (Simd::Level)l;
+    if (!Simd::set_level(level)) continue;
+    int errors = 0;
+    for (int patch = 0; patch < 32; patch++) {
+      errors += compare(patch);
+    }
+    printf("%s: %d samples differ\n", Simd::name(level), errors);
+    if (errors > 0) failures++;
+    for (int patch = 0; patch < 32; patch += 10) {
+      double single = bench(patch, false);
+      double batched = bench(patch, true);
+      printf("  patch %d: %.0f ns per note and block, batched %.0f (%.2fx)\n",
+        patch + 1, single, batched, single / batched);
+    }
+  }
+  Simd::set_level(best);
+  return failures;
+}
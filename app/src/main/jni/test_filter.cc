@@ -113,6 +113,11 @@ void benchfir(int size, int experiment) {
     case 5:
       f = new SseFirFilter(kernel, size);
       break;
+#endif
+#ifdef HAVE_NEON_INTRINSICS
+    case 6:
+      f = new NeonIntrinsicsFirFilter(kernel, size);
+      break;
 #endif
   }
 
@@ -139,13 +144,16 @@ void runfirbench() {
   printf("set style data linespoints\n"
     "set xlabel 'FIR kernel size'\n"
     "set ylabel 'ns per sample'\n"
-    "plot '-' title 'scalar', '-' title '4x4 block', '-' title 'fixed16', '-' title 'fixed16 mirror', '-' title 'half rate'\n");
-  for (int experiment = 0; experiment < 6; experiment++) {
+    "plot '-' title 'scalar', '-' title '4x4 block', '-' title 'fixed16', '-' title 'fixed16 mirror', '-' title 'half rate', '-' title 'sse', '-' title 'neon intrinsics'\n");
+  for (int experiment = 0; experiment < 7; experiment++) {
 #ifndef HAVE_NEON
     if (experiment >= 1 && experiment <= 4) continue;
 #endif
 #ifndef __SSE2__
     if (experiment == 5) continue;
+#endif
+#ifndef HAVE_NEON_INTRINSICS
+    if (experiment == 6) continue;
 #endif
     for (int i = 16; i <= 256; i += 16) {
       benchfir(i, experiment);
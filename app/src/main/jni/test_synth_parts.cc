@@ -0,0 +1,153 @@
+/*
+ *    Copyright (C) 2017 Andreas Soehlke
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+// Checks that SynthParts renders the same samples with the parts on helper
+// threads as on the calling thread, and that the polyphony leaves a chord to
+// the accompaniment part.
+
+#include <stdio.h>
+
+#include "synth_parts.h"
+
+static const int kParts = 2;
+
+// Chords on both parts, some of them released, in callbacks of changing
+// sizes so that the blocks of the parts are split at different frames.
+void play(RingBuffer *input, int step) {
+  int channel = step % kParts;
+  uint8_t msg[3];
+  msg[0] = (step % 3 == 2 ? 0x80 : 0x90) | channel;
+  msg[1] = 48 + (step * 7) % 36;
+  msg[2] = 100;
+  input->Write(msg, 3);
+}
+
+int compare() {
+  RingBuffer input_threaded;
+  RingBuffer input_inline;
+  SynthParts threaded(&input_threaded, kParts, true);
+  SynthParts inlined(&input_inline, kParts, false);
+  int errors = 0;
+  int16_t buf1[2000];
+  int16_t buf2[2000];
+  for (int step = 0; step < 400; step++) {
+    play(&input_threaded, step);
+    play(&input_inline, step);
+    int n_samples = 64 + (step * 97) % 1900;
+    threaded.GetSamples(n_samples, buf1);
+    inlined.GetSamples(n_samples, buf2);
+    for (int j = 0; j < n_samples; j++) {
+      if (buf1[j] != buf2[j]) {
+        errors++;
+      }
+    }
+  }
+  return errors;
+}
+
+// Returns the number of failed checks.
+int check_priority() {
+  RingBuffer input;
+  SynthParts parts(&input, kParts, true);
+  int16_t buf[256];
+  // a caller that is not real-time keeps the helpers
+  parts.GetSamples(256, buf);
+  if (!parts.threaded()) {
+    printf("threaded: helpers dropped for a SCHED_OTHER caller\n");
+    return 1;
+  }
+  return 0;
+}
+
+// Keys down on a channel, one render after each.
+void press(SynthParts *parts, RingBuffer *input, int channel, int n_keys) {
+  int16_t buf[256];
+  for (int key = 0; key < n_keys; key++) {
+    uint8_t msg[3] = { (uint8_t)(0x90 | channel), (uint8_t)(48 + key), 100 };
+    input->Write(msg, 3);
+    parts->GetSamples(256, buf);
+  }
+}
+
+// Returns the number of failed checks.
+int check_polyphony() {
+  static const int min_polyphony = 1 + SynthParts::part_voices * (kParts - 1);
+  static const int cases[][2] = {
+    // requested, set
+    { 16, 16 },
+    { 7, 7 },
+    { 1, min_polyphony },
+    { 100, SynthUnit::max_active_notes },
+  };
+  int failures = 0;
+  {
+    RingBuffer input;
+    SynthParts parts(&input, kParts, false);
+    for (size_t i = 0; i < sizeof(cases) / sizeof(cases[0]); i++) {
+      int set = parts.SetPolyphony(cases[i][0]);
+      if (set != cases[i][1]) {
+        printf("polyphony %d: set %d, expected %d\n", cases[i][0], set,
+          cases[i][1]);
+        failures++;
+      }
+    }
+  }
+
+  // at the default of 16 the accompaniment keeps a chord, the melody gets
+  // the other 13 voices
+  {
+    RingBuffer input;
+    SynthParts parts(&input, kParts, false);
+    parts.SetPolyphony(16);
+    press(&parts, &input, 1, 8);
+    if (parts.active_voices() != SynthParts::part_voices) {
+      printf("polyphony 16: %d accompaniment voices sound\n",
+        parts.active_voices());
+      failures++;
+    }
+    press(&parts, &input, 0, 20);
+    if (parts.active_voices() != 16) {
+      printf("polyphony 16: %d voices sound\n", parts.active_voices());
+      failures++;
+    }
+  }
+
+  // at the minimum a chord plus one melody voice sound
+  {
+    RingBuffer input;
+    SynthParts parts(&input, kParts, false);
+    parts.SetPolyphony(min_polyphony);
+    press(&parts, &input, 1, 3);
+    press(&parts, &input, 0, 8);
+    if (parts.active_voices() != min_polyphony) {
+      printf("polyphony %d: %d voices sound\n", min_polyphony,
+        parts.active_voices());
+      failures++;
+    }
+  }
+  return failures;
+}
+
+int main(int argc, char **argv) {
+  SynthUnit::Init(44100.0);
+  int failures = 0;
+  int errors = compare();
+  printf("threaded: %d samples differ\n", errors);
+  if (errors > 0) failures++;
+  failures += check_priority();
+  failures += check_polyphony();
+  return failures;
+}
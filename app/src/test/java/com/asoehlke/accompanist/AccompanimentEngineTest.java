@@ -0,0 +1,243 @@
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.midi.MidiAdapter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the accompaniment engine in virtual time with a stand-in model, so the timing
+ * of the ticks and of the accompanying notes can be checked without a device.
+ */
+public class AccompanimentEngineTest {
+
+    private static final long MS = 1000000L;
+
+    // plays a triad below the melody, struck with it
+    static class TriadAccompanist extends AccompanistAdapter {
+        private List<Note> last = new ArrayList<Note>();
+
+        public List<Note> getNextVoices(Note melodyNote) {
+            last = new ArrayList<Note>();
+            last.add(new Note(melodyNote.getKey() - 5, melodyNote.getStrike()));
+            last.add(new Note(melodyNote.getKey() - 8, melodyNote.getStrike()));
+            last.add(new Note(melodyNote.getKey() - 24, melodyNote.getStrike()));
+            return last;
+        }
+
+        public List<Note> holdVoices(Note melodyNote) {
+            return last;
+        }
+
+        public void reset() {
+        }
+
+        public void close() {
+        }
+    }
+
+    // the notes the engine sends on, with their virtual time
+    private static class Recorder extends MidiAdapter {
+        final VirtualScheduler clock;
+        final List<long[]> noteOns = new ArrayList<long[]>();
+        int sounding = 0;
+
+        Recorder(VirtualScheduler clock) {
+            this.clock = clock;
+        }
+
+        public void onNoteOn(int channel, int note, int velocity) {
+            noteOns.add(new long[] {clock.nanoTime(), note});
+            sounding++;
+        }
+
+        public void onNoteOff(int channel, int note, int velocity) {
+            sounding--;
+        }
+    }
+
+    @Test
+    public void accompaniesEveryMelodyNote() throws Exception {
+        VirtualScheduler scheduler = new VirtualScheduler(1000 * MS);
+        Recorder recorder = new Recorder(scheduler);
+        AccompanimentEngine engine = new AccompanimentEngine(recorder, scheduler,
+                scheduler.delayingExecutor(5 * MS), AccompanistLog.SILENT);
+        engine.setTickClock(scheduler);
+        engine.setAccompanist(new TriadAccompanist());
+
+        int[] melody = {67, 69, 71, 72, 74, 72, 71, 69};
+        long beat = 600 * MS;  // 100 bpm
+        long time = scheduler.nanoTime() + beat;
+        for (int key : melody) {
+            scheduler.runUntil(time);
+            engine.onNoteOn(0, key, 100);
+            scheduler.runUntil(time + beat * 9 / 10);
+            engine.onNoteOff(0, key, 0);
+            time += beat;
+        }
+        // the phrase ends on the next silent beat
+        scheduler.advance(3000 * MS);
+
+        // each melody note and the three voices struck with it
+        assertEquals(melody.length * 4, recorder.noteOns.size());
+        for (int i = 0; i < recorder.noteOns.size(); i += 4) {
+            long melodyTime = recorder.noteOns.get(i)[0];
+            int key = (int) recorder.noteOns.get(i)[1];
+            for (int v = 1; v < 4; v++) {
+                long[] voice = recorder.noteOns.get(i + v);
+                long latency = voice[0] - melodyTime;
+                assertTrue(voice[1] < key);
+                // on the tick of the note or the one after
+                assertTrue(key + " after " + latency / MS + " ms", latency <= beat / 4 + 30 * MS);
+            }
+        }
+        assertEquals("all notes off after the phrase", 0, recorder.sounding);
+        TickStats stats = engine.getTickStats();
+        assertEquals(0, stats.getOverruns());
+        // timed in virtual time: the model answers at once, 5 ms after the tick
+        assertEquals(stats.getOnTime(), stats.getTickLatency().getCount());
+        assertEquals(5 * MS, stats.getTickLatency().getMax());
+        assertEquals(5 * MS, stats.getTickLatency().getPercentile(0.5));
+        assertEquals(0, stats.getInferenceLatency().getMax());
+        assertEquals(100, engine.getTempoTracker().getBpm(), 5);
+        engine.close();
+    }
+
+    @Test
+    public void onsetWindowCatchesLateOnBeatNotes() throws Exception {
+        long beat = 600 * MS;  // 100 bpm
+        int last = 7;
+        // on the grid time the tick runs before a note on the beat, and before the last
+        // note played 10 ms late, so they wait for the next tick
+        long[] onGrid = playOnBeats(0, 10 * MS, beat);
+        for (int i = 4; i <= last; i++)
+            assertTrue(i + ": " + onGrid[i] / MS + " ms", onGrid[i] > beat / 8);
+
+        // with a window of 20 ms they get the tick of their beat
+        long[] window = playOnBeats(20, 10 * MS, beat);
+        for (int i = 4; i < last; i++) {
+            // the tick 20 ms after the beat, and the model's 5 ms
+            assertEquals(25 * MS, window[i]);
+        }
+        // the late note moves the phase of the tracker a little, not by a tick
+        assertTrue(window[last] / MS + " ms", window[last] <= 25 * MS);
+    }
+
+    // plays eight melody notes on the beats, the last one late after its beat, and
+    // returns the time from each melody note to its voices
+    private static long[] playOnBeats(long windowMs, long late, long beat) {
+        VirtualScheduler scheduler = new VirtualScheduler(1000 * MS);
+        Recorder recorder = new Recorder(scheduler);
+        AccompanimentEngine engine = new AccompanimentEngine(recorder, scheduler,
+                scheduler.delayingExecutor(5 * MS), AccompanistLog.SILENT);
+        engine.setTickClock(scheduler);
+        engine.setOnsetWindow(windowMs);
+        engine.setAccompanist(new TriadAccompanist());
+
+        int[] melody = {67, 69, 71, 72, 74, 72, 71, 69};
+        long time = scheduler.nanoTime() + beat;
+        for (int i = 0; i < melody.length; i++) {
+            scheduler.runUntil(i == melody.length - 1 ? time + late : time);
+            engine.onNoteOn(0, melody[i], 100);
+            scheduler.runUntil(time + beat * 9 / 10);
+            engine.onNoteOff(0, melody[i], 0);
+            time += beat;
+        }
+        scheduler.advance(3000 * MS);
+        engine.close();
+
+        assertEquals(melody.length * 4, recorder.noteOns.size());
+        long[] latencies = new long[melody.length];
+        for (int i = 0; i < melody.length; i++)
+            latencies[i] = recorder.noteOns.get(4 * i + 1)[0] - recorder.noteOns.get(4 * i)[0];
+        return latencies;
+    }
+
+    @Test
+    public void slowModelMissesDeadlines() throws Exception {
+        VirtualScheduler scheduler = new VirtualScheduler(1000 * MS);
+        Recorder recorder = new Recorder(scheduler);
+        AccompanimentEngine engine = new AccompanimentEngine(recorder, scheduler,
+                scheduler.delayingExecutor(80 * MS), AccompanistLog.SILENT);
+        engine.setTickClock(scheduler);
+        engine.setAccompanist(new TriadAccompanist());
+
+        long time = scheduler.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            scheduler.runUntil(time);
+            engine.onNoteOn(0, 60 + i, 100);
+            scheduler.runUntil(time + 500 * MS);
+            engine.onNoteOff(0, 60 + i, 0);
+            time += 600 * MS;
+        }
+        scheduler.advance(3000 * MS);
+
+        TickStats stats = engine.getTickStats();
+        assertTrue(stats.toString(), stats.getLate() > 0);
+        assertEquals(stats.toString(), 0, stats.getOnTime());
+        assertEquals(0, recorder.sounding);
+        engine.close();
+    }
+
+    @Test
+    public void passesTuningToAnyAccompanist() throws Exception {
+        VirtualScheduler scheduler = new VirtualScheduler(1000 * MS);
+        AccompanimentEngine engine = new AccompanimentEngine(new Recorder(scheduler), scheduler,
+                scheduler.delayingExecutor(5 * MS), AccompanistLog.SILENT);
+        final int[] interval = {0};
+        final boolean[] tracking = {false};
+        engine.setSustainInferenceInterval(2);
+        engine.setAccompanist(new TriadAccompanist() {
+            public void setSustainInferenceInterval(int ticks) {
+                interval[0] = ticks;
+            }
+
+            public void setDivergenceTracking(boolean enabled) {
+                tracking[0] = enabled;
+            }
+        });
+        assertEquals(2, interval[0]);
+
+        // later changes go through the inference executor
+        engine.setSustainInferenceInterval(4);
+        engine.setDivergenceTracking(true);
+        assertEquals(2, interval[0]);
+        scheduler.advance(10 * MS);
+        assertEquals(4, interval[0]);
+        assertTrue(tracking[0]);
+        engine.close();
+    }
+
+    @Test
+    public void suspendStopsTicksOfStuckMelody() throws Exception {
+        VirtualScheduler scheduler = new VirtualScheduler(1000 * MS);
+        Recorder recorder = new Recorder(scheduler);
+        AccompanimentEngine engine = new AccompanimentEngine(recorder, scheduler,
+                scheduler.delayingExecutor(5 * MS), AccompanistLog.SILENT);
+        engine.setTickClock(scheduler);
+        engine.setAccompanist(new TriadAccompanist());
+
+        // no note-off, the engine keeps ticking
+        engine.onNoteOn(0, 67, 100);
+        scheduler.advance(5000 * MS);
+        assertTrue(scheduler.getPendingCount() > 0);
+
+        engine.suspendTicks();
+        scheduler.advance(5000 * MS);
+        assertEquals(0, scheduler.getPendingCount());
+        assertEquals("only the melody sounds", 1, recorder.sounding);
+
+        // the next note starts a new phrase
+        int accompanied = recorder.noteOns.size();
+        engine.onNoteOn(0, 69, 100);
+        scheduler.advance(300 * MS);
+        engine.onNoteOff(0, 69, 0);
+        scheduler.advance(3000 * MS);
+        assertEquals(accompanied + 4, recorder.noteOns.size());
+        engine.close();
+    }
+}
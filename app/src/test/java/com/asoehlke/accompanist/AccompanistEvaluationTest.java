@@ -0,0 +1,116 @@
+package com.asoehlke.accompanist;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the evaluation harness with a stand-in model that harmonises in parallel
+ * intervals and burns some CPU per tick, and prints the scaling across threads.
+ */
+public class AccompanistEvaluationTest {
+
+    private static final int[] INTERVALS = {-4, -9, -24};
+
+    // a model that plays fixed intervals below the melody
+    private static class IntervalAccompanist extends AccompanistAdapter {
+        private final int octaveShift;
+        private double work = 1;
+
+        IntervalAccompanist(int octaveShift) {
+            this.octaveShift = octaveShift;
+        }
+
+        public List<Note> getNextVoices(Note melodyNote) {
+            // stands in for the inference time
+            for (int i = 0; i < 20000; i++)
+                work = Math.sqrt(work + i);
+            List<Note> voices = new ArrayList<Note>();
+            for (int interval : INTERVALS)
+                voices.add(new Note(melodyNote.getKey() + interval + octaveShift,
+                        melodyNote.getStrike()));
+            return voices;
+        }
+
+        public List<Note> holdVoices(Note melodyNote) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void reset() {
+        }
+
+        public void close() {
+        }
+    }
+
+    @Test
+    public void scalesAcrossThreads() throws Exception {
+        List<Chorale> corpus = corpus(64);
+        final AtomicInteger created = new AtomicInteger();
+        AccompanistEvaluation evaluation = new AccompanistEvaluation(
+                new AccompanistEvaluation.Factory() {
+                    public Accompanist create() {
+                        created.incrementAndGet();
+                        return new IntervalAccompanist(0);
+                    }
+                });
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<AccompanistEvaluation.Run> runs = evaluation.measureScaling(corpus,
+                new int[] {1, 2, Math.max(4, cores)});
+        System.out.println(AccompanistEvaluation.report(runs));
+
+        assertEquals(1 + 2 + Math.max(4, cores), created.get());
+        for (AccompanistEvaluation.Run run : runs) {
+            AccompanistEvaluation.Scores scores = run.getScores();
+            assertEquals(64, scores.getChorales());
+            assertEquals(runs.get(0).getScores().getTicks(), scores.getTicks());
+            assertEquals(1, scores.getKeyAccuracy(), 0);
+            assertEquals(1, scores.getStrikeF1(), 0);
+        }
+        if (cores >= 2)
+            assertTrue(runs.get(1).getTicksPerSecond() > 1.3 * runs.get(0).getTicksPerSecond());
+    }
+
+    @Test
+    public void scoresWrongOctaves() throws Exception {
+        AccompanistEvaluation evaluation = new AccompanistEvaluation(
+                new AccompanistEvaluation.Factory() {
+                    public Accompanist create() {
+                        return new IntervalAccompanist(12);
+                    }
+                });
+        AccompanistEvaluation.Scores scores =
+                evaluation.evaluate(corpus(4).iterator(), 2).getScores();
+        assertEquals(0, scores.getKeyAccuracy(), 0);
+        assertEquals(1, scores.getPitchClassAccuracy(), 0);
+    }
+
+    // random quarter and eighth melodies with the intervals as reference voices
+    private static List<Chorale> corpus(int size) {
+        Random random = new Random(3);
+        List<Chorale> chorales = new ArrayList<Chorale>();
+        for (int c = 0; c < size; c++) {
+            List<Note> melody = new ArrayList<Note>();
+            while (melody.size() < 64) {
+                int key = 62 + random.nextInt(12);
+                int length = random.nextBoolean() ? 4 : 2;
+                for (int i = 0; i < length; i++)
+                    melody.add(new Note(key, i == 0));
+            }
+            Note[][] voices = new Note[melody.size()][Chorale.ACCOMPANYING_VOICES];
+            for (int tick = 0; tick < voices.length; tick++) {
+                Note note = melody.get(tick);
+                for (int v = 0; v < INTERVALS.length; v++)
+                    voices[tick][v] = new Note(note.getKey() + INTERVALS[v], note.getStrike());
+            }
+            chorales.add(new Chorale("chorale " + c,
+                    melody.toArray(new Note[melody.size()]), voices));
+        }
+        return chorales;
+    }
+}
@@ -0,0 +1,110 @@
+package com.asoehlke.accompanist;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Load test of the accompanist server with simulated players over loopback. The
+ * stand-in model takes a fixed time per run plus a little per session, like a batched
+ * graph would, and answers with the number of ticks its session has seen, so mixed up
+ * states show up as wrong voices.
+ */
+public class AccompanistServerTest {
+
+    private static final int PLAYERS = 200;
+    private static final int TICKS = 50;
+
+    private static class CountingModel implements BatchModel {
+        public int getStateSize() {
+            return 1;
+        }
+
+        public int getOutputSize() {
+            return 6;
+        }
+
+        public void run(int count, int[] keys, boolean[] strikes, float[][] states,
+                        float[][] results) {
+            long end = System.nanoTime() + 500000 + count * 10000;
+            while (System.nanoTime() < end) {
+                // the fixed cost of a model run
+            }
+            for (int i = 0; i < count; i++) {
+                states[i][0]++;
+                results[i][0] = keys[i] - 1;
+                results[i][1] = states[i][0] - 1;
+                results[i][2] = 0;
+                results[i][3] = strikes[i] ? 1 : 0;
+                results[i][4] = 0;
+                results[i][5] = 0;
+            }
+        }
+    }
+
+    @Test
+    public void batchesConcurrentPlayers() throws Exception {
+        AccompanistServer server = new AccompanistServer(new CountingModel(), 0.5f);
+        try {
+            runPlayers(server, server.start(0));
+        } finally {
+            server.close();
+        }
+    }
+
+    private void runPlayers(AccompanistServer server, final int port) throws Exception {
+        ExecutorService players = Executors.newFixedThreadPool(PLAYERS);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        long startTime = System.nanoTime();
+        for (int p = 0; p < PLAYERS; p++) {
+            final int key = 40 + p % 60;
+            results.add(players.submit(new Callable<Integer>() {
+                public Integer call() {
+                    RemoteAccompanist accompanist = new RemoteAccompanist("127.0.0.1", port);
+                    int correct = 0;
+                    for (int tick = 0; tick < TICKS; tick++) {
+                        if (tick == TICKS / 2)
+                            accompanist.reset();
+                        int expected = tick < TICKS / 2 ? tick : tick - TICKS / 2;
+                        List<Note> voices = accompanist.getNextVoices(new Note(key, tick % 4 == 0));
+                        if (voices.size() == 3 && voices.get(0).getKey() == key
+                                && voices.get(0).getStrike() == (tick % 4 == 0)
+                                && voices.get(1).getKey() == expected + 1)
+                            correct++;
+                    }
+                    accompanist.close();
+                    return correct;
+                }
+            }));
+        }
+        int correct = 0;
+        for (Future<Integer> result : results)
+            correct += result.get(60, TimeUnit.SECONDS);
+        long nanos = System.nanoTime() - startTime;
+        players.shutdown();
+
+        System.out.println(server);
+        System.out.println(String.format("%d players, %.0f ticks/s", PLAYERS,
+                PLAYERS * TICKS * 1e9 / nanos));
+        assertEquals(PLAYERS * TICKS, correct);
+        assertEquals(PLAYERS * TICKS, server.getTicks());
+        // one session per run would take 0.5ms per tick and far longer
+        assertTrue("mean batch " + server.getMeanBatchSize(), server.getMeanBatchSize() > 4);
+    }
+
+    @Test
+    public void unreachableServerLeavesMelodyAlone() throws Exception {
+        RemoteAccompanist accompanist = new RemoteAccompanist("127.0.0.1", 1);
+        assertTrue(accompanist.getNextVoices(new Note(60, true)).isEmpty());
+        assertFalse(accompanist.isConnected());
+        assertTrue(accompanist.holdVoices(new Note(60, false)).isEmpty());
+    }
+}
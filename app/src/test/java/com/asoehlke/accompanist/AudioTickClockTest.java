@@ -0,0 +1,177 @@
+package com.asoehlke.accompanist;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the clock with a fake audio callback whose sample clock runs 5% slow against
+ * the system clock, so it shows which of the two the ticks follow.
+ */
+public class AudioTickClockTest {
+
+    private static final long MS = 1000000L;
+    private static final int SAMPLE_RATE = 48000;
+    // 10 ms of audio per callback, rendered every 10.5 ms of system time
+    private static final int FRAMES = 480;
+    private static final long PERIOD = 10500000L;
+
+    // stands in for AndroidGlue and its seqlocked audio clock
+    private static class FakeGlue implements AudioTickClock.Source {
+        final VirtualScheduler system;
+        int sampleRate = SAMPLE_RATE;
+        long frames = 0;
+        long callbackNanos = 0;
+        // reads that collide with a callback updating the clock
+        int collidingReads = 0;
+
+        FakeGlue(VirtualScheduler system) {
+            this.system = system;
+        }
+
+        void callback() {
+            callbackNanos = system.nanoTime();
+            frames += FRAMES;
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        public boolean getAudioClock(long[] clock) {
+            if (callbackNanos == 0)
+                return false;
+            if (collidingReads > 0) {
+                collidingReads--;
+                return false;
+            }
+            clock[0] = frames - FRAMES;
+            clock[1] = callbackNanos;
+            return true;
+        }
+    }
+
+    @Test
+    public void runsOnSystemTimeBeforeFirstCallback() throws Exception {
+        VirtualScheduler system = new VirtualScheduler(1000 * MS);
+        FakeGlue glue = new FakeGlue(system);
+        glue.sampleRate = 0;
+        AudioTickClock clock = new AudioTickClock(glue, system);
+
+        assertEquals(0, clock.nanoTime());
+        system.advance(3 * MS);
+        assertEquals(3 * MS, clock.nanoTime());
+        assertFalse(clock.isAudioDriven());
+
+        // started, but no callback yet
+        glue.sampleRate = SAMPLE_RATE;
+        system.advance(2 * MS);
+        assertEquals(5 * MS, clock.nanoTime());
+        assertFalse(clock.isAudioDriven());
+    }
+
+    @Test
+    public void followsRenderedFrames() throws Exception {
+        VirtualScheduler system = new VirtualScheduler(1000 * MS);
+        FakeGlue glue = new FakeGlue(system);
+        AudioTickClock clock = new AudioTickClock(glue, system);
+        glue.callback();
+        assertEquals(0, clock.nanoTime());
+        assertTrue(clock.isAudioDriven());
+
+        for (int i = 1; i <= 10; i++) {
+            // interpolated between callbacks
+            system.advance(4 * MS);
+            assertEquals((10 * (i - 1) + 4) * MS, clock.nanoTime());
+            system.advance(PERIOD - 4 * MS);
+            glue.callback();
+            assertEquals(10 * i * MS, clock.nanoTime());
+        }
+    }
+
+    @Test
+    public void neverRunsBackwards() throws Exception {
+        VirtualScheduler system = new VirtualScheduler(1000 * MS);
+        FakeGlue glue = new FakeGlue(system);
+        AudioTickClock clock = new AudioTickClock(glue, system);
+        glue.callback();
+        clock.nanoTime();
+
+        // interpolated past the audio time of the next callback
+        system.advance(PERIOD - MS / 10);
+        long ahead = clock.nanoTime();
+        assertEquals(PERIOD - MS / 10, ahead);
+        system.advance(MS / 10);
+        glue.callback();
+        assertEquals(ahead, clock.nanoTime());
+    }
+
+    @Test
+    public void switchesToAudioWithoutJump() throws Exception {
+        VirtualScheduler system = new VirtualScheduler(1000 * MS);
+        FakeGlue glue = new FakeGlue(system);
+        AudioTickClock clock = new AudioTickClock(glue, system);
+        clock.nanoTime();
+        system.advance(50 * MS);
+
+        glue.callback();
+        assertEquals(50 * MS, clock.nanoTime());
+        assertTrue(clock.isAudioDriven());
+        system.advance(PERIOD);
+        glue.callback();
+        assertEquals(60 * MS, clock.nanoTime());
+    }
+
+    @Test
+    public void collidingReadKeepsTheAudioClock() throws Exception {
+        VirtualScheduler system = new VirtualScheduler(1000 * MS);
+        FakeGlue glue = new FakeGlue(system);
+        AudioTickClock clock = new AudioTickClock(glue, system);
+        glue.callback();
+        clock.nanoTime();
+        for (int i = 1; i <= 4; i++) {
+            system.advance(PERIOD);
+            glue.callback();
+            clock.nanoTime();
+        }
+
+        // the read gives up while the callback updates the clock, the previous
+        // callback is interpolated
+        system.advance(3 * MS);
+        glue.collidingReads = 1;
+        assertEquals(43 * MS, clock.nanoTime());
+        assertTrue(clock.isAudioDriven());
+
+        // and the clock stays in phase with the audio
+        system.advance(PERIOD - 3 * MS);
+        glue.callback();
+        assertEquals(50 * MS, clock.nanoTime());
+    }
+
+    @Test
+    public void continuesOnSystemTimeWhileAudioStops() throws Exception {
+        VirtualScheduler system = new VirtualScheduler(1000 * MS);
+        FakeGlue glue = new FakeGlue(system);
+        AudioTickClock clock = new AudioTickClock(glue, system);
+        glue.callback();
+        clock.nanoTime();
+        system.advance(PERIOD);
+        glue.callback();
+        assertEquals(10 * MS, clock.nanoTime());
+
+        // paused: the last callback goes stale
+        system.advance(200 * MS);
+        assertEquals(210 * MS, clock.nanoTime());
+        assertFalse(clock.isAudioDriven());
+
+        // restarted from frame 0, the clock goes on from where it was
+        glue.frames = 0;
+        system.advance(5 * MS);
+        glue.callback();
+        assertEquals(215 * MS, clock.nanoTime());
+        assertTrue(clock.isAudioDriven());
+        system.advance(PERIOD);
+        glue.callback();
+        assertEquals(225 * MS, clock.nanoTime());
+    }
+}
@@ -0,0 +1,100 @@
+package com.asoehlke.accompanist;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Evaluation of the MIDI clock follower on a 24 ppqn clock delivered with USB-like
+ * jitter. Prints the jitter of the received and of the smoothed clock.
+ */
+public class MidiClockFollowerTest {
+
+    // standard deviation of the arrival time of a clock in nanoseconds
+    private static final double JITTER_NANOS = 2e6;
+
+    private static final double[] TEMPOS = {60, 96, 120, 150};
+
+    @Test
+    public void reducesJitter() throws Exception {
+        System.out.println("bpm   followed  jitter raw / smoothed  reduction  max tick error");
+        for (double bpm : TEMPOS) {
+            Random random = new Random(7);
+            MidiClockFollower follower = new MidiClockFollower();
+            double period = 60e9 / (bpm * MidiClockFollower.PULSES_PER_QUARTER);
+            double start = 1e9;
+            follower.onStart();
+            double maxTickError = 0;
+            int pulses = 24 * 64;
+            for (int i = 0; i < pulses; i++) {
+                double exact = start + i * period;
+                long arrival = Math.round(exact + Math.abs(random.nextGaussian()) * JITTER_NANOS);
+                follower.onClock(arrival);
+                // after the settling time the ticks should be where the sender put them
+                if (i > 24 * 8 && i % MidiClockFollower.PULSES_PER_TICK == 0) {
+                    double tick = period * MidiClockFollower.PULSES_PER_TICK;
+                    long next = follower.nextTickTime(Math.round(exact + tick / 2));
+                    double exactNext = exact + tick;
+                    // the jitter only delays, its mean is a constant latency
+                    double latency = JITTER_NANOS * Math.sqrt(2 / Math.PI);
+                    maxTickError = Math.max(maxTickError,
+                            Math.abs(next - exactNext - latency));
+                }
+            }
+            System.out.println(String.format("%5.0f %7.1f  %6.0fus / %6.0fus  %6.1fx  %6.0fus",
+                    bpm, follower.getBpm(),
+                    follower.getRawIntervals().getStandardDeviation() / 1000,
+                    follower.getSmoothedIntervals().getStandardDeviation() / 1000,
+                    follower.getJitterReduction(), maxTickError / 1000));
+
+            assertEquals("tempo at " + bpm, bpm, follower.getBpm(), bpm * 0.005);
+            assertTrue("jitter reduction at " + bpm, follower.getJitterReduction() > 4);
+            assertTrue("tick error at " + bpm, maxTickError < JITTER_NANOS);
+        }
+    }
+
+    @Test
+    public void startStopContinue() throws Exception {
+        MidiClockFollower follower = new MidiClockFollower();
+        long period = 20833333L;  // 120 bpm
+        long time = 1000000000L;
+        // clocks while stopped set the tempo but no grid
+        for (int i = 0; i < 48; i++) {
+            follower.onClock(time);
+            time += period;
+        }
+        assertFalse(follower.isLocked(time));
+        assertEquals(120, follower.getBpm(), 0.1);
+
+        // the first clock after Start is the downbeat
+        follower.onStart();
+        long downbeat = time;
+        for (int i = 0; i < 8; i++) {
+            follower.onClock(time);
+            time += period;
+        }
+        assertTrue(follower.isLocked(time));
+        assertEquals(downbeat + 12 * period, follower.nextTickTime(time), 1000);
+
+        follower.onStop();
+        assertFalse(follower.isLocked(time));
+        // two clocks while stopped do not move the song position
+        follower.onClock(time);
+        time += period;
+        follower.onClock(time);
+        time += period;
+
+        // Continue counts on: 8 pulses played, the next tick is 4 clocks later
+        follower.onContinue();
+        long resumed = time;
+        follower.onClock(time);
+        time += period;
+        assertTrue(follower.isLocked(time));
+        assertEquals(resumed + 4 * period, follower.nextTickTime(time), 1000);
+
+        // the clock goes away
+        assertFalse(follower.isLocked(time + 500000000L));
+    }
+}
@@ -0,0 +1,76 @@
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.midi.MidiEvent;
+import com.levien.synthesizer.core.midi.MidiFile;
+import com.levien.synthesizer.core.midi.MidiTrack;
+import com.levien.synthesizer.core.midi.MidiWriter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exports a session accompanied in virtual time and reads the written file back.
+ */
+public class PerformanceExportTest {
+
+    private static final long MS = 1000000L;
+
+    // time and key of the note-ons of a track
+    private static List<long[]> noteOns(MidiTrack track) {
+        List<long[]> notes = new ArrayList<long[]>();
+        long time = 0;
+        for (int i = 0; i < track.getEventCount(); i++) {
+            MidiEvent event = track.getEvent(i);
+            time += event.getDeltaTime();
+            byte[] message = event.getMessage();
+            if ((message[0] & 0xF0) == 0x90 && message[2] > 0)
+                notes.add(new long[] {time, message[1]});
+        }
+        return notes;
+    }
+
+    @Test
+    public void writesMelodyAndVoiceTracks() throws Exception {
+        SessionReplay replay = new SessionReplay(SessionReplayTest.playLive(2, 5 * MS));
+        SessionLog session = replay.run(new AccompanimentEngineTest.TriadAccompanist());
+        MidiFile export = PerformanceExport.toMidiFile(session, replay.getTempoTracker());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MidiWriter.writeMidiFile(bytes, export);
+        MidiFile file = new MidiFile(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(5, file.getTrackCount());
+        assertEquals(PerformanceExport.MIDI_TICKS_PER_BEAT, file.getHeader().getTicksPerBeat());
+
+        // time signature and tempo of the grid, played at 100 bpm
+        byte[] tempo = file.getTrack(0).getEvent(1).getMessage();
+        assertEquals(0x51, tempo[1]);
+        int microsPerBeat = (tempo[3] & 0xff) << 16 | (tempo[4] & 0xff) << 8 | (tempo[5] & 0xff);
+        assertEquals(600000, microsPerBeat, 30000);
+
+        List<long[]> melody = noteOns(file.getTrack(1));
+        assertEquals(22, melody.size());
+        // the melody stays on the beat within a 16th
+        for (long[] note : melody) {
+            long offBeat = note[0] % PerformanceExport.MIDI_TICKS_PER_BEAT;
+            assertTrue(note[0] + " off the beat",
+                    Math.min(offBeat, PerformanceExport.MIDI_TICKS_PER_BEAT - offBeat)
+                            < PerformanceExport.MIDI_TICKS_PER_BEAT / 4);
+        }
+        // each voice on its own track, the triad below the melody
+        int[] intervals = {5, 8, 24};
+        for (int voice = 0; voice < 3; voice++) {
+            List<long[]> notes = noteOns(file.getTrack(2 + voice));
+            assertEquals("voice " + voice, melody.size(), notes.size());
+            for (int i = 0; i < notes.size(); i++) {
+                assertEquals(melody.get(i)[1] - intervals[voice], notes.get(i)[1]);
+                assertTrue(notes.get(i)[0] >= melody.get(i)[0]);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.asoehlke.accompanist;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PhraseCacheTest {
+
+    private static final int OUTPUTS = 2;
+    private static final int STATES = 3;
+
+    @Test
+    public void replaysStoredPhrase() throws Exception {
+        PhraseCache cache = new PhraseCache(10, OUTPUTS, STATES, "model");
+        play(cache, 60, 62, 64);
+        cache.reset();
+        assertTrue(hit(cache, 60));
+        float[] outputs = new float[OUTPUTS];
+        float[] states = new float[STATES];
+        assertTrue(cache.advance(62, true, outputs, states));
+        assertEquals(62, outputs[0], 0);
+        assertEquals(62 * 10, states[STATES - 1], 0);
+        assertFalse(hit(cache, 65));
+        assertEquals(2, cache.getHits());
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedPrefix() throws Exception {
+        PhraseCache cache = new PhraseCache(4, OUTPUTS, STATES, "model");
+        play(cache, 60, 62);
+        play(cache, 70, 72);
+        // phrase 60 62 is used again, so 70 72 is the oldest
+        cache.reset();
+        assertTrue(hit(cache, 60));
+        assertTrue(hit(cache, 62));
+        play(cache, 80);
+
+        assertEquals(4, cache.size());
+        assertEquals(1, cache.getEvictions());
+        cache.reset();
+        assertTrue(hit(cache, 60));
+        assertTrue(hit(cache, 62));
+        cache.reset();
+        assertTrue(hit(cache, 70));
+        assertFalse(hit(cache, 72));
+    }
+
+    @Test
+    public void evictsContinuationsBeforeTheirBeginning() throws Exception {
+        PhraseCache cache = new PhraseCache(3, OUTPUTS, STATES, "model");
+        play(cache, 60, 62);
+        play(cache, 70);
+        // 60 was stored before 70, but its continuation 62 is the least recently used
+        play(cache, 80);
+
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictions());
+        cache.reset();
+        assertTrue(hit(cache, 60));
+        assertFalse(hit(cache, 62));
+    }
+
+    @Test
+    public void evictingAPrefixDropsItsContinuations() throws Exception {
+        PhraseCache cache = new PhraseCache(3, OUTPUTS, STATES, "model");
+        play(cache, 60, 62);
+        play(cache, 70);
+        // a new result for 60 replaces the old one and everything after it
+        cache.reset();
+        cache.store(60, true, new float[OUTPUTS], new float[STATES]);
+
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getEvictions());
+        assertFalse(hit(cache, 62));
+    }
+
+    @Test
+    public void savesAndLoads() throws Exception {
+        PhraseCache cache = new PhraseCache(10, OUTPUTS, STATES, "model");
+        play(cache, 60, 62, 64);
+        play(cache, 60, 65);
+        byte[] file = save(cache);
+
+        PhraseCache loaded = new PhraseCache(10, OUTPUTS, STATES, "model");
+        loaded.load(new ByteArrayInputStream(file));
+        assertEquals(4, loaded.size());
+        float[] outputs = new float[OUTPUTS];
+        float[] states = new float[STATES];
+        for (int key : new int[] {60, 62, 64}) {
+            assertTrue(loaded.advance(key, true, outputs, states));
+            assertEquals(key, outputs[0], 0);
+            assertEquals(key * 10, states[STATES - 1], 0);
+        }
+        loaded.reset();
+        assertTrue(hit(loaded, 60));
+        assertTrue(hit(loaded, 65));
+    }
+
+    @Test
+    public void loadEvictsBeyondCapacity() throws Exception {
+        PhraseCache cache = new PhraseCache(10, OUTPUTS, STATES, "model");
+        play(cache, 60, 62, 64);
+        play(cache, 70, 72);
+
+        PhraseCache small = new PhraseCache(3, OUTPUTS, STATES, "model");
+        small.load(new ByteArrayInputStream(save(cache)));
+        assertEquals(3, small.size());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws Exception {
+        PhraseCache cache = new PhraseCache(10, OUTPUTS, STATES, "model");
+        play(cache, 60);
+        byte[] file = save(cache);
+
+        byte[] badMagic = file.clone();
+        badMagic[0] = 'X';
+        assertRejected(new PhraseCache(10, OUTPUTS, STATES, "model"), badMagic);
+        assertRejected(new PhraseCache(10, OUTPUTS, STATES, "other model"), file);
+        assertRejected(new PhraseCache(10, OUTPUTS, STATES + 1, "model"), file);
+        assertRejected(new PhraseCache(10, OUTPUTS + 1, STATES, "model"), file);
+    }
+
+    @Test
+    public void truncatedFileLeavesCacheUnchanged() throws Exception {
+        PhraseCache source = new PhraseCache(10, OUTPUTS, STATES, "model");
+        play(source, 70, 72);
+        byte[] file = save(source);
+
+        PhraseCache cache = new PhraseCache(10, OUTPUTS, STATES, "model");
+        play(cache, 60, 62);
+        for (int length = 0; length < file.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(file, 0, truncated, 0, length);
+            assertRejected(cache, truncated);
+        }
+        assertEquals(2, cache.size());
+        cache.reset();
+        assertTrue(hit(cache, 60));
+        assertTrue(hit(cache, 62));
+    }
+
+    // plays a phrase from a reset state, storing a result for every miss
+    private static void play(PhraseCache cache, int... keys) {
+        cache.reset();
+        for (int key : keys) {
+            if (!hit(cache, key)) {
+                float[] states = new float[STATES];
+                states[STATES - 1] = key * 10;
+                cache.store(key, true, new float[] {key, 1}, states);
+            }
+        }
+    }
+
+    private static boolean hit(PhraseCache cache, int key) {
+        return cache.advance(key, true, new float[OUTPUTS], new float[STATES]);
+    }
+
+    private static byte[] save(PhraseCache cache) throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        cache.save(file);
+        return file.toByteArray();
+    }
+
+    private static void assertRejected(PhraseCache cache, byte[] file) {
+        try {
+            cache.load(new ByteArrayInputStream(file));
+            fail("loaded a file of " + file.length + " bytes");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.midi.MidiEvent;
+import com.levien.synthesizer.core.midi.MidiFile;
+import com.levien.synthesizer.core.midi.MidiHeader;
+import com.levien.synthesizer.core.midi.MidiTrack;
+import com.levien.synthesizer.core.midi.MidiWriter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SequenceAccompanistTest {
+
+    private static final int PPQ = 480;
+
+    // the triad stand-in for the model, recording what it is fed
+    private static class RecordingAccompanist extends AccompanimentEngineTest.TriadAccompanist {
+        final List<String> calls = new ArrayList<String>();
+
+        public List<Note> getNextVoices(Note melodyNote) {
+            calls.add(melodyNote.getKey() + (melodyNote.getStrike() ? "!" : ""));
+            return super.getNextVoices(melodyNote);
+        }
+
+        public void reset() {
+            calls.add("reset");
+        }
+    }
+
+    @Test
+    public void accompaniesPhrases() throws Exception {
+        Note rest = new Note(0, false);
+        Note[] melody = {
+                rest, new Note(67, true), new Note(67, false), rest,
+                new Note(69, true), rest, rest, rest,
+                // a silent beat ends the phrase
+                rest, rest, rest, rest,
+                new Note(71, true)};
+        RecordingAccompanist model = new RecordingAccompanist();
+        Note[][] voices = new SequenceAccompanist(model).accompany(melody);
+
+        // a rest within the beat holds the melody note
+        assertEquals("[reset, 67!, 67, 67, 69!, 69, 69, 69, reset, 71!]", model.calls.toString());
+        assertEquals(melody.length, voices.length);
+        assertNull(voices[0]);
+        assertNull(voices[8]);
+        assertEquals(3, voices[1].length);
+        assertEquals(62, voices[1][0].getKey());
+        assertTrue(voices[1][0].getStrike());
+        assertFalse(voices[3][0].getStrike());
+        assertEquals(66, voices[12][0].getKey());
+    }
+
+    @Test
+    public void harmonizesMidiFile() throws Exception {
+        byte[] input = melodyFile(67, 69, 71);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new SequenceAccompanist(new AccompanimentEngineTest.TriadAccompanist())
+                .harmonize(new ByteArrayInputStream(input), output);
+
+        MidiFile file = new MidiFile(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(3, file.getTrackCount());
+        assertEquals(MidiHeader.Format.MULTIPLE_TRACKS_SYNCH, file.getHeader().getFormat());
+        // melody and voices on their channels, each quarter long
+        int[] keys = {67, 62, 59, 43, 69, 64, 61, 45, 71, 66, 63, 47};
+        List<long[]> notes = noteOns(file.getTrack(2));
+        assertEquals(keys.length, notes.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals("time of " + i, (i / 4) * PPQ, notes.get(i)[0]);
+            assertEquals("channel of " + i, i % 4, notes.get(i)[1]);
+            assertEquals("key of " + i, keys[i], notes.get(i)[2]);
+        }
+    }
+
+    @Test
+    public void harmonizesFiles() throws Exception {
+        File input = File.createTempFile("melody", ".mid");
+        File output = File.createTempFile("accompanied", ".mid");
+        try {
+            FileOutputStream out = new FileOutputStream(input);
+            out.write(melodyFile(60, 62));
+            out.close();
+            new SequenceAccompanist(new AccompanimentEngineTest.TriadAccompanist())
+                    .harmonize(input, output);
+
+            FileInputStream in = new FileInputStream(output);
+            MidiFile file = new MidiFile(in);
+            in.close();
+            assertEquals(3, file.getTrackCount());
+            assertEquals(8, noteOns(file.getTrack(2)).size());
+        } finally {
+            input.delete();
+            output.delete();
+        }
+    }
+
+    @Test
+    public void rejectsFileWithoutNotes() throws Exception {
+        MidiFile file = new MidiFile();
+        file.getHeader().setTicksPerBeat(PPQ);
+        file.getHeader().setTrackCount(1);
+        file.addTrack().addEvent(new MidiEvent(0, new byte[] {(byte) 0xff, 0x2f, 0}));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MidiWriter.writeMidiFile(bytes, file);
+        assertEquals(-1, SequenceAccompanist.findMelodyTrack(file));
+        try {
+            new SequenceAccompanist(new AccompanimentEngineTest.TriadAccompanist())
+                    .harmonize(new ByteArrayInputStream(bytes.toByteArray()),
+                            new ByteArrayOutputStream());
+            fail("harmonized a file without notes");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void quantizesToSixteenths() throws Exception {
+        MidiTrack track = new MidiTrack();
+        // a quarter played slightly late and short, an eighth, a rest, an early quarter
+        noteOn(track, 10, 67);
+        noteOff(track, 400, 67);
+        noteOn(track, 70, 69);
+        noteOff(track, 240, 69);
+        noteOn(track, 470, 71);
+        noteOff(track, 480, 71);
+
+        Note[] melody = SequenceAccompanist.quantize(track, PPQ);
+        int[] keys = {67, 67, 67, 67, 69, 69, 0, 0, 0, 0, 71, 71, 71, 71};
+        assertEquals(keys.length, melody.length);
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals("key at " + i, keys[i], melody[i].getKey());
+            assertEquals("strike at " + i, i == 0 || i == 4 || i == 10, melody[i].getStrike());
+        }
+    }
+
+    @Test
+    public void writesVoicesOnTheirChannels() throws Exception {
+        Note[] melody = {new Note(72, true), new Note(72, false), new Note(74, true)};
+        Note[][] voices = {
+                {new Note(67, true), new Note(64, true), new Note(48, true)},
+                {new Note(65, false), new Note(64, false), new Note(48, false)},
+                {new Note(65, true), new Note(64, false), new Note(55, true)},
+        };
+        MidiTrack track = new MidiTrack();
+        SequenceAccompanist.writeTrack(melody, voices, PPQ, track);
+
+        // tick 0: four note-ons; tick 2: melody, voice 1 and voice 3 change
+        // (the unstruck key change of voice 1 at tick 1 is ignored); end: four note-offs
+        assertEquals(4 + 6 + 4 + 1, track.getEventCount());
+        assertMessage(track.getEvent(0), 0, 0x90, 72);
+        assertMessage(track.getEvent(3), 0, 0x93, 48);
+        assertMessage(track.getEvent(4), PPQ / 2, 0x80, 72);
+        assertMessage(track.getEvent(5), 0, 0x81, 67);
+        assertMessage(track.getEvent(6), 0, 0x83, 48);
+        assertMessage(track.getEvent(7), 0, 0x90, 74);
+        assertMessage(track.getEvent(8), 0, 0x91, 65);
+        assertMessage(track.getEvent(9), 0, 0x93, 55);
+        assertMessage(track.getEvent(10), PPQ / 4, 0x80, 74);
+        assertEquals((byte) 0xff, track.getEvent(14).getMessage()[0]);
+    }
+
+    // a file with a conductor track and a melody of quarters
+    private static byte[] melodyFile(int... keys) throws IOException {
+        MidiFile file = new MidiFile();
+        file.getHeader().setFormat(MidiHeader.Format.MULTIPLE_TRACKS_SYNCH);
+        file.getHeader().setTicksPerBeat(PPQ);
+        file.getHeader().setTrackCount(2);
+        file.addTrack().addEvent(new MidiEvent(0, new byte[] {(byte) 0xff, 0x2f, 0}));
+        MidiTrack melody = file.addTrack();
+        for (int key : keys) {
+            noteOn(melody, 0, key);
+            noteOff(melody, PPQ, key);
+        }
+        melody.addEvent(new MidiEvent(0, new byte[] {(byte) 0xff, 0x2f, 0}));
+        assertEquals(1, SequenceAccompanist.findMelodyTrack(file));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MidiWriter.writeMidiFile(bytes, file);
+        return bytes.toByteArray();
+    }
+
+    // time, channel and key of the note-ons of a track
+    private static List<long[]> noteOns(MidiTrack track) {
+        List<long[]> notes = new ArrayList<long[]>();
+        long time = 0;
+        for (int i = 0; i < track.getEventCount(); i++) {
+            MidiEvent event = track.getEvent(i);
+            time += event.getDeltaTime();
+            byte[] message = event.getMessage();
+            if ((message[0] & 0xf0) == 0x90 && message[2] > 0)
+                notes.add(new long[] {time, message[0] & 0x0f, message[1]});
+        }
+        return notes;
+    }
+
+    private static void assertMessage(MidiEvent event, long delta, int status, int key) {
+        assertEquals(delta, event.getDeltaTime());
+        assertEquals(status, event.getMessage()[0] & 0xff);
+        assertEquals(key, event.getMessage()[1]);
+    }
+
+    private static void noteOn(MidiTrack track, long delta, int key) {
+        track.addEvent(new MidiEvent(delta, new byte[] {(byte) 0x90, (byte) key, 80}));
+    }
+
+    private static void noteOff(MidiTrack track, long delta, int key) {
+        track.addEvent(new MidiEvent(delta, new byte[] {(byte) 0x80, (byte) key, 0}));
+    }
+}
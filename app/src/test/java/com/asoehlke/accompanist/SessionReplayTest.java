@@ -0,0 +1,125 @@
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.midi.MidiAdapter;
+import com.levien.synthesizer.core.midi.MidiListener;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records a session played live in virtual time and replays it from its binary log.
+ */
+public class SessionReplayTest {
+
+    private static final long MS = 1000000L;
+
+    private static final int[] MELODY = {67, 69, 71, 72, 74, 72, 71, 69, 67, 66, 67};
+
+    // plays the melody phrases into the engine like a player, with a pause between them
+    static SessionLog playLive(int phrases, long inferenceLatency) {
+        VirtualScheduler scheduler = new VirtualScheduler(1000 * MS);
+        SessionRecorder recorder = new SessionRecorder(scheduler);
+        AccompanimentEngine engine = new AccompanimentEngine(
+                recorder.tap(SessionLog.SOURCE_OUTPUT), scheduler,
+                scheduler.delayingExecutor(inferenceLatency), AccompanistLog.SILENT);
+        engine.setTickClock(scheduler);
+        engine.setAccompanist(new AccompanimentEngineTest.TriadAccompanist());
+        MidiListener input = recorder.tap(SessionLog.SOURCE_INPUT, engine);
+
+        long beat = 600 * MS;
+        long time = scheduler.nanoTime() + beat;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            input.onController(0, 1, phrase % 128);
+            for (int i = 0; i < MELODY.length; i++) {
+                // a little human timing
+                long onset = time + ((i * 7) % 5 - 2) * 4 * MS;
+                scheduler.runUntil(onset);
+                input.onNoteOn(0, MELODY[i] + phrase % 3, 90);
+                scheduler.runUntil(onset + beat * 9 / 10);
+                input.onNoteOff(0, MELODY[i] + phrase % 3, 0);
+                time += beat;
+            }
+            time += 4 * beat;
+        }
+        scheduler.runUntil(time + 5000 * MS);
+        engine.close();
+        scheduler.runUntil(time + 5000 * MS + inferenceLatency);
+        return recorder.snapshot();
+    }
+
+    private static SessionLog roundTrip(SessionLog log) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        log.writeTo(bytes);
+        return SessionLog.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test
+    public void replayReproducesTheSession() throws Exception {
+        SessionLog live = playLive(3, 5 * MS);
+        SessionLog log = roundTrip(live);
+        assertEquals(live, log);
+
+        SessionReplay replay = new SessionReplay(log);
+        replay.setInferenceLatency(5 * MS);
+        SessionLog replayed = replay.run(new AccompanimentEngineTest.TriadAccompanist());
+
+        assertEquals(live.select(SessionLog.SOURCE_INPUT), replayed.select(SessionLog.SOURCE_INPUT));
+        SessionLog expected = live.select(SessionLog.SOURCE_OUTPUT);
+        SessionLog actual = replayed.select(SessionLog.SOURCE_OUTPUT);
+        assertEquals(expected, actual);
+        // the controller changes reach the synth too
+        assertEquals(0xB0, actual.getStatus(0));
+    }
+
+    @Test
+    public void slowerModelIsReproducible() throws Exception {
+        SessionReplay replay = new SessionReplay(playLive(2, 5 * MS));
+        replay.setInferenceLatency(80 * MS);
+        SessionLog first = replay.run(new AccompanimentEngineTest.TriadAccompanist());
+        assertTrue(replay.getTickStats().toString(), replay.getTickStats().getLate() > 0);
+        SessionLog second = replay.run(new AccompanimentEngineTest.TriadAccompanist());
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void replaysFasterThanRealTime() throws Exception {
+        SessionLog log = playLive(40, 5 * MS);
+        SessionReplay replay = new SessionReplay(log);
+        replay.run(new AccompanimentEngineTest.TriadAccompanist());
+        long start = System.nanoTime();
+        SessionLog replayed = replay.run(new AccompanimentEngineTest.TriadAccompanist());
+        double wall = System.nanoTime() - start;
+        double session = log.getTime(log.size() - 1) - log.getTime(0);
+        System.out.println(String.format("replayed %s in %.1f ms, %.0fx real time",
+                replayed, wall / 1e6, session / wall));
+        assertTrue(session / wall > 50);
+    }
+
+    @Test
+    public void fullRingOverwritesOldest() throws Exception {
+        VirtualScheduler clock = new VirtualScheduler(0);
+        SessionRecorder recorder = new SessionRecorder(clock, 2);
+        MidiListener tap = recorder.tap(SessionLog.SOURCE_USB, new MidiAdapter());
+        tap.onNoteOn(0, 60, 100);
+        tap.onPitchBend(3, 0x2345);
+        clock.advance(1500 * MS);
+        tap.onTimingClock();
+        assertEquals(1, recorder.getDropped());
+
+        SessionLog log = roundTrip(recorder.snapshot());
+        assertEquals(2, log.size());
+        assertEquals("0.000000000 usb e3 45 46", log.toString(0));
+        assertEquals("1.500000000 usb f8 00 00", log.toString(1));
+        final int[] bend = new int[1];
+        log.dispatch(0, new MidiAdapter() {
+            public void onPitchBend(int channel, int value) {
+                bend[0] = value;
+            }
+        });
+        assertEquals(0x2345, bend[0]);
+    }
+}
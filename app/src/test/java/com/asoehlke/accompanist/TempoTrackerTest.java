@@ -0,0 +1,120 @@
+package com.asoehlke.accompanist;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Offline evaluation of the tempo tracker on performances of chorale melodies at
+ * different tempos, with human timing jitter and a slowly drifting tempo.
+ * Prints the tracker against the fixed 60 bpm grid used before.
+ */
+public class TempoTrackerTest {
+
+    // melody rhythms in 16ths, mostly quarters like the chorales the model learnt
+    private static final int[][] PHRASES = {
+            {4, 4, 4, 4, 4, 2, 2, 4, 4, 8},
+            {4, 4, 2, 2, 4, 4, 4, 4, 4, 8},
+            {4, 2, 2, 4, 4, 6, 2, 4, 4, 8},
+            {4, 4, 4, 2, 2, 2, 2, 4, 4, 4, 8},
+    };
+
+    private static final double[] TEMPOS = {50, 60, 72, 90, 110, 130};
+
+    // standard deviation of the onset timing in nanoseconds
+    private static final double JITTER_NANOS = 15e6;
+    // depth of the slow tempo drift
+    private static final double DRIFT = 0.04;
+
+    private static class Result {
+        double finalBpm;
+        // mean distance of the onsets from the nearest tick, in 16ths
+        double meanPhaseError;
+        // share of onsets less than a quarter of a 16th from a tick
+        double inPhase;
+    }
+
+    @Test
+    public void tracksTempoAndPhase() throws Exception {
+        System.out.println("bpm   tracked  phase err (tracker / fixed 60)  in phase (tracker / fixed 60)");
+        for (double bpm : TEMPOS) {
+            long[] onsets = perform(bpm, new Random(42));
+            Result tracked = evaluate(onsets, new TempoTracker(60), true);
+            Result fixed = evaluate(onsets, new TempoTracker(60), false);
+            System.out.println(String.format("%5.0f %7.1f  %5.3f / %5.3f  %5.3f / %5.3f",
+                    bpm, tracked.finalBpm, tracked.meanPhaseError, fixed.meanPhaseError,
+                    tracked.inPhase, fixed.inPhase));
+
+            assertEquals("tempo at " + bpm, 1, tracked.finalBpm / bpm, 0.05);
+            assertTrue("in phase at " + bpm, tracked.inPhase > 0.6);
+            assertTrue("better than fixed grid at " + bpm,
+                    tracked.meanPhaseError < fixed.meanPhaseError);
+        }
+    }
+
+    @Test
+    public void newPhraseStartsOnTheBeat() throws Exception {
+        TempoTracker tracker = new TempoTracker(60);
+        long second = 1000000000L;
+        tracker.onNoteOn(10 * second);
+        assertEquals(10 * second, tracker.nextTickTime(10 * second));
+        assertEquals(10 * second + 250000000L, tracker.nextTickTime(10 * second + 1));
+    }
+
+    // onset times of all phrases played one after the other, with a pause in between
+    private static long[] perform(double bpm, Random random) {
+        int count = 0;
+        for (int[] phrase : PHRASES) {
+            count += phrase.length;
+        }
+        long[] onsets = new long[count];
+        double time = 1e9;
+        int i = 0;
+        int sixteenths = 0;
+        for (int[] phrase : PHRASES) {
+            for (int duration : phrase) {
+                onsets[i++] = Math.round(time + random.nextGaussian() * JITTER_NANOS);
+                double drift = 1 + DRIFT * Math.sin(2 * Math.PI * sixteenths / 128.0);
+                time += duration * 60e9 / (bpm * drift * 4);
+                sixteenths += duration;
+            }
+            time += 2 * 60e9 / bpm + 4e9;
+        }
+        return onsets;
+    }
+
+    private static Result evaluate(long[] onsets, TempoTracker tracker, boolean adapt) {
+        Result result = new Result();
+        int measured = 0;
+        int inPhase = 0;
+        double errorSum = 0;
+        int phraseStart = 0;
+        for (int i = 0; i < onsets.length; i++) {
+            long onset = onsets[i];
+            boolean newPhrase = i == 0 || onset - onsets[i - 1] > 3e9;
+            if (newPhrase) {
+                phraseStart = i;
+            }
+            // score every onset after the tempo of its phrase has been acquired
+            if (!newPhrase && i - phraseStart > 3) {
+                double tick = tracker.getTickNanos();
+                long next = tracker.nextTickTime(onset);
+                double error = Math.min(next - onset, onset - (next - tick)) / tick;
+                errorSum += error;
+                measured++;
+                if (error < 0.25) {
+                    inPhase++;
+                }
+            }
+            if (adapt || newPhrase) {
+                tracker.onNoteOn(onset);
+            }
+        }
+        result.finalBpm = tracker.getBpm();
+        result.meanPhaseError = errorSum / measured;
+        result.inPhase = (double) inPhase / measured;
+        return result;
+    }
+}
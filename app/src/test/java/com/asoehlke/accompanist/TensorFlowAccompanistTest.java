@@ -0,0 +1,154 @@
+package com.asoehlke.accompanist;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TensorFlowAccompanistTest {
+
+    private static final int VOICES = 3;
+
+    /**
+     * Stands in for the model: counts its runs in the state, and the voices move up
+     * by one key with every run, so skipped runs show in the keys.
+     */
+    private static class CountingAccompanist extends TensorFlowAccompanist {
+        int runs = 0;
+
+        CountingAccompanist() {
+            super(VOICES, 2, AccompanistLog.SILENT);
+        }
+
+        void runInference(int key, boolean strike, float[] states, float[] result) {
+            runs++;
+            states[0]++;
+            for (int i = 0; i < VOICES; i++) {
+                // decoded as key + 1
+                result[i] = key - 3 * (i + 1) - 1 + states[0];
+                result[i + VOICES] = strike ? 0.7f : 0.2f;
+            }
+        }
+    }
+
+    @Test
+    public void runsEveryTickByDefault() throws Exception {
+        CountingAccompanist accompanist = new CountingAccompanist();
+        play(accompanist, new Note(60, true), new Note(60, false), new Note(60, false));
+        assertEquals(3, accompanist.runs);
+        assertEquals(3, accompanist.getSkipStats().getInferences());
+        assertEquals(0, accompanist.getSkipStats().getSkipped());
+    }
+
+    @Test
+    public void strikeThresholdDecidesStrikes() throws Exception {
+        CountingAccompanist accompanist = new CountingAccompanist();
+        assertStrikes(true, accompanist.getNextVoices(new Note(60, true)));
+        assertStrikes(false, accompanist.getNextVoices(new Note(62, false)));
+
+        accompanist.setStrikeThreshold(0.8f);
+        assertStrikes(false, accompanist.getNextVoices(new Note(64, true)));
+        accompanist.setStrikeThreshold(0.1f);
+        assertStrikes(true, accompanist.getNextVoices(new Note(64, false)));
+    }
+
+    @Test
+    public void skipsSustainedTicksUpToTheInterval() throws Exception {
+        CountingAccompanist accompanist = new CountingAccompanist();
+        accompanist.setSustainInferenceInterval(4);
+        List<Note> struck = accompanist.getNextVoices(new Note(60, true));
+        for (int tick = 1; tick < 4; tick++) {
+            List<Note> held = accompanist.getNextVoices(new Note(60, false));
+            // the keys are held, the strikes of the last run are cleared
+            assertEquals(struck.get(0).getKey(), held.get(0).getKey());
+            assertStrikes(false, held);
+        }
+        assertEquals(1, accompanist.runs);
+
+        // the fourth sustained tick runs the model again
+        List<Note> next = accompanist.getNextVoices(new Note(60, false));
+        assertEquals(2, accompanist.runs);
+        assertEquals(struck.get(0).getKey() + 1, next.get(0).getKey());
+
+        // a strike or another key always runs the model
+        accompanist.getNextVoices(new Note(60, true));
+        accompanist.getNextVoices(new Note(62, false));
+        assertEquals(4, accompanist.runs);
+        assertEquals(4, accompanist.getSkipStats().getInferences());
+        assertEquals(3, accompanist.getSkipStats().getSkipped());
+    }
+
+    @Test
+    public void holdVoicesSkipsRegardlessOfInterval() throws Exception {
+        CountingAccompanist accompanist = new CountingAccompanist();
+        accompanist.getNextVoices(new Note(60, true));
+        assertStrikes(false, accompanist.holdVoices(new Note(64, true)));
+        assertEquals(1, accompanist.runs);
+        assertEquals(1, accompanist.getSkipStats().getSkipped());
+    }
+
+    @Test
+    public void countsDivergenceFromTheReference() throws Exception {
+        CountingAccompanist accompanist = new CountingAccompanist();
+        accompanist.setSustainInferenceInterval(4);
+        accompanist.setDivergenceTracking(true);
+
+        // nothing diverges, and the reference costs nothing, before the first skip
+        accompanist.getNextVoices(new Note(60, true));
+        SkipStats stats = accompanist.getSkipStats();
+        assertEquals(VOICES, stats.getComparedVoices());
+        assertEquals(0, stats.getDivergedVoices());
+        assertEquals(1, accompanist.runs);
+
+        // on skipped ticks the reference runs and moves its keys, the held ones do not
+        accompanist.getNextVoices(new Note(60, false));
+        accompanist.getNextVoices(new Note(60, false));
+        assertEquals(3 * VOICES, stats.getComparedVoices());
+        assertEquals(2 * VOICES, stats.getDivergedVoices());
+        assertEquals(2.0 / 3, stats.getDivergence(), 1e-9);
+        assertEquals(3, accompanist.runs);
+        assertEquals(1, stats.getInferences());
+
+        // a new phrase starts in step with the reference again
+        accompanist.reset();
+        accompanist.getNextVoices(new Note(60, true));
+        assertEquals(4 * VOICES, stats.getComparedVoices());
+        assertEquals(2 * VOICES, stats.getDivergedVoices());
+        assertEquals(4, accompanist.runs);
+    }
+
+    @Test
+    public void stopsComparingWithoutTracking() throws Exception {
+        CountingAccompanist accompanist = new CountingAccompanist();
+        accompanist.setSustainInferenceInterval(4);
+        accompanist.setDivergenceTracking(true);
+        accompanist.setDivergenceTracking(false);
+        play(accompanist, new Note(60, true), new Note(60, false), new Note(60, false));
+        assertEquals(1, accompanist.runs);
+        assertEquals(0, accompanist.getSkipStats().getComparedVoices());
+        assertEquals(0, accompanist.getSkipStats().getDivergence(), 0);
+    }
+
+    @Test
+    public void rejectsIntervalBelowOne() throws Exception {
+        try {
+            new CountingAccompanist().setSustainInferenceInterval(0);
+            fail("accepted interval 0");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static void play(Accompanist accompanist, Note... melody) {
+        for (Note note : melody) {
+            accompanist.getNextVoices(note);
+        }
+    }
+
+    private static void assertStrikes(boolean strike, List<Note> voices) {
+        assertEquals(VOICES, voices.size());
+        for (Note voice : voices) {
+            assertEquals(voice.toString(), strike, voice.getStrike());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.asoehlke.accompanist;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TickStatsTest {
+
+    @Test
+    public void countsTicksByOutcome() throws Exception {
+        TickStats stats = new TickStats();
+        stats.countOnTime();
+        stats.countOnTime();
+        stats.countLate();
+        stats.countDropped();
+        stats.countDropped();
+        stats.countDropped();
+
+        assertEquals(2, stats.getOnTime());
+        assertEquals(1, stats.getLate());
+        assertEquals(3, stats.getDropped());
+        assertEquals(4, stats.getOverruns());
+        assertTrue(stats.toString(),
+                stats.toString().startsWith("TickStats onTime=2 late=1 dropped=3"));
+    }
+
+    @Test
+    public void keepsLatenciesApart() throws Exception {
+        TickStats stats = new TickStats();
+        stats.getInferenceLatency().record(2000000);
+        stats.getTickLatency().record(7000000);
+        stats.getTickLatency().record(9000000);
+
+        assertEquals(1, stats.getInferenceLatency().getCount());
+        assertEquals(2000000, stats.getInferenceLatency().getMax());
+        assertEquals(2, stats.getTickLatency().getCount());
+        assertEquals(9000000, stats.getTickLatency().getMax());
+    }
+
+    @Test
+    public void countsFromSeveralThreads() throws Exception {
+        final TickStats stats = new TickStats();
+        final int ticks = 50000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < ticks; i++) {
+                        stats.countOnTime();
+                        stats.countLate();
+                        stats.getTickLatency().record(i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * ticks, stats.getOnTime());
+        assertEquals(threads.length * ticks, stats.getOverruns());
+        assertEquals(threads.length * ticks, stats.getTickLatency().getCount());
+    }
+}
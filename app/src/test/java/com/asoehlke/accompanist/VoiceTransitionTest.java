@@ -0,0 +1,100 @@
+package com.asoehlke.accompanist;
+
+import com.levien.synthesizer.core.midi.MessageOutputProcessor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the note events of voice transitions, as the synth gets them.
+ */
+public class VoiceTransitionTest {
+
+    // the messages as passed to the synth, one string per sendMidi()
+    private static class Synth extends MessageOutputProcessor {
+        final List<String> messages = new ArrayList<String>();
+
+        protected void onMessage(byte[] message) {
+            StringBuilder text = new StringBuilder();
+            for (byte b : message) {
+                if (text.length() > 0)
+                    text.append(' ');
+                text.append(String.format("%02x", b & 0xff));
+            }
+            messages.add(text.toString());
+        }
+    }
+
+    private static List<Note> voicing(int... keysAndStrikes) {
+        List<Note> notes = new ArrayList<Note>();
+        for (int key : keysAndStrikes)
+            notes.add(new Note(Math.abs(key), key > 0));
+        return notes;
+    }
+
+    @Test
+    public void sendsEachChangeAsOneMessage() throws Exception {
+        Synth synth = new Synth();
+        VoiceTransition voices = new VoiceTransition(0);
+
+        voices.moveTo(voicing(64, 60, 48), 100, synth);
+        assertEquals(Arrays.asList("90 40 64 90 3c 64 90 30 64"), synth.messages);
+
+        // tied voices stay, also where the model moved them, the struck one plays again
+        synth.messages.clear();
+        voices.moveTo(voicing(-65, 60, -47), 100, synth);
+        assertEquals(Arrays.asList("80 3c 64 90 3c 64"), synth.messages);
+        assertEquals(64, voices.getSounding().get(0).getKey());
+        assertEquals(48, voices.getSounding().get(2).getKey());
+
+        // nothing struck, nothing sent
+        synth.messages.clear();
+        voices.moveTo(voicing(-64, -60, -48), 100, synth);
+        assertTrue(synth.messages.isEmpty());
+
+        voices.release(0, synth);
+        assertEquals(Arrays.asList("80 40 00 80 3c 00 80 30 00"), synth.messages);
+        assertEquals(4, voices.getOnCount());
+        assertEquals(4, voices.getOffCount());
+    }
+
+    @Test
+    public void changingVoiceCountKeepsTiedNotes() throws Exception {
+        Synth synth = new Synth();
+        VoiceTransition voices = new VoiceTransition(0);
+        voices.moveTo(voicing(64, 60, 48), 100, synth);
+
+        // the middle voice drops out, the others are tied
+        synth.messages.clear();
+        voices.moveTo(voicing(-64, -48), 100, synth);
+        assertEquals(Arrays.asList("80 3c 64"), synth.messages);
+
+        // a new voice joins, tied to nothing so it starts
+        synth.messages.clear();
+        voices.moveTo(voicing(-64, -55, -48), 100, synth);
+        assertEquals(Arrays.asList("90 37 64"), synth.messages);
+        assertEquals(3, voices.getSounding().size());
+    }
+
+    @Test
+    public void otherThreadsAreNotBatched() throws Exception {
+        final Synth synth = new Synth();
+        synth.onBatchBegin();
+        synth.onNoteOn(0, 60, 100);
+        Thread other = new Thread(new Runnable() {
+            public void run() {
+                synth.onNoteOn(1, 62, 100);
+            }
+        });
+        other.start();
+        other.join();
+        synth.onNoteOn(0, 64, 100);
+        synth.onBatchEnd();
+        assertEquals(Arrays.asList("91 3e 64", "90 3c 64 90 40 64"), synth.messages);
+    }
+}
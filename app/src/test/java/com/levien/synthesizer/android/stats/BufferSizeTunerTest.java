@@ -0,0 +1,73 @@
+package com.levien.synthesizer.android.stats;
+
+import com.levien.synthesizer.core.stats.LatencyHistogram;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the tuner with a simulated device on which buffers below a size have xruns.
+ */
+public class BufferSizeTunerTest {
+  private static final int SAMPLE_RATE = 48000;
+
+  // One second of callbacks at the tuner's size on a device that needs minSize frames;
+  // the callbacks take a fixed share of the period.
+  private static class Device {
+    final int minSize;
+    long callbacks;
+    long xruns;
+    final LatencyHistogram callbackTime = new LatencyHistogram();
+
+    Device(int minSize) {
+      this.minSize = minSize;
+    }
+
+    JitterStats.Snapshot second(BufferSizeTuner tuner) {
+      long n = SAMPLE_RATE / tuner.getBufferSize();
+      callbacks += n;
+      for (int i = 0; i < n; i++) {
+        callbackTime.record(tuner.getPeriodNanos() / 5);
+      }
+      if (tuner.getBufferSize() < minSize) {
+        xruns += 3;
+      }
+      return new JitterStats.Snapshot(callbacks, callbackTime, xruns, 0, 0);
+    }
+
+    void reset() {
+      callbacks = 0;
+      xruns = 0;
+      callbackTime.reset();
+    }
+  }
+
+  private static int run(BufferSizeTuner tuner, Device device, int seconds) {
+    for (int i = 0; i < seconds; i++) {
+      int size = tuner.getBufferSize();
+      if (tuner.update(device.second(tuner)) != size) {
+        device.reset();
+      }
+    }
+    return tuner.getBufferSize();
+  }
+
+  @Test
+  public void stepsUpToStableSize() {
+    BufferSizeTuner tuner = new BufferSizeTuner(SAMPLE_RATE, 64);
+    Device device = new Device(192);
+    assertEquals(192, run(tuner, device, 10));
+    // probing the smaller size again fails, after the second failure it stays
+    assertEquals(192, run(tuner, device, 200));
+    assertTrue(tuner.isStable());
+  }
+
+  @Test
+  public void probesDownToSmallestStableSize() {
+    BufferSizeTuner tuner = new BufferSizeTuner(SAMPLE_RATE, 500);
+    assertEquals(512, tuner.getBufferSize());
+    Device device = new Device(128);
+    assertEquals(128, run(tuner, device, 300));
+  }
+}
@@ -0,0 +1,41 @@
+package com.levien.synthesizer.android.stats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decodes the array android_glue fills from the native aggregate.
+ */
+public class DspLoadTest {
+  private static final long PERIOD = 1333333;  // 64 frames at 48 kHz
+
+  @Test
+  public void decodesSectionsAndVoices() {
+    long[] fields = new long[DspLoad.FIELDS];
+    fields[0] = 100;  // callbacks
+    fields[1] = 100;  // blocks
+    fields[2] = 450;  // voices summed over the blocks
+    fields[3] = 7;
+    fields[4] = 900000;
+    fields[5] = 12;  // retired voices
+    fields[6] = 3;  // stolen voices
+    long[] nanos = {2000000, 0, 60000000, 15000000, 3000000};
+    for (int i = 0; i < DspLoad.SECTIONS; i++) {
+      fields[7 + i] = nanos[i];
+      fields[7 + DspLoad.SECTIONS + i] = nanos[i] / 50;
+    }
+    DspLoad load = new DspLoad(fields);
+    System.out.println(load);
+
+    assertEquals(100, load.getCallbacks());
+    assertEquals(4.5, load.getMeanVoices(), 1e-9);
+    assertEquals(7, load.getMaxVoices());
+    assertEquals(12, load.getRetiredVoices());
+    assertEquals(3, load.getStolenVoices());
+    assertEquals(60000000, load.getSectionNanos(DspLoad.SECTION_VOICES));
+    assertEquals(300000, load.getSectionMaxNanos(DspLoad.SECTION_FILTER));
+    assertEquals(0.75, load.getShare(DspLoad.SECTION_VOICES), 1e-9);
+    assertEquals(0.6, load.getLoad(PERIOD), 0.01);
+  }
+}
@@ -0,0 +1,91 @@
+package com.levien.synthesizer.android.stats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decodes callback records laid out like android_glue writes them.
+ */
+public class JitterStatsTest {
+  private static final long PERIOD = 1333333;  // 64 frames at 48 kHz
+
+  private static void putLong(byte[] buf, int off, long value) {
+    for (int i = 0; i < 8; i++) {
+      buf[off + i] = (byte)(value >> (8 * i));
+    }
+  }
+
+  private static void putInt(byte[] buf, int off, int value) {
+    for (int i = 0; i < 4; i++) {
+      buf[off + i] = (byte)(value >> (8 * i));
+    }
+  }
+
+  private static byte[] records(long[] starts, long[] durations, int[] dropped) {
+    byte[] buf = new byte[starts.length * JitterStats.RECORD_SIZE];
+    for (int i = 0; i < starts.length; i++) {
+      int off = i * JitterStats.RECORD_SIZE;
+      putLong(buf, off, starts[i]);
+      putLong(buf, off + 8, starts[i] + durations[i]);
+      putInt(buf, off + 16, 64);
+      putInt(buf, off + 20, dropped[i]);
+    }
+    return buf;
+  }
+
+  @Test
+  public void countsXrunsAndPercentiles() {
+    int n = 1000;
+    long[] starts = new long[n];
+    long[] durations = new long[n];
+    int[] dropped = new int[n];
+    long time = 5000000000L;
+    for (int i = 0; i < n; i++) {
+      // one slow callback, one late wake-up, a gap in the records
+      if (i == 500) {
+        time += 3 * PERIOD;
+      }
+      starts[i] = time;
+      durations[i] = i == 100 ? 2 * PERIOD : 300000 + (i % 10) * 10000;
+      dropped[i] = i == 800 ? 7 : 0;
+      time += PERIOD;
+    }
+    byte[] buf = records(starts, durations, dropped);
+
+    JitterStats stats = new JitterStats(PERIOD);
+    // split inside a record, like a read that got only part of the ring
+    int split = 10 * JitterStats.RECORD_SIZE + 5;
+    stats.aggregate(buf, 0, split);
+    stats.aggregate(buf, split, buf.length - split);
+
+    JitterStats.Snapshot snapshot = stats.snapshot();
+    assertEquals(n, snapshot.callbacks);
+    assertEquals(1, snapshot.overruns);
+    assertEquals(1, snapshot.lateStarts);
+    assertEquals(2, snapshot.getXruns());
+    assertEquals(7, snapshot.dropped);
+    assertEquals(2 * PERIOD, snapshot.max);
+    assertEquals(340000, snapshot.p50, 340000 * 0.13);
+    assertEquals(390000, snapshot.p99, 390000 * 0.13);
+
+    stats.reset();
+    assertEquals(0, stats.snapshot().callbacks);
+  }
+
+  @Test
+  public void pauseIsNoLateStart() {
+    long[] starts = {1000000000L, 1000000000L + PERIOD, 9000000000L, 9000000000L + PERIOD};
+    long[] durations = {300000, 300000, 300000, 300000};
+    int[] dropped = new int[4];
+    byte[] buf = records(starts, durations, dropped);
+    // the player was resumed before the third callback
+    buf[2 * JitterStats.RECORD_SIZE + 22] = 1;
+
+    JitterStats stats = new JitterStats(PERIOD);
+    stats.aggregate(buf, 0, buf.length);
+    assertEquals(4, stats.snapshot().callbacks);
+    assertEquals(0, stats.snapshot().getXruns());
+    assertEquals(0, stats.snapshot().dropped);
+  }
+}
@@ -0,0 +1,57 @@
+package com.levien.synthesizer.android.stats;
+
+import com.levien.synthesizer.android.AndroidGlue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds the budget the load of a simulated device on which a voice takes a fixed time.
+ */
+public class VoiceBudgetTest {
+  private static final int SAMPLE_RATE = 48000;
+  // 64 frames at 48 kHz
+  private static final long BLOCK_NANOS = 1333333;
+
+  // DspLoad after one more second of voices rendering, voiceNanos per voice and block
+  private static class Device {
+    long voiceBlocks;
+    long voiceSectionNanos;
+
+    DspLoad second(int voices, long voiceNanos) {
+      long blocks = SAMPLE_RATE / VoiceBudget.BLOCK_FRAMES * voices;
+      voiceBlocks += blocks;
+      voiceSectionNanos += blocks * voiceNanos;
+      long[] fields = new long[DspLoad.FIELDS];
+      fields[2] = voiceBlocks;
+      fields[7 + DspLoad.SECTION_VOICES] = voiceSectionNanos;
+      return new DspLoad(fields);
+    }
+  }
+
+  @Test
+  public void capsSlowDeviceAndRecovers() {
+    VoiceBudget budget = new VoiceBudget(SAMPLE_RATE, 32);
+    Device device = new Device();
+    // one voice plays, too few blocks for a window
+    assertEquals(32, budget.update(device.second(1, BLOCK_NANOS / 20)));
+    // 20 voices fit into the full block, 8 into the budget
+    assertEquals(8, budget.update(device.second(4, BLOCK_NANOS / 20)));
+    assertEquals(BLOCK_NANOS / 20, budget.getVoiceNanos(), 1);
+
+    // the device got faster, one more voice per window
+    assertEquals(9, budget.update(device.second(4, BLOCK_NANOS / 100)));
+    assertEquals(10, budget.update(device.second(4, BLOCK_NANOS / 100)));
+  }
+
+  @Test
+  public void neverBelowMinimum() {
+    VoiceBudget budget = new VoiceBudget(SAMPLE_RATE, 16);
+    Device device = new Device();
+    budget.update(device.second(2, BLOCK_NANOS));
+    assertEquals(VoiceBudget.MIN_POLYPHONY, budget.getPolyphony());
+    // a chord on the accompaniment part and a melody voice still sound
+    assertEquals(AndroidGlue.PART_VOICES + 1, budget.getPolyphony());
+  }
+}
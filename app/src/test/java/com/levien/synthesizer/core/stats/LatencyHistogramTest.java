@@ -0,0 +1,120 @@
+package com.levien.synthesizer.core.stats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the bucket boundaries the percentiles are rounded to, and recording from
+ * several threads at once.
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void emptyHistogramReportsZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getPercentile(0.5));
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    // below 16 ns every value has its own bucket
+    for (long nanos = 0; nanos < 16; nanos++) {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(nanos);
+      histogram.record(100);
+      assertEquals("p50 of " + nanos, nanos, histogram.getPercentile(0.5));
+    }
+  }
+
+  @Test
+  public void percentilesAreBucketUpperBounds() {
+    // 16 and 17 share a bucket, 18 starts the next one
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(16);
+    histogram.record(18);
+    assertEquals(17, histogram.getPercentile(0.5));
+    assertEquals(18, histogram.getPercentile(1.0));
+
+    // every power of two is split into 8 buckets: 1024 to 1151 is one of them
+    histogram = new LatencyHistogram();
+    histogram.record(1024);
+    histogram.record(1152);
+    histogram.record(5000);
+    assertEquals(1151, histogram.getPercentile(0.3));
+    assertEquals(1279, histogram.getPercentile(0.6));
+  }
+
+  @Test
+  public void percentileNeverExceedsMax() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1024);
+    assertEquals(1024, histogram.getPercentile(0.99));
+    assertEquals(1024, histogram.getMax());
+  }
+
+  @Test
+  public void rankRoundsUp() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 10; i++) {
+      histogram.record(i);
+    }
+    assertEquals(1, histogram.getPercentile(0));
+    assertEquals(5, histogram.getPercentile(0.5));
+    assertEquals(6, histogram.getPercentile(0.51));
+    assertEquals(10, histogram.getPercentile(0.999));
+  }
+
+  @Test
+  public void extremeValuesDoNotOverflow() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+    histogram.record(Long.MAX_VALUE - 1);
+    assertEquals(3, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(0.1));
+    assertEquals(Long.MAX_VALUE, histogram.getPercentile(1.0));
+    assertEquals(Long.MAX_VALUE, histogram.getMax());
+    assertTrue(histogram.toString().startsWith("n=3 p50="));
+  }
+
+  @Test
+  public void resetForgetsEverything() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1000);
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    histogram.record(20);
+    assertEquals(20, histogram.getPercentile(1.0));
+  }
+
+  @Test
+  public void recordsFromSeveralThreads() throws Exception {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final int threads = 8;
+    final int records = 100000;
+    Thread[] recorders = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final long offset = t;
+      recorders[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < records; i++) {
+            histogram.record(i % 1000 + offset);
+          }
+        }
+      };
+      recorders[t].start();
+    }
+    for (Thread recorder : recorders) {
+      recorder.join();
+    }
+    assertEquals(threads * records, histogram.getCount());
+    assertEquals(999 + threads - 1, histogram.getMax());
+    // half of the values are below 500, give or take a bucket
+    long median = histogram.getPercentile(0.5);
+    assertTrue("median " + median, median >= 500 && median < 560);
+  }
+}
@@ -0,0 +1,100 @@
+package com.levien.synthesizer.core.stats;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Follows traces through the stages and the native records like android_glue writes them,
+ * and replays written traces.
+ */
+public class LatencyTracerTest {
+
+  private static byte[] nativeRecord(int id, long transfer, long enqueue) {
+    byte[] buf = new byte[LatencyTracer.NATIVE_RECORD_SIZE];
+    for (int i = 0; i < 4; i++) {
+      buf[i] = (byte)(id >> (8 * i));
+    }
+    for (int i = 0; i < 8; i++) {
+      buf[8 + i] = (byte)(transfer >> (8 * i));
+      buf[16 + i] = (byte)(enqueue >> (8 * i));
+    }
+    return buf;
+  }
+
+  @Test
+  public void completesTraceFromNativeRecord() {
+    LatencyTracer tracer = new LatencyTracer();
+    long touch = System.nanoTime() - 5000000;
+    tracer.begin(touch);
+    tracer.mark(LatencyTracer.STAGE_LISTENER);
+    int id = tracer.takeForSend();
+    assertTrue(id >= 0);
+    // the trace has been handed over
+    assertEquals(-1, tracer.takeForSend());
+    long transfer = System.nanoTime() + 1000000;
+    byte[] record = nativeRecord(id, transfer, transfer + 300000);
+    tracer.addNativeRecords(record, 0, record.length);
+
+    assertEquals(1, tracer.getTotalLatency().getCount());
+    long[][] traces = tracer.getTraces();
+    assertEquals(1, traces.length);
+    assertEquals(touch, traces[0][LatencyTracer.STAGE_TOUCH]);
+    assertEquals(transfer, traces[0][LatencyTracer.STAGE_TRANSFER]);
+    for (int stage = 1; stage < LatencyTracer.STAGES; stage++) {
+      assertTrue("stage " + stage, traces[0][stage] >= traces[0][stage - 1]);
+    }
+    assertEquals(300000, tracer.getStageLatency(LatencyTracer.STAGE_ENQUEUE).getMax());
+
+    // a record for a trace that is not pending is ignored
+    tracer.addNativeRecords(record, 0, record.length);
+    assertEquals(1, tracer.getTotalLatency().getCount());
+  }
+
+  @Test
+  public void newTouchReplacesTraceInFlight() {
+    LatencyTracer tracer = new LatencyTracer();
+    tracer.begin(System.nanoTime());
+    tracer.begin(System.nanoTime());
+    int id = tracer.takeForSend();
+    long now = System.nanoTime();
+    byte[] replaced = nativeRecord(id - 1, now, now);
+    tracer.addNativeRecords(replaced, 0, replaced.length);
+    assertEquals(0, tracer.getTotalLatency().getCount());
+    byte[] record = nativeRecord(id, now, now);
+    tracer.addNativeRecords(record, 0, record.length);
+    assertEquals(1, tracer.getTotalLatency().getCount());
+  }
+
+  @Test
+  public void replaysWrittenTraces() throws Exception {
+    LatencyTracer tracer = new LatencyTracer();
+    long[] trace = new long[LatencyTracer.STAGES];
+    for (int i = 0; i < 200; i++) {
+      long time = 1000000000L * i;
+      for (int stage = 0; stage < LatencyTracer.STAGES; stage++) {
+        trace[stage] = time;
+        time += (stage + 1) * 1000000L + i * 1000;
+      }
+      tracer.record(trace);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    tracer.writeTo(out);
+    LatencyTracer replayed = LatencyTracer.read(new ByteArrayInputStream(out.toByteArray()));
+    System.out.println(replayed);
+
+    assertTrue(Arrays.deepEquals(tracer.getTraces(), replayed.getTraces()));
+    for (int stage = 1; stage < LatencyTracer.STAGES; stage++) {
+      LatencyHistogram expected = tracer.getStageLatency(stage);
+      LatencyHistogram actual = replayed.getStageLatency(stage);
+      assertEquals(expected.getPercentile(0.5), actual.getPercentile(0.5));
+      assertEquals(expected.getMax(), actual.getMax());
+    }
+    assertEquals(tracer.getTotalLatency().getPercentile(0.99),
+        replayed.getTotalLatency().getPercentile(0.99));
+  }
+}